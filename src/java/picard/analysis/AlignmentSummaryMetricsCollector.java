@@ -128,6 +128,15 @@ public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMulti
             }
         }
 
+        @Override
+        public void merge(final PerUnitMetricCollector<AlignmentSummaryMetrics, Comparable<?>, SAMRecordAndReference> other) {
+            final GroupAlignmentSummaryMetricsPerUnitMetricCollector that = (GroupAlignmentSummaryMetricsPerUnitMetricCollector) other;
+            unpairedCollector.merge(that.unpairedCollector);
+            firstOfPairCollector.merge(that.firstOfPairCollector);
+            secondOfPairCollector.merge(that.secondOfPairCollector);
+            pairCollector.merge(that.pairCollector);
+        }
+
         @Override
         public void finish() {
             // Let the collectors do any summary computations etc.
@@ -195,6 +204,32 @@ public class AlignmentSummaryMetricsCollector extends SAMRecordAndReferenceMulti
                 collectQualityData(record, ref);
             }
 
+            /** Adds the counts accumulated by another collector of the same category to this one. */
+            public void merge(final IndividualAlignmentSummaryMetricsCollector other) {
+                numPositiveStrand          += other.numPositiveStrand;
+                chimeras                   += other.chimeras;
+                chimerasDenominator        += other.chimerasDenominator;
+                adapterReads               += other.adapterReads;
+                indels                     += other.indels;
+                nonBisulfiteAlignedBases   += other.nonBisulfiteAlignedBases;
+                hqNonBisulfiteAlignedBases += other.hqNonBisulfiteAlignedBases;
+                readLengthHistogram.addHistogram(other.readLengthHistogram);
+                mismatchHistogram.addHistogram(other.mismatchHistogram);
+                hqMismatchHistogram.addHistogram(other.hqMismatchHistogram);
+                badCycleHistogram.addHistogram(other.badCycleHistogram);
+
+                final AlignmentSummaryMetrics that = other.metrics;
+                metrics.TOTAL_READS             += that.TOTAL_READS;
+                metrics.PF_READS                += that.PF_READS;
+                metrics.PF_NOISE_READS          += that.PF_NOISE_READS;
+                metrics.PF_READS_ALIGNED        += that.PF_READS_ALIGNED;
+                metrics.READS_ALIGNED_IN_PAIRS  += that.READS_ALIGNED_IN_PAIRS;
+                metrics.PF_HQ_ALIGNED_READS     += that.PF_HQ_ALIGNED_READS;
+                metrics.PF_ALIGNED_BASES        += that.PF_ALIGNED_BASES;
+                metrics.PF_HQ_ALIGNED_BASES     += that.PF_HQ_ALIGNED_BASES;
+                metrics.PF_HQ_ALIGNED_Q20_BASES += that.PF_HQ_ALIGNED_Q20_BASES;
+            }
+
             public void onComplete() {
                 //summarize read data
                 if (metrics.TOTAL_READS > 0)
@@ -143,6 +143,12 @@ public class CollectAlignmentSummaryMetrics extends SinglePassSamProgram {
         collector.acceptRecord(rec, ref);
     }
 
+    @Override protected boolean supportsMerge() { return true; }
+
+    @Override protected void merge(final SinglePassSamProgram other) {
+        collector.merge(((CollectAlignmentSummaryMetrics) other).collector);
+    }
+
     @Override protected void finish() {
         collector.finish();
 
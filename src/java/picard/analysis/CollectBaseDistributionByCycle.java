@@ -121,6 +121,16 @@ public class CollectBaseDistributionByCycle extends SinglePassSamProgram {
         hist.addRecord(rec);
     }
 
+    @Override
+    protected boolean supportsMerge() {
+        return true;
+    }
+
+    @Override
+    protected void merge(final SinglePassSamProgram other) {
+        hist.merge(((CollectBaseDistributionByCycle) other).hist);
+    }
+
     @Override
     protected void finish() {
         final MetricsFile<BaseDistributionByCycleMetrics, ?> metrics = getMetricsFile();
@@ -190,6 +200,19 @@ public class CollectBaseDistributionByCycle extends SinglePassSamProgram {
             }
         }
 
+        void merge(final HistogramGenerator other) {
+            ensureArraysBigEnough(other.maxLengthSoFar);
+            for (int i = 0; i < other.maxLengthSoFar; i++) {
+                for (int base = 0; base < 5; base++) {
+                    firstReadTotalsByCycle[base][i] += other.firstReadTotalsByCycle[base][i];
+                    secondReadTotalsByCycle[base][i] += other.secondReadTotalsByCycle[base][i];
+                }
+                firstReadCountsByCycle[i] += other.firstReadCountsByCycle[i];
+                secondReadCountsByCycle[i] += other.secondReadCountsByCycle[i];
+            }
+            seenSecondEnd = seenSecondEnd || other.seenSecondEnd;
+        }
+
         private void ensureArraysBigEnough(final int length) {
             if (length > maxLengthSoFar) {
                 for (int i = 0; i < 5; i++) {
@@ -143,6 +143,12 @@ public class CollectInsertSizeMetrics extends SinglePassSamProgram {
         multiCollector.acceptRecord(record, ref);
     }
 
+    @Override protected boolean supportsMerge() { return true; }
+
+    @Override protected void merge(final SinglePassSamProgram other) {
+        multiCollector.merge(((CollectInsertSizeMetrics) other).multiCollector);
+    }
+
     @Override protected void finish() {
         multiCollector.finish();
 
@@ -340,6 +340,22 @@ public class CollectMultipleMetrics extends CommandLineProgram {
     @Option(doc = "VCF format dbSNP file, used to exclude regions around known polymorphisms from analysis.", optional = true)
     public File DB_SNP;
 
+    @Option(doc = "Number of threads used to run the programs. If 1, every program runs on the thread reading the input. " +
+            "Otherwise records are handed out in batches to one thread per program, or per group of programs when there " +
+            "are more programs than threads.")
+    public int NUM_THREADS = 1;
+
+    @Option(doc = "If true and the input is an indexed, coordinate sorted BAM, split it into one shard per reference sequence " +
+            "(plus one for the unmapped reads) and process the shards on NUM_THREADS threads, each with its own instances " +
+            "of the programs, merging the results at the end. Ignored if any of the programs cannot merge its results or " +
+            "if STOP_AFTER is set.")
+    public boolean SHARD_BY_INDEX = false;
+
+    @Option(doc = "If true, read the reference through a packed, upper-cased copy of REFERENCE_SEQUENCE (built as a .packed " +
+            "file next to it the first time it is needed) that is memory-mapped and shared by everything in the JVM, " +
+            "instead of loading each contig from the FASTA.")
+    public boolean USE_PACKED_REFERENCE = false;
+
     /**
      * Contents of PROGRAM list is transferred to this list during command-line validation, so that an outside
      * developer can invoke this class programmatically and provide alternative Programs to run by calling
@@ -359,6 +375,9 @@ public class CollectMultipleMetrics extends CommandLineProgram {
         if (PROGRAM.isEmpty()) {
             return new String[]{"No programs specified with PROGRAM"};
         }
+        if (NUM_THREADS < 1) {
+            return new String[]{"NUM_THREADS must be at least 1"};
+        }
         programsToRun = new ArrayList<ProgramInterface>(PROGRAM);
 
         return super.customCommandLineValidation();
@@ -396,12 +415,17 @@ public class CollectMultipleMetrics extends CommandLineProgram {
             // to just set them anyway
             instance.INPUT = INPUT;
             instance.REFERENCE_SEQUENCE = REFERENCE_SEQUENCE;
+            instance.USE_PACKED_REFERENCE = USE_PACKED_REFERENCE;
 
             instance.setDefaultHeaders(getDefaultHeaders());
 
             programs.add(instance);
         }
-        SinglePassSamProgram.makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, programs);
+        if (SHARD_BY_INDEX && STOP_AFTER == 0) {
+            SinglePassSamProgram.makeItSoSharded(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, NUM_THREADS, programs);
+        } else {
+            SinglePassSamProgram.makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, NUM_THREADS, programs);
+        }
 
         return 0;
     }
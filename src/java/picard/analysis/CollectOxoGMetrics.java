@@ -49,6 +49,7 @@ import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
 import picard.cmdline.programgroups.Metrics;
+import picard.reference.PackedReferenceSequenceFile;
 import picard.util.DbSnpBitSetUtil;
 
 import java.io.File;
@@ -137,6 +138,11 @@ public class CollectOxoGMetrics extends CommandLineProgram {
     @Option(doc = "For debugging purposes: stop after visiting this many sites with at least 1X coverage.")
     public int STOP_AFTER = Integer.MAX_VALUE;
 
+    @Option(doc = "If true, read the reference through a packed, upper-cased copy of REFERENCE_SEQUENCE (built as a .packed " +
+            "file next to it the first time it is needed) that is memory-mapped and shared by everything in the JVM, " +
+            "instead of loading each contig from the FASTA.")
+    public boolean USE_PACKED_REFERENCE = false;
+
     private final Log log = Log.getInstance(CollectOxoGMetrics.class);
     private static final String UNKNOWN_LIBRARY = "UnknownLibrary";
     private static final String UNKNOWN_SAMPLE = "UnknownSample";
@@ -239,7 +245,7 @@ public class CollectOxoGMetrics extends CommandLineProgram {
         if (INTERVALS != null) IOUtil.assertFileIsReadable(INTERVALS);
         IOUtil.assertFileIsReadable(REFERENCE_SEQUENCE);
 
-        final ReferenceSequenceFileWalker refWalker = new ReferenceSequenceFileWalker(REFERENCE_SEQUENCE);
+        final ReferenceSequenceFileWalker refWalker = PackedReferenceSequenceFile.openWalker(REFERENCE_SEQUENCE, USE_PACKED_REFERENCE);
         final SamReader in = SamReaderFactory.makeDefault().open(INPUT);
 
         final Set<String> samples = new HashSet<String>();
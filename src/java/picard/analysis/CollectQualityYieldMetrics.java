@@ -140,6 +140,24 @@ public class CollectQualityYieldMetrics extends SinglePassSamProgram {
         }
     }
 
+    @Override
+    protected boolean supportsMerge() { return true; }
+
+    @Override
+    protected void merge(final SinglePassSamProgram other) {
+        final QualityYieldMetrics that = ((CollectQualityYieldMetrics) other).metrics;
+        metrics.TOTAL_READS             += that.TOTAL_READS;
+        metrics.PF_READS                += that.PF_READS;
+        metrics.TOTAL_BASES             += that.TOTAL_BASES;
+        metrics.PF_BASES                += that.PF_BASES;
+        metrics.Q20_BASES               += that.Q20_BASES;
+        metrics.PF_Q20_BASES            += that.PF_Q20_BASES;
+        metrics.Q30_BASES               += that.Q30_BASES;
+        metrics.PF_Q30_BASES            += that.PF_Q30_BASES;
+        metrics.Q20_EQUIVALENT_YIELD    += that.Q20_EQUIVALENT_YIELD;
+        metrics.PF_Q20_EQUIVALENT_YIELD += that.PF_Q20_EQUIVALENT_YIELD;
+    }
+
     @Override
     protected void finish() {
         final MetricsFile<QualityYieldMetrics, Integer> metricsFile = getMetricsFile();
@@ -23,15 +23,25 @@
  */
 package picard.analysis;
 
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.filter.AggregateFilter;
+import htsjdk.samtools.filter.FilteringIterator;
 import htsjdk.samtools.filter.SamRecordFilter;
 import htsjdk.samtools.filter.SecondaryAlignmentFilter;
 import htsjdk.samtools.metrics.MetricBase;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
 import htsjdk.samtools.reference.ReferenceSequenceFileWalker;
 import htsjdk.samtools.util.*;
+import picard.PicardException;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
@@ -41,12 +51,19 @@ import picard.filter.CountingDuplicateFilter;
 import picard.filter.CountingFilter;
 import picard.filter.CountingMapQFilter;
 import picard.filter.CountingPairedFilter;
+import picard.reference.PackedReferenceSequenceFile;
 import picard.util.MathUtil;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -107,11 +124,29 @@ public class CollectWgsMetrics extends CommandLineProgram {
     @Option(doc="If true, count unpaired reads, and paired reads with one end unmapped")
     public boolean COUNT_UNPAIRED = false;
 
-    @Option(doc="Sample Size used for Theoretical Het Sensitivity sampling. Default is 10000.", optional = true)
+    @Option(doc="Sample Size used for Theoretical Het Sensitivity sampling. Default is 10000. If 0, Theoretical Het Sensitivity " +
+            "is computed exactly instead of by sampling, which is faster and gives the same value on every run.", optional = true)
     public int SAMPLE_SIZE=10000;
 
+    @Option(doc = "If true, read the reference through a packed, upper-cased copy of REFERENCE_SEQUENCE (built as a .packed " +
+            "file next to it the first time it is needed) that is memory-mapped and shared by everything in the JVM, " +
+            "instead of loading each contig from the FASTA.")
+    public boolean USE_PACKED_REFERENCE = false;
+
+    @Option(doc = "If true, compute coverage directly from the aligned blocks of each read instead of building a pileup at " +
+            "every position of the genome. This is much faster and gives identical results. Ignored if STOP_AFTER is set.")
+    public boolean USE_FAST_ALGORITHM = false;
+
+    @Option(doc = "Number of threads to compute coverage on with USE_FAST_ALGORITHM. If more than 1, the genome is split into " +
+            "shards that are each read through the index of INPUT by their own thread, and the counts from the shards are " +
+            "summed, giving the same results as a single thread. Requires an indexed, coordinate sorted INPUT and either an " +
+            "indexed REFERENCE_SEQUENCE or USE_PACKED_REFERENCE; otherwise a single thread is used.")
+    public int THREADS = 1;
+
     private final Log log = Log.getInstance(CollectWgsMetrics.class);
     private static final double LOG_ODDS_THRESHOLD = 3.0;
+    /** The genome is split into this many shards per thread, so that the threads finish at about the same time. */
+    private static final int SHARDS_PER_THREAD = 4;
 
     /** Metrics for evaluating the performance of whole genome sequencing experiments. */
     public static class WgsMetrics extends MetricBase {
@@ -181,6 +216,14 @@ public class CollectWgsMetrics extends CommandLineProgram {
         new CollectWgsMetrics().instanceMainWithExit(args);
     }
 
+    @Override
+    protected String[] customCommandLineValidation() {
+        if (THREADS < 1) {
+            return new String[]{"THREADS must be at least 1"};
+        }
+        return super.customCommandLineValidation();
+    }
+
     @Override
     protected int doWork() {
         IOUtil.assertFileIsReadable(INPUT);
@@ -193,29 +236,17 @@ public class CollectWgsMetrics extends CommandLineProgram {
             LOCUS_ACCUMULATION_CAP = COVERAGE_CAP;
         }
 
+        final boolean useFastAlgorithm = USE_FAST_ALGORITHM && STOP_AFTER <= 0 && supportsFastAlgorithm();
+        if (THREADS > 1 && !useFastAlgorithm) {
+            log.warn("Using a single thread because THREADS is only used with USE_FAST_ALGORITHM and without STOP_AFTER.");
+        }
+
         // Setup all the inputs
-        final ProgressLogger progress = new ProgressLogger(log, 10000000, "Processed", "loci");
-        final ReferenceSequenceFileWalker refWalker = new ReferenceSequenceFileWalker(REFERENCE_SEQUENCE);
+        final ProgressLogger progress = new ProgressLogger(log, 10000000, "Processed", useFastAlgorithm ? "reads" : "loci");
+        final ReferenceSequenceFileWalker refWalker = PackedReferenceSequenceFile.openWalker(REFERENCE_SEQUENCE, USE_PACKED_REFERENCE);
         final SamReader in = SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE).open(INPUT);
-        final SamLocusIterator iterator = getLocusIterator(in);
 
-        final List<SamRecordFilter> filters = new ArrayList<SamRecordFilter>();
-        final CountingFilter dupeFilter = new CountingDuplicateFilter();
-        final CountingFilter mapqFilter = new CountingMapQFilter(MINIMUM_MAPPING_QUALITY);
-        final CountingPairedFilter pairFilter = new CountingPairedFilter();
-        // The order in which filters are added matters!
-        filters.add(new SecondaryAlignmentFilter()); // Not a counting filter because we never want to count reads twice
-        filters.add(mapqFilter);
-        filters.add(dupeFilter);
-        if (!COUNT_UNPAIRED) {
-            filters.add(pairFilter);
-        }
-        iterator.setSamFilters(filters);
-        iterator.setEmitUncoveredLoci(true);
-        iterator.setMappingQualityScoreCutoff(0); // Handled separately because we want to count bases
-        iterator.setQualityScoreCutoff(0);        // Handled separately because we want to count bases
-        iterator.setIncludeNonPfReads(false);
-        iterator.setMaxReadsToAccumulatePerLocus(LOCUS_ACCUMULATION_CAP);
+        final ReadFilters filters = new ReadFilters();
 
         final int coverageCap = COVERAGE_CAP;
         final long[] HistogramArray = new long[coverageCap + 1];
@@ -229,43 +260,95 @@ public class CollectWgsMetrics extends CommandLineProgram {
         long basesExcludedByBaseq = 0;
         long basesExcludedByOverlap = 0;
         long basesExcludedByCapping = 0;
-
-        // Loop through all the loci
-        while (iterator.hasNext()) {
-            final SamLocusIterator.LocusInfo info = iterator.next();
-
-            // Check that the reference is not N
-            final ReferenceSequence ref = refWalker.get(info.getSequenceIndex());
-            final byte base = ref.getBases()[info.getPosition() - 1];
-            if (base == 'N') continue;
-
-            // Figure out the coverage while not counting overlapping reads twice, and excluding various things
-            final HashSet<String> readNames = new HashSet<String>(info.getRecordAndPositions().size());
-            int pileupSize = 0;
-            int pileupSizeForBaseQHetSens = 0;
-            for (final SamLocusIterator.RecordAndOffset recs : info.getRecordAndPositions()) {
-                pileupSizeForBaseQHetSens++;
-                if(pileupSizeForBaseQHetSens <= coverageCap) {
-                    baseQHetSensHistogram[recs.getRecord().getBaseQualities()[recs.getOffset()]]++;
+        long basesExcludedByDupes = 0;
+        long basesExcludedByMapq = 0;
+        long basesExcludedByPairing = 0;
+
+        if (useFastAlgorithm) {
+            final FastWgsMetricsCollector collector = new FastWgsMetricsCollector(refWalker,
+                    in.getFileHeader().getSequenceDictionary(), MINIMUM_BASE_QUALITY, coverageCap, LOCUS_ACCUMULATION_CAP);
+
+            final List<Shard> shards = THREADS > 1 ? collectInShards(in) : null;
+            if (shards != null) {
+                for (final Shard shard : shards) {
+                    collector.merge(shard.collector);
+                    basesExcludedByDupes += getBasesExcludedBy(shard.filters.dupeFilter);
+                    basesExcludedByMapq += getBasesExcludedBy(shard.filters.mapqFilter);
+                    basesExcludedByPairing += getBasesExcludedBy(shard.filters.pairFilter);
+                }
+            } else {
+                // Apply the filters, and then skip the reads that the locus iterator skips, in the same order that it does
+                final FilteringIterator records = new FilteringIterator(in.iterator(), new AggregateFilter(filters.all));
+                while (records.hasNext()) {
+                    final SAMRecord rec = records.next();
+                    if (rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) break;
+                    if (rec.getReadUnmappedFlag() || rec.getReadFailsVendorQualityCheckFlag()) continue;
+
+                    collector.addRead(rec);
+                    progress.record(rec);
                 }
+                records.close();
+                collector.finish();
+                basesExcludedByDupes = getBasesExcludedBy(filters.dupeFilter);
+                basesExcludedByMapq = getBasesExcludedBy(filters.mapqFilter);
+                basesExcludedByPairing = getBasesExcludedBy(filters.pairFilter);
+            }
 
-                if (recs.getBaseQuality() < MINIMUM_BASE_QUALITY)                   { ++basesExcludedByBaseq; continue; }
-                if (!readNames.add(recs.getRecord().getReadName()))                 { ++basesExcludedByOverlap; continue; }
+            System.arraycopy(collector.depthHistogram, 0, HistogramArray, 0, HistogramArray.length);
+            System.arraycopy(collector.baseQHistogram, 0, baseQHistogramArray, 0, baseQHistogramArray.length);
+            System.arraycopy(collector.baseQHetSensHistogram, 0, baseQHetSensHistogram, 0, baseQHetSensHistogram.length);
+            basesExcludedByBaseq = collector.basesExcludedByBaseq;
+            basesExcludedByOverlap = collector.basesExcludedByOverlap;
+            basesExcludedByCapping = collector.basesExcludedByCapping;
+        } else {
+            final SamLocusIterator iterator = getLocusIterator(in);
+            iterator.setSamFilters(filters.all);
+            iterator.setEmitUncoveredLoci(true);
+            iterator.setMappingQualityScoreCutoff(0); // Handled separately because we want to count bases
+            iterator.setQualityScoreCutoff(0);        // Handled separately because we want to count bases
+            iterator.setIncludeNonPfReads(false);
+            iterator.setMaxReadsToAccumulatePerLocus(LOCUS_ACCUMULATION_CAP);
+
+            // Loop through all the loci
+            while (iterator.hasNext()) {
+                final SamLocusIterator.LocusInfo info = iterator.next();
+
+                // Check that the reference is not N
+                final ReferenceSequence ref = refWalker.get(info.getSequenceIndex());
+                final byte base = ref.getBases()[info.getPosition() - 1];
+                if (base == 'N') continue;
+
+                // Figure out the coverage while not counting overlapping reads twice, and excluding various things
+                final HashSet<String> readNames = new HashSet<String>(info.getRecordAndPositions().size());
+                int pileupSize = 0;
+                int pileupSizeForBaseQHetSens = 0;
+                for (final SamLocusIterator.RecordAndOffset recs : info.getRecordAndPositions()) {
+                    pileupSizeForBaseQHetSens++;
+                    if(pileupSizeForBaseQHetSens <= coverageCap) {
+                        baseQHetSensHistogram[recs.getRecord().getBaseQualities()[recs.getOffset()]]++;
+                    }
+
+                    if (recs.getBaseQuality() < MINIMUM_BASE_QUALITY)                   { ++basesExcludedByBaseq; continue; }
+                    if (!readNames.add(recs.getRecord().getReadName()))                 { ++basesExcludedByOverlap; continue; }
+
+                    pileupSize++;
+                    if (pileupSize <= coverageCap) {
+                        baseQHistogramArray[recs.getRecord().getBaseQualities()[recs.getOffset()]]++;
+                    }
 
-                pileupSize++;
-                if (pileupSize <= coverageCap) {
-                    baseQHistogramArray[recs.getRecord().getBaseQualities()[recs.getOffset()]]++;
                 }
 
-            }
-
-            final int depth = Math.min(readNames.size(), coverageCap);
-            if (depth < readNames.size()) basesExcludedByCapping += readNames.size() - coverageCap;
-            HistogramArray[depth]++;
+                final int depth = Math.min(readNames.size(), coverageCap);
+                if (depth < readNames.size()) basesExcludedByCapping += readNames.size() - coverageCap;
+                HistogramArray[depth]++;
 
-            // Record progress and perhaps stop
-            progress.record(info.getSequenceName(), info.getPosition());
-            if (usingStopAfter && ++counter > stopAfter) break;
+                // Record progress and perhaps stop
+                progress.record(info.getSequenceName(), info.getPosition());
+                if (usingStopAfter && ++counter > stopAfter) break;
+            }
+            basesExcludedByDupes = getBasesExcludedBy(filters.dupeFilter);
+            basesExcludedByMapq = getBasesExcludedBy(filters.mapqFilter);
+            basesExcludedByPairing = getBasesExcludedBy(filters.pairFilter);
         }
 
         // Construct and write the outputs
@@ -300,9 +383,6 @@ public class CollectWgsMetrics extends CommandLineProgram {
         metrics.MEDIAN_COVERAGE = depthHistogram.getMedian();
         metrics.MAD_COVERAGE = depthHistogram.getMedianAbsoluteDeviation();
         
-        final long basesExcludedByDupes = getBasesExcludedBy(dupeFilter);
-        final long basesExcludedByMapq = getBasesExcludedBy(mapqFilter);
-        final long basesExcludedByPairing = getBasesExcludedBy(pairFilter);
         final double total = depthHistogram.getSum();
         final double totalWithExcludes = total + basesExcludedByDupes + basesExcludedByMapq + basesExcludedByPairing + basesExcludedByBaseq + basesExcludedByOverlap + basesExcludedByCapping;
         metrics.PCT_EXC_DUPE = basesExcludedByDupes / totalWithExcludes;
@@ -345,6 +425,167 @@ public class CollectWgsMetrics extends CommandLineProgram {
         return 0;
     }
 
+    /**
+     * Computes the coverage counts with the fast algorithm on THREADS threads, each processing a shard of the genome
+     * read through the index.  Returns the finished shards, or null if the input or reference can't be read by shard,
+     * or if LOCUS_ACCUMULATION_CAP was reached in a way that the shards can't reproduce.
+     */
+    private List<Shard> collectInShards(final SamReader in) {
+        final SAMFileHeader header = in.getFileHeader();
+        final ReferenceSequenceFile reference = USE_PACKED_REFERENCE ? new PackedReferenceSequenceFile(REFERENCE_SEQUENCE)
+                                                                     : ReferenceSequenceFileFactory.getReferenceSequenceFile(REFERENCE_SEQUENCE);
+        String reason = null;
+        if (!in.hasIndex()) reason = INPUT.getName() + " is not indexed";
+        else if (header.getSortOrder() != SAMFileHeader.SortOrder.coordinate) reason = INPUT.getName() + " is not coordinate sorted";
+        else if (!reference.isIndexed()) reason = REFERENCE_SEQUENCE.getName() + " is not indexed";
+        if (reason != null) {
+            log.warn("Using a single thread because " + reason + ".");
+            CloserUtil.close(reference);
+            return null;
+        }
+
+        // Split every contig into shards of about the same length
+        final SAMSequenceDictionary dictionary = header.getSequenceDictionary();
+        final long shardLength = Math.max(1, (dictionary.getReferenceLength() + THREADS * SHARDS_PER_THREAD - 1) / (THREADS * SHARDS_PER_THREAD));
+        final List<Shard> shards = new ArrayList<Shard>();
+        final int[] shardsPerContig = new int[dictionary.size()];
+        for (final SAMSequenceRecord contig : dictionary.getSequences()) {
+            for (long start = 1; start <= contig.getSequenceLength(); start += shardLength) {
+                final long end = Math.min(contig.getSequenceLength(), start + shardLength - 1);
+                shards.add(new Shard(contig, (int) start, (int) end));
+                shardsPerContig[contig.getSequenceIndex()]++;
+            }
+        }
+        final SharedContigs contigs = new SharedContigs(reference, shardsPerContig);
+
+        log.info("Processing " + shards.size() + " shards of " + INPUT.getName() + " on " + THREADS + " threads.");
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Future<?>> futures = new ArrayList<Future<?>>(shards.size());
+            for (final Shard shard : shards) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        shard.run(contigs);
+                    }
+                }));
+            }
+            executor.shutdown();
+            for (final Future<?> future : futures) future.get();
+        } catch (final InterruptedException ie) {
+            throw new PicardException("Interrupted while waiting on shards of " + INPUT.getName(), ie);
+        } catch (final ExecutionException ee) {
+            final Throwable t = ee.getCause();
+            if (t instanceof Error) throw (Error) t;
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            throw new PicardException("Failed processing a shard of " + INPUT.getName(), t);
+        } finally {
+            executor.shutdownNow();
+            CloserUtil.close(reference);
+        }
+
+        for (final Shard shard : shards) {
+            if (shard.collector.droppedReadPastRegion()) {
+                log.warn("LOCUS_ACCUMULATION_CAP was reached at the end of a shard, so starting again on a single thread.");
+                return null;
+            }
+        }
+        return shards;
+    }
+
+    /** The filters applied to every read, in order, with the ones whose filtered bases are reported. */
+    private class ReadFilters {
+        final CountingFilter dupeFilter = new CountingDuplicateFilter();
+        final CountingFilter mapqFilter = new CountingMapQFilter(MINIMUM_MAPPING_QUALITY);
+        final CountingFilter pairFilter = new CountingPairedFilter();
+        final List<SamRecordFilter> all = new ArrayList<SamRecordFilter>();
+
+        ReadFilters() {
+            // The order in which filters are added matters!
+            all.add(new SecondaryAlignmentFilter()); // Not a counting filter because we never want to count reads twice
+            all.add(mapqFilter);
+            all.add(dupeFilter);
+            if (!COUNT_UNPAIRED) {
+                all.add(pairFilter);
+            }
+        }
+
+        /** Applies the filters in order, as AggregateFilter would, but without counting the read if count is false. */
+        boolean filterOut(final SAMRecord rec, final boolean count) {
+            for (final SamRecordFilter filter : all) {
+                final boolean filteredOut = (count || !(filter instanceof CountingFilter)) ? filter.filterOut(rec)
+                                                                                         : ((CountingFilter) filter).reallyFilterOut(rec);
+                if (filteredOut) return true;
+            }
+            return false;
+        }
+    }
+
+    /** A range of positions on one contig, and the coverage counts and filtered reads from the reads that start in it. */
+    private class Shard {
+        final SAMSequenceRecord contig;
+        final int start;
+        final int end;
+        final ReadFilters filters = new ReadFilters();
+        FastWgsMetricsCollector collector;
+
+        Shard(final SAMSequenceRecord contig, final int start, final int end) {
+            this.contig = contig;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Reads every read overlapping the shard.  Reads that start before the shard belong to an earlier shard, so
+         * they contribute to the coverage within this one but aren't counted by the filters.
+         */
+        void run(final SharedContigs contigs) {
+            final ReferenceSequence ref = contigs.acquire(contig);
+            final SamReader reader = SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE).open(INPUT);
+            try {
+                collector = new FastWgsMetricsCollector(contig.getSequenceIndex(), ref.getBases(), start, end,
+                        MINIMUM_BASE_QUALITY, COVERAGE_CAP, LOCUS_ACCUMULATION_CAP);
+                final SAMRecordIterator records = reader.queryOverlapping(contig.getSequenceName(), start, end);
+                while (records.hasNext()) {
+                    final SAMRecord rec = records.next();
+                    if (filters.filterOut(rec, rec.getAlignmentStart() >= start)) continue;
+                    if (rec.getReadUnmappedFlag() || rec.getReadFailsVendorQualityCheckFlag()) continue;
+                    collector.addRead(rec);
+                }
+                records.close();
+                collector.finish();
+            } finally {
+                CloserUtil.close(reader);
+                contigs.release(contig);
+            }
+        }
+    }
+
+    /** Loads each contig once for all of its shards, and lets go of it once they have all finished. */
+    private static class SharedContigs {
+        private final ReferenceSequenceFile reference;
+        private final int[] shardsRemaining;
+        private final Map<Integer, ReferenceSequence> loaded = new HashMap<Integer, ReferenceSequence>();
+
+        SharedContigs(final ReferenceSequenceFile reference, final int[] shardsPerContig) {
+            this.reference = reference;
+            this.shardsRemaining = shardsPerContig.clone();
+        }
+
+        synchronized ReferenceSequence acquire(final SAMSequenceRecord contig) {
+            ReferenceSequence ref = loaded.get(contig.getSequenceIndex());
+            if (ref == null) {
+                ref = reference.getSequence(contig.getSequenceName());
+                loaded.put(contig.getSequenceIndex(), ref);
+            }
+            return ref;
+        }
+
+        synchronized void release(final SAMSequenceRecord contig) {
+            if (--shardsRemaining[contig.getSequenceIndex()] == 0) loaded.remove(contig.getSequenceIndex());
+        }
+    }
+
     protected WgsMetrics generateWgsMetrics() {
         return new WgsMetrics();
     }
@@ -353,6 +594,11 @@ public class CollectWgsMetrics extends CommandLineProgram {
         return filter.getFilteredBases();
     }
 
+    /** Whether USE_FAST_ALGORITHM can be honored, which it can't if getLocusIterator() restricts the loci visited. */
+    protected boolean supportsFastAlgorithm() {
+        return true;
+    }
+
     protected SamLocusIterator getLocusIterator(final SamReader in) {
         return new SamLocusIterator(in);
     }
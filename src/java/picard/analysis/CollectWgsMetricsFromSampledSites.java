@@ -65,6 +65,12 @@ public class CollectWgsMetricsFromSampledSites extends CollectWgsMetrics {
         return new SamLocusIterator(in, IntervalList.fromFile(INTERVALS));
     }
 
+    /** The fast algorithm computes coverage over the whole genome, not just the sampled sites. */
+    @Override
+    protected boolean supportsFastAlgorithm() {
+        return false;
+    }
+
     /**
      * By design we want to count just those bases at the positions we care about, not across the entire read.
      * Therefore, we call filter.getFilteredRecords() so that only the bases in the pileup at a given position
@@ -0,0 +1,357 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.analysis;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.reference.ReferenceSequenceFileWalker;
+import htsjdk.samtools.util.Log;
+import picard.PicardException;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the coverage counts behind {@link CollectWgsMetrics.WgsMetrics} directly from the alignment blocks of each
+ * read, instead of building a {@link htsjdk.samtools.util.SamLocusIterator.LocusInfo} pileup at every position of the
+ * genome.  Depth at each position is kept in a pair of circular int arrays that cover only the span of the reads
+ * currently overlapping the position being finished, and a position's depth is added to the histogram as soon as no
+ * later read can start at or before it.
+ *
+ * The counts are identical to those computed by CollectWgsMetrics from the locus iterator, given the same coordinate
+ * sorted reads after the CollectWgsMetrics filters:
+ * <ul>
+ *     <li>reads are seen in the same order as they appear in a pileup, so the first COVERAGE_CAP reads at each
+ *     position are the ones that contribute to the base quality histograms;</li>
+ *     <li>a base is excluded as an overlap if an earlier read with the same name had a base passing the base quality
+ *     threshold at the same position.  Earlier reads are only looked up by name when a read arrives, rather than
+ *     building a set of names at every position;</li>
+ *     <li>a read is dropped entirely if LOCUS_ACCUMULATION_CAP reads already cover its alignment start.</li>
+ * </ul>
+ *
+ * A collector can also be restricted to a region of one contig, so that the genome can be split into shards that are
+ * processed independently and then merged.  It must then be given every read that overlaps the region: reads that
+ * start before the region only contribute to the depth within it, and come before the region's own reads in the
+ * pileup, exactly as they would if the whole contig were processed.  The one thing a shard can't know is whether
+ * LOCUS_ACCUMULATION_CAP made the shard before it drop one of those reads, so it assumes that it didn't, and
+ * {@link #droppedReadPastRegion()} reports whether a shard dropped a read that the next shard will have counted.
+ */
+public class FastWgsMetricsCollector {
+    private static final Log log = Log.getInstance(FastWgsMetricsCollector.class);
+
+    private static final int INITIAL_WINDOW_SIZE = 1024;
+
+    private final ReferenceSequenceFileWalker refWalker;
+    private final SAMSequenceDictionary dictionary;
+
+    /** The region to count coverage over, when restricted to a single region. */
+    private final int regionContig;
+    private final int regionStart;
+    private final int regionEnd;
+    private boolean droppedReadPastRegion = false;
+    private final int minimumBaseQuality;
+    private final int coverageCap;
+    private final int locusAccumulationCap;
+
+    final long[] depthHistogram;
+    final long[] baseQHistogram = new long[Byte.MAX_VALUE];
+    final long[] baseQHetSensHistogram = new long[Byte.MAX_VALUE];
+    long basesExcludedByBaseq = 0;
+    long basesExcludedByOverlap = 0;
+    long basesExcludedByCapping = 0;
+
+    /** The contig currently being processed, its bases, and the first position on it whose depth isn't yet final. */
+    private int contigIndex = -1;
+    private byte[] refBases;
+    private int windowStart = 1;
+
+    /**
+     * Circular arrays indexed by (position & windowMask): the number of reads covering each position, and the number
+     * of those that passed the base quality and overlap filters.
+     */
+    private int[] readsAtPosition = new int[INITIAL_WINDOW_SIZE];
+    private int[] depthAtPosition = new int[INITIAL_WINDOW_SIZE];
+    private int windowMask = INITIAL_WINDOW_SIZE - 1;
+
+    /** Reads on the current contig that may still overlap a later read with the same name, in order of arrival. */
+    private final ArrayDeque<PendingRead> pendingReads = new ArrayDeque<PendingRead>();
+    private final Map<String, PendingRead> pendingReadsByName = new HashMap<String, PendingRead>();
+
+    private boolean warnedAboutAccumulationCap = false;
+
+    /**
+     * @param refWalker used to load each contig of the reference in turn, to skip positions where the reference is N
+     * @param dictionary the contigs to compute coverage over, which should be the sequence dictionary of the input
+     */
+    public FastWgsMetricsCollector(final ReferenceSequenceFileWalker refWalker,
+                                   final SAMSequenceDictionary dictionary,
+                                   final int minimumBaseQuality,
+                                   final int coverageCap,
+                                   final int locusAccumulationCap) {
+        this.refWalker = refWalker;
+        this.dictionary = dictionary;
+        this.regionContig = -1;
+        this.regionStart = 1;
+        this.regionEnd = Integer.MAX_VALUE;
+        this.minimumBaseQuality = minimumBaseQuality;
+        this.coverageCap = coverageCap;
+        this.locusAccumulationCap = locusAccumulationCap;
+        this.depthHistogram = new long[coverageCap + 1];
+    }
+
+    /**
+     * Creates a collector that only counts coverage at the 1-based, inclusive range of positions from start to end of
+     * the contig with the given index and bases.
+     */
+    public FastWgsMetricsCollector(final int contigIndex,
+                                   final byte[] refBases,
+                                   final int start,
+                                   final int end,
+                                   final int minimumBaseQuality,
+                                   final int coverageCap,
+                                   final int locusAccumulationCap) {
+        this.refWalker = null;
+        this.dictionary = null;
+        this.regionContig = contigIndex;
+        this.regionStart = start;
+        this.regionEnd = end;
+        this.minimumBaseQuality = minimumBaseQuality;
+        this.coverageCap = coverageCap;
+        this.locusAccumulationCap = locusAccumulationCap;
+        this.depthHistogram = new long[coverageCap + 1];
+
+        this.contigIndex = regionContig;
+        this.refBases = refBases;
+        this.windowStart = regionStart;
+    }
+
+    /**
+     * True if this collector was restricted to a region and LOCUS_ACCUMULATION_CAP made it drop a read that extends past
+     * the end of the region, in which case the collector for the following region will have wrongly counted it.
+     */
+    public boolean droppedReadPastRegion() {
+        return droppedReadPastRegion;
+    }
+
+    /** Adds the counts from another collector, which must have been computed over a different part of the genome. */
+    public void merge(final FastWgsMetricsCollector other) {
+        for (int i = 0; i < depthHistogram.length; ++i) depthHistogram[i] += other.depthHistogram[i];
+        for (int i = 0; i < baseQHistogram.length; ++i) baseQHistogram[i] += other.baseQHistogram[i];
+        for (int i = 0; i < baseQHetSensHistogram.length; ++i) baseQHetSensHistogram[i] += other.baseQHetSensHistogram[i];
+        basesExcludedByBaseq += other.basesExcludedByBaseq;
+        basesExcludedByOverlap += other.basesExcludedByOverlap;
+        basesExcludedByCapping += other.basesExcludedByCapping;
+        droppedReadPastRegion |= other.droppedReadPastRegion;
+    }
+
+    /** Adds the coverage from one mapped read.  Reads must be added in coordinate order. */
+    public void addRead(final SAMRecord rec) {
+        final int readContig = rec.getReferenceIndex();
+        if (regionContig >= 0 && readContig != regionContig) {
+            throw new IllegalArgumentException("Read is not on the contig with index " + regionContig + ": " + rec.getSAMString());
+        }
+        if (readContig != contigIndex) {
+            if (readContig < contigIndex) {
+                throw new PicardException("Input is not coordinate sorted: " + rec.getSAMString());
+            }
+            finishContigsBefore(readContig);
+            startContig(readContig);
+        }
+
+        final int start = rec.getAlignmentStart();
+        final boolean startsBeforeRegion = start < regionStart;
+        if (start < windowStart && !startsBeforeRegion) {
+            throw new PicardException("Input is not coordinate sorted: " + rec.getSAMString());
+        }
+        finishPositionsBefore(start);
+        evictPendingReadsEndingBefore(start);
+
+        // Same limit as SamLocusIterator: drop the whole read if too many reads already cover its start
+        if (!startsBeforeRegion && readsAtPosition[start & windowMask] >= locusAccumulationCap) {
+            if (rec.getAlignmentEnd() > regionEnd) droppedReadPastRegion = true;
+            if (!warnedAboutAccumulationCap) {
+                log.warn("We have encountered greater than " + locusAccumulationCap + " reads at position " +
+                        rec.getReferenceName() + ":" + start + " and will ignore the remaining reads at this position. " +
+                        "Note that further warnings will be suppressed.");
+                warnedAboutAccumulationCap = true;
+            }
+            return;
+        }
+
+        ensureWindowCovers(Math.min(rec.getAlignmentEnd(), regionEnd));
+
+        final PendingRead earlierWithSameName = pendingReadsByName.get(rec.getReadName());
+        final byte[] qualities = rec.getBaseQualities();
+        for (final AlignmentBlock block : rec.getAlignmentBlocks()) {
+            final int readOffset = block.getReadStart() - 1;
+            final int refStart = block.getReferenceStart();
+            for (int i = 0; i < block.getLength(); ++i) {
+                final int position = refStart + i;
+                if (position < windowStart || position > regionEnd) continue;
+                final int slot = position & windowMask;
+                final int reads = ++readsAtPosition[slot];
+                if (position > refBases.length || refBases[position - 1] == 'N') continue;
+
+                final byte quality = qualities[readOffset + i];
+                if (reads <= coverageCap) baseQHetSensHistogram[quality]++;
+
+                if (quality < minimumBaseQuality) { ++basesExcludedByBaseq; continue; }
+                if (earlierWithSameName != null && earlierWithSameName.covers(position, minimumBaseQuality)) { ++basesExcludedByOverlap; continue; }
+
+                if (++depthAtPosition[slot] <= coverageCap) baseQHistogram[quality]++;
+            }
+        }
+
+        final PendingRead pending = new PendingRead(rec, earlierWithSameName);
+        pendingReads.add(pending);
+        pendingReadsByName.put(rec.getReadName(), pending);
+    }
+
+    /**
+     * Finishes every remaining position of the region, or of every contig in the dictionary if not restricted to a
+     * region.  Must be called after the last read.
+     */
+    public void finish() {
+        if (regionContig >= 0) {
+            finishPositionsBefore(regionEnd + 1);
+        } else {
+            finishContigsBefore(dictionary.size());
+            contigIndex = dictionary.size();
+        }
+    }
+
+    /** Finishes the current contig, then every contig from there up to but not including the given one. */
+    private void finishContigsBefore(final int nextContigIndex) {
+        if (contigIndex >= 0 && contigIndex < nextContigIndex) {
+            finishPositionsBefore(refBases.length + 1);
+        }
+        for (int i = contigIndex + 1; i < nextContigIndex; ++i) {
+            startContig(i);
+            finishPositionsBefore(refBases.length + 1);
+        }
+    }
+
+    private void startContig(final int index) {
+        contigIndex = index;
+        refBases = refWalker.get(index).getBases();
+        windowStart = 1;
+        // Reads hanging off the end of the previous contig may have left counts behind
+        Arrays.fill(readsAtPosition, 0);
+        Arrays.fill(depthAtPosition, 0);
+        pendingReads.clear();
+        pendingReadsByName.clear();
+    }
+
+    /** Adds the depth at every position of the current contig before the given one to the histogram. */
+    private void finishPositionsBefore(final int position) {
+        final int end = (int) Math.min(Math.min(position, refBases.length + 1), regionEnd + 1L);
+        for (int pos = windowStart; pos < end; ++pos) {
+            final int slot = pos & windowMask;
+            if (refBases[pos - 1] != 'N') {
+                final int depth = depthAtPosition[slot];
+                if (depth > coverageCap) {
+                    basesExcludedByCapping += depth - coverageCap;
+                    depthHistogram[coverageCap]++;
+                } else {
+                    depthHistogram[depth]++;
+                }
+            }
+            readsAtPosition[slot] = 0;
+            depthAtPosition[slot] = 0;
+        }
+        windowStart = Math.max(windowStart, end);
+    }
+
+    /** Grows the circular arrays if needed so that they can hold every position from windowStart to end. */
+    private void ensureWindowCovers(final int end) {
+        final int span = end - windowStart + 1;
+        if (span <= readsAtPosition.length) return;
+
+        int size = readsAtPosition.length;
+        while (size < span) size *= 2;
+        final int[] reads = new int[size];
+        final int[] depths = new int[size];
+        for (int pos = windowStart; pos < windowStart + readsAtPosition.length; ++pos) {
+            reads[pos & (size - 1)] = readsAtPosition[pos & windowMask];
+            depths[pos & (size - 1)] = depthAtPosition[pos & windowMask];
+        }
+        readsAtPosition = reads;
+        depthAtPosition = depths;
+        windowMask = size - 1;
+    }
+
+    /** Forgets reads that end before the given position, since no later read can overlap them. */
+    private void evictPendingReadsEndingBefore(final int position) {
+        while (!pendingReads.isEmpty() && pendingReads.peek().end < position) {
+            final PendingRead evicted = pendingReads.poll();
+            final String name = evicted.rec.getReadName();
+            final PendingRead latest = pendingReadsByName.get(name);
+            if (latest == evicted) {
+                pendingReadsByName.remove(name);
+            } else {
+                // Reads are evicted in order of arrival, so anything still chained behind the evicted read is older still
+                for (PendingRead p = latest; p != null; p = p.earlier) {
+                    if (p.earlier == evicted) {
+                        p.earlier = null;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /** A read that has been counted, chained to any earlier pending reads with the same name. */
+    private static class PendingRead {
+        final SAMRecord rec;
+        final int end;
+        PendingRead earlier;
+
+        PendingRead(final SAMRecord rec, final PendingRead earlier) {
+            this.rec = rec;
+            this.end = rec.getAlignmentEnd();
+            this.earlier = earlier;
+        }
+
+        /** True if this read, or an earlier one with the same name, has a base of at least the given quality at the position. */
+        boolean covers(final int position, final int minimumBaseQuality) {
+            for (PendingRead p = this; p != null; p = p.earlier) {
+                if (position > p.end || position < p.rec.getAlignmentStart()) continue;
+
+                final List<AlignmentBlock> blocks = p.rec.getAlignmentBlocks();
+                for (final AlignmentBlock block : blocks) {
+                    final int offset = position - block.getReferenceStart();
+                    if (offset >= 0 && offset < block.getLength()) {
+                        if (p.rec.getBaseQualities()[block.getReadStart() - 1 + offset] >= minimumBaseQuality) return true;
+                        break;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -34,6 +34,7 @@ import htsjdk.samtools.util.StringUtil;
 import picard.metrics.GcBiasMetrics;
 import picard.metrics.MultiLevelCollector;
 import picard.metrics.PerUnitMetricCollector;
+import picard.reference.PackedReference;
 
 import java.util.Collection;
 import java.util.List;
@@ -129,7 +130,8 @@ public class GcBiasMetricsCollector extends MultiLevelCollector<GcBiasMetrics, I
                 if(referenceIndex != rec.getReferenceIndex() || gc == null){
                     final ReferenceSequence ref = args.getRef();
                     refBases = ref.getBases();
-                    StringUtil.toUpperCase(refBases);
+                    // Bases from the packed reference are already upper-cased, and shared, so must not be written to
+                    if (!PackedReference.isPacked(ref)) StringUtil.toUpperCase(refBases);
                     final int refLength = refBases.length;
                     final int lastWindowStart = refLength - scanWindowSize;
                     gc = GcBiasUtils.calculateAllGcs(refBases, lastWindowStart, scanWindowSize);
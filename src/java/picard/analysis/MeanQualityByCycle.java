@@ -131,6 +131,16 @@ public class MeanQualityByCycle extends SinglePassSamProgram {
             }
         }
 
+        void merge(final HistogramGenerator other) {
+            ensureArraysBigEnough(other.maxLengthSoFar);
+            for (int i=0; i<other.maxLengthSoFar; ++i) {
+                firstReadTotalsByCycle[i]  += other.firstReadTotalsByCycle[i];
+                firstReadCountsByCycle[i]  += other.firstReadCountsByCycle[i];
+                secondReadTotalsByCycle[i] += other.secondReadTotalsByCycle[i];
+                secondReadCountsByCycle[i] += other.secondReadCountsByCycle[i];
+            }
+        }
+
         private void ensureArraysBigEnough(final int length) {
             if (length > maxLengthSoFar) {
                 firstReadTotalsByCycle  = Arrays.copyOf(firstReadTotalsByCycle, length);
@@ -191,6 +201,16 @@ public class MeanQualityByCycle extends SinglePassSamProgram {
         oq.addRecord(rec);
     }
 
+    @Override
+    protected boolean supportsMerge() { return true; }
+
+    @Override
+    protected void merge(final SinglePassSamProgram other) {
+        final MeanQualityByCycle that = (MeanQualityByCycle) other;
+        q.merge(that.q);
+        oq.merge(that.oq);
+    }
+
     @Override
     protected void finish() {
         // Generate a "Histogram" of mean quality and write it to the file
@@ -134,6 +134,18 @@ public class QualityScoreDistribution extends SinglePassSamProgram {
         }
     }
 
+    @Override
+    protected boolean supportsMerge() { return true; }
+
+    @Override
+    protected void merge(final SinglePassSamProgram other) {
+        final QualityScoreDistribution that = (QualityScoreDistribution) other;
+        for (int i=0; i<qCounts.length; ++i) {
+            qCounts[i]  += that.qCounts[i];
+            oqCounts[i] += that.oqCounts[i];
+        }
+    }
+
     @Override
     protected void finish() {
         // Built the Histograms out of the long[]s
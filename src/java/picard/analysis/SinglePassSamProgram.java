@@ -27,6 +27,8 @@ package picard.analysis;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileHeader.SortOrder;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.reference.ReferenceSequence;
@@ -40,18 +42,30 @@ import picard.PicardException;
 import picard.cmdline.CommandLineProgram;
 import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
+import picard.metrics.SAMRecordAndReference;
+import picard.reference.PackedReferenceSequenceFile;
 
 import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Super class that is designed to provide some consistent structure between subclasses that
@@ -76,6 +90,21 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
     @Option(doc = "Stop after processing N reads, mainly for debugging.")
     public long STOP_AFTER = 0;
 
+    @Option(doc = "Number of threads used to run the collectors. If 1, every collector runs on the thread reading the input. " +
+            "Otherwise records are handed out in batches to one thread per program, or per group of programs when there " +
+            "are more programs than threads.")
+    public int NUM_THREADS = 1;
+
+    @Option(doc = "If true and the input is an indexed, coordinate sorted BAM, split it into one shard per reference sequence " +
+            "(plus one for the unmapped reads) and process the shards on NUM_THREADS threads, each with its own collectors, " +
+            "merging the results at the end. Ignored if the program cannot merge its results or if STOP_AFTER is set.")
+    public boolean SHARD_BY_INDEX = false;
+
+    @Option(doc = "If true, read the reference through a packed, upper-cased copy of REFERENCE_SEQUENCE (built as a .packed " +
+            "file next to it the first time it is needed) that is memory-mapped and shared by everything in the JVM, " +
+            "instead of loading each contig from the FASTA.")
+    public boolean USE_PACKED_REFERENCE = false;
+
     private static final Log log = Log.getInstance(SinglePassSamProgram.class);
 
     /**
@@ -84,23 +113,46 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
      */
     @Override
     protected final int doWork() {
-        makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, Arrays.asList(this));
+        if (SHARD_BY_INDEX && STOP_AFTER == 0) {
+            makeItSoSharded(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, NUM_THREADS, Arrays.asList(this));
+        } else {
+            makeItSo(INPUT, REFERENCE_SEQUENCE, ASSUME_SORTED, STOP_AFTER, NUM_THREADS, Arrays.asList(this));
+        }
         return 0;
     }
 
-    public static final int MAX_PAIRS = 1000;
-    private static final int QUEUE_CAPACITY = 2;
-    private static final int MAX_SEM = 50;
+    /** Number of records handed to the collector threads at a time when NUM_THREADS > 1. */
+    public static final int BATCH_SIZE = 1000;
+    /** Number of batches that may be waiting on each collector thread before the reader blocks. */
+    private static final int QUEUE_CAPACITY = 8;
+
+    public static void makeItSo(final File input,
+                                final File referenceSequence,
+                                final boolean assumeSorted,
+                                final long stopAfter,
+                                final Collection<SinglePassSamProgram> programs) {
+        makeItSo(input, referenceSequence, assumeSorted, stopAfter, 1, programs);
+    }
 
+    /**
+     * Runs the given programs over the input in a single pass.  If numThreads is greater than one the records are
+     * handed out in batches to min(numThreads, programs.size()) collector threads, each of which runs acceptRead()
+     * for its own group of programs.  finish() is always called on the calling thread once every collector thread
+     * has drained its queue.
+     */
     public static void makeItSo(final File input,
                                 final File referenceSequence,
                                 final boolean assumeSorted,
                                 final long stopAfter,
+                                final int numThreads,
                                 final Collection<SinglePassSamProgram> programs) {
 
         // Setup the standard inputs
         IOUtil.assertFileIsReadable(input);
-        final SamReader in = SamReaderFactory.makeDefault().referenceSequence(referenceSequence).open(input);
+        final SamReaderFactory factory = SamReaderFactory.makeDefault().referenceSequence(referenceSequence);
+        // Records are shared between collector threads, so make sure nothing is lazily decoded after the hand-off
+        if (numThreads > 1) factory.enable(SamReaderFactory.Option.EAGERLY_DECODE);
+        final SamReader in = factory.open(input);
 
         // Optionally load up the reference sequence and double check sequence dictionaries
         final ReferenceSequenceFileWalker walker;
@@ -108,7 +160,7 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
             walker = null;
         } else {
             IOUtil.assertFileIsReadable(referenceSequence);
-            walker = new ReferenceSequenceFileWalker(referenceSequence);
+            walker = PackedReferenceSequenceFile.openWalker(referenceSequence, usePackedReference(programs));
 
             if (!in.getFileHeader().getSequenceDictionary().isEmpty()) {
                 SequenceUtil.assertSequenceDictionariesEqual(in.getFileHeader().getSequenceDictionary(),
@@ -137,111 +189,335 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
             anyUseNoRefReads = anyUseNoRefReads || program.usesNoRefReads();
         }
 
-
         final ProgressLogger progress = new ProgressLogger(log);
+        final CollectorPool pool = (numThreads > 1 && programs.size() > 1) ? new CollectorPool(programs, numThreads) : null;
+        List<SAMRecordAndReference> batch = new ArrayList<SAMRecordAndReference>(BATCH_SIZE);
 
-        final ExecutorService service = Executors.newCachedThreadPool();
-
-        final BlockingQueue<List<Object[]>> queue = new LinkedBlockingQueue<List<Object[]>>(
-                QUEUE_CAPACITY);
+        try {
+            for (final SAMRecord rec : in) {
+                final ReferenceSequence ref;
+                if (walker == null || rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+                    ref = null;
+                } else {
+                    ref = walker.get(rec.getReferenceIndex());
+                }
 
-        final Semaphore sem = new Semaphore(MAX_SEM);
+                if (pool == null) {
+                    for (final SinglePassSamProgram program : programs) {
+                        program.acceptRead(rec, ref);
+                    }
+                } else {
+                    batch.add(new SAMRecordAndReference(rec, ref));
+                    if (batch.size() >= BATCH_SIZE) {
+                        pool.submit(batch);
+                        batch = new ArrayList<SAMRecordAndReference>(BATCH_SIZE);
+                    }
+                }
 
-        List<Object[]> pairs = new ArrayList<Object[]>(MAX_PAIRS);
-//
-        service.execute(new Runnable() {
+                progress.record(rec);
 
-            @Override
-            public void run() {
-                while (true) {
+                // See if we need to terminate early?
+                if (stopAfter > 0 && progress.getCount() >= stopAfter) {
+                    break;
+                }
 
-                    try {
-                        final List<Object[]> tmpPairs = queue.take();
+                // And see if we're into the unmapped reads at the end
+                if (!anyUseNoRefReads && rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+                    break;
+                }
+            }
 
-                        sem.acquire();
+            if (pool != null) {
+                if (!batch.isEmpty()) pool.submit(batch);
+                pool.awaitCompletion();
+            }
+        } finally {
+            if (pool != null) pool.shutdownNow();
+            CloserUtil.close(in);
+        }
 
-                        service.submit(new Runnable() {
+        for (final SinglePassSamProgram program : programs) {
+            program.finish();
+        }
+    }
 
-                            @Override
-                            public void run() {
-                                for (Object[] object : tmpPairs) {
-                                    progress.record((SAMRecord) object[0]);
+    /**
+     * Runs acceptRead() for groups of programs on dedicated threads.  Every batch of records is offered to the
+     * bounded queue of each group, so the reader only runs as far ahead of the slowest group as the queues allow.
+     */
+    private static class CollectorPool {
+        /** Marker placed on each queue to tell the collector thread that no more records are coming. */
+        private static final List<SAMRecordAndReference> END_OF_INPUT = new ArrayList<SAMRecordAndReference>(0);
+
+        private final List<BlockingQueue<List<SAMRecordAndReference>>> queues = new ArrayList<BlockingQueue<List<SAMRecordAndReference>>>();
+        private final ExecutorService executor;
+        private final List<Future<?>> futures = new ArrayList<Future<?>>();
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>(null);
+
+        CollectorPool(final Collection<SinglePassSamProgram> programs, final int numThreads) {
+            final int numGroups = Math.min(numThreads, programs.size());
+            final List<List<SinglePassSamProgram>> groups = new ArrayList<List<SinglePassSamProgram>>(numGroups);
+            for (int i = 0; i < numGroups; ++i) groups.add(new ArrayList<SinglePassSamProgram>());
+            int i = 0;
+            for (final SinglePassSamProgram program : programs) groups.get(i++ % numGroups).add(program);
+
+            log.info("Running " + programs.size() + " programs on " + numGroups + " collector threads.");
+            this.executor = Executors.newFixedThreadPool(numGroups);
+            for (final List<SinglePassSamProgram> group : groups) {
+                final BlockingQueue<List<SAMRecordAndReference>> queue =
+                        new ArrayBlockingQueue<List<SAMRecordAndReference>>(QUEUE_CAPACITY);
+                queues.add(queue);
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            List<SAMRecordAndReference> records;
+                            while ((records = queue.take()) != END_OF_INPUT) {
+                                for (final SAMRecordAndReference recAndRef : records) {
+                                    for (final SinglePassSamProgram program : group) {
+                                        program.acceptRead(recAndRef.getSamRecord(), recAndRef.getReferenceSequence());
+                                    }
                                 }
-                                sem.release();
                             }
-                        });
+                        } catch (final InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                        } catch (final Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                }));
+            }
+            executor.shutdown();
+        }
 
-                    } catch (InterruptedException e1) {
-                        e1.printStackTrace();
+        /** Hands the batch to every collector thread, blocking while any of their queues is full. */
+        void submit(final List<SAMRecordAndReference> records) {
+            for (final BlockingQueue<List<SAMRecordAndReference>> queue : queues) {
+                try {
+                    while (!queue.offer(records, 1, TimeUnit.SECONDS)) {
+                        checkAndRethrow();
                     }
+                } catch (final InterruptedException ie) {
+                    throw new PicardException("Interrupted while handing records to collector threads.", ie);
                 }
             }
-        });
-
+            checkAndRethrow();
+        }
 
-        for (final SAMRecord rec : in) {
-            final ReferenceSequence ref;
-            if (walker == null || rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-                ref = null;
-            } else {
-                ref = walker.get(rec.getReferenceIndex());
+        /** Signals the end of input and waits for every collector thread to drain its queue. */
+        void awaitCompletion() {
+            submit(END_OF_INPUT);
+            for (final Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (final InterruptedException ie) {
+                    throw new PicardException("Interrupted while waiting on collector threads.", ie);
+                } catch (final ExecutionException ee) {
+                    failure.compareAndSet(null, ee.getCause());
+                }
             }
+            checkAndRethrow();
+        }
 
-            for (final SinglePassSamProgram program : programs) {
-                program.acceptRead(rec, ref);
+        void shutdownNow() {
+            executor.shutdownNow();
+        }
+
+        private void checkAndRethrow() {
+            final Throwable t = failure.get();
+            if (t != null) {
+                if (t instanceof Error) throw (Error) t;
+                if (t instanceof RuntimeException) throw (RuntimeException) t;
+                throw new PicardException("Collector thread failed.", t);
             }
+        }
+    }
 
-            pairs.add(new Object[]{rec});
+    /**
+     * Runs the given programs over an indexed, coordinate sorted input by splitting it into one shard per reference
+     * sequence plus one for the unplaced unmapped reads.  Each shard is read through its own SamReader on one of
+     * numThreads threads and fed to fresh instances of the programs (see {@link #makeShardInstance()}), which are then
+     * merged, in reference order, into the given programs before finish() is called on them.  Falls back to
+     * {@link #makeItSo} if the input is not indexed or if any of the programs does not support merging.
+     */
+    public static void makeItSoSharded(final File input,
+                                       final File referenceSequence,
+                                       final boolean assumeSorted,
+                                       final int numThreads,
+                                       final Collection<SinglePassSamProgram> programs) {
+        IOUtil.assertFileIsReadable(input);
+        final SamReader in = SamReaderFactory.makeDefault().referenceSequence(referenceSequence).open(input);
+        final SAMFileHeader header = in.getFileHeader();
+        final boolean indexed = in.hasIndex();
+        CloserUtil.close(in);
 
-            if (pairs.size() < MAX_PAIRS) {
-                continue;
+        String reason = null;
+        if (!indexed) reason = input.getName() + " is not indexed";
+        else if (header.getSortOrder() != SortOrder.coordinate) reason = input.getName() + " is not coordinate sorted";
+        for (final SinglePassSamProgram program : programs) {
+            if (reason == null && !program.supportsMerge()) reason = program.getClass().getSimpleName() + " cannot merge its results";
+        }
+        if (reason != null) {
+            log.warn("Not sharding the input because " + reason + ".");
+            makeItSo(input, referenceSequence, assumeSorted, 0, numThreads, programs);
+            return;
+        }
+
+        if (referenceSequence != null) {
+            IOUtil.assertFileIsReadable(referenceSequence);
+            final ReferenceSequenceFileWalker walker = PackedReferenceSequenceFile.openWalker(referenceSequence, usePackedReference(programs));
+            if (!header.getSequenceDictionary().isEmpty()) {
+                SequenceUtil.assertSequenceDictionariesEqual(header.getSequenceDictionary(), walker.getSequenceDictionary());
             }
+            CloserUtil.close(walker);
+        }
+
+        boolean anyUseNoRefReads = false;
+        for (final SinglePassSamProgram program : programs) {
+            program.setup(header, input);
+            anyUseNoRefReads = anyUseNoRefReads || program.usesNoRefReads();
+        }
 
-            try {
-                queue.put(pairs);
-            } catch (InterruptedException e1) {
-                e1.printStackTrace();
+        // One shard per reference sequence, in dictionary order so that the merge order is deterministic
+        final List<Integer> shards = new ArrayList<Integer>();
+        for (final SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+            shards.add(sequence.getSequenceIndex());
+        }
+        if (anyUseNoRefReads) shards.add(SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX);
+
+        // Submit the largest reference sequences first so that a long one doesn't start last
+        final List<Integer> submissionOrder = new ArrayList<Integer>(shards);
+        Collections.sort(submissionOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer lhs, final Integer rhs) {
+                return Long.compare(shardLength(header, rhs), shardLength(header, lhs));
             }
+        });
 
-            pairs = new ArrayList<Object[]>(MAX_PAIRS);
-
-//            final List<Object[]> tmpPairs = pairs;
-//            pairs = new ArrayList<Object[]>(MAX_PAIRS);
-//
-//            service.submit(new Callable<Boolean>() {
-//                @Override
-//                public Boolean call() throws Exception {
-//                    for (Object[] object : tmpPairs) {
-//                        progress.record((SAMRecord) object[0]);
-//                    }
-//                    return null;
-//                }
-//            });
-
-
-            // See if we need to terminate early?
-            if (stopAfter > 0 && progress.getCount() >= stopAfter) {
-                break;
+        log.info("Processing " + shards.size() + " shards of " + input.getName() + " on " + numThreads + " threads.");
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        final Map<Integer, Future<List<SinglePassSamProgram>>> results = new HashMap<Integer, Future<List<SinglePassSamProgram>>>();
+        try {
+            for (final Integer referenceIndex : submissionOrder) {
+                results.put(referenceIndex, executor.submit(new Callable<List<SinglePassSamProgram>>() {
+                    @Override
+                    public List<SinglePassSamProgram> call() {
+                        return processShard(input, referenceSequence, header, referenceIndex, programs);
+                    }
+                }));
             }
+            executor.shutdown();
 
-            // And see if we're into the unmapped reads at the end
-            if (!anyUseNoRefReads && rec.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-                break;
+            for (final Integer referenceIndex : shards) {
+                final List<SinglePassSamProgram> shardPrograms = results.get(referenceIndex).get();
+                int i = 0;
+                for (final SinglePassSamProgram program : programs) {
+                    program.merge(shardPrograms.get(i++));
+                }
             }
+        } catch (final InterruptedException ie) {
+            throw new PicardException("Interrupted while waiting on shards of " + input.getName(), ie);
+        } catch (final ExecutionException ee) {
+            final Throwable t = ee.getCause();
+            if (t instanceof Error) throw (Error) t;
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            throw new PicardException("Failed processing a shard of " + input.getName(), t);
+        } finally {
+            executor.shutdownNow();
         }
 
-        service.shutdown();
+        for (final SinglePassSamProgram program : programs) {
+            program.finish();
+        }
+    }
 
-        try {
-            service.awaitTermination(1, TimeUnit.DAYS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    /** True if any of the programs asked for the shared packed reference, in which case they all get it. */
+    private static boolean usePackedReference(final Collection<SinglePassSamProgram> programs) {
+        for (final SinglePassSamProgram program : programs) {
+            if (program.USE_PACKED_REFERENCE) return true;
         }
+        return false;
+    }
 
-        CloserUtil.close(in);
+    private static long shardLength(final SAMFileHeader header, final int referenceIndex) {
+        return referenceIndex == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX ? 0 : header.getSequence(referenceIndex).getSequenceLength();
+    }
 
+    /** Reads the records for one reference sequence (or the unplaced unmapped records) into new instances of the programs. */
+    private static List<SinglePassSamProgram> processShard(final File input,
+                                                           final File referenceSequence,
+                                                           final SAMFileHeader header,
+                                                           final int referenceIndex,
+                                                           final Collection<SinglePassSamProgram> programs) {
+        final List<SinglePassSamProgram> shardPrograms = new ArrayList<SinglePassSamProgram>(programs.size());
         for (final SinglePassSamProgram program : programs) {
-            program.finish();
+            final SinglePassSamProgram shardProgram = program.makeShardInstance();
+            shardProgram.setup(header, input);
+            shardPrograms.add(shardProgram);
+        }
+
+        final SamReader in = SamReaderFactory.makeDefault().referenceSequence(referenceSequence).open(input);
+        final SAMRecordIterator iterator;
+        final ReferenceSequence ref;
+        final String shardName;
+        if (referenceIndex == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+            shardName = "unmapped";
+            iterator = in.queryUnmapped();
+            ref = null;
+        } else {
+            shardName = header.getSequence(referenceIndex).getSequenceName();
+            iterator = in.query(shardName, 0, 0, false);
+            if (referenceSequence == null) {
+                ref = null;
+            } else {
+                final ReferenceSequenceFileWalker walker = PackedReferenceSequenceFile.openWalker(referenceSequence, usePackedReference(programs));
+                ref = walker.get(referenceIndex);
+                CloserUtil.close(walker);
+            }
+        }
+
+        final ProgressLogger progress = new ProgressLogger(log, 10000000, "Processed", "records from " + shardName);
+        try {
+            while (iterator.hasNext()) {
+                final SAMRecord rec = iterator.next();
+                for (final SinglePassSamProgram program : shardPrograms) {
+                    program.acceptRead(rec, ref);
+                }
+                progress.record(rec);
+            }
+        } finally {
+            iterator.close();
+            CloserUtil.close(in);
+        }
+        return shardPrograms;
+    }
+
+    /**
+     * Returns a new instance of this program with the same option values, for use on one shard of the input.  The
+     * new instance has not been set up yet.
+     */
+    protected SinglePassSamProgram makeShardInstance() {
+        try {
+            final SinglePassSamProgram shard = getClass().getDeclaredConstructor().newInstance();
+            for (Class<?> clazz = getClass(); clazz != null; clazz = clazz.getSuperclass()) {
+                for (final Field field : clazz.getDeclaredFields()) {
+                    if (field.isAnnotationPresent(Option.class) && !Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        field.set(shard, field.get(this));
+                    }
+                }
+            }
+            shard.setDefaultHeaders(getDefaultHeaders());
+            return shard;
+        } catch (final NoSuchMethodException e) {
+            throw new PicardException(getClass().getSimpleName() + " needs a constructor with no arguments to be run in shards", e);
+        } catch (final InvocationTargetException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Error) throw (Error) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new PicardException("Could not create a shard instance of " + getClass().getSimpleName(), cause);
+        } catch (final InstantiationException | IllegalAccessException e) {
+            throw new PicardException("Could not create a shard instance of " + getClass().getSimpleName(), e);
         }
     }
 
@@ -261,4 +537,16 @@ public abstract class SinglePassSamProgram extends CommandLineProgram {
     /** Should be implemented by subclasses to do one-time finalization work. */
     protected abstract void finish();
 
+    /** Can be overridden to return true by subclasses that implement merge(), allowing them to be run on index shards. */
+    protected boolean supportsMerge() { return false; }
+
+    /**
+     * Should be implemented by subclasses that return true from supportsMerge() to fold the records accumulated by
+     * another instance, made by {@link #makeShardInstance()} and set up with the same header, into this one.  It is
+     * called before finish() and the other instance is discarded afterwards.
+     */
+    protected void merge(final SinglePassSamProgram other) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support merging.");
+    }
+
 }
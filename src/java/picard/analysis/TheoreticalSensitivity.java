@@ -29,9 +29,8 @@ import htsjdk.samtools.util.Log;
 import picard.PicardException;
 import picard.util.MathUtil;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 /**
  * Created by David Benjamin on 5/13/15.
@@ -40,7 +39,8 @@ public class TheoreticalSensitivity {
     /**
      * @param the probability of depth n is depthDistribution[n] for n = 0, 1. . . N - 1
      * @param the probability of quality q is qualityDistribution[q] for q = 0, 1. . . Q
-     * @param sample size is the number of random sums of quality scores for each m
+     * @param sample size is the number of random sums of quality scores for each m, or 0 (or less) to compute the
+     * distribution of the sums exactly instead of sampling them
      * @param logOddsThreshold is the log_10 of the likelihood ratio required to call a SNP,
      * for example 5 if the variant likelihood must be 10^5 times greater
      */
@@ -52,65 +52,133 @@ public class TheoreticalSensitivity {
                                            final int sampleSize, final double logOddsThreshold) {
         final int N = Math.min(depthDistribution.length, MAX_CONSIDERED_DEPTH + 1);
 
-        log.info("Creating Roulette Wheel");
-        final RouletteWheel qualitySampler = new RouletteWheel(qualityDistribution);
-
-        //qualitySums[m] is a random sample of sums of m quality scores, for m = 0, 1, N - 1
-        log.info("Calculating quality sums from quality sampler");
-        final List<ArrayList<Integer>> qualitySums = qualitySampler.sampleCumulativeSums(N, sampleSize);
-
         //if a quality sum of m qualities exceeds the quality sum threshold for n total reads, a SNP is called
-        final ArrayList<Double> qualitySumThresholds = new ArrayList<>(N);
+        final double[] qualitySumThresholds = new double[N];
         final double LOG_10 = Math.log10(2);
 
-        for (int n = 0; n < N; n++) qualitySumThresholds.add(10 * (n * LOG_10 + logOddsThreshold));
+        for (int n = 0; n < N; n++) qualitySumThresholds[n] = 10 * (n * LOG_10 + logOddsThreshold);
 
         //probabilityToExceedThreshold[m][n] is the probability that the sum of m quality score
         //exceeds the nth quality sum threshold
-        log.info("Calculating theoretical het sensitivity");
-        final List<ArrayList<Double>> probabilityToExceedThreshold = proportionsAboveThresholds(qualitySums, qualitySumThresholds);
-        final List<ArrayList<Double>> altDepthDistribution = hetAltDepthDistribution(N);
-        double result = 0.0;
-        for (int n = 0; n < N; n++) {
-            for (int m = 0; m <= n; m++) {
-                result += depthDistribution[n] * altDepthDistribution.get(n).get(m) * probabilityToExceedThreshold.get(m).get(n);
-            }
+        final double[][] probabilityToExceedThreshold;
+        if (sampleSize > 0) {
+            log.info("Creating Roulette Wheel");
+            final RouletteWheel qualitySampler = new RouletteWheel(qualityDistribution);
+
+            //qualitySums[m] is a random sample of sums of m quality scores, for m = 0, 1, N - 1
+            log.info("Calculating quality sums from quality sampler");
+            final int[][] qualitySums = qualitySampler.sampleCumulativeSums(N, sampleSize);
+
+            log.info("Calculating theoretical het sensitivity");
+            probabilityToExceedThreshold = proportionsAboveThresholds(qualitySums, qualitySumThresholds);
+        } else {
+            log.info("Calculating theoretical het sensitivity");
+            probabilityToExceedThreshold = probabilitiesAboveThresholds(qualityDistribution, N, qualitySumThresholds);
         }
+
+        //the depths are independent of each other, so sum up each one's contribution in parallel, then add them up
+        //in order so that the result doesn't depend on how the work was split
+        final double[][] altDepthDistribution = hetAltDepthDistribution(N);
+        final double[] resultByDepth = new double[N];
+        IntStream.range(0, N).parallel().forEach(n -> {
+            double sum = 0.0;
+            for (int m = 0; m <= n; m++) sum += altDepthDistribution[n][m] * probabilityToExceedThreshold[m][n];
+            resultByDepth[n] = depthDistribution[n] * sum;
+        });
+
+        double result = 0.0;
+        for (int n = 0; n < N; n++) result += resultByDepth[n];
         return result;
     }
 
-    //given L lists of lists and N thresholds, count the proportion of each list above each threshold
-    public static List<ArrayList<Double>> proportionsAboveThresholds(final List<ArrayList<Integer>> lists, final List<Double> thresholds) {
-        final ArrayList<ArrayList<Double>> result = new ArrayList<>();
+    //given L lists and N thresholds, count the proportion of each list above each threshold.  The lists are sorted in place.
+    public static double[][] proportionsAboveThresholds(final int[][] lists, final double[] thresholds) {
+        final double[][] result = new double[lists.length][thresholds.length];
 
-        for (final ArrayList<Integer> list : lists) {
-            final ArrayList<Double> newRow = new ArrayList<>(Collections.nCopies(thresholds.size(), 0.0));
-            Collections.sort(list);
+        IntStream.range(0, lists.length).parallel().forEach(l -> {
+            final int[] list = lists[l];
+            final double[] newRow = result[l];
+            Arrays.sort(list);
             int n = 0;
             int j = 0;  //index within the ordered sample
-            while (n < thresholds.size() && j < list.size()) {
-                if (thresholds.get(n) > list.get(j)) j++;
-                else newRow.set(n++, (double) (list.size() - j) / list.size());
+            while (n < thresholds.length && j < list.length) {
+                if (thresholds[n] > list[j]) j++;
+                else newRow[n++] = (double) (list.length - j) / list.length;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Computes exactly, rather than by sampling, the probability that the sum of m qualities drawn from
+     * qualityDistribution is at least each of the thresholds, for m = 0, 1. . . M - 1.  The distribution of the sum
+     * of m + 1 qualities is the convolution of the distribution for m with the quality distribution.  The thresholds
+     * are only ever compared against, so sums at or above the largest one are pooled into a single bin, which keeps
+     * every distribution short.
+     *
+     * @return the probability that the sum of m qualities is at least threshold n, as [m][n]
+     */
+    public static double[][] probabilitiesAboveThresholds(final double[] qualityDistribution, final int M, final double[] thresholds) {
+        final double qualityTotal = MathUtil.sum(qualityDistribution);
+        if (qualityTotal <= 0) {
+            throw new PicardException("Quality score distribution is empty.");
+        }
+
+        //only the qualities that can occur contribute to the convolution
+        final int[] qualities = IntStream.range(0, qualityDistribution.length).filter(q -> qualityDistribution[q] > 0).toArray();
+        final double[] qualityProbabilities = new double[qualities.length];
+        for (int i = 0; i < qualities.length; i++) qualityProbabilities[i] = qualityDistribution[qualities[i]] / qualityTotal;
+
+        //sums are integers, so a sum exceeds a threshold exactly when it is at least the threshold rounded up
+        final int[] minimumSums = new int[thresholds.length];
+        int maxSum = 0;
+        for (int n = 0; n < thresholds.length; n++) {
+            minimumSums[n] = (int) Math.max(0, Math.ceil(thresholds[n]));
+            maxSum = Math.max(maxSum, minimumSums[n]);
+        }
+
+        //sumDistribution[s] is the probability that the sum of m qualities is s, and the last bin is for maxSum or more
+        double[] sumDistribution = new double[maxSum + 1];
+        double[] nextSumDistribution = new double[maxSum + 1];
+        final double[] probabilityOfAtLeast = new double[maxSum + 1];
+        sumDistribution[0] = 1.0;
+
+        final double[][] result = new double[M][thresholds.length];
+        for (int m = 0; m < M; m++) {
+            double tail = 0.0;
+            for (int s = maxSum; s >= 0; s--) probabilityOfAtLeast[s] = (tail += sumDistribution[s]);
+            for (int n = 0; n < thresholds.length; n++) result[m][n] = probabilityOfAtLeast[minimumSums[n]];
+
+            if (m == M - 1) break;
+            Arrays.fill(nextSumDistribution, 0.0);
+            for (int s = 0; s <= maxSum; s++) {
+                final double p = sumDistribution[s];
+                if (p == 0) continue;
+                for (int i = 0; i < qualities.length; i++) {
+                    nextSumDistribution[Math.min(s + qualities[i], maxSum)] += p * qualityProbabilities[i];
+                }
             }
-            result.add(newRow);
+            final double[] swap = sumDistribution;
+            sumDistribution = nextSumDistribution;
+            nextSumDistribution = swap;
         }
         return result;
     }
 
     //Utility function for making table of binomial distribution probabilities nCm * (0.5)^n
     //for n = 0, 1 . . . N - 1 and m = 0, 1. . . n
-    public static List<ArrayList<Double>> hetAltDepthDistribution(final int N) {
-        final List<ArrayList<Double>> table = new ArrayList<>();
+    public static double[][] hetAltDepthDistribution(final int N) {
+        final double[][] table = new double[N][];
         for (int n = 0; n < N; n++) {
-            final ArrayList<Double> nthRow = new ArrayList<>();
+            final double[] nthRow = new double[n + 1];
 
-            //add the 0th element, then elements 1 through n - 1, then the nth.
+            //set the 0th element, then elements 1 through n - 1, then the nth.
             //Note that nCm = (n-1)C(m-1) * (n/m)
-            nthRow.add(Math.pow(0.5, n));
-            for (int m = 1; m < n; m++) nthRow.add((n * 0.5 / m) * table.get(n - 1).get(m - 1));
-            if (n > 0) nthRow.add(nthRow.get(0));
+            nthRow[0] = Math.pow(0.5, n);
+            for (int m = 1; m < n; m++) nthRow[m] = (n * 0.5 / m) * table[n - 1][m - 1];
+            if (n > 0) nthRow[n] = nthRow[0];
 
-            table.add(nthRow);
+            table[n] = nthRow;
         }
         return table;
     }
@@ -122,22 +190,22 @@ public class TheoreticalSensitivity {
     which works well when the ratio of maximum weight to average weight is not large.
      */
     public static class RouletteWheel {
-        final private List<Double> probabilities;
+        final private double[] probabilities;
         final private int N;
         private int count = 0;
 
         RouletteWheel(final double[] weights) {
             N = weights.length;
 
-            probabilities = new ArrayList<>();
+            probabilities = new double[N];
             final double wMax = MathUtil.max(weights);
 
             if (wMax == 0) {
                 throw new PicardException("Quality score distribution is empty.");
             }
 
-            for (final double w : weights) {
-                probabilities.add(w / wMax);
+            for (int n = 0; n < N; n++) {
+                probabilities[n] = weights[n] / wMax;
             }
         }
 
@@ -145,7 +213,7 @@ public class TheoreticalSensitivity {
             while (true) {
                 final int n = (int) (N * Math.random());
                 count++;
-                if (Math.random() < probabilities.get(n)) {
+                if (Math.random() < probabilities[n]) {
                     count = 0;
                     return n;
                 } else if (count >= SAMPLING_MAX) {
@@ -155,15 +223,14 @@ public class TheoreticalSensitivity {
             }
         }
 
-        //get samples of sums of 0, 1, 2,. . .  N - 1 draws
-        public List<ArrayList<Integer>> sampleCumulativeSums(final int maxNumberOfSummands, final int sampleSize) {
-            final List<ArrayList<Integer>> result = new ArrayList<>();
-            for (int m = 0; m < maxNumberOfSummands; m++) result.add(new ArrayList<>());
+        //get samples of sums of 0, 1, 2,. . .  N - 1 draws, as [number of draws][sample]
+        public int[][] sampleCumulativeSums(final int maxNumberOfSummands, final int sampleSize) {
+            final int[][] result = new int[maxNumberOfSummands][sampleSize];
 
             for (int iteration = 0; iteration < sampleSize; iteration++) {
                 int cumulativeSum = 0;
                 for (int m = 0; m < maxNumberOfSummands; m++) {
-                    result.get(m).add(cumulativeSum);
+                    result[m][iteration] = cumulativeSum;
                     cumulativeSum += draw();
                 }
                 if (iteration % 1000 == 0) {
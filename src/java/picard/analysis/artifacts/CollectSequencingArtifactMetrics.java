@@ -23,6 +23,7 @@ import picard.analysis.SinglePassSamProgram;
 import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.programgroups.Metrics;
+import picard.reference.PackedReference;
 import picard.util.DbSnpBitSetUtil;
 import picard.analysis.artifacts.SequencingArtifactMetrics.*;
 
@@ -278,6 +279,11 @@ public class CollectSequencingArtifactMetrics extends SinglePassSamProgram {
     }
 
     private String getRefContext(final ReferenceSequence ref, final int contextStartIndex, final int contextFullLength) {
+        // the packed reference is already upper-cased, so there's no need to copy the whole contig
+        if (PackedReference.isPacked(ref)) {
+            return StringUtil.bytesToString(ref.getBases(), contextStartIndex, contextFullLength);
+        }
+
         // cache the upper-cased string version of this reference so we don't need to create a string for every base in every read
         if (currentRefIndex != ref.getContigIndex()) {
             currentRefString = new String(ref.getBases()).toUpperCase();
@@ -94,7 +94,8 @@ public abstract class CollectTargetedMetrics<METRIC extends MultilevelMetrics, C
     @Option(shortName = "covMax", doc = "Parameter to set a max coverage limit for Theoretical Sensitivity calculations. Default is 200.", optional = true)
     public int COVERAGE_CAP = 200;
 
-    @Option(doc="Sample Size used for Theoretical Het Sensitivity sampling. Default is 10000.", optional = true)
+    @Option(doc="Sample Size used for Theoretical Het Sensitivity sampling. Default is 10000. If 0, Theoretical Het Sensitivity " +
+            "is computed exactly instead of by sampling, which is faster and gives the same value on every run.", optional = true)
     public int SAMPLE_SIZE=10000;
 
     /**
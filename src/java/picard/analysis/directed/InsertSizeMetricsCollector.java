@@ -112,6 +112,13 @@ public class InsertSizeMetricsCollector extends MultiLevelCollector<InsertSizeMe
             histograms.get(args.getPairOrientation()).increment(args.getInsertSize());
         }
 
+        @Override
+        public void merge(final PerUnitMetricCollector<InsertSizeMetrics, Integer, InsertSizeCollectorArgs> other) {
+            for (final Map.Entry<SamPairUtil.PairOrientation, Histogram<Integer>> entry : ((PerUnitInsertSizeMetricsCollector) other).histograms.entrySet()) {
+                histograms.get(entry.getKey()).addHistogram(entry.getValue());
+            }
+        }
+
         public void finish() { }
 
         public double getTotalInserts() {
@@ -107,8 +107,9 @@ public class ClusterDataToSamConverter implements
                                       final String unmatchedBarcode, final String molecularIndex, final String molecularIndexQ) {
         final SAMRecord sam = new SAMRecord(null);
         sam.setReadName(readName);
-        sam.setReadBases(readData.getBases());
-        sam.setBaseQualities(readData.getQualities());
+        // Copied, since the cluster's arrays may be filled in again for the next cluster while the record is kept
+        sam.setReadBases(readData.getBases().clone());
+        sam.setBaseQualities(readData.getQualities().clone());
 
         // Flag values
         sam.setReadPairedFlag(isPairedEnd);
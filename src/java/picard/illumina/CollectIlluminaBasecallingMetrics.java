@@ -146,9 +146,9 @@ public class CollectIlluminaBasecallingMetrics extends CommandLineProgram {
         //Initialize data provider, iterate over clusters, and collect statistics
         final IlluminaDataProvider provider = factory.makeDataProvider();
 
+        final ClusterData cluster = provider.makeClusterData();
         while (provider.hasNext()) {
-            final ClusterData cluster = provider.next();
-            addCluster(cluster);
+            addCluster(provider.next(cluster));
         }
 
         onComplete();
@@ -586,9 +586,10 @@ public class ExtractIlluminaBarcodes extends CommandLineProgram {
                 final BufferedWriter writer = IOUtil.openFileForBufferedWriting(barcodeFile);
                 final byte barcodeSubsequences[][] = new byte[barcodeIndices.length][];
                 final byte qualityScores[][] = usingQualityScores ? new byte[barcodeIndices.length][] : null;
+                final ClusterData cluster = provider.makeClusterData();
                 while (provider.hasNext()) {
                     // Extract the barcode from the cluster and write it to the file for the tile
-                    final ClusterData cluster = provider.next();
+                    provider.next(cluster);
                     for (int i = 0; i < barcodeIndices.length; i++) {
                         barcodeSubsequences[i] = cluster.getRead(barcodeIndices[i]).getBases();
                         if (usingQualityScores) qualityScores[i] = cluster.getRead(barcodeIndices[i]).getQualities();
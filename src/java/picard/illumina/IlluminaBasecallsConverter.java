@@ -553,8 +553,10 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
             final IlluminaDataProvider dataProvider = factory.makeDataProvider(Arrays.asList(this.tile.getNumber()));
             log.debug(String.format("Reading data from tile %s ...", tile.getNumber()));
 
+            // The converters copy what they keep from a cluster, so it is filled in again for each cluster
+            final ClusterData cluster = dataProvider.makeClusterData();
             while (dataProvider.hasNext()) {
-                final ClusterData cluster = dataProvider.next();
+                dataProvider.next(cluster);
                 readProgressLogger.record(null, 0);
                 // If this cluster is passing, or we do NOT want to ONLY emit passing reads, then add it to the next
                 if (cluster.isPf() || includeNonPfReads) {
@@ -904,7 +906,9 @@ public class IlluminaBasecallsConverter<CLUSTER_OUTPUT_RECORD> {
     public static interface ClusterDataConverter<OUTPUT_RECORD> {
 
         /**
-         * Creates the OUTPUT_RECORDs from the cluster
+         * Creates the OUTPUT_RECORDs from the cluster.  The cluster, and the byte arrays of its reads' bases and
+         * qualities, are refilled with the next cluster of the tile once this returns, so the OUTPUT_RECORD must hold
+         * copies of whatever it keeps of them rather than the arrays themselves.
          */
         public OUTPUT_RECORD convertClusterToOutputRecord(final ClusterData cluster);
     }
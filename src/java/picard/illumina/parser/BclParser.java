@@ -51,15 +51,24 @@ class BclParser extends PerTileCycleParser<BclData> {
     protected final BclQualityEvaluationStrategy bclQualityEvaluationStrategy;
     private final boolean applyEamssFilter;
 
+    /** If true, the BclData returned is reused for the next cluster, so it must not be kept once next() is called again. */
+    protected final boolean reuseBclData;
+
     public BclParser(final File directory, final int lane, final CycleIlluminaFileMap tilesToCycleFiles, final OutputMapping outputMapping, final BclQualityEvaluationStrategy bclQualityEvaluationStrategy) {
         this(directory, lane, tilesToCycleFiles, outputMapping, true, bclQualityEvaluationStrategy);
         this.initialize();
     }
 
     public BclParser(final File directory, final int lane, final CycleIlluminaFileMap tilesToCycleFiles, final OutputMapping outputMapping, final boolean applyEamssFilter, final BclQualityEvaluationStrategy bclQualityEvaluationStrategy) {
+        this(directory, lane, tilesToCycleFiles, outputMapping, applyEamssFilter, bclQualityEvaluationStrategy, false);
+    }
+
+    public BclParser(final File directory, final int lane, final CycleIlluminaFileMap tilesToCycleFiles, final OutputMapping outputMapping, final boolean applyEamssFilter,
+                     final BclQualityEvaluationStrategy bclQualityEvaluationStrategy, final boolean reuseBclData) {
         super(directory, lane, tilesToCycleFiles, outputMapping);
         this.bclQualityEvaluationStrategy = bclQualityEvaluationStrategy;
         this.applyEamssFilter = applyEamssFilter;
+        this.reuseBclData = reuseBclData;
         this.initialize();
     }
 
@@ -266,8 +275,10 @@ class BclParser extends PerTileCycleParser<BclData> {
         final CloseableIterator<BclData> reader;
 
         public BclDataCycleFileParser(final List<File> files) {
-            reader = new BclReader(files, outputMapping.getOutputReadLengths(),
+            final BclReader bclReader = new BclReader(files, outputMapping.getOutputReadLengths(),
                     bclQualityEvaluationStrategy, false);
+            bclReader.setReuseData(reuseBclData);
+            reader = bclReader;
         }
 
         @Override
@@ -117,11 +117,26 @@ public class IlluminaDataProvider implements Iterator<ClusterData>, Iterable<Clu
      * @return Current cluster data populated with only the data that matches one of the data types in dataTypes.
      */
     public ClusterData next() {
+        return next(makeClusterData());
+    }
+
+    /** @return An empty ClusterData with a ReadData of the right type for each output read, to be passed to next(ClusterData). */
+    public ClusterData makeClusterData() {
+        return new ClusterData(outputReadTypes);
+    }
+
+    /**
+     * Fills in the given cluster, made by makeClusterData(), with the current cluster's data, copying the bases and
+     * qualities into the arrays its reads already have, rather than making a new ClusterData for every cluster.  The
+     * same cluster may be passed for every cluster, as long as nothing that was read from it is still needed.
+     *
+     * @return The cluster passed in.
+     */
+    public ClusterData next(final ClusterData cluster) {
         if (!hasNext()) {
             throw new NoSuchElementException();
         }
 
-        final ClusterData cluster = new ClusterData(outputReadTypes);
         cluster.setLane(lane);
 
         //IMPORTANT NOTE: This assignment to tile MUST happen BEFORE the loop below because getTileOfNextCluster
@@ -181,14 +196,14 @@ public class IlluminaDataProvider implements Iterator<ClusterData>, Iterable<Clu
     private void addReadData(final ClusterData clusterData, final int numReads, final BaseData baseData) {
         final byte[][] bases = baseData.getBases();
         for (int i = 0; i < numReads; i++) {
-            clusterData.getRead(i).setBases(bases[i]);
+            clusterData.getRead(i).copyBases(bases[i]);
         }
     }
 
     private void addReadData(final ClusterData clusterData, final int numReads, final QualityData qualityData) {
         final byte[][] qualities = qualityData.getQualities();
         for (int i = 0; i < numReads; i++) {
-            clusterData.getRead(i).setQualities(qualities[i]);
+            clusterData.getRead(i).copyQualities(qualities[i]);
         }
     }
 
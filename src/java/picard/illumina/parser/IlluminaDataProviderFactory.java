@@ -347,7 +347,8 @@ public class IlluminaDataProviderFactory {
                 final CycleIlluminaFileMap bclFileMap = ((PerTilePerCycleFileUtil)fileUtil.getUtil(SupportedIlluminaFormat.Bcl))
                         .getFiles(requestedTiles, outputMapping.getOutputCycles());
                 bclFileMap.assertValid(requestedTiles, outputMapping.getOutputCycles());
-                parser = new BclParser(basecallDirectory, lane, bclFileMap, outputMapping, this.applyEamssFiltering, bclQualityEvaluationStrategy);
+                // IlluminaDataProvider copies the bases and qualities out of each BclData, so the parser can reuse it
+                parser = new BclParser(basecallDirectory, lane, bclFileMap, outputMapping, this.applyEamssFiltering, bclQualityEvaluationStrategy, true);
                 break;
             }
 
@@ -376,7 +377,7 @@ public class IlluminaDataProviderFactory {
                 final CycleIlluminaFileMap bclFileMap = util.getFiles(requestedTiles, outputMapping.getOutputCycles());
                 bclFileMap.assertValid(requestedTiles, outputMapping.getOutputCycles());
                 parser = new MultiTileBclParser(basecallDirectory, lane, bclFileMap, outputMapping,
-                        this.applyEamssFiltering, bclQualityEvaluationStrategy, util.tileIndex);
+                        this.applyEamssFiltering, bclQualityEvaluationStrategy, util.tileIndex, true);
                 break;
             }
 
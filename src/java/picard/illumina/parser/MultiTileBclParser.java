@@ -42,7 +42,14 @@ public class MultiTileBclParser extends BclParser {
                               final OutputMapping outputMapping, final boolean applyEamssFilter,
                               final BclQualityEvaluationStrategy bclQualityEvaluationStrategy,
                               final TileIndex tileIndex) {
-        super(directory, lane, tilesToCycleFiles, outputMapping, applyEamssFilter, bclQualityEvaluationStrategy);
+        this(directory, lane, tilesToCycleFiles, outputMapping, applyEamssFilter, bclQualityEvaluationStrategy, tileIndex, false);
+    }
+
+    public MultiTileBclParser(final File directory, final int lane, final CycleIlluminaFileMap tilesToCycleFiles,
+                              final OutputMapping outputMapping, final boolean applyEamssFilter,
+                              final BclQualityEvaluationStrategy bclQualityEvaluationStrategy,
+                              final TileIndex tileIndex, final boolean reuseBclData) {
+        super(directory, lane, tilesToCycleFiles, outputMapping, applyEamssFilter, bclQualityEvaluationStrategy, reuseBclData);
         this.tileIndex = tileIndex;
         this.initialize();
     }
@@ -57,6 +64,7 @@ public class MultiTileBclParser extends BclParser {
     private CountLimitedIterator makeReader(final List<File> files) {
         if(tileIndex != null) {
             final BclReader bclReader = BclReader.makeSeekable(files, bclQualityEvaluationStrategy, outputMapping.getOutputReadLengths());
+            bclReader.setReuseData(reuseBclData);
             final int numClustersInTile = bclReader.seek(files, tileIndex, currentTile);
             return new CountLimitedIterator(bclReader, numClustersInTile);
         }
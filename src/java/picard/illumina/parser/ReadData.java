@@ -53,6 +53,11 @@ public class ReadData {
         this.bases = bases;
     }
 
+    /** Copies the bases into this read's own array, which is only replaced if it is not the same length. */
+    public void copyBases(final byte[] bases) {
+        this.bases = copyInto(this.bases, bases);
+    }
+
     /**
      * @return Noise values as produced by Illumina software, converted to shorts.
      */
@@ -75,6 +80,11 @@ public class ReadData {
         this.qualities = qualities;
     }
 
+    /** Copies the qualities into this read's own array, which is only replaced if it is not the same length. */
+    public void copyQualities(final byte[] qualities) {
+        this.qualities = copyInto(this.qualities, qualities);
+    }
+
     /**
      * @return Raw intensity values as produced by Illumina software, converted to shorts.
      */
@@ -93,4 +103,11 @@ public class ReadData {
     public void setReadType(final ReadType readType) {
         this.readType = readType;
     }
+
+    private static byte[] copyInto(final byte[] target, final byte[] source) {
+        if (source == null) return null;
+        final byte[] copy = (target != null && target.length == source.length) ? target : new byte[source.length];
+        System.arraycopy(source, 0, copy, 0, source.length);
+        return copy;
+    }
 }
@@ -41,6 +41,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
 
@@ -77,6 +78,25 @@ public class BclReader implements CloseableIterator<BclData> {
     private static final int HEADER_SIZE = 4;
     private static final byte[] BASE_LOOKUP = new byte[]{'A', 'C', 'G', 'T'};
 
+    /** The default number of clusters read from each cycle's file and decoded together. */
+    public static final int DEFAULT_CLUSTERS_PER_BLOCK = 1024;
+
+    /** The base and quality of each possible byte of a BCL file, with no-calls as '.' and 2, and qualities revised. */
+    private static final byte[] BASE_OF_BYTE = new byte[256];
+    private static final byte[] QUALITY_OF_BYTE = new byte[256];
+    static {
+        for (int i = 0; i < 256; ++i) {
+            if (i == 0) {
+                //NO CALL, don't confuse with an A call
+                BASE_OF_BYTE[i] = (byte) '.';
+                QUALITY_OF_BYTE[i] = (byte) 2;
+            } else {
+                BASE_OF_BYTE[i] = BASE_LOOKUP[i & BASE_MASK];
+                QUALITY_OF_BYTE[i] = (byte) Math.max(i >>> 2, 1);
+            }
+        }
+    }
+
     private final InputStream[] streams;
     private final File[] streamFiles;
     private final int[] outputLengths;
@@ -85,16 +105,46 @@ public class BclReader implements CloseableIterator<BclData> {
     private final BclQualityEvaluationStrategy bclQualityEvaluationStrategy;
     private BclData queue = null;
 
+    /** If set, the BclData last returned, which is filled in again for the next cluster rather than making a new one. */
+    private boolean reuseData = false;
+    private BclData reusableData = null;
+
+    /**
+     * The bases and qualities of a block of clusters, decoded one cycle at a time and laid out one cluster after
+     * another, so that each cluster's reads are copied out of them in one piece.  The numbers of qualities of 0 and 1,
+     * which BclQualityEvaluationStrategy logs, are counted per cluster and only logged once the cluster is returned.
+     */
+    private final int clustersPerBlock;
+    private final int cycles;
+    private byte[] rawBlock;
+    private byte[] blockBases;
+    private byte[] blockQualities;
+    private int[][] blockLowQualityCounts;
+    private int blockSize = 0;
+    private int blockPosition = 0;
+
     public BclReader(final List<File> bclsForOneTile, final int[] outputLengths,
                      final BclQualityEvaluationStrategy bclQualityEvaluationStrategy, final boolean seekable) {
+        this(bclsForOneTile, outputLengths, bclQualityEvaluationStrategy, seekable, DEFAULT_CLUSTERS_PER_BLOCK);
+    }
+
+    /**
+     * @param clustersPerBlock the number of clusters read from each cycle's file and decoded at a time
+     */
+    public BclReader(final List<File> bclsForOneTile, final int[] outputLengths,
+                     final BclQualityEvaluationStrategy bclQualityEvaluationStrategy, final boolean seekable,
+                     final int clustersPerBlock) {
         try {
             this.bclQualityEvaluationStrategy = bclQualityEvaluationStrategy;
             this.outputLengths = outputLengths;
+            this.clustersPerBlock = clustersPerBlock;
+            if (clustersPerBlock < 1) throw new IllegalArgumentException("clustersPerBlock must be at least 1: " + clustersPerBlock);
 
             int cycles = 0;
             for (final int outputLength : outputLengths) {
                 cycles += outputLength;
             }
+            this.cycles = cycles;
             this.streams = new InputStream[cycles];
             this.streamFiles = new File[cycles];
             this.numClustersPerCycle = new int[cycles];
@@ -175,6 +225,8 @@ public class BclReader implements CloseableIterator<BclData> {
     public BclReader(final File bclFile, final BclQualityEvaluationStrategy bclQualityEvaluationStrategy, final boolean seekable) {
         try {
 
+            this.clustersPerBlock = DEFAULT_CLUSTERS_PER_BLOCK;
+            this.cycles = 1;
             this.outputLengths = new int[]{1};
             this.streams = new InputStream[1];
             this.streamFiles = new File[1];
@@ -244,6 +296,14 @@ public class BclReader implements CloseableIterator<BclData> {
         }
     }
 
+    /**
+     * If true, the BclData returned by next() is filled in again and returned for the next cluster, rather than a new
+     * one being made for each cluster, so it must not be kept once hasNext() or next() is called again.
+     */
+    public void setReuseData(final boolean reuseData) {
+        this.reuseData = reuseData;
+    }
+
     public void close() {
         for (final InputStream stream : this.streams) {
             CloserUtil.close(stream);
@@ -286,42 +346,75 @@ public class BclReader implements CloseableIterator<BclData> {
     }
 
     void advance() {
-        int totalCycleCount = 0;
-        final BclData data = new BclData(outputLengths);
-        for (int read = 0; read < outputLengths.length; read++) {
-            for (int cycle = 0; cycle < outputLengths[read]; ++cycle) {
-                try {
+        if (blockPosition == blockSize && !readBlock()) {
+            queue = null;
+            return;
+        }
 
-                    final int readByte;
-                    try {
-                        readByte = this.streams[totalCycleCount].read();
-                    } catch (IOException e) {
-                        // when logging the error, increment cycle by 1, since totalCycleCount is zero-indexed but Illumina directories are 1-indexed.
-                        throw new IOException(String.format("Error while reading from BCL file for cycle %d. Offending file on disk is %s",
-                                (totalCycleCount+1), this.streamFiles[totalCycleCount].getAbsolutePath()), e);
-                    }
+        final BclData data = reuseData && reusableData != null ? reusableData : new BclData(outputLengths);
+        if (reuseData) reusableData = data;
+        int offset = blockPosition * cycles;
+        for (int read = 0; read < outputLengths.length; read++) {
+            System.arraycopy(blockBases, offset, data.bases[read], 0, outputLengths[read]);
+            System.arraycopy(blockQualities, offset, data.qualities[read], 0, outputLengths[read]);
+            offset += outputLengths[read];
+        }
+        for (byte quality = 0; quality < BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY; ++quality) {
+            for (int i = blockLowQualityCounts[quality][blockPosition]; i > 0; --i) {
+                bclQualityEvaluationStrategy.reviseAndConditionallyLogQuality(quality);
+            }
+        }
+        ++blockPosition;
+        this.queue = data;
+    }
 
-                    if (readByte == -1) {
-                        queue = null;
-                        return;
-                    }
+    /**
+     * Reads and decodes the next block of clusters from every cycle's file, returning false if there are no more
+     * clusters.  The block ends at the end of the shortest file.
+     */
+    private boolean readBlock() {
+        if (rawBlock == null) {
+            rawBlock = new byte[clustersPerBlock];
+            blockBases = new byte[clustersPerBlock * cycles];
+            blockQualities = new byte[clustersPerBlock * cycles];
+            blockLowQualityCounts = new int[BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY][clustersPerBlock];
+        }
+        for (final int[] counts : blockLowQualityCounts) Arrays.fill(counts, 0);
+
+        int size = clustersPerBlock;
+        for (int cycle = 0; cycle < cycles; ++cycle) {
+            try {
+                size = readFully(this.streams[cycle], rawBlock, size);
+            } catch (final IOException e) {
+                // when logging the error, increment cycle by 1, since cycle is zero-indexed but Illumina directories are 1-indexed.
+                throw new RuntimeIOException(new IOException(String.format("Error while reading from BCL file for cycle %d. Offending file on disk is %s",
+                        (cycle + 1), this.streamFiles[cycle].getAbsolutePath()), e));
+            }
 
-                    if (readByte == 0) {
-                        //NO CALL, don't confuse with an A call
-                        data.bases[read][cycle] = (byte) '.';
-                        data.qualities[read][cycle] = (byte) 2;
-                    } else {
-                        data.bases[read][cycle] = BASE_LOOKUP[readByte & BASE_MASK];
-                        data.qualities[read][cycle] = bclQualityEvaluationStrategy.reviseAndConditionallyLogQuality((byte) (readByte >>> 2));
-                    }
-                    totalCycleCount++;
-                } catch (final IOException ioe) {
-                    throw new RuntimeIOException(ioe);
+            for (int cluster = 0, offset = cycle; cluster < size; ++cluster, offset += cycles) {
+                final int readByte = rawBlock[cluster] & 0xff;
+                blockBases[offset] = BASE_OF_BYTE[readByte];
+                blockQualities[offset] = QUALITY_OF_BYTE[readByte];
+                if (readByte != 0 && (readByte >>> 2) < BclQualityEvaluationStrategy.ILLUMINA_ALLEGED_MINIMUM_QUALITY) {
+                    ++blockLowQualityCounts[readByte >>> 2][cluster];
                 }
-
             }
         }
-        this.queue = data;
+
+        blockSize = size;
+        blockPosition = 0;
+        return size > 0;
+    }
+
+    /** Reads up to length bytes, stopping early only at the end of the stream, and returns the number read. */
+    private static int readFully(final InputStream stream, final byte[] buffer, final int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            final int read = stream.read(buffer, total, length - total);
+            if (read == -1) break;
+            total += read;
+        }
+        return total;
     }
 
     public static BclReader makeSeekable(final List<File> files, final BclQualityEvaluationStrategy bclQualityEvaluationStrategy, final int[] outputLengths) {
@@ -351,6 +444,9 @@ public class BclReader implements CloseableIterator<BclData> {
             }
             count++;
         }
+        // The rest of the block read before seeking is from wherever the streams were
+        blockSize = 0;
+        blockPosition = 0;
         return numClustersInTile;
     }
 }
@@ -50,6 +50,9 @@ import java.util.Set;
  * Pass all reads you wish to collect data against to MultiLevelCollector via the acceptRecord method
  * Call finish and use addAllLevelsToFile to add all of the metrics at each accumulation level to the given file.
  *
+ * If the PerUnitMetricCollectors support merge(), records may instead be spread across several MultiLevelCollectors that
+ * were set up with the same levels and read groups, and the partial results combined with merge() before calling finish.
+ *
  * Extend MultiLevelCollector and implement makeArg and makeChildCollector
  * You will most likely want to make a class that extends PerUnitMetricCollector.  This class should do the work of keeping
  * track of values for one specific "accumulation unit" (e.g. for one library, or for one read group depending on what levels
@@ -164,6 +167,19 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
             collector.acceptRecord(args);
         }
 
+        /** Merge each collector of another Distributor for the same accumulation level into the collector with the
+         * same key, adopting any collectors (e.g. for unknown read groups) that this Distributor does not have yet */
+        public void merge(final Distributor other) {
+            for (final Map.Entry<String, PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE>> entry : other.collectors.entrySet()) {
+                final PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> collector = collectors.get(entry.getKey());
+                if (collector == null) {
+                    collectors.put(entry.getKey(), entry.getValue());
+                } else {
+                    collector.merge(entry.getValue());
+                }
+            }
+        }
+
         /** Add all records to the MetricsFile passed in, this will happen in the order they were
          * found in the input ReadGroup records */
         public void addToFile(final MetricsFile<METRIC_TYPE, Histogram_KEY> file) {
@@ -208,6 +224,15 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
             allReadCollector.finish();
         }
 
+        @Override
+        public void merge(final Distributor other) {
+            allReadCollector.merge(((AllReadsDistributor) other).getCollector());
+        }
+
+        private PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> getCollector() {
+            return allReadCollector;
+        }
+
         @Override
         public void addToFile(final MetricsFile<METRIC_TYPE, Histogram_KEY> file) {
             allReadCollector.addMetricsToFile(file);
@@ -325,6 +350,20 @@ public abstract class MultiLevelCollector<METRIC_TYPE extends MetricBase, Histog
         }
     }
 
+    /**
+     * Merge the data accumulated by another MultiLevelCollector, set up with the same accumulation levels and read groups
+     * and fed a disjoint set of records, into this one.  Must be called before finish().  The other collector should not
+     * be used afterwards since this collector may adopt some of its PerUnitMetricCollectors.
+     */
+    public void merge(final MultiLevelCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> other) {
+        if (other.outputOrderedDistributors.size() != outputOrderedDistributors.size()) {
+            throw new PicardException("Cannot merge collectors that were set up with different accumulation levels.");
+        }
+        for (int i = 0; i < outputOrderedDistributors.size(); ++i) {
+            outputOrderedDistributors.get(i).merge(other.outputOrderedDistributors.get(i));
+        }
+    }
+
     /** Get the PerUnitMetricCollector that collects reads for all levels */
     public PerUnitMetricCollector<METRIC_TYPE, Histogram_KEY, ARGTYPE> getAllReadsCollector() {
         return allReadCollector;
@@ -35,6 +35,9 @@ import htsjdk.samtools.metrics.MetricsFile;
  *      2. Call collector.finish() - perform any final calculations necessary after ALL records have been accepted
  *      3. addMetricsToFile is then used to add any metric(s) or Histogram(s) to the given file
  *
+ *      Collectors that support it may also accumulate disjoint subsets of the records separately, in which case the
+ *      partial collectors are combined with merge() before finish() is called on the one that remains.
+ *
  *      BEAN    - The Metric type we are generating
  *      HKEY    - The Key used in any Histograms, use a Wildcard(?) type if there are no Histograms
  *      ARGTYPE - Collectors are often used in groups of accumulation levels, in order to avoid recalculating
@@ -52,6 +55,17 @@ public interface PerUnitMetricCollector<BEAN extends MetricBase, HKEY extends Co
     /** When all records have been collected, compute any final values needed to finish constructing metrics/Histogram */
     public void finish();
 
+    /**
+     * Fold the data accumulated by another collector for the same unit into this one, so that this collector ends up
+     * in the state it would have been in had it accepted the other collector's records itself.  Must be called before
+     * finish() on either collector.
+     * @param other A collector for the same unit that has accepted a disjoint set of records
+     * @throws UnsupportedOperationException if this type of collector cannot be merged
+     */
+    default public void merge(final PerUnitMetricCollector<BEAN, HKEY, ARGTYPE> other) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support merging.");
+    }
+
     /**
      * Any metrics collected will be added to the metric file provided.
      * @param file MetricsFile to which all metrics created by this collector should be added
@@ -0,0 +1,372 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.reference;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.StringUtil;
+import picard.PicardException;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A read-only, memory-mapped copy of a FASTA file that is shared by everything in the JVM that asks for the same FASTA.
+ *
+ * The bases are stored upper-cased and packed two to a byte using the 4-bit BAM alphabet ("=ACMGRSVTWYHKDBN") in a
+ * sidecar file next to the FASTA (&lt;fasta&gt;.packed), which is built the first time it is needed and rebuilt whenever
+ * the FASTA changes.  N has its own code, so no separate N mask is needed; characters that are not IUPAC codes are
+ * stored as N.  If the FASTA's directory is not writable the sidecar is built in the temporary directory instead.
+ *
+ * Contigs are decoded from the mapped file on demand and handed out as shared, upper-cased {@link ReferenceSequence}s:
+ * as long as any caller still holds on to a contig, every other caller gets the same instance rather than a new copy.
+ * Callers must therefore never modify the bases they are given.
+ */
+public class PackedReference {
+    private static final Log log = Log.getInstance(PackedReference.class);
+
+    /** The suffix appended to the FASTA's name to name the sidecar file. */
+    public static final String SIDECAR_EXTENSION = ".packed";
+
+    private static final int MAGIC = 0x504b5246; // "PKRF"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 4 + 4 + 8 + 8 + 8;
+
+    private static final byte[] CODE_TO_BASE = StringUtil.stringToBytes("=ACMGRSVTWYHKDBN");
+    private static final byte N_CODE = 15;
+    private static final byte[] BASE_TO_CODE = new byte[256];
+    /** The two bases encoded by each possible packed byte, high nybble first. */
+    private static final byte[] PAIR_TO_BASES = new byte[512];
+
+    static {
+        Arrays.fill(BASE_TO_CODE, N_CODE);
+        for (byte code = 0; code < CODE_TO_BASE.length; ++code) {
+            BASE_TO_CODE[CODE_TO_BASE[code]] = code;
+            BASE_TO_CODE[StringUtil.toLowerCase(CODE_TO_BASE[code])] = code;
+        }
+        for (int pair = 0; pair < 256; ++pair) {
+            PAIR_TO_BASES[2 * pair] = CODE_TO_BASE[pair >> 4];
+            PAIR_TO_BASES[2 * pair + 1] = CODE_TO_BASE[pair & 0xf];
+        }
+    }
+
+    private static final ConcurrentMap<File, PackedReference> CACHE = new ConcurrentHashMap<File, PackedReference>();
+
+    private final File fasta;
+    private final File sidecar;
+    private final SAMSequenceDictionary dictionary;
+    private final long[] offsets;
+    private final MappedByteBuffer[] mapped;
+    private final List<WeakReference<ReferenceSequence>> decoded;
+
+    /**
+     * Returns the packed copy of the given FASTA, building or rebuilding its sidecar file first if needed.  Every call
+     * for the same FASTA within a JVM returns the same instance.
+     */
+    public static PackedReference forFasta(final File fasta) {
+        IOUtil.assertFileIsReadable(fasta);
+        final File key;
+        try {
+            key = fasta.getCanonicalFile();
+        } catch (final IOException ioe) {
+            throw new PicardException("Could not resolve " + fasta.getAbsolutePath(), ioe);
+        }
+
+        PackedReference packed = CACHE.get(key);
+        if (packed == null) {
+            synchronized (CACHE) {
+                packed = CACHE.get(key);
+                if (packed == null) {
+                    packed = new PackedReference(key);
+                    CACHE.put(key, packed);
+                }
+            }
+        }
+        return packed;
+    }
+
+    /** True if the sequence was handed out by a PackedReference, and so is already upper-cased and must not be modified. */
+    public static boolean isPacked(final ReferenceSequence sequence) {
+        return sequence instanceof SharedReferenceSequence;
+    }
+
+    private PackedReference(final File fasta) {
+        this.fasta = fasta;
+        this.sidecar = findOrBuildSidecar(fasta);
+
+        final List<SAMSequenceRecord> records = new ArrayList<SAMSequenceRecord>();
+        final List<Long> offsetList = new ArrayList<Long>();
+        readDirectory(sidecar, records, offsetList);
+
+        this.dictionary = new SAMSequenceDictionary(records);
+        this.offsets = new long[offsetList.size()];
+        for (int i = 0; i < offsets.length; ++i) offsets[i] = offsetList.get(i);
+        this.mapped = new MappedByteBuffer[offsets.length];
+        this.decoded = new ArrayList<WeakReference<ReferenceSequence>>(offsets.length);
+        for (int i = 0; i < offsets.length; ++i) decoded.add(new WeakReference<ReferenceSequence>(null));
+    }
+
+    /** The FASTA this packed reference was built from. */
+    public File getFasta() { return fasta; }
+
+    /** The sidecar file holding the packed bases. */
+    public File getSidecar() { return sidecar; }
+
+    /** The names and lengths of the contigs, in FASTA order. */
+    public SAMSequenceDictionary getSequenceDictionary() { return dictionary; }
+
+    /** Returns the whole of the contig with the given index, upper-cased.  The returned bases must not be modified. */
+    public ReferenceSequence getSequence(final int contigIndex) {
+        if (contigIndex < 0 || contigIndex >= offsets.length) {
+            throw new IllegalArgumentException("No contig with index " + contigIndex + " in " + fasta.getAbsolutePath());
+        }
+
+        synchronized (mapped) {
+            final ReferenceSequence cached = decoded.get(contigIndex).get();
+            if (cached != null) return cached;
+        }
+
+        // Decode outside the lock so that threads working on different contigs don't wait on each other
+        final SAMSequenceRecord record = dictionary.getSequence(contigIndex);
+        final byte[] bases = new byte[record.getSequenceLength()];
+        decode(map(contigIndex), 0, bases, 0, bases.length);
+        final ReferenceSequence sequence = new SharedReferenceSequence(record.getSequenceName(), contigIndex, bases);
+
+        synchronized (mapped) {
+            // Another thread may have decoded the same contig in the meantime, in which case share theirs
+            final ReferenceSequence cached = decoded.get(contigIndex).get();
+            if (cached != null) return cached;
+            decoded.set(contigIndex, new WeakReference<ReferenceSequence>(sequence));
+            return sequence;
+        }
+    }
+
+    /**
+     * Returns the given 1-based, inclusive range of the contig with the given index, upper-cased.  The bases are
+     * decoded directly from the mapped file into a new array owned by the caller.
+     */
+    public ReferenceSequence getSubsequence(final int contigIndex, final long start, final long stop) {
+        final SAMSequenceRecord record = dictionary.getSequence(contigIndex);
+        if (record == null) {
+            throw new IllegalArgumentException("No contig with index " + contigIndex + " in " + fasta.getAbsolutePath());
+        }
+        if (start < 1 || stop > record.getSequenceLength() || stop < start - 1) {
+            throw new IllegalArgumentException("Range " + start + "-" + stop + " is not within " + record.getSequenceName() +
+                    " (length " + record.getSequenceLength() + ")");
+        }
+
+        final byte[] bases = new byte[(int) (stop - start + 1)];
+        decode(map(contigIndex), (int) (start - 1), bases, 0, bases.length);
+        return new ReferenceSequence(record.getSequenceName(), contigIndex, bases);
+    }
+
+    /** Maps the packed bases of a single contig, so that no single mapping has to cover more than one contig. */
+    private MappedByteBuffer map(final int contigIndex) {
+        synchronized (mapped) {
+            if (mapped[contigIndex] == null) {
+                final long length = (dictionary.getSequence(contigIndex).getSequenceLength() + 1L) / 2;
+                RandomAccessFile file = null;
+                try {
+                    file = new RandomAccessFile(sidecar, "r");
+                    mapped[contigIndex] = file.getChannel().map(FileChannel.MapMode.READ_ONLY, offsets[contigIndex], length);
+                } catch (final IOException ioe) {
+                    throw new PicardException("Could not map " + sidecar.getAbsolutePath(), ioe);
+                } finally {
+                    // The mapping stays valid after the channel is closed
+                    CloserUtil.close(file);
+                }
+            }
+            return mapped[contigIndex];
+        }
+    }
+
+    /** Decodes length bases starting at the 0-based position from the packed contig into the array. */
+    private static void decode(final MappedByteBuffer packed, final int position, final byte[] bases, final int offset, final int length) {
+        int in = position / 2;
+        int out = offset;
+        final int end = offset + length;
+
+        if (out < end && (position & 1) == 1) {
+            bases[out++] = CODE_TO_BASE[packed.get(in++) & 0xf];
+        }
+        while (out + 1 < end) {
+            final int pair = (packed.get(in++) & 0xff) << 1;
+            bases[out++] = PAIR_TO_BASES[pair];
+            bases[out++] = PAIR_TO_BASES[pair + 1];
+        }
+        if (out < end) {
+            bases[out] = CODE_TO_BASE[(packed.get(in) & 0xff) >> 4];
+        }
+    }
+
+    /**
+     * Returns a usable sidecar for the FASTA, building it first if neither the one next to the FASTA nor the one in
+     * the temporary directory is up to date.
+     */
+    private static File findOrBuildSidecar(final File fasta) {
+        final File besideFasta = new File(fasta.getPath() + SIDECAR_EXTENSION);
+        if (isUpToDate(besideFasta, fasta)) return besideFasta;
+
+        final File inTmp = new File(System.getProperty("java.io.tmpdir"),
+                fasta.getName() + "." + Integer.toHexString(fasta.getPath().hashCode()) + SIDECAR_EXTENSION);
+        if (isUpToDate(inTmp, fasta)) return inTmp;
+
+        final File target = fasta.getParentFile().canWrite() ? besideFasta : inTmp;
+        build(fasta, target);
+        return target;
+    }
+
+    private static boolean isUpToDate(final File sidecar, final File fasta) {
+        if (!sidecar.exists()) return false;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(sidecar));
+            return in.readInt() == MAGIC &&
+                    in.readInt() == VERSION &&
+                    in.readLong() == fasta.length() &&
+                    in.readLong() == fasta.lastModified();
+        } catch (final IOException ioe) {
+            return false;
+        } finally {
+            CloserUtil.close(in);
+        }
+    }
+
+    /**
+     * Writes the sidecar: a fixed header identifying the FASTA it was built from, the packed bases of each contig
+     * starting on a byte boundary, then a directory of contig names, lengths and offsets.  The directory goes last so
+     * that the FASTA can be packed in a single pass without needing its .dict or .fai.
+     */
+    private static void build(final File fasta, final File sidecar) {
+        log.info("Building packed reference " + sidecar.getAbsolutePath() + " from " + fasta.getAbsolutePath());
+        // Unique to this process and thread, and in the sidecar's directory so that it can be renamed over the sidecar
+        final File tmp;
+        try {
+            tmp = File.createTempFile(sidecar.getName(), ".tmp", sidecar.getAbsoluteFile().getParentFile());
+        } catch (final IOException ioe) {
+            throw new PicardException("Could not create a temporary file for packed reference " + sidecar.getAbsolutePath(), ioe);
+        }
+        final ReferenceSequenceFile ref = ReferenceSequenceFileFactory.getReferenceSequenceFile(fasta, true);
+        final List<String> names = new ArrayList<String>();
+        final List<Integer> lengths = new ArrayList<Integer>();
+        final List<Long> offsets = new ArrayList<Long>();
+
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1024 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fasta.length());
+            out.writeLong(fasta.lastModified());
+            out.writeLong(0); // the directory offset, filled in once known
+            long position = HEADER_LENGTH;
+
+            for (ReferenceSequence sequence = ref.nextSequence(); sequence != null; sequence = ref.nextSequence()) {
+                final byte[] bases = sequence.getBases();
+                names.add(sequence.getName());
+                lengths.add(bases.length);
+                offsets.add(position);
+
+                for (int i = 0; i < bases.length; i += 2) {
+                    final int high = BASE_TO_CODE[bases[i] & 0xff];
+                    final int low = i + 1 < bases.length ? BASE_TO_CODE[bases[i + 1] & 0xff] : 0;
+                    out.write((high << 4) | low);
+                }
+                position += (bases.length + 1L) / 2;
+            }
+
+            out.writeInt(names.size());
+            for (int i = 0; i < names.size(); ++i) {
+                out.writeUTF(names.get(i));
+                out.writeInt(lengths.get(i));
+                out.writeLong(offsets.get(i));
+            }
+            out.close();
+
+            final RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+            file.seek(HEADER_LENGTH - 8);
+            file.writeLong(position);
+            file.close();
+        } catch (final IOException ioe) {
+            tmp.delete();
+            throw new PicardException("Could not write packed reference " + tmp.getAbsolutePath(), ioe);
+        } finally {
+            CloserUtil.close(ref);
+        }
+
+        // Another process building the same sidecar may have got there first, in which case theirs is just as good
+        if (!tmp.renameTo(sidecar) && !isUpToDate(sidecar, fasta)) {
+            tmp.delete();
+            throw new PicardException("Could not move " + tmp.getAbsolutePath() + " to " + sidecar.getAbsolutePath());
+        }
+        tmp.delete();
+    }
+
+    private static void readDirectory(final File sidecar, final List<SAMSequenceRecord> records, final List<Long> offsets) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(sidecar, "r");
+            file.seek(HEADER_LENGTH - 8);
+            file.seek(file.readLong());
+            final int count = file.readInt();
+            for (int i = 0; i < count; ++i) {
+                final SAMSequenceRecord record = new SAMSequenceRecord(file.readUTF(), file.readInt());
+                record.setSequenceIndex(i);
+                records.add(record);
+                offsets.add(file.readLong());
+            }
+        } catch (final IOException ioe) {
+            throw new PicardException("Could not read packed reference " + sidecar.getAbsolutePath(), ioe);
+        } finally {
+            CloserUtil.close(file);
+        }
+    }
+
+    /** Marks the whole-contig sequences handed out by {@link #getSequence(int)}, which are upper-cased and shared. */
+    private static class SharedReferenceSequence extends ReferenceSequence {
+        SharedReferenceSequence(final String name, final int index, final byte[] bases) {
+            super(name, index, bases);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.reference;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileWalker;
+
+import java.io.File;
+
+/**
+ * A {@link ReferenceSequenceFile} over a {@link PackedReference}.  Each instance has its own position for
+ * {@link #nextSequence()}, but all instances for the same FASTA share the same packed bases, so opening one is cheap
+ * once the sidecar file exists.  Every sequence it returns is upper-cased, and whole contigs are shared with the rest of
+ * the JVM and must not be modified.
+ */
+public class PackedReferenceSequenceFile implements ReferenceSequenceFile {
+    private final PackedReference packed;
+    private int nextIndex = 0;
+
+    public PackedReferenceSequenceFile(final File fasta) {
+        this.packed = PackedReference.forFasta(fasta);
+    }
+
+    /**
+     * Opens a walker over the given FASTA, reading it through the shared packed reference if usePackedReference is
+     * true or straight from the FASTA otherwise.
+     */
+    public static ReferenceSequenceFileWalker openWalker(final File fasta, final boolean usePackedReference) {
+        return usePackedReference ? new ReferenceSequenceFileWalker(new PackedReferenceSequenceFile(fasta))
+                                  : new ReferenceSequenceFileWalker(fasta);
+    }
+
+    @Override
+    public SAMSequenceDictionary getSequenceDictionary() {
+        return packed.getSequenceDictionary();
+    }
+
+    @Override
+    public ReferenceSequence nextSequence() {
+        if (nextIndex >= packed.getSequenceDictionary().size()) return null;
+        return packed.getSequence(nextIndex++);
+    }
+
+    @Override
+    public void reset() {
+        nextIndex = 0;
+    }
+
+    /** Always true, since any contig can be fetched directly from the packed reference. */
+    @Override
+    public boolean isIndexed() {
+        return true;
+    }
+
+    @Override
+    public ReferenceSequence getSequence(final String contig) {
+        return packed.getSequence(getRecord(contig).getSequenceIndex());
+    }
+
+    @Override
+    public ReferenceSequence getSubsequenceAt(final String contig, final long start, final long stop) {
+        return packed.getSubsequence(getRecord(contig).getSequenceIndex(), start, stop);
+    }
+
+    private SAMSequenceRecord getRecord(final String contig) {
+        final SAMSequenceRecord record = packed.getSequenceDictionary().getSequence(contig);
+        if (record == null) {
+            throw new IllegalArgumentException("Unable to find entry for contig: " + contig + " in " + packed.getFasta().getAbsolutePath());
+        }
+        return record;
+    }
+
+    @Override
+    public String toString() {
+        return packed.getFasta().getAbsolutePath();
+    }
+
+    /** Nothing to do, since the packed reference stays open for the life of the JVM. */
+    @Override
+    public void close() {
+    }
+}
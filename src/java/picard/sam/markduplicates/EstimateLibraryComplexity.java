@@ -24,8 +24,10 @@
 
 package picard.sam.markduplicates;
 
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMTag;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.metrics.MetricsFile;
@@ -33,6 +35,7 @@ import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.Histogram;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.Murmur3;
 import htsjdk.samtools.util.PeekableIterator;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.util.SequenceUtil;
@@ -45,9 +48,11 @@ import picard.cmdline.StandardOptionDefinitions;
 import picard.cmdline.programgroups.Metrics;
 import picard.sam.DuplicationMetrics;
 import picard.sam.markduplicates.util.AbstractOpticalDuplicateFinderCommandLineProgram;
+import picard.sam.markduplicates.util.HashedPairInfoMap;
 import picard.sam.markduplicates.util.OpticalDuplicateFinder;
 import picard.sam.util.PhysicalLocation;
 import picard.sam.util.PhysicalLocationShort;
+import picard.util.PackedBases;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -56,11 +61,19 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static java.lang.Math.pow;
 
@@ -80,6 +93,10 @@ import static java.lang.Math.pow;
  * reads one further filter is applied on the data.  After examining all reads a Histogram is built of
  * [#reads in duplicate set -> #of duplicate sets]; all bins that contain exactly one duplicate set are
  * then removed from the Histogram as outliers before library size is estimated.</p>
+ * <p/>
+ * <p>If SAMPLING_FRACTION is set, only a sample of the read pairs chosen by a hash of their read names is examined,
+ * and {@link SampledDuplicationMetrics} extrapolated from it are written, with a bootstrap confidence interval of the
+ * estimated library size.</p>
  *
  * @author Tim Fennell
  */
@@ -162,6 +179,37 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
             "size calculation, for example, adapter dimers.", optional = true)
     public int MIN_GROUP_COUNT = 2;
 
+    @Option(doc = "Number of threads used to find the duplicates within groups of read pairs with the same prefixes, " +
+            "once the read pairs have been sorted. The groups are independent, so the results are the same as with a " +
+            "single thread.")
+    public int NUM_THREADS = 1;
+
+    @Option(doc = "If set, read pairs whose mates have not been read yet are held in a map keyed by a hash of the read name " +
+            "and organised by the mate's reference sequence, which keeps at most this many in RAM and spills the rest to disk " +
+            "until the mate's reference sequence is reached. This bounds the memory used for coordinate sorted input with " +
+            "many pairs whose mates are far away. If not set, they are all kept in RAM until their mates are read.", optional = true)
+    public Integer MAX_PENDING_PAIRS_IN_RAM = null;
+
+    @Option(doc = "If set, only this fraction of the read pairs are examined, chosen by a hash of the read name so that both " +
+            "reads of a pair are kept or dropped together, and the metrics of the whole library are extrapolated from them. " +
+            "The estimated library size is that of the sample, with a bootstrap confidence interval, and the histogram " +
+            "written is that of the sample. MIN_GROUP_COUNT applies to the groups in the sample.", optional = true)
+    public Double SAMPLING_FRACTION = null;
+
+    @Option(doc = "Number of bootstrap replicates of the duplicate groups in the sample used to find the confidence interval " +
+            "of the estimated library size when SAMPLING_FRACTION is set.")
+    public int BOOTSTRAP_REPLICATES = 200;
+
+    @Option(doc = "Seed for the hash of the read names used to sample read pairs and for the bootstrap when " +
+            "SAMPLING_FRACTION is set. Runs with the same seed examine the same read pairs and report the same metrics.")
+    public int RANDOM_SEED = 1;
+
+    /** Number of read pairs in the batches of groups scanned together by a worker thread when NUM_THREADS > 1. */
+    private static final int GROUP_BATCH_SIZE = 10000;
+
+    /** Number of batches of groups that may be waiting to be scanned or added to the histograms, per thread. */
+    private static final int GROUP_BATCHES_PER_THREAD = 4;
+
     private final Log log = Log.getInstance(EstimateLibraryComplexity.class);
 
     @Override
@@ -173,21 +221,34 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
         if (MIN_IDENTICAL_BASES <= 0) {
             errorMsgs.add("MIN_IDENTICAL_BASES must be greater than 0");
         }
+        if (NUM_THREADS < 1) {
+            errorMsgs.add("NUM_THREADS must be at least 1");
+        }
+        if (MAX_PENDING_PAIRS_IN_RAM != null && MAX_PENDING_PAIRS_IN_RAM < 1) {
+            errorMsgs.add("MAX_PENDING_PAIRS_IN_RAM must be at least 1");
+        }
+        if (SAMPLING_FRACTION != null && (SAMPLING_FRACTION <= 0 || SAMPLING_FRACTION > 1)) {
+            errorMsgs.add("SAMPLING_FRACTION must be greater than 0 and at most 1");
+        }
+        if (BOOTSTRAP_REPLICATES < 1) {
+            errorMsgs.add("BOOTSTRAP_REPLICATES must be at least 1");
+        }
         return errorMsgs.isEmpty() ? super.customCommandLineValidation() : errorMsgs.toArray(new String[errorMsgs.size()]);
     }
 
     /**
-     * Little class to hold the sequence of a pair of reads and tile location information.
+     * Little class to hold the sequence of a pair of reads and tile location information.  The bases are kept packed
+     * two bits per base, so that reads are compared 32 bases at a time.
      */
     static class PairedReadSequence extends PhysicalLocationShort {
         short readGroup = -1;
         boolean qualityOk = true;
-        byte[] read1;
-        byte[] read2;
+        PackedBases read1;
+        PackedBases read2;
         short libraryId;
 
         public static int getSizeInBytes() {
-            return 2 + 1 + 4 + 1 + 300; // rough guess at memory footprint
+            return 2 + 1 + 4 + 1 + 2 * 80; // rough guess at memory footprint, with 2x100 bases packed
         }
 
         public short getReadGroup() { return this.readGroup; }
@@ -219,8 +280,8 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
             this.x = val.getX();
             this.y = val.getY();
             this.qualityOk = val.qualityOk;
-            this.read1 = val.read1.clone();
-            this.read2 = val.read2.clone();
+            this.read1 = val.read1;
+            this.read2 = val.read2;
             this.libraryId = val.getLibraryId();
         }
 
@@ -250,10 +311,8 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
                 this.out.writeShort(val.tile);
                 this.out.writeShort(val.x);
                 this.out.writeShort(val.y);
-                this.out.writeInt(val.read1.length);
-                this.out.write(val.read1);
-                this.out.writeInt(val.read2.length);
-                this.out.write(val.read2);
+                val.read1.write(this.out);
+                val.read2.write(this.out);
             } catch (final IOException ioe) {
                 throw new PicardException("Error write out read pair.", ioe);
             }
@@ -272,17 +331,8 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
                 val.x = this.in.readShort();
                 val.y = this.in.readShort();
 
-                int length = this.in.readInt();
-                val.read1 = new byte[length];
-                if (this.in.read(val.read1) != length) {
-                    throw new PicardException("Could not read " + length + " bytes from temporary file.");
-                }
-
-                length = this.in.readInt();
-                val.read2 = new byte[length];
-                if (this.in.read(val.read2) != length) {
-                    throw new PicardException("Could not read " + length + " bytes from temporary file.");
-                }
+                val.read1 = PackedBases.read(this.in);
+                val.read2 = PackedBases.read(this.in);
 
                 return val;
             } catch (final IOException ioe) {
@@ -337,6 +387,75 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
         public SortingCollection.Codec<PairedReadSequence> clone() { return new PairedReadWithBarcodesCodec(); }
     }
 
+    /**
+     * Codec for writing and reading the PairedReadSequence objects of pairs whose mates have not been read yet, which
+     * have only one of their reads, for spilling them to disk.
+     */
+    static class PendingPairCodec implements SortingCollection.Codec<PairedReadSequence> {
+        private final boolean useBarcodes;
+        private DataOutputStream out;
+        private DataInputStream in;
+
+        PendingPairCodec(final boolean useBarcodes) {
+            this.useBarcodes = useBarcodes;
+        }
+
+        public void setOutputStream(final OutputStream out) {
+            this.out = new DataOutputStream(out);
+        }
+
+        public void setInputStream(final InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        public void encode(final PairedReadSequence val) {
+            try {
+                this.out.writeShort(val.readGroup);
+                this.out.writeShort(val.tile);
+                this.out.writeShort(val.x);
+                this.out.writeShort(val.y);
+                this.out.writeBoolean(val.qualityOk);
+                this.out.writeBoolean(val.read1 != null);
+                if (val.read1 != null) val.read1.write(this.out);
+                this.out.writeBoolean(val.read2 != null);
+                if (val.read2 != null) val.read2.write(this.out);
+                if (useBarcodes) {
+                    final PairedReadSequenceWithBarcodes data = (PairedReadSequenceWithBarcodes) val;
+                    this.out.writeInt(data.barcode);
+                    this.out.writeInt(data.readOneBarcode);
+                    this.out.writeInt(data.readTwoBarcode);
+                }
+            } catch (final IOException ioe) {
+                throw new PicardException("Error write out pending read pair.", ioe);
+            }
+        }
+
+        public PairedReadSequence decode() {
+            try {
+                final PairedReadSequence val = useBarcodes ? new PairedReadSequenceWithBarcodes() : new PairedReadSequence();
+                val.readGroup = this.in.readShort();
+                val.tile = this.in.readShort();
+                val.x = this.in.readShort();
+                val.y = this.in.readShort();
+                val.qualityOk = this.in.readBoolean();
+                if (this.in.readBoolean()) val.read1 = PackedBases.read(this.in);
+                if (this.in.readBoolean()) val.read2 = PackedBases.read(this.in);
+                if (useBarcodes) {
+                    final PairedReadSequenceWithBarcodes data = (PairedReadSequenceWithBarcodes) val;
+                    data.barcode = this.in.readInt();
+                    data.readOneBarcode = this.in.readInt();
+                    data.readTwoBarcode = this.in.readInt();
+                }
+                return val;
+            } catch (final IOException ioe) {
+                throw new PicardException("Exception reading pending read pair.", ioe);
+            }
+        }
+
+        @Override
+        public SortingCollection.Codec<PairedReadSequence> clone() { return new PendingPairCodec(useBarcodes); }
+    }
+
     /**
      * Comparator that orders read pairs on the first N bases of both reads.
      */
@@ -345,21 +464,25 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
 
         public int compare(final PairedReadSequence lhs, final PairedReadSequence rhs) {
             // First compare the first N bases of the first read
-            for (int i = 0; i < BASES; ++i) {
-                final int retval = lhs.read1[i] - rhs.read1[i];
-                if (retval != 0) return retval;
-            }
+            int retval = lhs.read1.comparePrefix(rhs.read1, BASES);
+            if (retval != 0) return retval;
 
             // Then compare the first N bases of the second read
-            for (int i = 0; i < BASES; ++i) {
-                final int retval = lhs.read2[i] - rhs.read2[i];
-                if (retval != 0) return retval;
-            }
+            retval = lhs.read2.comparePrefix(rhs.read2, BASES);
+            if (retval != 0) return retval;
 
             return System.identityHashCode(lhs) - System.identityHashCode(rhs);
         }
     }
 
+    /**
+     * The index in a HashedPairInfoMap of the pairs whose mates are on the reference sequence, which is the reference
+     * sequence index, or the number of reference sequences for reads with none, since those come last.
+     */
+    private static int getPendingPairIndex(final SAMFileHeader header, final int referenceIndex) {
+        return referenceIndex >= 0 ? referenceIndex : header.getSequenceDictionary().size();
+    }
+
     public int getBarcodeValue(final SAMRecord record) {
         return getReadBarcodeValue(record, BARCODE_TAG);
     }
@@ -425,28 +548,49 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
         }
 
         // Loop through the input files and pick out the read sequences etc.
+        final int maxReadLength = (MAX_READ_LENGTH <= 0) ? Integer.MAX_VALUE : MAX_READ_LENGTH;
         final ProgressLogger progress = new ProgressLogger(log, (int) 1e6, "Read");
+
+        // Read pairs are sampled by the unsigned hash of their read name, which is the same for both reads of a pair
+        final Murmur3 readNameHasher = SAMPLING_FRACTION == null ? null : new Murmur3(RANDOM_SEED);
+        final long maxSampledHash = SAMPLING_FRACTION == null ? 0 : (long) (SAMPLING_FRACTION * (1L << 32));
+
         for (final File f : INPUT) {
-            final Map<String, PairedReadSequence> pendingByName = new HashMap<String, PairedReadSequence>();
             final SamReader in = SamReaderFactory.makeDefault().referenceSequence(REFERENCE_SEQUENCE).open(f);
-            readGroups.addAll(in.getFileHeader().getReadGroups());
+            final SAMFileHeader header = in.getFileHeader();
+            readGroups.addAll(header.getReadGroups());
+            final Map<String, Short> readGroupIndexes = new HashMap<String, Short>();
+            for (final SAMReadGroupRecord rg : header.getReadGroups()) {
+                readGroupIndexes.put(rg.getId(), (short) readGroups.indexOf(rg));
+            }
+
+            // Pairs whose mates have not been read yet, either all in RAM by name or in a map that spills to disk
+            final Map<String, PairedReadSequence> pendingByName = MAX_PENDING_PAIRS_IN_RAM == null ?
+                    new HashMap<String, PairedReadSequence>() : null;
+            final HashedPairInfoMap<PairedReadSequence> pendingByMate = MAX_PENDING_PAIRS_IN_RAM == null ? null :
+                    new HashedPairInfoMap<PairedReadSequence>(MAX_PENDING_PAIRS_IN_RAM, new PendingPairCodec(useBarcodes), TMP_DIR.get(0));
 
             for (final SAMRecord rec : in) {
                 if (!rec.getReadPairedFlag()) continue;
                 if (!rec.getFirstOfPairFlag() && !rec.getSecondOfPairFlag()) {
                     continue;
                 }
+                if (readNameHasher != null && (readNameHasher.hashUnencodedChars(rec.getReadName()) & 0xffffffffL) >= maxSampledHash) {
+                    continue;
+                }
 
-                PairedReadSequence prs = pendingByName.remove(rec.getReadName());
-                if (prs == null) {
+                PairedReadSequence prs = pendingByName != null ? pendingByName.remove(rec.getReadName()) :
+                        pendingByMate.remove(getPendingPairIndex(header, rec.getReferenceIndex()), rec.getReadName());
+                final boolean isNewPair = prs == null;
+                if (isNewPair) {
                     // Make a new paired read object and add RG and physical location information to it
                     prs = useBarcodes ? new PairedReadSequenceWithBarcodes() : new PairedReadSequence();
                     if (opticalDuplicateFinder.addLocationInformation(rec.getReadName(), prs)) {
-                        final SAMReadGroupRecord rg = rec.getReadGroup();
-                        if (rg != null) prs.setReadGroup((short) readGroups.indexOf(rg));
+                        final Short readGroupIndex = readGroupIndexes.get(rec.getStringAttribute(SAMTag.RG.name()));
+                        if (readGroupIndex != null) prs.setReadGroup(readGroupIndex);
                     }
 
-                    pendingByName.put(rec.getReadName(), prs);
+                    if (pendingByName != null) pendingByName.put(rec.getReadName(), prs);
                 }
 
                 // Read passes quality check if both ends meet the mean quality criteria
@@ -456,20 +600,21 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
                         MIN_MEAN_QUALITY);
                 prs.qualityOk = prs.qualityOk && passesQualityCheck;
 
-                // Get the bases and restore them to their original orientation if necessary
+                // Get the bases and restore them to their original orientation if necessary, keeping only those compared
                 final byte[] bases = rec.getReadBases();
                 if (rec.getReadNegativeStrandFlag()) SequenceUtil.reverseComplement(bases);
+                final PackedBases packedBases = new PackedBases(bases, Math.min(bases.length, maxReadLength));
 
                 final PairedReadSequenceWithBarcodes prsWithBarcodes = (useBarcodes) ? (PairedReadSequenceWithBarcodes) prs : null;
 
                 if (rec.getFirstOfPairFlag()) {
-                    prs.read1 = bases;
+                    prs.read1 = packedBases;
                     if (useBarcodes) {
                         prsWithBarcodes.barcode = getBarcodeValue(rec);
                         prsWithBarcodes.readOneBarcode = getReadOneBarcodeValue(rec);
                     }
                 } else {
-                    prs.read2 = bases;
+                    prs.read2 = packedBases;
                     if (useBarcodes) {
                         prsWithBarcodes.readTwoBarcode = getReadTwoBarcodeValue(rec);
                     }
@@ -479,9 +624,18 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
                     sorter.add(prs);
                 }
 
+                // Only once the read is added, since it may be written to disk
+                if (isNewPair && pendingByMate != null) {
+                    pendingByMate.put(getPendingPairIndex(header, rec.getMateReferenceIndex()), rec.getReadName(), prs);
+                }
+
                 progress.record(rec);
             }
             CloserUtil.close(in);
+            if (pendingByMate != null) {
+                log.info(String.format("%d read pairs of %s never matched. Pending pairs were spilled to disk %d times.",
+                        pendingByMate.size(), f, pendingByMate.getNumSpills()));
+            }
         }
 
         log.info(String.format("Finished reading - read %d records - moving on to scanning for duplicates.", progress.getCount()));
@@ -489,88 +643,50 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
         // Now go through the sorted reads and attempt to find duplicates
         final PeekableIterator<PairedReadSequence> iterator = new PeekableIterator<PairedReadSequence>(sorter.iterator());
 
-        final Map<String, Histogram<Integer>> duplicationHistosByLibrary = new HashMap<String, Histogram<Integer>>();
-        final Map<String, Histogram<Integer>> opticalHistosByLibrary = new HashMap<String, Histogram<Integer>>();
-
         int groupsProcessed = 0;
         long lastLogTime = System.currentTimeMillis();
         final int meanGroupSize = Math.max(1, (recordsRead / 2) / (int) pow(4, MIN_IDENTICAL_BASES * 2));
 
-        while (iterator.hasNext()) {
-            // Get the next group and split it apart by library
-            final List<PairedReadSequence> group = getNextGroup(iterator);
-
-            if (group.size() > meanGroupSize * MAX_GROUP_RATIO) {
-                final PairedReadSequence prs = group.get(0);
-                log.warn("Omitting group with over " + MAX_GROUP_RATIO + " times the expected mean number of read pairs. " +
-                        "Mean=" + meanGroupSize + ", Actual=" + group.size() + ". Prefixes: " +
-                        StringUtil.bytesToString(prs.read1, 0, MIN_IDENTICAL_BASES) +
-                        " / " +
-                        StringUtil.bytesToString(prs.read1, 0, MIN_IDENTICAL_BASES));
-            } else {
-                final Map<String, List<PairedReadSequence>> sequencesByLibrary = splitByLibrary(group, readGroups);
-
-                // Now process the reads by library
-                for (final Map.Entry<String, List<PairedReadSequence>> entry : sequencesByLibrary.entrySet()) {
-                    final String library = entry.getKey();
-                    final List<PairedReadSequence> seqs = entry.getValue();
-
-                    Histogram<Integer> duplicationHisto = duplicationHistosByLibrary.get(library);
-                    Histogram<Integer> opticalHisto = opticalHistosByLibrary.get(library);
-                    if (duplicationHisto == null) {
-                        duplicationHisto = new Histogram<Integer>("duplication_group_count", library);
-                        opticalHisto = new Histogram<Integer>("duplication_group_count", "optical_duplicates");
-                        duplicationHistosByLibrary.put(library, duplicationHisto);
-                        opticalHistosByLibrary.put(library, opticalHisto);
-                    }
-
-                    // Figure out if any reads within this group are duplicates of one another
-                    for (int i = 0; i < seqs.size(); ++i) {
-                        final PairedReadSequence lhs = seqs.get(i);
-                        if (lhs == null) continue;
-                        final List<PairedReadSequence> dupes = new ArrayList<PairedReadSequence>();
-
-                        for (int j = i + 1; j < seqs.size(); ++j) {
-                            final PairedReadSequence rhs = seqs.get(j);
-                            if (rhs == null) continue;
-
-                            if (matches(lhs, rhs, MAX_DIFF_RATE, useBarcodes)) {
-                                dupes.add(rhs);
-                                seqs.set(j, null);
-                            }
-                        }
+        final DuplicateGroupScanner scanner = new DuplicateGroupScanner(readGroups, useBarcodes);
+        try {
+            while (iterator.hasNext()) {
+                // Get the next group and scan it for duplicates
+                final List<PairedReadSequence> group = getNextGroup(iterator);
+
+                if (group.size() > meanGroupSize * MAX_GROUP_RATIO) {
+                    final PairedReadSequence prs = group.get(0);
+                    log.warn("Omitting group with over " + MAX_GROUP_RATIO + " times the expected mean number of read pairs. " +
+                            "Mean=" + meanGroupSize + ", Actual=" + group.size() + ". Prefixes: " +
+                            StringUtil.bytesToString(prs.read1.getBases(0, MIN_IDENTICAL_BASES)) +
+                            " / " +
+                            StringUtil.bytesToString(prs.read1.getBases(0, MIN_IDENTICAL_BASES)));
+                } else {
+                    scanner.add(group);
 
-                        if (!dupes.isEmpty()) {
-                            dupes.add(lhs);
-                            final int duplicateCount = dupes.size();
-                            duplicationHisto.increment(duplicateCount);
-
-                            final boolean[] flags = opticalDuplicateFinder.findOpticalDuplicates(dupes, lhs);
-                            for (final boolean b : flags) {
-                                if (b) opticalHisto.increment(duplicateCount);
-                            }
-                        } else {
-                            duplicationHisto.increment(1);
-                        }
+                    ++groupsProcessed;
+                    if (lastLogTime < System.currentTimeMillis() - 60000) {
+                        log.info("Processed " + groupsProcessed + " groups.");
+                        lastLogTime = System.currentTimeMillis();
                     }
                 }
-
-                ++groupsProcessed;
-                if (lastLogTime < System.currentTimeMillis() - 60000) {
-                    log.info("Processed " + groupsProcessed + " groups.");
-                    lastLogTime = System.currentTimeMillis();
-                }
             }
+            scanner.finish();
+        } finally {
+            scanner.close();
         }
 
+        final Map<String, Histogram<Integer>> duplicationHistosByLibrary = scanner.histograms.duplicationHistosByLibrary;
+        final Map<String, Histogram<Integer>> opticalHistosByLibrary = scanner.histograms.opticalHistosByLibrary;
+
         iterator.close();
         sorter.cleanup();
 
         final MetricsFile<DuplicationMetrics, Integer> file = getMetricsFile();
+        final Random bootstrapRandom = new Random(RANDOM_SEED);
         for (final String library : duplicationHistosByLibrary.keySet()) {
             final Histogram<Integer> duplicationHisto = duplicationHistosByLibrary.get(library);
             final Histogram<Integer> opticalHisto = opticalHistosByLibrary.get(library);
-            final DuplicationMetrics metrics = new DuplicationMetrics();
+            final DuplicationMetrics metrics = SAMPLING_FRACTION == null ? new DuplicationMetrics() : new SampledDuplicationMetrics();
             metrics.LIBRARY = library;
 
             // Filter out any bins that have fewer than MIN_GROUP_COUNT entries in them and calculate derived metrics
@@ -585,7 +701,15 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
                 }
             }
 
-            metrics.calculateDerivedMetrics();
+            if (SAMPLING_FRACTION == null) {
+                metrics.calculateDerivedMetrics();
+            } else {
+                final SampledDuplicationMetrics sampledMetrics = (SampledDuplicationMetrics) metrics;
+                sampledMetrics.extrapolate(SAMPLING_FRACTION);
+                final long[] bounds = bootstrapLibrarySize(duplicationHisto, opticalHisto, bootstrapRandom);
+                sampledMetrics.ESTIMATED_LIBRARY_SIZE_LOWER_BOUND = bounds[0] == Long.MAX_VALUE ? null : bounds[0];
+                sampledMetrics.ESTIMATED_LIBRARY_SIZE_UPPER_BOUND = bounds[1] == Long.MAX_VALUE ? null : bounds[1];
+            }
             file.addMetric(metrics);
             file.addHistogram(duplicationHisto);
 
@@ -596,16 +720,281 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
         return 0;
     }
 
+    /**
+     * Duplication metrics of a library extrapolated from a sample of its read pairs, with the size of the sample and the
+     * bounds of a bootstrap confidence interval of the estimated library size.
+     */
+    public static class SampledDuplicationMetrics extends DuplicationMetrics {
+        /** The fraction of the read pairs that were sampled. */
+        public double SAMPLING_FRACTION;
+
+        /** The number of read pairs examined in the sample, from which the other counts were extrapolated. */
+        public long READ_PAIRS_SAMPLED;
+
+        /** The lower bound of the 95% bootstrap confidence interval of ESTIMATED_LIBRARY_SIZE. */
+        public Long ESTIMATED_LIBRARY_SIZE_LOWER_BOUND;
+
+        /**
+         * The upper bound of the 95% bootstrap confidence interval of ESTIMATED_LIBRARY_SIZE, or null if too many of
+         * the bootstrap replicates had no duplicates to estimate a library size from.
+         */
+        public Long ESTIMATED_LIBRARY_SIZE_UPPER_BOUND;
+
+        /**
+         * Replaces the counts of the sample with those expected of the whole library.  A sample of read pairs is itself
+         * a sequencing of the library, so the library size estimated from it is kept, and the number of duplicates is
+         * that which the Lander-Waterman equation expects of that library with all the read pairs.  Both pairs of an
+         * optical duplicate are only in the sample with probability fraction^2, so optical duplicates are scaled by that.
+         */
+        void extrapolate(final double fraction) {
+            final long sampledPairs = READ_PAIRS_EXAMINED;
+            final Long librarySize = estimateLibrarySize(sampledPairs - READ_PAIR_OPTICAL_DUPLICATES, sampledPairs - READ_PAIR_DUPLICATES);
+
+            SAMPLING_FRACTION = fraction;
+            READ_PAIRS_SAMPLED = sampledPairs;
+            READ_PAIRS_EXAMINED = Math.round(sampledPairs / fraction);
+            READ_PAIR_OPTICAL_DUPLICATES = Math.min(READ_PAIRS_EXAMINED, Math.round(READ_PAIR_OPTICAL_DUPLICATES / (fraction * fraction)));
+            if (librarySize == null) {
+                READ_PAIR_DUPLICATES = READ_PAIR_OPTICAL_DUPLICATES;
+            } else {
+                final long nonOpticalPairs = READ_PAIRS_EXAMINED - READ_PAIR_OPTICAL_DUPLICATES;
+                READ_PAIR_DUPLICATES = READ_PAIRS_EXAMINED - Math.round(-librarySize * Math.expm1(-nonOpticalPairs / (double) librarySize));
+            }
+            calculateDerivedMetrics();
+            ESTIMATED_LIBRARY_SIZE = librarySize;
+        }
+    }
+
+    /**
+     * Finds the bounds of the 95% confidence interval of the library size estimated from a sample, from the library
+     * sizes estimated from BOOTSTRAP_REPLICATES replicates of the duplicate groups of the sample, drawn with replacement.
+     * The optical duplicates of the groups of each size are shared among the groups of that size drawn.  A bound is
+     * Long.MAX_VALUE if the replicates at it had no duplicates to estimate a library size from.
+     */
+    private long[] bootstrapLibrarySize(final Histogram<Integer> duplicationHisto, final Histogram<Integer> opticalHisto,
+                                        final Random random) {
+        final int numBins = duplicationHisto.size();
+        final int[] groupSizes = new int[numBins];
+        final long[] groupCounts = new long[numBins];
+        final double[] opticalDuplicates = new double[numBins];
+        long numGroups = 0;
+        int i = 0;
+        for (final Integer groupSize : duplicationHisto.keySet()) {
+            groupSizes[i] = groupSize;
+            groupCounts[i] = (long) duplicationHisto.get(groupSize).getValue();
+            opticalDuplicates[i] = opticalHisto.containsKey(groupSize) ? opticalHisto.get(groupSize).getValue() : 0;
+            numGroups += groupCounts[i];
+            ++i;
+        }
+
+        final long[] librarySizes = new long[BOOTSTRAP_REPLICATES];
+        for (int replicate = 0; replicate < BOOTSTRAP_REPLICATES; ++replicate) {
+            long pairs = 0;
+            long duplicates = 0;
+            double optical = 0;
+
+            // The numbers of groups of each size drawn are multinomial, so draw each given those drawn before it
+            long groupsLeft = numGroups;
+            long groupCountsLeft = numGroups;
+            for (int bin = 0; bin < numBins; ++bin) {
+                final long drawn = sampleBinomial(random, groupsLeft, groupCounts[bin] / (double) groupCountsLeft);
+                groupsLeft -= drawn;
+                groupCountsLeft -= groupCounts[bin];
+
+                if (drawn >= MIN_GROUP_COUNT) {
+                    pairs += groupSizes[bin] * drawn;
+                    duplicates += (groupSizes[bin] - 1) * drawn;
+                    optical += opticalDuplicates[bin] * drawn / groupCounts[bin];
+                }
+            }
+
+            final Long librarySize = DuplicationMetrics.estimateLibrarySize(pairs - Math.round(optical), pairs - duplicates);
+            librarySizes[replicate] = librarySize == null ? Long.MAX_VALUE : librarySize;
+        }
+
+        Arrays.sort(librarySizes);
+        final int lower = (int) Math.floor(0.025 * BOOTSTRAP_REPLICATES);
+        final int upper = Math.max(lower, (int) Math.ceil(0.975 * BOOTSTRAP_REPLICATES) - 1);
+        return new long[]{librarySizes[lower], librarySizes[upper]};
+    }
+
+    /**
+     * Draws from a binomial distribution of n trials of probability p, exactly by inversion when the mean is small and
+     * from the normal approximation otherwise.
+     */
+    static long sampleBinomial(final Random random, final long n, final double p) {
+        if (n == 0 || p <= 0) return 0;
+        if (p >= 1) return n;
+        if (p > 0.5) return n - sampleBinomial(random, n, 1 - p);
+
+        final double mean = n * p;
+        if (mean < 30) {
+            final double u = random.nextDouble();
+            double probability = Math.exp(n * Math.log1p(-p));
+            double cumulative = probability;
+            long k = 0;
+            while (cumulative < u && k < n && probability > 0) {
+                probability *= (n - k) / (double) (k + 1) * p / (1 - p);
+                ++k;
+                cumulative += probability;
+            }
+            return k;
+        }
+
+        final long k = Math.round(mean + Math.sqrt(mean * (1 - p)) * random.nextGaussian());
+        return Math.max(0, Math.min(n, k));
+    }
+
+    /**
+     * The duplication and optical duplication histograms of each library, counted from the groups scanned into them.
+     * Scanning a group only touches the group and these histograms, so groups may be scanned into different
+     * LibraryHistograms on different threads, which are then added together.
+     */
+    private class LibraryHistograms {
+        final Map<String, Histogram<Integer>> duplicationHistosByLibrary = new HashMap<String, Histogram<Integer>>();
+        final Map<String, Histogram<Integer>> opticalHistosByLibrary = new HashMap<String, Histogram<Integer>>();
+
+        /** Returns the library's duplication histogram, creating it and its optical duplication histogram if need be. */
+        private Histogram<Integer> getDuplicationHisto(final String library) {
+            Histogram<Integer> duplicationHisto = duplicationHistosByLibrary.get(library);
+            if (duplicationHisto == null) {
+                duplicationHisto = new Histogram<Integer>("duplication_group_count", library);
+                duplicationHistosByLibrary.put(library, duplicationHisto);
+                opticalHistosByLibrary.put(library, new Histogram<Integer>("duplication_group_count", "optical_duplicates"));
+            }
+            return duplicationHisto;
+        }
+
+        /** Finds the duplicates within a group of read pairs with the same prefixes and counts them. */
+        void scanGroup(final List<PairedReadSequence> group, final List<SAMReadGroupRecord> readGroups, final boolean useBarcodes) {
+            final Map<String, List<PairedReadSequence>> sequencesByLibrary = splitByLibrary(group, readGroups);
+
+            // Now process the reads by library
+            for (final Map.Entry<String, List<PairedReadSequence>> entry : sequencesByLibrary.entrySet()) {
+                final String library = entry.getKey();
+                final List<PairedReadSequence> seqs = entry.getValue();
+
+                final Histogram<Integer> duplicationHisto = getDuplicationHisto(library);
+                final Histogram<Integer> opticalHisto = opticalHistosByLibrary.get(library);
+
+                // Figure out if any reads within this group are duplicates of one another
+                for (int i = 0; i < seqs.size(); ++i) {
+                    final PairedReadSequence lhs = seqs.get(i);
+                    if (lhs == null) continue;
+                    final List<PairedReadSequence> dupes = new ArrayList<PairedReadSequence>();
+
+                    for (int j = i + 1; j < seqs.size(); ++j) {
+                        final PairedReadSequence rhs = seqs.get(j);
+                        if (rhs == null) continue;
+
+                        if (matches(lhs, rhs, MAX_DIFF_RATE, useBarcodes)) {
+                            dupes.add(rhs);
+                            seqs.set(j, null);
+                        }
+                    }
+
+                    if (!dupes.isEmpty()) {
+                        dupes.add(lhs);
+                        final int duplicateCount = dupes.size();
+                        duplicationHisto.increment(duplicateCount);
+
+                        final boolean[] flags = opticalDuplicateFinder.findOpticalDuplicates(dupes, lhs);
+                        for (final boolean b : flags) {
+                            if (b) opticalHisto.increment(duplicateCount);
+                        }
+                    } else {
+                        duplicationHisto.increment(1);
+                    }
+                }
+            }
+        }
+
+        void add(final LibraryHistograms other) {
+            for (final Map.Entry<String, Histogram<Integer>> entry : other.duplicationHistosByLibrary.entrySet()) {
+                final String library = entry.getKey();
+                getDuplicationHisto(library).addHistogram(entry.getValue());
+                opticalHistosByLibrary.get(library).addHistogram(other.opticalHistosByLibrary.get(library));
+            }
+        }
+    }
+
+    /**
+     * Scans groups of read pairs for duplicates into {@link #histograms}.  With NUM_THREADS > 1, batches of groups are
+     * scanned on worker threads, each into its own {@link LibraryHistograms}, which are then added to the histograms on
+     * the calling thread.  Otherwise each group is scanned on the calling thread.
+     */
+    private class DuplicateGroupScanner {
+        final LibraryHistograms histograms = new LibraryHistograms();
+        private final List<SAMReadGroupRecord> readGroups;
+        private final boolean useBarcodes;
+        private final ExecutorService executor = NUM_THREADS > 1 ? Executors.newFixedThreadPool(NUM_THREADS) : null;
+        private final Deque<Future<LibraryHistograms>> pending = new ArrayDeque<Future<LibraryHistograms>>();
+        private List<List<PairedReadSequence>> batch = new ArrayList<List<PairedReadSequence>>();
+        private int batchSize = 0;
+
+        DuplicateGroupScanner(final List<SAMReadGroupRecord> readGroups, final boolean useBarcodes) {
+            this.readGroups = readGroups;
+            this.useBarcodes = useBarcodes;
+        }
+
+        void add(final List<PairedReadSequence> group) {
+            if (executor == null) {
+                histograms.scanGroup(group, readGroups, useBarcodes);
+                return;
+            }
+
+            batch.add(group);
+            batchSize += group.size();
+            if (batchSize >= GROUP_BATCH_SIZE) submit();
+        }
+
+        /** Waits for every group added so far to be scanned and added to the histograms. */
+        void finish() {
+            submit();
+            while (!pending.isEmpty()) addToHistograms(pending.removeFirst());
+        }
+
+        void close() {
+            if (executor != null) executor.shutdownNow();
+        }
+
+        private void submit() {
+            if (batch.isEmpty()) return;
+            final List<List<PairedReadSequence>> submitted = batch;
+            batch = new ArrayList<List<PairedReadSequence>>();
+            batchSize = 0;
+
+            if (pending.size() >= NUM_THREADS * GROUP_BATCHES_PER_THREAD) addToHistograms(pending.removeFirst());
+            pending.addLast(executor.submit(() -> {
+                final LibraryHistograms scanned = new LibraryHistograms();
+                for (final List<PairedReadSequence> group : submitted) scanned.scanGroup(group, readGroups, useBarcodes);
+                return scanned;
+            }));
+        }
+
+        private void addToHistograms(final Future<LibraryHistograms> future) {
+            try {
+                histograms.add(future.get());
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted while waiting for duplicates to be found", ie);
+            } catch (final ExecutionException ee) {
+                final Throwable t = ee.getCause();
+                if (t instanceof Error) throw (Error) t;
+                if (t instanceof RuntimeException) throw (RuntimeException) t;
+                throw new PicardException("Failed finding duplicates", t);
+            }
+        }
+    }
+
     /**
      * Checks to see if two reads pairs have sequence that are the same, give or take a few
      * errors/diffs as dictated by the maxDiffRate.
      */
     private boolean matches(final PairedReadSequence lhs, final PairedReadSequence rhs, final double maxDiffRate, final boolean useBarcodes) {
         final int maxReadLength = (MAX_READ_LENGTH <= 0) ? Integer.MAX_VALUE : MAX_READ_LENGTH;
-        final int read1Length = Math.min(Math.min(lhs.read1.length, rhs.read1.length), maxReadLength);
-        final int read2Length = Math.min(Math.min(lhs.read2.length, rhs.read2.length), maxReadLength);
+        final int read1Length = Math.min(Math.min(lhs.read1.length(), rhs.read1.length()), maxReadLength);
+        final int read2Length = Math.min(Math.min(lhs.read2.length(), rhs.read2.length()), maxReadLength);
         final int maxErrors = (int) Math.floor((read1Length + read2Length) * maxDiffRate);
-        int errors = 0;
 
         if (useBarcodes) {
             final PairedReadSequenceWithBarcodes lhsWithBarcodes = (PairedReadSequenceWithBarcodes) lhs;
@@ -617,21 +1006,11 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
             }
         }
 
-        // The loop can start from MIN_IDENTICAL_BASES because we've already confirmed that
+        // Counting can start from MIN_IDENTICAL_BASES because we've already confirmed that
         // at least those first few bases are identical when sorting.
-        for (int i = MIN_IDENTICAL_BASES; i < read1Length; ++i) {
-            if (lhs.read1[i] != rhs.read1[i]) {
-                if (++errors > maxErrors) return false;
-            }
-        }
-
-        for (int i = MIN_IDENTICAL_BASES; i < read2Length; ++i) {
-            if (lhs.read2[i] != rhs.read2[i]) {
-                if (++errors > maxErrors) return false;
-            }
-        }
-
-        return true;
+        final int errors = lhs.read1.countMismatches(rhs.read1, MIN_IDENTICAL_BASES, read1Length, maxErrors);
+        if (errors > maxErrors) return false;
+        return errors + lhs.read2.countMismatches(rhs.read2, MIN_IDENTICAL_BASES, read2Length, maxErrors - errors) <= maxErrors;
     }
 
     /**
@@ -643,11 +1022,11 @@ public class EstimateLibraryComplexity extends AbstractOpticalDuplicateFinderCom
         final PairedReadSequence first = iterator.next();
         group.add(first);
 
-        outer:
         while (iterator.hasNext()) {
             final PairedReadSequence next = iterator.peek();
-            for (int i = 0; i < MIN_IDENTICAL_BASES; ++i) {
-                if (first.read1[i] != next.read1[i] || first.read2[i] != next.read2[i]) break outer;
+            if (first.read1.comparePrefix(next.read1, MIN_IDENTICAL_BASES) != 0 ||
+                    first.read2.comparePrefix(next.read2, MIN_IDENTICAL_BASES) != 0) {
+                break;
             }
 
             group.add(iterator.next());
@@ -24,21 +24,34 @@
 
 package picard.sam.markduplicates;
 
+import picard.PicardException;
 import picard.cmdline.CommandLineProgramProperties;
 import picard.cmdline.Option;
 import picard.cmdline.programgroups.SamOrBam;
 import picard.sam.DuplicationMetrics;
 import htsjdk.samtools.ReservedTagConstants;
+import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.*;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
 import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.Md5CalculatingOutputStream;
+import htsjdk.samtools.util.MergingIterator;
+import htsjdk.samtools.util.PeekableIterator;
+import htsjdk.samtools.util.Histogram;
 import htsjdk.samtools.util.SortingCollection;
-import htsjdk.samtools.util.SortingLongCollection;
 import picard.sam.markduplicates.util.AbstractMarkDuplicatesCommandLineProgram;
 import picard.sam.markduplicates.util.DiskBasedReadEndsForMarkDuplicatesMap;
+import picard.sam.markduplicates.util.HashedReadEndsForMarkDuplicatesMap;
 import picard.sam.markduplicates.util.LibraryIdGenerator;
+import picard.sam.markduplicates.util.OpticalDuplicateFinder;
+import picard.sam.markduplicates.util.PackedReadEndsSortingCollection;
+import picard.sam.markduplicates.util.PhaseMetrics;
+import picard.sam.markduplicates.util.PhaseMetricsCollector;
 import picard.sam.markduplicates.util.ReadEnds;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicates;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesCodec;
@@ -46,9 +59,20 @@ import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesMap;
 import htsjdk.samtools.DuplicateScoringStrategy.ScoringStrategy;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesWithBarcodes;
 import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesWithBarcodesCodec;
+import picard.sam.markduplicates.util.ScatterGatherDirectory;
+import picard.sam.util.RawBamRecord;
+import picard.util.CompressedBitSet;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A better duplication marking algorithm that handles all cases including clipped
@@ -72,15 +96,24 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
                     "artifacts or from bio-chemical processes during clonal amplification and sequencing; they are identified using the\n" +
                     "READ_NAME_REGEX and the OPTICAL_DUPLICATE_PIXEL_DISTANCE options.\n" +
                     "\n" +
+                    "The input must be coordinate sorted, or sorted or grouped by query name, e.g. as written by MergeBamAlignment. Input\n" +
+                    "grouped by query name is written out in the same order, and its secondary and supplementary records are marked as\n" +
+                    "duplicates when their primary records are.\n" +
+                    "\n" +
                     "The tool's main output is a new SAM or BAM file in which duplicates have been identified in the SAM flags field, or\n" +
                     "optionally removed (see REMOVE_DUPLICATE and REMOVE_SEQUENCING_DUPLICATES), and optionally marked with a duplicate type\n" +
                     "in the 'DT' optional attribute. In addition, it also outputs a metrics file containing the numbers of\n" +
                     "READ_PAIRS_EXAMINED, UNMAPPED_READS, UNPAIRED_READS, UNPAIRED_READ DUPLICATES, READ_PAIR_DUPLICATES, and\n" +
                     "READ_PAIR_OPTICAL_DUPLICATES.\n" +
                     "\n" +
+                    "The work can be spread over several machines that share a directory, see SCATTER_GATHER_STEP.\n" +
+                    "\n" +
                     "Usage example: java -jar picard.jar MarkDuplicates I=input.bam \\\n" +
                     "                 O=marked_duplicates.bam M=marked_dup_metrics.txt\n";
 
+    /** The steps of a run scattered over its inputs, in the order they are run. */
+    public enum ScatterGatherStep { READ_ENDS, DUPLICATE_INDEXES, MARK }
+
     /** Enum used to control how duplicates are flagged in the DT optional tag on each read. */
     public enum DuplicateTaggingPolicy { DontTag, OpticalOnly, All }
 
@@ -102,6 +135,7 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
     }
 
     private final Log log = Log.getInstance(MarkDuplicates.class);
+    private final PhaseMetricsCollector phaseMetricsCollector = new PhaseMetricsCollector(log);
 
     /**
      * If more than this many sequences in SAM file, don't spill to disk because there will not
@@ -117,6 +151,22 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
                     "This number can be found by executing the 'ulimit -n' command on a Unix system.")
     public int MAX_FILE_HANDLES_FOR_READ_ENDS_MAP = 8000;
 
+    @Option(doc = "If true, track the reads whose mates have not been seen yet by a 128-bit hash of their read group and " +
+            "read name, in RAM until the limit set by SORTING_COLLECTION_SIZE_RATIO is reached, rather than by their full " +
+            "names in a map that spills every other reference sequence to disk. This uses less memory per pair and only " +
+            "one file handle, and MAX_FILE_HANDLES_FOR_READ_ENDS_MAP is ignored.")
+    public boolean USE_HASHED_READ_ENDS_MAP = false;
+
+    @Option(doc = "If true, sort the read ends packed into fixed-width records in large arrays of longs, rather than as " +
+            "one Java object each. This fits two or more times as many read ends in the memory set by " +
+            "SORTING_COLLECTION_SIZE_RATIO before spilling to disk, and leaves far fewer objects for the garbage collector.")
+    public boolean USE_PACKED_READ_ENDS_SORT = false;
+
+    @Option(doc = "If true, and there is a single BAM input and the output is a BAM file without an index, copy the " +
+            "records to the output as raw bytes when writing it, only patching their flags and DT and PG tags, rather " +
+            "than decoding and re-encoding every record. Otherwise this option is ignored.")
+    public boolean USE_RAW_BAM_OUTPUT = false;
+
     @Option(doc = "This number, plus the maximum RAM available to the JVM, determine the memory footprint used by " +
             "some of the sorting collections.  If you are running out of memory, try reducing this number.")
     public double SORTING_COLLECTION_SIZE_RATIO = 0.25;
@@ -138,14 +188,75 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
     @Option(doc= "Determines how duplicate types are recorded in the DT optional attribute.")
     public DuplicateTaggingPolicy TAGGING_POLICY = DuplicateTaggingPolicy.DontTag;
 
-    private SortingCollection<ReadEndsForMarkDuplicates> pairSort;
-    private SortingCollection<ReadEndsForMarkDuplicates> fragSort;
-    private SortingLongCollection duplicateIndexes;
-    private SortingLongCollection opticalDuplicateIndexes;
+    @Option(doc = "Number of threads used to compute read ends while reading the input the first time, and to find the " +
+            "duplicates among them. If more than 1, one thread reads and decodes the input, this many threads compute the " +
+            "read ends (scores, libraries, read name locations and barcodes) of batches of records, and the read ends are " +
+            "matched to their mates and sorted in input order. Then batches of read ends at the same positions are handed " +
+            "to this many threads to find duplicates in. The output is the same as with a single thread.")
+    public int NUM_THREADS = 1;
+
+    @Option(doc = "If set, run one step of a run scattered over the inputs, so that the steps for different inputs can be " +
+            "run at the same time on different machines.  First the READ_ENDS step is run for each input, which reads it " +
+            "and writes its sorted read ends to SCATTER_GATHER_DIR.  Then the DUPLICATE_INDEXES step, run once, merges " +
+            "them, matches up the pairs whose ends are in different inputs, finds the duplicates and writes METRICS_FILE " +
+            "and the indexes of each input's duplicates to SCATTER_GATHER_DIR.  Then the MARK step is run for each input, " +
+            "which writes it to OUTPUT with its duplicates marked.  All the steps must be given the same INPUT list and " +
+            "options that affect which records are duplicates.  OUTPUT is only written by the MARK step and METRICS_FILE " +
+            "only by the DUPLICATE_INDEXES step, though each step writes its phase metrics next to its METRICS_FILE.",
+            optional = true)
+    public ScatterGatherStep SCATTER_GATHER_STEP = null;
+
+    @Option(doc = "The directory, seen by every machine a step runs on, that the steps set by SCATTER_GATHER_STEP hand " +
+            "their results on through.", optional = true)
+    public File SCATTER_GATHER_DIR = null;
+
+    @Option(doc = "The position in INPUT, counting from 0, of the input read by the READ_ENDS or MARK step.", optional = true)
+    public Integer SCATTER_INPUT_INDEX = null;
+
+    /** Number of records whose read ends are computed together by a worker thread when NUM_THREADS > 1. */
+    private static final int READ_ENDS_BATCH_SIZE = 1000;
+    /** Number of batches per worker thread that may be read ahead of the batch whose read ends are being sorted. */
+    private static final int READ_ENDS_BATCHES_PER_THREAD = 4;
+    /** How long to wait for the thread reading the input to stop once the read ends are no longer wanted. */
+    private static final long READ_ENDS_PIPELINE_CLOSE_TIMEOUT_MILLIS = 60 * 1000;
+    /** Number of read ends in the chunks whose duplicates are found together by a worker thread when NUM_THREADS > 1. */
+    private static final int DUPLICATE_CHUNK_BATCH_SIZE = 10000;
+    /** Number of batches of chunks per worker thread that may be waiting to be added to the duplicate indexes. */
+    private static final int DUPLICATE_CHUNK_BATCHES_PER_THREAD = 4;
+
+    /**
+     * The number of low bits of the indexes of records in a scattered run that give the index of the record in its
+     * input, with the input's position in INPUT in the bits above them, so that the duplicate indexes of all the
+     * inputs are kept in one CompressedBitSet.
+     */
+    private static final int SCATTERED_INDEX_BITS = 36;
+    /** The most inputs a scattered run may have, for its indexes to fit in a CompressedBitSet. */
+    private static final int MAX_SCATTERED_INPUTS = (int) ((CompressedBitSet.MAX_INDEX + 1) >>> SCATTERED_INDEX_BITS);
+
+    /** Compares records as they would be ordered in coordinate sorted input. */
+    private static final SAMRecordCoordinateComparator COORDINATE_COMPARATOR = new SAMRecordCoordinateComparator();
+
+    /** True if the input is grouped by query name rather than coordinate sorted, which is found when it is first read. */
+    private boolean queryGrouped = false;
+    private ReadEndsSort pairSort;
+    private ReadEndsSort fragSort;
+    private CompressedBitSet duplicateIndexes;
+    private CompressedBitSet opticalDuplicateIndexes;
     private int numDuplicateIndices = 0;
+    /**
+     * The number of reads waiting in the ReadEndsForMarkDuplicatesMap for their mates, and the most there have been,
+     * counted as they are put and removed since the size() of a DiskBasedReadEndsForMarkDuplicatesMap is slow.
+     */
+    private long numUnmatchedPairs = 0;
+    private long peakUnmatchedPairs = 0;
 
     protected LibraryIdGenerator libraryIdGenerator = null; // this is initialized in buildSortedReadEndLists
 
+    /** Where the steps of a scattered run hand on their results, or null if the run is not scattered. */
+    private ScatterGatherDirectory scatterGatherDirectory = null;
+    /** The primary unmapped reads by library ID, counted by the READ_ENDS step of a scattered run. */
+    private Histogram<Short> scatteredUnmappedReads = null;
+
     private int getBarcodeValue(final SAMRecord record) {
         return EstimateLibraryComplexity.getReadBarcodeValue(record, BARCODE_TAG);
     }
@@ -167,6 +278,35 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         new MarkDuplicates().instanceMainWithExit(args);
     }
 
+    @Override
+    protected boolean allowsQueryGroupedInput() {
+        return true;
+    }
+
+    @Override
+    protected String[] customCommandLineValidation() {
+        if (NUM_THREADS < 1) {
+            return new String[]{"NUM_THREADS must be at least 1"};
+        }
+        if (SCATTER_GATHER_STEP != null) {
+            if (SCATTER_GATHER_DIR == null) {
+                return new String[]{"SCATTER_GATHER_DIR must be given with SCATTER_GATHER_STEP"};
+            }
+            if (INPUT.size() > MAX_SCATTERED_INPUTS) {
+                return new String[]{"A run scattered over its inputs may have at most " + MAX_SCATTERED_INPUTS + " inputs"};
+            }
+            if (SCATTER_GATHER_STEP != ScatterGatherStep.DUPLICATE_INDEXES &&
+                    (SCATTER_INPUT_INDEX == null || SCATTER_INPUT_INDEX < 0 || SCATTER_INPUT_INDEX >= INPUT.size())) {
+                return new String[]{"SCATTER_INPUT_INDEX must be the position of an input in INPUT for the " + SCATTER_GATHER_STEP + " step"};
+            }
+            if (SCATTER_GATHER_STEP == ScatterGatherStep.READ_ENDS && USE_HASHED_READ_ENDS_MAP) {
+                return new String[]{"USE_HASHED_READ_ENDS_MAP cannot be used for the READ_ENDS step, which writes out the keys " +
+                        "of the reads whose mates are not in the same input, which the hashed map does not keep"};
+            }
+        }
+        return super.customCommandLineValidation();
+    }
+
     /**
      * Main work method.  Reads the BAM file once and collects sorted information about
      * the 5' ends of both ends of each read (or just one end in the case of pairs).
@@ -175,17 +315,16 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
      */
     protected int doWork() {
         IOUtil.assertInputsAreValid(INPUT);
+        if (SCATTER_GATHER_STEP != null) return doScatterGatherStep();
         IOUtil.assertFileIsWritable(OUTPUT);
         IOUtil.assertFileIsWritable(METRICS_FILE);
+        if (WRITE_PHASE_METRICS) IOUtil.assertFileIsWritable(getPhaseMetricsFile());
 
         final boolean useBarcodes = (null != BARCODE_TAG || null != READ_ONE_BARCODE_TAG || null != READ_TWO_BARCODE_TAG);
 
-        reportMemoryStats("Start of doWork");
         log.info("Reading input file and constructing read end information.");
         buildSortedReadEndLists(useBarcodes);
-        reportMemoryStats("After buildSortedReadEndLists");
         generateDuplicateIndexes(useBarcodes, this.REMOVE_SEQUENCING_DUPLICATES || this.TAGGING_POLICY != DuplicateTaggingPolicy.DontTag);
-        reportMemoryStats("After generateDuplicateIndexes");
         log.info("Marking " + this.numDuplicateIndices + " records as duplicates.");
 
         if (this.READ_NAME_REGEX == null) {
@@ -194,106 +333,504 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
             log.info("Found " + (this.libraryIdGenerator.getNumberOfOpticalDuplicateClusters()) + " optical duplicate clusters.");
         }
 
-        final SamHeaderAndIterator headerAndIterator = openInputs();
+        writeOutput(openInputs());
+
+        this.duplicateIndexes = null;
+        this.opticalDuplicateIndexes = null;
+
+        // Write out the metrics
+        finalizeAndWriteMetrics(libraryIdGenerator);
+        writePhaseMetrics(phaseMetricsCollector);
+
+        return 0;
+    }
+
+    /**
+     * Runs the step of a run scattered over the inputs set by SCATTER_GATHER_STEP.  The steps find the same duplicates
+     * as a run over all the inputs at once would, except that when equally good duplicates, or the ends of a pair, are
+     * at the same position in different inputs, which is kept as the best, or taken as the first end, goes by the
+     * order of the inputs rather than of the records.
+     */
+    private int doScatterGatherStep() {
+        IOUtil.assertDirectoryIsWritable(SCATTER_GATHER_DIR);
+        if (WRITE_PHASE_METRICS) IOUtil.assertFileIsWritable(getPhaseMetricsFile());
+        final boolean useBarcodes = (null != BARCODE_TAG || null != READ_ONE_BARCODE_TAG || null != READ_TWO_BARCODE_TAG);
+        this.scatterGatherDirectory = new ScatterGatherDirectory(SCATTER_GATHER_DIR, useBarcodes);
+
+        switch (SCATTER_GATHER_STEP) {
+            case READ_ENDS:
+                writeScatteredReadEnds(useBarcodes);
+                break;
+            case DUPLICATE_INDEXES:
+                IOUtil.assertFileIsWritable(METRICS_FILE);
+                writeScatteredDuplicateIndexes(useBarcodes);
+                break;
+            case MARK:
+                IOUtil.assertFileIsWritable(OUTPUT);
+                markScatteredInput();
+                break;
+        }
+
+        writePhaseMetrics(phaseMetricsCollector);
+        return 0;
+    }
+
+    /** The READ_ENDS step, which writes the sorted read ends of the input at SCATTER_INPUT_INDEX. */
+    private void writeScatteredReadEnds(final boolean useBarcodes) {
+        final int input = SCATTER_INPUT_INDEX;
+        log.info("Reading " + INPUT.get(input) + " and writing its read ends to " + SCATTER_GATHER_DIR + ".");
+        this.scatteredUnmappedReads = new Histogram<Short>();
+        final long numRecords = buildSortedReadEndLists(useBarcodes);
+        if (numRecords > 1L << SCATTERED_INDEX_BITS) {
+            throw new PicardException(INPUT.get(input) + " has more than " + (1L << SCATTERED_INDEX_BITS) + " records, too many to scatter it.");
+        }
+        // Input grouped by query name has no reads whose mates were not found in it
+        if (this.queryGrouped) {
+            this.scatterGatherDirectory.writeUnmatchedReadEnds(this.scatterGatherDirectory.getUnmatchedFile(input),
+                    Collections.<Map.Entry<String, ReadEndsForMarkDuplicates>>emptyIterator());
+        }
+
+        phaseMetricsCollector.startPhase("WRITE_READ_ENDS");
+        long numReadEnds = this.scatterGatherDirectory.writeReadEnds(this.scatterGatherDirectory.getPairsFile(input), this.pairSort);
+        numReadEnds += this.scatterGatherDirectory.writeReadEnds(this.scatterGatherDirectory.getFragmentsFile(input), this.fragSort);
+        this.pairSort.cleanup();
+        this.fragSort.cleanup();
+        phaseMetricsCollector.endPhase(numReadEnds);
+
+        final Map<Short, String> libraryNames = getLibraryNamesById();
+        final MetricsFile<DuplicationMetrics, Double> unmappedMetrics = getMetricsFile();
+        for (final Short libraryId : this.scatteredUnmappedReads.keySet()) {
+            final DuplicationMetrics metrics = new DuplicationMetrics();
+            metrics.LIBRARY = libraryNames.get(libraryId);
+            metrics.UNMAPPED_READS = (long) this.scatteredUnmappedReads.get(libraryId).getValue();
+            unmappedMetrics.addMetric(metrics);
+        }
+        unmappedMetrics.write(this.scatterGatherDirectory.getUnmappedMetricsFile(input));
+        this.scatterGatherDirectory.writeProgramGroupIds(this.scatterGatherDirectory.getProgramGroupIdsFile(input), this.pgIdsSeen);
+    }
+
+    /**
+     * The DUPLICATE_INDEXES step, which merges the read ends of all the inputs, finds the duplicates among them, and
+     * writes the metrics and the duplicate indexes of each input.
+     */
+    private void writeScatteredDuplicateIndexes(final boolean useBarcodes) {
+        final SamHeaderAndIterator headerAndIterator = openInput(0);
+        headerAndIterator.iterator.close();
+        final SAMFileHeader header = headerAndIterator.header;
+        this.libraryIdGenerator = new LibraryIdGenerator(header);
+        addLibraryIds(header);
+
+        final ReadEndsSort matchedPairs = matchScatteredMates(useBarcodes);
+        final List<File> pairFiles = new ArrayList<File>(INPUT.size());
+        final List<File> fragmentFiles = new ArrayList<File>(INPUT.size());
+        for (int input = 0; input < INPUT.size(); ++input) {
+            pairFiles.add(this.scatterGatherDirectory.getPairsFile(input));
+            fragmentFiles.add(this.scatterGatherDirectory.getFragmentsFile(input));
+        }
+        this.pairSort = new ScatteredReadEndsSort(pairFiles, matchedPairs, useBarcodes);
+        this.fragSort = new ScatteredReadEndsSort(fragmentFiles, null, useBarcodes);
+        generateDuplicateIndexes(useBarcodes, this.REMOVE_SEQUENCING_DUPLICATES || this.TAGGING_POLICY != DuplicateTaggingPolicy.DontTag);
+        log.info("Found " + this.numDuplicateIndices + " records to mark as duplicates.");
+
+        countScatteredMetrics();
+        finalizeAndWriteMetrics(libraryIdGenerator);
+
+        phaseMetricsCollector.startPhase("WRITE_DUPLICATE_INDEXES");
+        long numIndexes = 0;
+        for (int input = 0; input < INPUT.size(); ++input) {
+            final long start = getScatteredIndex(input, 0);
+            final long end = getScatteredIndex(input + 1, 0);
+            numIndexes += this.scatterGatherDirectory.writeIndexes(this.scatterGatherDirectory.getDuplicateIndexesFile(input), this.duplicateIndexes, start, end);
+            if (this.opticalDuplicateIndexes != null) {
+                numIndexes += this.scatterGatherDirectory.writeIndexes(this.scatterGatherDirectory.getOpticalDuplicateIndexesFile(input),
+                        this.opticalDuplicateIndexes, start, end);
+            }
+        }
+        phaseMetricsCollector.endPhase(numIndexes);
+    }
+
+    /**
+     * Matches up the reads whose mates the READ_ENDS step did not find in the same input, as addReadEnds() would have
+     * had all the inputs been read together, and returns the sorted read ends of the pairs found.  The reads waiting
+     * for their mates are kept in RAM, which is fine as long as few pairs have their ends in different inputs, as
+     * when the inputs are different lanes.
+     */
+    private ReadEndsSort matchScatteredMates(final boolean useBarcodes) {
+        final PhaseMetrics metrics = phaseMetricsCollector.startPhase("MATCH_MATES");
+        final int sizeInBytes = useBarcodes ? ReadEndsForMarkDuplicatesWithBarcodes.getSizeOf() : ReadEndsForMarkDuplicates.getSizeOf();
+        final int maxInMemory = (int) ((Runtime.getRuntime().maxMemory() * SORTING_COLLECTION_SIZE_RATIO) / sizeInBytes);
+        final ReadEndsSort pairs = new ObjectReadEndsSort(useBarcodes ? new ReadEndsForMarkDuplicatesWithBarcodesCodec() : new ReadEndsForMarkDuplicatesCodec(),
+                useBarcodes, maxInMemory, TMP_DIR);
+        final Map<String, ReadEndsForMarkDuplicates> unmatched = new HashMap<String, ReadEndsForMarkDuplicates>();
+        long numReadEnds = 0;
+
+        for (int input = 0; input < INPUT.size(); ++input) {
+            final CloseableIterator<Map.Entry<String, ReadEndsForMarkDuplicates>> iterator =
+                    this.scatterGatherDirectory.readUnmatchedReadEnds(this.scatterGatherDirectory.getUnmatchedFile(input), getScatteredIndex(input, 0));
+            while (iterator.hasNext()) {
+                final Map.Entry<String, ReadEndsForMarkDuplicates> entry = iterator.next();
+                final ReadEndsForMarkDuplicates mate = unmatched.remove(entry.getKey());
+                if (mate == null) {
+                    unmatched.put(entry.getKey(), entry.getValue());
+                } else {
+                    pairs.add(pairScatteredMates(mate, entry.getValue(), useBarcodes));
+                }
+                metrics.PEAK_UNMATCHED_PAIRS = Math.max(metrics.PEAK_UNMATCHED_PAIRS, unmatched.size());
+                ++numReadEnds;
+            }
+            iterator.close();
+        }
+        phaseMetricsCollector.endPhase(numReadEnds);
+
+        log.info("Matched " + pairs.size() + " pairs with their ends in different inputs. " + unmatched.size() + " pairs never matched.");
+        sortReadEnds("MATCHED_PAIR_SORT", pairs);
+        return pairs;
+    }
+
+    /**
+     * Returns the read ends of the pair of two reads that were waiting for their mates, each of which has the read
+     * ends of its own read, and which end of the pair it is in orientationForOpticalDuplicates.  The one earlier in
+     * the genome, or in the earlier input if they are at the same position, is taken as the end seen first.
+     */
+    private static ReadEndsForMarkDuplicates pairScatteredMates(final ReadEndsForMarkDuplicates lhs, final ReadEndsForMarkDuplicates rhs,
+                                                                final boolean useBarcodes) {
+        final boolean lhsFirst = lhs.read1ReferenceIndex < rhs.read1ReferenceIndex ||
+                (lhs.read1ReferenceIndex == rhs.read1ReferenceIndex && lhs.read1Coordinate <= rhs.read1Coordinate);
+        final ReadEndsForMarkDuplicates first = lhsFirst ? lhs : rhs;
+        final ReadEndsForMarkDuplicates second = lhsFirst ? rhs : lhs;
+
+        final ReadEndsForMarkDuplicates pairedEnds = copyReadEnds(first, useBarcodes);
+        addMateReadEnds(pairedEnds, second, second.orientationForOpticalDuplicates == ReadEnds.F, second.orientation == ReadEnds.R,
+                second.read1IndexInFile, useBarcodes);
+        return pairedEnds;
+    }
+
+    /**
+     * Counts the reads examined and the duplicates found in each library from the fragment read ends, of which there
+     * is one for each primary mapped read, and adds the unmapped reads counted by the READ_ENDS step, to make the same
+     * metrics as marking the records does in a run over all the inputs at once.
+     */
+    private void countScatteredMetrics() {
+        phaseMetricsCollector.startPhase("METRICS");
+        final Map<Short, String> libraryNames = getLibraryNamesById();
+        long numReadEnds = 0;
+        for (int input = 0; input < INPUT.size(); ++input) {
+            final CloseableIterator<ReadEndsForMarkDuplicates> iterator =
+                    this.scatterGatherDirectory.readReadEnds(this.scatterGatherDirectory.getFragmentsFile(input), getScatteredIndex(input, 0));
+            while (iterator.hasNext()) {
+                final ReadEndsForMarkDuplicates fragment = iterator.next();
+                final DuplicationMetrics metrics = getLibraryMetrics(libraryNames.get(fragment.libraryId));
+                final boolean isDuplicate = this.duplicateIndexes.get(fragment.read1IndexInFile);
+                if (fragment.isPaired()) {
+                    ++metrics.READ_PAIRS_EXAMINED; // will need to be divided by 2 at the end
+                    if (isDuplicate) ++metrics.READ_PAIR_DUPLICATES;
+                } else {
+                    ++metrics.UNPAIRED_READS_EXAMINED;
+                    if (isDuplicate) ++metrics.UNPAIRED_READ_DUPLICATES;
+                }
+                ++numReadEnds;
+            }
+            iterator.close();
+
+            for (final DuplicationMetrics unmapped : this.scatterGatherDirectory.readUnmappedMetrics(this.scatterGatherDirectory.getUnmappedMetricsFile(input))) {
+                getLibraryMetrics(unmapped.LIBRARY).UNMAPPED_READS += unmapped.UNMAPPED_READS;
+            }
+        }
+        phaseMetricsCollector.endPhase(numReadEnds);
+    }
+
+    /** The MARK step, which writes the input at SCATTER_INPUT_INDEX to OUTPUT with its duplicates marked. */
+    private void markScatteredInput() {
+        final int input = SCATTER_INPUT_INDEX;
+        log.info("Marking the duplicates in " + INPUT.get(input) + " found by the DUPLICATE_INDEXES step.");
+        this.duplicateIndexes = this.scatterGatherDirectory.readIndexes(this.scatterGatherDirectory.getDuplicateIndexesFile(input));
+        if (this.REMOVE_SEQUENCING_DUPLICATES || this.TAGGING_POLICY != DuplicateTaggingPolicy.DontTag) {
+            this.opticalDuplicateIndexes = this.scatterGatherDirectory.readIndexes(this.scatterGatherDirectory.getOpticalDuplicateIndexesFile(input));
+        }
+        // Every output gets the same program records, for the program groups seen in all the inputs
+        if (PROGRAM_RECORD_ID != null) {
+            for (int i = 0; i < INPUT.size(); ++i) {
+                this.pgIdsSeen.addAll(this.scatterGatherDirectory.readProgramGroupIds(this.scatterGatherDirectory.getProgramGroupIdsFile(i)));
+            }
+        }
+
+        final SamHeaderAndIterator headerAndIterator = openInput(input);
+        this.queryGrouped = isQueryGrouped(headerAndIterator.header);
+        this.libraryIdGenerator = new LibraryIdGenerator(headerAndIterator.header);
+        writeOutput(headerAndIterator);
+    }
+
+    /** The index of a record in a scattered run, given its input's position in INPUT and its index in that input. */
+    private static long getScatteredIndex(final int input, final long indexInInput) {
+        return ((long) input << SCATTERED_INDEX_BITS) + indexInInput;
+    }
+
+    private Map<Short, String> getLibraryNamesById() {
+        final Map<Short, String> libraryNames = new HashMap<Short, String>();
+        for (final Map.Entry<String, Short> entry : libraryIdGenerator.getLibraryIdsMap().entrySet()) {
+            libraryNames.put(entry.getValue(), entry.getKey());
+        }
+        return libraryNames;
+    }
+
+    /** Writes the records read from the inputs opened to OUTPUT, with the records at the duplicate indexes marked. */
+    private void writeOutput(final SamHeaderAndIterator headerAndIterator) {
         final SAMFileHeader header = headerAndIterator.header;
 
         final SAMFileHeader outputHeader = header.clone();
-        outputHeader.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        // Input grouped by query name is written in the same order
+        if (!this.queryGrouped) outputHeader.setSortOrder(SAMFileHeader.SortOrder.coordinate);
         for (final String comment : COMMENT) outputHeader.addComment(comment);
 
         // Key: previous PG ID on a SAM Record (or null).  Value: New PG ID to replace it.
         final Map<String, String> chainedPgIds = getChainedPgIds(outputHeader);
 
+        phaseMetricsCollector.startPhase("WRITE");
+        final long numRecords;
+        if (canCopyRawBam()) {
+            headerAndIterator.iterator.close();
+            numRecords = copyRawBam(header, outputHeader, chainedPgIds);
+        } else {
+            numRecords = writeRecords(headerAndIterator, outputHeader, chainedPgIds);
+        }
+        phaseMetricsCollector.endPhase(numRecords);
+    }
+
+    /** Decodes each input record, marks it and writes it to OUTPUT, returning the number of input records. */
+    private long writeRecords(final SamHeaderAndIterator headerAndIterator, final SAMFileHeader outputHeader, final Map<String, String> chainedPgIds) {
+        final SAMFileHeader header = headerAndIterator.header;
         final SAMFileWriter out = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader,
                 true,
                 OUTPUT);
 
         // Now copy over the file while marking all the necessary indexes as duplicates
         long recordInFileIndex = 0;
-        long nextDuplicateIndex = (this.duplicateIndexes.hasNext() ? this.duplicateIndexes.next() : -1);
-        long nextOpticalDuplicateIndex = this.opticalDuplicateIndexes != null && this.opticalDuplicateIndexes.hasNext() ? this.opticalDuplicateIndexes.next() : -1;
 
         final ProgressLogger progress = new ProgressLogger(log, (int) 1e7, "Written");
-        final CloseableIterator<SAMRecord> iterator = headerAndIterator.iterator;
+        final PeekableIterator<SAMRecord> iterator = new PeekableIterator<SAMRecord>(headerAndIterator.iterator);
         while (iterator.hasNext()) {
-            final SAMRecord rec = iterator.next();
-            if (!rec.isSecondaryOrSupplementary()) {
-                final String library = LibraryIdGenerator.getLibraryName(header, rec);
-                DuplicationMetrics metrics = libraryIdGenerator.getMetricsByLibrary(library);
-                if (metrics == null) {
-                    metrics = new DuplicationMetrics();
-                    metrics.LIBRARY = library;
-                    libraryIdGenerator.addMetricsByLibrary(library, metrics);
+            if (this.queryGrouped) {
+                // The secondary and supplementary records of a template are marked as its primary records are, so
+                // all of its records are read before any are marked
+                final List<SAMRecord> template = nextTemplate(iterator);
+                final long[] duplicateIndexes = getTemplateDuplicateIndexes(template, recordInFileIndex);
+                for (int i = 0; i < template.size(); ++i) {
+                    writeRecord(out, header, template.get(i), duplicateIndexes[i], chainedPgIds, progress);
                 }
+                recordInFileIndex += template.size();
+            } else {
+                writeRecord(out, header, iterator.next(), recordInFileIndex, chainedPgIds, progress);
+                recordInFileIndex++;
+            }
+        }
 
-                // First bring the simple metrics up to date
-                if (rec.getReadUnmappedFlag()) {
-                    ++metrics.UNMAPPED_READS;
-                } else if (!rec.getReadPairedFlag() || rec.getMateUnmappedFlag()) {
-                    ++metrics.UNPAIRED_READS_EXAMINED;
-                } else {
-                    ++metrics.READ_PAIRS_EXAMINED; // will need to be divided by 2 at the end
-                }
+        // remember to close the inputs
+        iterator.close();
+
+        out.close();
+        return recordInFileIndex;
+    }
+
+    /**
+     * Marks a record and writes it to out if it is not to be removed.
+     *
+     * @param duplicateIndex the index of the record to look up in the duplicate indexes, which is the record's own
+     *                       index in the input unless it is marked as another record is
+     */
+    private void writeRecord(final SAMFileWriter out, final SAMFileHeader header, final SAMRecord rec, final long duplicateIndex,
+                             final Map<String, String> chainedPgIds, final ProgressLogger progress) {
+        rec.setFlags(markDuplicateFlag(header, rec.getFlags(), (String) rec.getAttribute(SAMTag.RG.name()), duplicateIndex));
+
+        // Manage the flagging of optical/sequencing duplicates
+        final boolean isOpticalDuplicate = this.opticalDuplicateIndexes != null && this.opticalDuplicateIndexes.get(duplicateIndex);
+        rec.setAttribute(DUPLICATE_TYPE_TAG, null);
+        final String duplicateType = getDuplicateType(rec.getFlags(), isOpticalDuplicate);
+        if (duplicateType != null) rec.setAttribute(DUPLICATE_TYPE_TAG, duplicateType);
+
+        // Output the record if desired
+        if (this.REMOVE_DUPLICATES            && rec.getDuplicateReadFlag()) return;
+        if (this.REMOVE_SEQUENCING_DUPLICATES && isOpticalDuplicate)         return;
+
+        if (PROGRAM_RECORD_ID != null)  rec.setAttribute(SAMTag.PG.name(), chainedPgIds.get(rec.getStringAttribute(SAMTag.PG.name())));
+        out.addAlignment(rec);
+        progress.record(rec);
+    }
 
+    /**
+     * For each record of a template whose first record is at the given index in the input, returns the index to look
+     * up in the duplicate indexes: a primary record's own index, and for a secondary or supplementary record the
+     * index of the primary record of the same end, or -1, which is never a duplicate, if the template has none.
+     */
+    private static long[] getTemplateDuplicateIndexes(final List<SAMRecord> template, final long firstIndex) {
+        final long[] primaryIndexes = {-1, -1};
+        for (int i = 0; i < template.size(); ++i) {
+            final SAMRecord rec = template.get(i);
+            if (!rec.isSecondaryOrSupplementary()) primaryIndexes[getEnd(rec)] = firstIndex + i;
+        }
 
-                if (recordInFileIndex == nextDuplicateIndex) {
-                    rec.setDuplicateReadFlag(true);
+        final long[] duplicateIndexes = new long[template.size()];
+        for (int i = 0; i < template.size(); ++i) {
+            final SAMRecord rec = template.get(i);
+            duplicateIndexes[i] = rec.isSecondaryOrSupplementary() ? primaryIndexes[getEnd(rec)] : firstIndex + i;
+        }
+        return duplicateIndexes;
+    }
 
-                    // Update the duplication metrics
-                    if (!rec.getReadPairedFlag() || rec.getMateUnmappedFlag()) {
-                        ++metrics.UNPAIRED_READ_DUPLICATES;
-                    } else {
-                        ++metrics.READ_PAIR_DUPLICATES;// will need to be divided by 2 at the end
-                    }
+    /** 0 for a fragment or the first end of a pair, 1 for the second end. */
+    private static int getEnd(final SAMRecord rec) {
+        return rec.getReadPairedFlag() && rec.getSecondOfPairFlag() ? 1 : 0;
+    }
 
-                    // Now try and figure out the next duplicate index
-                    if (this.duplicateIndexes.hasNext()) {
-                        nextDuplicateIndex = this.duplicateIndexes.next();
-                    } else {
-                        // Only happens once we've marked all the duplicates
-                        nextDuplicateIndex = -1;
-                    }
-                } else {
-                    rec.setDuplicateReadFlag(false);
-                }
-            }
+    /**
+     * True if USE_RAW_BAM_OUTPUT is set and the records can be copied as raw bytes, i.e. there is a single input, both
+     * it and the output are BAM files, and no index is to be created, which would need the records to be decoded.
+     */
+    private boolean canCopyRawBam() {
+        if (!USE_RAW_BAM_OUTPUT) return false;
+
+        final String reason;
+        if (SCATTER_GATHER_STEP != null) {
+            reason = "the run is scattered over its inputs, whose records are given the read group IDs of the merged inputs";
+        } else if (INPUT.size() != 1) {
+            reason = "there is more than one input";
+        } else if (this.queryGrouped) {
+            reason = "the input is grouped by query name, so the records of each template are marked together";
+        } else if (!new File(INPUT.get(0)).isFile() || !isBamFile(new File(INPUT.get(0)))) {
+            reason = "the input is not a BAM file";
+        } else if (!OUTPUT.getName().endsWith(BamFileIoUtils.BAM_FILE_EXTENSION)) {
+            reason = "the output is not a BAM file";
+        } else if (CREATE_INDEX) {
+            reason = "an index is to be created";
+        } else {
+            return true;
+        }
+        log.info("Decoding and re-encoding the records written, since " + reason + ".");
+        return false;
+    }
 
-            // Manage the flagging of optical/sequencing duplicates
-            final boolean isOpticalDuplicate = (recordInFileIndex == nextOpticalDuplicateIndex);
-            if (isOpticalDuplicate) nextOpticalDuplicateIndex = this.opticalDuplicateIndexes.hasNext() ? this.opticalDuplicateIndexes.next() : -1;
-            rec.setAttribute(DUPLICATE_TYPE_TAG, null);
+    private static boolean isBamFile(final File file) {
+        final SamReader reader = SamReaderFactory.makeDefault().open(file);
+        final boolean isBam = reader.type() == SamReader.Type.BAM_TYPE;
+        CloserUtil.close(reader);
+        return isBam;
+    }
 
-            if (this.TAGGING_POLICY != DuplicateTaggingPolicy.DontTag && rec.getDuplicateReadFlag()) {
-                if (isOpticalDuplicate) {
-                    rec.setAttribute(DUPLICATE_TYPE_TAG, DuplicateType.SEQUENCING.code());
-                } else if (this.TAGGING_POLICY == DuplicateTaggingPolicy.All) {
-                    rec.setAttribute(DUPLICATE_TYPE_TAG, DuplicateType.LIBRARY.code());
-                }
+    /**
+     * Does the same as writeRecords() for a single BAM input and a BAM output, but without decoding the records.
+     * Each record is read as raw bytes, its flags and DT and PG tags are patched in place, and it is written out.
+     * Every other byte of the record is copied unchanged.  Returns the number of input records.
+     */
+    private long copyRawBam(final SAMFileHeader header, final SAMFileHeader outputHeader, final Map<String, String> chainedPgIds) {
+        final File input = new File(INPUT.get(0));
+        log.info("Copying the records of " + input + " to " + OUTPUT + " without decoding them.");
+
+        BlockCompressedInputStream in = null;
+        OutputStream out = null;
+        try {
+            in = new BlockCompressedInputStream(input);
+            RawBamRecord.skipHeader(in);
+
+            OutputStream fileOut = IOUtil.maybeBufferOutputStream(new FileOutputStream(OUTPUT));
+            if (CREATE_MD5_FILE) fileOut = new Md5CalculatingOutputStream(fileOut, new File(OUTPUT.getAbsolutePath() + ".md5"));
+            out = new BlockCompressedOutputStream(fileOut, OUTPUT);
+            RawBamRecord.writeHeader(out, outputHeader);
+            out.flush();
+
+            long recordInFileIndex = 0;
+            final RawBamRecord rec = new RawBamRecord();
+            final ProgressLogger progress = new ProgressLogger(log, (int) 1e7, "Written");
+            while (rec.read(in)) {
+                rec.setFlags(markDuplicateFlag(header, rec.getFlags(), rec.getStringAttribute(SAMTag.RG.name()), recordInFileIndex));
+
+                final boolean isOpticalDuplicate = this.opticalDuplicateIndexes != null && this.opticalDuplicateIndexes.get(recordInFileIndex);
+                rec.setStringAttribute(DUPLICATE_TYPE_TAG, null);
+                final String duplicateType = getDuplicateType(rec.getFlags(), isOpticalDuplicate);
+                if (duplicateType != null) rec.setStringAttribute(DUPLICATE_TYPE_TAG, duplicateType);
+
+                recordInFileIndex++;
+                if (this.REMOVE_DUPLICATES            && (rec.getFlags() & SAMFlag.DUPLICATE_READ.intValue()) != 0) continue;
+                if (this.REMOVE_SEQUENCING_DUPLICATES && isOpticalDuplicate)                          continue;
+
+                if (PROGRAM_RECORD_ID != null) rec.setStringAttribute(SAMTag.PG.name(), chainedPgIds.get(rec.getStringAttribute(SAMTag.PG.name())));
+                rec.write(out);
+
+                final int referenceIndex = rec.getReferenceIndex();
+                progress.record(referenceIndex == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX ? SAMRecord.NO_ALIGNMENT_REFERENCE_NAME : header.getSequence(referenceIndex).getSequenceName(),
+                        rec.getAlignmentStart());
             }
 
-            // Output the record if desired and bump the record index
-            recordInFileIndex++;
-            if (this.REMOVE_DUPLICATES            && rec.getDuplicateReadFlag()) continue;
-            if (this.REMOVE_SEQUENCING_DUPLICATES && isOpticalDuplicate)         continue;
+            // BlockCompressedOutputStream cannot be closed twice, so only close them in the finally block if this fails
+            in.close();
+            in = null;
+            out.close();
+            out = null;
+            return recordInFileIndex;
+        } catch (final IOException ioe) {
+            throw new PicardException("Error copying the records of " + input + " to " + OUTPUT, ioe);
+        } finally {
+            CloserUtil.close(in);
+            CloserUtil.close(out);
+        }
+    }
 
-            if (PROGRAM_RECORD_ID != null)  rec.setAttribute(SAMTag.PG.name(), chainedPgIds.get(rec.getStringAttribute(SAMTag.PG.name())));
-            out.addAlignment(rec);
-            progress.record(rec);
+    /**
+     * Brings the metrics of the record's library up to date, and returns the record's flags with the duplicate flag
+     * set if it is at one of the duplicate indexes and cleared if not.  Secondary and supplementary records are not
+     * counted, and keep their flags unless the input is grouped by query name, when they are marked as their
+     * primary record is.
+     */
+    private int markDuplicateFlag(final SAMFileHeader header, final int flags, final String readGroupId, final long recordInFileIndex) {
+        if ((flags & (SAMFlag.NOT_PRIMARY_ALIGNMENT.intValue() | SAMFlag.SUPPLEMENTARY_ALIGNMENT.intValue())) != 0) {
+            if (!this.queryGrouped) return flags;
+            return this.duplicateIndexes.get(recordInFileIndex) ? flags | SAMFlag.DUPLICATE_READ.intValue() : flags & ~SAMFlag.DUPLICATE_READ.intValue();
         }
 
-        // remember to close the inputs
-        iterator.close();
+        final DuplicationMetrics metrics = getLibraryMetrics(LibraryIdGenerator.getLibraryName(header, readGroupId));
 
-        this.duplicateIndexes.cleanup();
+        // First bring the simple metrics up to date
+        final boolean unpaired = (flags & SAMFlag.READ_PAIRED.intValue()) == 0 || (flags & SAMFlag.MATE_UNMAPPED.intValue()) != 0;
+        if ((flags & SAMFlag.READ_UNMAPPED.intValue()) != 0) {
+            ++metrics.UNMAPPED_READS;
+        } else if (unpaired) {
+            ++metrics.UNPAIRED_READS_EXAMINED;
+        } else {
+            ++metrics.READ_PAIRS_EXAMINED; // will need to be divided by 2 at the end
+        }
 
-        reportMemoryStats("Before output close");
-        out.close();
-        reportMemoryStats("After output close");
+        if (this.duplicateIndexes.get(recordInFileIndex)) {
+            // Update the duplication metrics
+            if (unpaired) {
+                ++metrics.UNPAIRED_READ_DUPLICATES;
+            } else {
+                ++metrics.READ_PAIR_DUPLICATES;// will need to be divided by 2 at the end
+            }
+            return flags | SAMFlag.DUPLICATE_READ.intValue();
+        } else {
+            return flags & ~SAMFlag.DUPLICATE_READ.intValue();
+        }
+    }
 
-        // Write out the metrics
-        finalizeAndWriteMetrics(libraryIdGenerator);
+    /** The metrics of the library, which are added if there are none yet. */
+    private DuplicationMetrics getLibraryMetrics(final String library) {
+        DuplicationMetrics metrics = libraryIdGenerator.getMetricsByLibrary(library);
+        if (metrics == null) {
+            metrics = new DuplicationMetrics();
+            metrics.LIBRARY = library;
+            libraryIdGenerator.addMetricsByLibrary(library, metrics);
+        }
+        return metrics;
+    }
 
-        return 0;
+    /** The value of the DT tag for a record with the given flags, or null if it should not have one. */
+    private String getDuplicateType(final int flags, final boolean isOpticalDuplicate) {
+        if (this.TAGGING_POLICY != DuplicateTaggingPolicy.DontTag && (flags & SAMFlag.DUPLICATE_READ.intValue()) != 0) {
+            if (isOpticalDuplicate) {
+                return DuplicateType.SEQUENCING.code();
+            } else if (this.TAGGING_POLICY == DuplicateTaggingPolicy.All) {
+                return DuplicateType.LIBRARY.code();
+            }
+        }
+        return null;
     }
 
     /**
@@ -301,20 +838,12 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
      */
     long numOpticalDuplicates() { return ((long) this.libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap().getSumOfValues()); } // cast as long due to returning a double
 
-    /** Print out some quick JVM memory stats. */
-    private void reportMemoryStats(final String stage) {
-        System.gc();
-        final Runtime runtime = Runtime.getRuntime();
-        log.info(stage + " freeMemory: " + runtime.freeMemory() + "; totalMemory: " + runtime.totalMemory() +
-                "; maxMemory: " + runtime.maxMemory());
-    }
-
     /**
      * Goes through all the records in a file and generates a set of ReadEndsForMarkDuplicates objects that
      * hold the necessary information (reference sequence, 5' read coordinate) to do
-     * duplication, caching to disk as necssary to sort them.
+     * duplication, caching to disk as necssary to sort them.  Returns the number of records read.
      */
-    private void buildSortedReadEndLists(final boolean useBarcodes) {
+    private long buildSortedReadEndLists(final boolean useBarcodes) {
         final int sizeInBytes;
         if (useBarcodes) {
             sizeInBytes = ReadEndsForMarkDuplicatesWithBarcodes.getSizeOf();
@@ -336,119 +865,479 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
             diskCodec = new ReadEndsForMarkDuplicatesCodec();
         }
 
-        this.pairSort = SortingCollection.newInstance(ReadEndsForMarkDuplicates.class,
-                pairCodec,
-                new ReadEndsMDComparator(useBarcodes),
-                maxInMemory,
-                TMP_DIR);
-
-        this.fragSort = SortingCollection.newInstance(ReadEndsForMarkDuplicates.class,
-                fragCodec,
-                new ReadEndsMDComparator(useBarcodes),
-                maxInMemory,
-                TMP_DIR);
+        if (USE_PACKED_READ_ENDS_SORT) {
+            final int maxPackedInMemory = (int) Math.min((Runtime.getRuntime().maxMemory() * SORTING_COLLECTION_SIZE_RATIO) / PackedReadEndsSortingCollection.getSizeOf(useBarcodes),
+                    (double) (Integer.MAX_VALUE - 5));
+            log.info("Will retain up to " + maxPackedInMemory + " packed read ends before spilling to disk.");
+            this.pairSort = new PackedReadEndsSort(new PackedReadEndsSortingCollection(useBarcodes, maxPackedInMemory, TMP_DIR.toArray(new File[TMP_DIR.size()])));
+            this.fragSort = new PackedReadEndsSort(new PackedReadEndsSortingCollection(useBarcodes, maxPackedInMemory, TMP_DIR.toArray(new File[TMP_DIR.size()])));
+        } else {
+            this.pairSort = new ObjectReadEndsSort(pairCodec, useBarcodes, maxInMemory, TMP_DIR);
+            this.fragSort = new ObjectReadEndsSort(fragCodec, useBarcodes, maxInMemory, TMP_DIR);
+        }
 
-        final SamHeaderAndIterator headerAndIterator = openInputs();
+        final PhaseMetrics readEndsMetrics = phaseMetricsCollector.startPhase("READ_ENDS");
+        final SamHeaderAndIterator headerAndIterator = SCATTER_GATHER_STEP == ScatterGatherStep.READ_ENDS ? openInput(SCATTER_INPUT_INDEX) : openInputs();
         final SAMFileHeader header = headerAndIterator.header;
-        final ReadEndsForMarkDuplicatesMap tmp = new DiskBasedReadEndsForMarkDuplicatesMap(MAX_FILE_HANDLES_FOR_READ_ENDS_MAP, diskCodec);
-        long index = 0;
-        final ProgressLogger progress = new ProgressLogger(log, (int) 1e6, "Read");
         final CloseableIterator<SAMRecord> iterator = headerAndIterator.iterator;
+        this.queryGrouped = isQueryGrouped(header);
 
         if (null == this.libraryIdGenerator) {
             this.libraryIdGenerator = new LibraryIdGenerator(header);
+            if (SCATTER_GATHER_STEP != null) addLibraryIds(header);
         }
 
-        while (iterator.hasNext()) {
-            final SAMRecord rec = iterator.next();
-
-            // This doesn't have anything to do with building sorted ReadEnd lists, but it can be done in the same pass
-            // over the input
-            if (PROGRAM_RECORD_ID != null) {
-                // Gather all PG IDs seen in merged input files in first pass.  These are gathered for two reasons:
-                // - to know how many different PG records to create to represent this program invocation.
-                // - to know what PG IDs are already used to avoid collisions when creating new ones.
-                // Note that if there are one or more records that do not have a PG tag, then a null value
-                // will be stored in this set.
-                pgIdsSeen.add(rec.getStringAttribute(SAMTag.PG.name()));
-            }
-
-            if (rec.getReadUnmappedFlag()) {
-                if (rec.getReferenceIndex() == -1) {
-                    // When we hit the unmapped reads with no coordinate, no reason to continue.
-                    break;
-                }
-                // If this read is unmapped but sorted with the mapped reads, just skip it.
-            } else if (!rec.isSecondaryOrSupplementary()) {
-                final ReadEndsForMarkDuplicates fragmentEnd = buildReadEnds(header, index, rec, useBarcodes);
-                this.fragSort.add(fragmentEnd);
-
-                if (rec.getReadPairedFlag() && !rec.getMateUnmappedFlag()) {
-                    final String key = rec.getAttribute(ReservedTagConstants.READ_GROUP_ID) + ":" + rec.getReadName();
-                    ReadEndsForMarkDuplicates pairedEnds = tmp.remove(rec.getReferenceIndex(), key);
-
-                    // See if we've already seen the first end or not
-                    if (pairedEnds == null) {
-                        pairedEnds = buildReadEnds(header, index, rec, useBarcodes);
-                        tmp.put(pairedEnds.read2ReferenceIndex, key, pairedEnds);
-                    } else {
-                        final int sequence = fragmentEnd.read1ReferenceIndex;
-                        final int coordinate = fragmentEnd.read1Coordinate;
-
-                        // Set orientationForOpticalDuplicates, which always goes by the first then the second end for the strands.  NB: must do this
-                        // before updating the orientation later.
-                        if (rec.getFirstOfPairFlag()) {
-                            pairedEnds.orientationForOpticalDuplicates = ReadEnds.getOrientationByte(rec.getReadNegativeStrandFlag(), pairedEnds.orientation == ReadEnds.R);
-                            if (useBarcodes)
-                                ((ReadEndsForMarkDuplicatesWithBarcodes) pairedEnds).readOneBarcode = getReadOneBarcodeValue(rec);
-                        } else {
-                            pairedEnds.orientationForOpticalDuplicates = ReadEnds.getOrientationByte(pairedEnds.orientation == ReadEnds.R, rec.getReadNegativeStrandFlag());
-                            if (useBarcodes)
-                                ((ReadEndsForMarkDuplicatesWithBarcodes) pairedEnds).readTwoBarcode = getReadTwoBarcodeValue(rec);
-                        }
+        final long numRecords;
+        if (this.queryGrouped) {
+            numRecords = addQueryGroupedReadEnds(header, iterator, useBarcodes);
+        } else {
+            numRecords = addCoordinateSortedReadEnds(header, iterator, readEndsMetrics, maxInMemory, diskCodec, useBarcodes);
+        }
+        iterator.close();
+        phaseMetricsCollector.endPhase(numRecords);
 
-                        // If the second read is actually later, just add the second read data, else flip the reads
-                        if (sequence > pairedEnds.read1ReferenceIndex ||
-                                (sequence == pairedEnds.read1ReferenceIndex && coordinate >= pairedEnds.read1Coordinate)) {
-                            pairedEnds.read2ReferenceIndex = sequence;
-                            pairedEnds.read2Coordinate = coordinate;
-                            pairedEnds.read2IndexInFile = index;
-                            pairedEnds.orientation = ReadEnds.getOrientationByte(pairedEnds.orientation == ReadEnds.R,
-                                    rec.getReadNegativeStrandFlag());
-                        } else {
-                            pairedEnds.read2ReferenceIndex = pairedEnds.read1ReferenceIndex;
-                            pairedEnds.read2Coordinate = pairedEnds.read1Coordinate;
-                            pairedEnds.read2IndexInFile = pairedEnds.read1IndexInFile;
-                            pairedEnds.read1ReferenceIndex = sequence;
-                            pairedEnds.read1Coordinate = coordinate;
-                            pairedEnds.read1IndexInFile = index;
-                            pairedEnds.orientation = ReadEnds.getOrientationByte(rec.getReadNegativeStrandFlag(),
-                                    pairedEnds.orientation == ReadEnds.R);
-                        }
+        // Tell these collections to free up memory if possible.  Spills made while the read ends were being added
+        // are counted with the sorts.
+        sortReadEnds("PAIR_SORT", this.pairSort);
+        sortReadEnds("FRAG_SORT", this.fragSort);
+        return numRecords;
+    }
 
-                        pairedEnds.score += DuplicateScoringStrategy.computeDuplicateScore(rec, this.DUPLICATE_SCORING_STRATEGY);
-                        this.pairSort.add(pairedEnds);
+    /**
+     * Hands out library IDs in the order of the read groups in the header, rather than in the order the libraries are
+     * first seen, so that every step of a scattered run gives each library the same ID whichever inputs it reads.
+     */
+    private void addLibraryIds(final SAMFileHeader header) {
+        for (final SAMReadGroupRecord readGroup : header.getReadGroups()) {
+            libraryIdGenerator.getLibraryId(LibraryIdGenerator.getLibraryName(header, readGroup.getId()));
+        }
+        libraryIdGenerator.getLibraryId(LibraryIdGenerator.getLibraryName(header, (String) null));
+    }
+
+    /**
+     * Adds the read ends of coordinate sorted input to the sorting collections, holding each read whose mate has not
+     * been seen yet in a ReadEndsForMarkDuplicatesMap until it is.  Returns the number of records read.
+     */
+    private long addCoordinateSortedReadEnds(final SAMFileHeader header, final CloseableIterator<SAMRecord> iterator, final PhaseMetrics readEndsMetrics,
+                                             final int maxInMemory, final ReadEndsForMarkDuplicatesCodec diskCodec, final boolean useBarcodes) {
+        final ReadEndsForMarkDuplicatesMap tmp = USE_HASHED_READ_ENDS_MAP
+                ? new HashedReadEndsForMarkDuplicatesMap(maxInMemory, diskCodec, TMP_DIR.get(0))
+                : new DiskBasedReadEndsForMarkDuplicatesMap(MAX_FILE_HANDLES_FOR_READ_ENDS_MAP, diskCodec);
+        long index = 0;
+        final ProgressLogger progress = new ProgressLogger(log, (int) 1e6, "Read");
+
+        if (NUM_THREADS > 1) {
+            final ReadEndsPipeline pipeline = new ReadEndsPipeline(iterator, header, useBarcodes);
+            try {
+                ReadEndsBatch batch;
+                batches:
+                while ((batch = pipeline.next()) != null) {
+                    for (int i = 0; i < batch.records.size(); ++i) {
+                        final SAMRecord rec = batch.records.get(i);
+                        if (!addReadEnds(rec, index, batch.fragmentEnds[i], tmp, useBarcodes)) break batches;
+
+                        // Print out some stats every 1m reads
+                        ++index;
+                        if (progress.record(rec)) {
+                            log.info("Tracking " + tmp.size() + " as yet unmatched pairs. " + tmp.sizeInRam() + " records in RAM.");
+                        }
                     }
                 }
+            } finally {
+                pipeline.close();
             }
-
-            // Print out some stats every 1m reads
-            ++index;
-            if (progress.record(rec)) {
-                log.info("Tracking " + tmp.size() + " as yet unmatched pairs. " + tmp.sizeInRam() + " records in RAM.");
+        } else {
+            while (iterator.hasNext()) {
+                final SAMRecord rec = iterator.next();
+                final ReadEndsForMarkDuplicates fragmentEnd = hasReadEnds(rec) ? buildReadEnds(header, index, rec, useBarcodes, this.opticalDuplicateFinder) : null;
+                if (!addReadEnds(rec, index, fragmentEnd, tmp, useBarcodes)) break;
+
+                // Print out some stats every 1m reads
+                ++index;
+                if (progress.record(rec)) {
+                    log.info("Tracking " + tmp.size() + " as yet unmatched pairs. " + tmp.sizeInRam() + " records in RAM.");
+                }
             }
         }
 
+        readEndsMetrics.PEAK_UNMATCHED_PAIRS = peakUnmatchedPairs;
         log.info("Read " + index + " records. " + tmp.size() + " pairs never matched.");
-        iterator.close();
+        if (SCATTER_GATHER_STEP == ScatterGatherStep.READ_ENDS) {
+            // The mates of these may be in other inputs, so they are left for the DUPLICATE_INDEXES step to match up
+            final CloseableIterator<Map.Entry<String, ReadEndsForMarkDuplicates>> unmatched = ((DiskBasedReadEndsForMarkDuplicatesMap) tmp).iterator();
+            this.scatterGatherDirectory.writeUnmatchedReadEnds(this.scatterGatherDirectory.getUnmatchedFile(SCATTER_INPUT_INDEX), unmatched);
+            unmatched.close();
+        }
+        if (tmp instanceof HashedReadEndsForMarkDuplicatesMap) {
+            final HashedReadEndsForMarkDuplicatesMap hashedMap = (HashedReadEndsForMarkDuplicatesMap) tmp;
+            log.info(String.format("Unmatched pairs were looked up with a mean probe length of %.2f (max %d), " +
+                            "%d collisions of the first 64 bits of their hashes and %d spills to disk.",
+                    hashedMap.getMeanProbeLength(), hashedMap.getMaxProbeLength(), hashedMap.getNumHashCollisions(), hashedMap.getNumSpills()));
+        }
+        return index;
+    }
+
+    /**
+     * Adds the read ends of input grouped by query name to the sorting collections.  Both ends of each pair are read
+     * together, so they are matched up without a map of unmatched pairs, and the read ends are built on this thread
+     * whatever NUM_THREADS is.  Returns the number of records read.
+     */
+    private long addQueryGroupedReadEnds(final SAMFileHeader header, final CloseableIterator<SAMRecord> iterator, final boolean useBarcodes) {
+        log.info("The input is grouped by query name, so the ends of each pair will be matched up as they are read.");
+        long index = 0;
+        final ProgressLogger progress = new ProgressLogger(log, (int) 1e6, "Read");
+        final PeekableIterator<SAMRecord> templates = new PeekableIterator<SAMRecord>(iterator);
+        while (templates.hasNext()) {
+            final List<SAMRecord> template = nextTemplate(templates);
+            addTemplateReadEnds(header, template, index, useBarcodes);
+            for (final SAMRecord rec : template) {
+                ++index;
+                progress.record(rec);
+            }
+        }
+        log.info("Read " + index + " records.");
+        return index;
+    }
+
+    /** Reads the records of the next template, i.e. the consecutive records with the same read name. */
+    private static List<SAMRecord> nextTemplate(final PeekableIterator<SAMRecord> iterator) {
+        final List<SAMRecord> template = new ArrayList<SAMRecord>(2);
+        final SAMRecord first = iterator.next();
+        template.add(first);
+        while (iterator.hasNext() && iterator.peek().getReadName().equals(first.getReadName())) {
+            template.add(iterator.next());
+        }
+        return template;
+    }
+
+    /**
+     * Adds the read ends of the primary records of one template, the first of which is at the given index in the
+     * input, to the fragment and pair sorting collections.  The ends of a pair are combined in the order the records
+     * would be in if the input were coordinate sorted, so that the read ends are the same as they would be then.
+     */
+    private void addTemplateReadEnds(final SAMFileHeader header, final List<SAMRecord> template, final long firstIndex, final boolean useBarcodes) {
+        final int[] mates = {-1, -1};
+        final ReadEndsForMarkDuplicates[] mateEnds = new ReadEndsForMarkDuplicates[2];
+        for (int i = 0; i < template.size(); ++i) {
+            final SAMRecord rec = template.get(i);
+            if (PROGRAM_RECORD_ID != null) pgIdsSeen.add(rec.getStringAttribute(SAMTag.PG.name()));
+            countScatteredUnmappedRead(rec);
+            if (!hasReadEnds(rec)) continue;
+
+            final ReadEndsForMarkDuplicates fragmentEnd = buildReadEnds(header, firstIndex + i, rec, useBarcodes, this.opticalDuplicateFinder);
+            fragmentEnd.libraryId = libraryIdGenerator.getLibraryId(rec);
+            this.fragSort.add(fragmentEnd);
+
+            if (rec.getReadPairedFlag() && !rec.getMateUnmappedFlag()) {
+                final int end = rec.getFirstOfPairFlag() ? 0 : 1;
+                mates[end] = i;
+                mateEnds[end] = fragmentEnd;
+            }
+        }
+
+        if (mates[0] >= 0 && mates[1] >= 0) {
+            final int earlier = COORDINATE_COMPARATOR.compare(template.get(mates[0]), template.get(mates[1])) <= 0 ? 0 : 1;
+            final int later = 1 - earlier;
+            final ReadEndsForMarkDuplicates pairedEnds = copyReadEnds(mateEnds[earlier], useBarcodes);
+            addMateReadEnds(pairedEnds, mateEnds[later], template.get(mates[later]), firstIndex + mates[later], useBarcodes);
+            this.pairSort.add(pairedEnds);
+        }
+    }
+
+    /** Finishes sorting the read ends in RAM, as a phase of its own. */
+    private void sortReadEnds(final String phase, final ReadEndsSort sort) {
+        final PhaseMetrics metrics = phaseMetricsCollector.startPhase(phase);
+        sort.doneAdding();
+        metrics.SPILLS = sort.getNumSpills();
+        metrics.SPILLED_BYTES = sort.getNumBytesSpilled();
+        phaseMetricsCollector.endPhase(sort.size());
+    }
+
+    /** The read ends of pairs or fragments, sorted by ReadEndsMDComparator. */
+    private interface ReadEndsSort extends Iterable<ReadEndsForMarkDuplicates> {
+        void add(ReadEndsForMarkDuplicates readEnds);
+
+        void doneAdding();
+
+        void cleanup();
+
+        /** The number of read ends added. */
+        long size();
+
+        int getNumSpills();
+
+        long getNumBytesSpilled();
+
+        CloseableIterator<ReadEndsForMarkDuplicates> iterator();
+    }
+
+    /** Sorts the read ends as objects. */
+    private static class ObjectReadEndsSort implements ReadEndsSort {
+        private final SortingCollection<ReadEndsForMarkDuplicates> sort;
+        private final SpillCountingCodec codec;
+        private long size = 0;
+
+        ObjectReadEndsSort(final ReadEndsForMarkDuplicatesCodec codec, final boolean useBarcodes, final int maxRecordsInRam, final List<File> tmpDirs) {
+            this.codec = new SpillCountingCodec(codec);
+            this.sort = SortingCollection.newInstance(ReadEndsForMarkDuplicates.class, this.codec, new ReadEndsMDComparator(useBarcodes),
+                    maxRecordsInRam, tmpDirs);
+        }
+
+        public void add(final ReadEndsForMarkDuplicates readEnds) {
+            sort.add(readEnds);
+            ++size;
+        }
+
+        public void doneAdding() { sort.doneAdding(); }
+
+        public void cleanup() { sort.cleanup(); }
+
+        public long size() { return size; }
+
+        public int getNumSpills() { return codec.numSpills; }
+
+        public long getNumBytesSpilled() { return codec.numBytesSpilled; }
+
+        public CloseableIterator<ReadEndsForMarkDuplicates> iterator() { return sort.iterator(); }
+    }
+
+    /**
+     * Counts the spills of a SortingCollection, which sets the output stream of its codec once per spill, and the
+     * bytes encoded into them.  Clones, which the SortingCollection uses to read the spills back, count nothing.
+     */
+    private static class SpillCountingCodec implements SortingCollection.Codec<ReadEndsForMarkDuplicates> {
+        private final SortingCollection.Codec<ReadEndsForMarkDuplicates> codec;
+        private int numSpills = 0;
+        private long numBytesSpilled = 0;
+
+        SpillCountingCodec(final SortingCollection.Codec<ReadEndsForMarkDuplicates> codec) { this.codec = codec; }
+
+        public void setOutputStream(final OutputStream os) {
+            ++numSpills;
+            codec.setOutputStream(new FilterOutputStream(os) {
+                @Override
+                public void write(final int b) throws IOException {
+                    out.write(b);
+                    ++numBytesSpilled;
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    out.write(b, off, len);
+                    numBytesSpilled += len;
+                }
+            });
+        }
+
+        public void setInputStream(final InputStream is) { codec.setInputStream(is); }
+
+        public void encode(final ReadEndsForMarkDuplicates val) { codec.encode(val); }
+
+        public ReadEndsForMarkDuplicates decode() { return codec.decode(); }
+
+        public SortingCollection.Codec<ReadEndsForMarkDuplicates> clone() { return codec.clone(); }
+    }
+
+    /** Sorts the read ends packed into arrays of longs. */
+    private static class PackedReadEndsSort implements ReadEndsSort {
+        private final PackedReadEndsSortingCollection sort;
+        private long size = 0;
+
+        PackedReadEndsSort(final PackedReadEndsSortingCollection sort) { this.sort = sort; }
+
+        public void add(final ReadEndsForMarkDuplicates readEnds) {
+            sort.add(readEnds);
+            ++size;
+        }
+
+        public void doneAdding() { sort.doneAdding(); }
+
+        public void cleanup() { sort.cleanup(); }
+
+        public long size() { return size; }
+
+        public int getNumSpills() { return sort.getNumSpills(); }
+
+        public long getNumBytesSpilled() { return sort.getNumBytesSpilled(); }
+
+        public CloseableIterator<ReadEndsForMarkDuplicates> iterator() { return sort.iterator(); }
+    }
+
+    /**
+     * The read ends of all the inputs of a scattered run, merged from the sorted files the READ_ENDS step wrote for
+     * each input, with their indexes made those of a scattered run, and from another sort, if given, whose indexes
+     * already are.  The files are only read, so this can only be iterated over.
+     */
+    private class ScatteredReadEndsSort implements ReadEndsSort {
+        private final List<File> files;
+        private final ReadEndsSort otherReadEnds;
+        private final boolean useBarcodes;
+
+        ScatteredReadEndsSort(final List<File> files, final ReadEndsSort otherReadEnds, final boolean useBarcodes) {
+            this.files = files;
+            this.otherReadEnds = otherReadEnds;
+            this.useBarcodes = useBarcodes;
+        }
+
+        public void add(final ReadEndsForMarkDuplicates readEnds) { throw new UnsupportedOperationException(); }
+
+        public void doneAdding() { }
+
+        public void cleanup() {
+            if (otherReadEnds != null) otherReadEnds.cleanup();
+        }
+
+        public long size() { throw new UnsupportedOperationException(); }
+
+        public int getNumSpills() { return 0; }
+
+        public long getNumBytesSpilled() { return 0; }
+
+        public CloseableIterator<ReadEndsForMarkDuplicates> iterator() {
+            final List<CloseableIterator<ReadEndsForMarkDuplicates>> iterators = new ArrayList<CloseableIterator<ReadEndsForMarkDuplicates>>(files.size() + 1);
+            for (int input = 0; input < files.size(); ++input) {
+                iterators.add(scatterGatherDirectory.readReadEnds(files.get(input), getScatteredIndex(input, 0)));
+            }
+            if (otherReadEnds != null) iterators.add(otherReadEnds.iterator());
+            return new MergingIterator<ReadEndsForMarkDuplicates>(new ReadEndsMDComparator(useBarcodes), iterators);
+        }
+    }
+
+    /** Counts the record if it is a primary unmapped read and the unmapped reads are being counted for a scattered run. */
+    private void countScatteredUnmappedRead(final SAMRecord rec) {
+        if (this.scatteredUnmappedReads != null && rec.getReadUnmappedFlag() && !rec.isSecondaryOrSupplementary()) {
+            this.scatteredUnmappedReads.increment(libraryIdGenerator.getLibraryId(rec));
+        }
+    }
+
+    /** True if read ends are built for the record, i.e. it is a mapped primary alignment. */
+    private static boolean hasReadEnds(final SAMRecord rec) {
+        return !rec.getReadUnmappedFlag() && !rec.isSecondaryOrSupplementary();
+    }
+
+    /**
+     * Adds the read ends of one record to the fragment and pair sorting collections, matching it up with its mate
+     * through tmp.  Must be called for every record in input order.
+     *
+     * @param fragmentEnd the read ends built for the record by {@link #buildReadEnds}, or null if it has none
+     * @return false once the unmapped reads at the end of the input are reached, so there is no need to go on, unless
+     * the unmapped reads are being counted for a scattered run
+     */
+    private boolean addReadEnds(final SAMRecord rec, final long index, final ReadEndsForMarkDuplicates fragmentEnd,
+                                final ReadEndsForMarkDuplicatesMap tmp, final boolean useBarcodes) {
+        // This doesn't have anything to do with building sorted ReadEnd lists, but it can be done in the same pass
+        // over the input
+        if (PROGRAM_RECORD_ID != null) {
+            // Gather all PG IDs seen in merged input files in first pass.  These are gathered for two reasons:
+            // - to know how many different PG records to create to represent this program invocation.
+            // - to know what PG IDs are already used to avoid collisions when creating new ones.
+            // Note that if there are one or more records that do not have a PG tag, then a null value
+            // will be stored in this set.
+            pgIdsSeen.add(rec.getStringAttribute(SAMTag.PG.name()));
+        }
+
+        if (rec.getReadUnmappedFlag()) {
+            countScatteredUnmappedRead(rec);
+            if (rec.getReferenceIndex() == -1 && this.scatteredUnmappedReads == null) {
+                // When we hit the unmapped reads with no coordinate, no reason to continue.
+                return false;
+            }
+            // If this read is unmapped but sorted with the mapped reads, just skip it.
+        } else if (!rec.isSecondaryOrSupplementary()) {
+            // Library IDs are handed out in the order libraries are first seen, so they are always filled in here
+            fragmentEnd.libraryId = libraryIdGenerator.getLibraryId(rec);
+            this.fragSort.add(fragmentEnd);
+
+            if (rec.getReadPairedFlag() && !rec.getMateUnmappedFlag()) {
+                final String key = rec.getAttribute(ReservedTagConstants.READ_GROUP_ID) + ":" + rec.getReadName();
+                ReadEndsForMarkDuplicates pairedEnds = tmp.remove(rec.getReferenceIndex(), key);
+
+                // See if we've already seen the first end or not
+                if (pairedEnds == null) {
+                    pairedEnds = copyReadEnds(fragmentEnd, useBarcodes);
+                    // Not needed until the mate is added, so used to keep which end this is, for a scattered run to
+                    // add a mate found in another input
+                    pairedEnds.orientationForOpticalDuplicates = rec.getFirstOfPairFlag() ? ReadEnds.F : ReadEnds.R;
+                    tmp.put(pairedEnds.read2ReferenceIndex, key, pairedEnds);
+                    peakUnmatchedPairs = Math.max(peakUnmatchedPairs, ++numUnmatchedPairs);
+                } else {
+                    --numUnmatchedPairs;
+                    addMateReadEnds(pairedEnds, fragmentEnd, rec, index, useBarcodes);
+                    this.pairSort.add(pairedEnds);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Completes the read ends of a pair, copied from those of the end seen first, with those of the other end, the
+     * record rec at the given index.
+     */
+    private static void addMateReadEnds(final ReadEndsForMarkDuplicates pairedEnds, final ReadEndsForMarkDuplicates fragmentEnd,
+                                        final SAMRecord rec, final long index, final boolean useBarcodes) {
+        addMateReadEnds(pairedEnds, fragmentEnd, rec.getFirstOfPairFlag(), rec.getReadNegativeStrandFlag(), index, useBarcodes);
+    }
+
+    /** Does the same as the method above, given only the flags of the other end that it needs. */
+    private static void addMateReadEnds(final ReadEndsForMarkDuplicates pairedEnds, final ReadEndsForMarkDuplicates fragmentEnd,
+                                        final boolean firstOfPair, final boolean negativeStrand, final long index, final boolean useBarcodes) {
+        final int sequence = fragmentEnd.read1ReferenceIndex;
+        final int coordinate = fragmentEnd.read1Coordinate;
+
+        // Set orientationForOpticalDuplicates, which always goes by the first then the second end for the strands.  NB: must do this
+        // before updating the orientation later.
+        if (firstOfPair) {
+            pairedEnds.orientationForOpticalDuplicates = ReadEnds.getOrientationByte(negativeStrand, pairedEnds.orientation == ReadEnds.R);
+            if (useBarcodes)
+                ((ReadEndsForMarkDuplicatesWithBarcodes) pairedEnds).readOneBarcode = ((ReadEndsForMarkDuplicatesWithBarcodes) fragmentEnd).readOneBarcode;
+        } else {
+            pairedEnds.orientationForOpticalDuplicates = ReadEnds.getOrientationByte(pairedEnds.orientation == ReadEnds.R, negativeStrand);
+            if (useBarcodes)
+                ((ReadEndsForMarkDuplicatesWithBarcodes) pairedEnds).readTwoBarcode = ((ReadEndsForMarkDuplicatesWithBarcodes) fragmentEnd).readTwoBarcode;
+        }
+
+        // If the second read is actually later, just add the second read data, else flip the reads
+        if (sequence > pairedEnds.read1ReferenceIndex ||
+                (sequence == pairedEnds.read1ReferenceIndex && coordinate >= pairedEnds.read1Coordinate)) {
+            pairedEnds.read2ReferenceIndex = sequence;
+            pairedEnds.read2Coordinate = coordinate;
+            pairedEnds.read2IndexInFile = index;
+            pairedEnds.orientation = ReadEnds.getOrientationByte(pairedEnds.orientation == ReadEnds.R,
+                    negativeStrand);
+        } else {
+            pairedEnds.read2ReferenceIndex = pairedEnds.read1ReferenceIndex;
+            pairedEnds.read2Coordinate = pairedEnds.read1Coordinate;
+            pairedEnds.read2IndexInFile = pairedEnds.read1IndexInFile;
+            pairedEnds.read1ReferenceIndex = sequence;
+            pairedEnds.read1Coordinate = coordinate;
+            pairedEnds.read1IndexInFile = index;
+            pairedEnds.orientation = ReadEnds.getOrientationByte(negativeStrand,
+                    pairedEnds.orientation == ReadEnds.R);
+        }
+
+        pairedEnds.score += fragmentEnd.score;
+    }
+
+    /** Copies read ends built for a single read, to start the read ends of its pair from. */
+    private static ReadEndsForMarkDuplicates copyReadEnds(final ReadEndsForMarkDuplicates ends, final boolean useBarcodes) {
+        if (!useBarcodes) return new ReadEndsForMarkDuplicates(ends);
 
-        // Tell these collections to free up memory if possible.
-        this.pairSort.doneAdding();
-        this.fragSort.doneAdding();
+        final ReadEndsForMarkDuplicatesWithBarcodes endsWithBarcode = (ReadEndsForMarkDuplicatesWithBarcodes) ends;
+        final ReadEndsForMarkDuplicatesWithBarcodes copy = new ReadEndsForMarkDuplicatesWithBarcodes(ends);
+        copy.barcode = endsWithBarcode.barcode;
+        copy.readOneBarcode = endsWithBarcode.readOneBarcode;
+        copy.readTwoBarcode = endsWithBarcode.readTwoBarcode;
+        return copy;
     }
 
-    /** Builds a read ends object that represents a single read. */
-    private ReadEndsForMarkDuplicates buildReadEnds(final SAMFileHeader header, final long index, final SAMRecord rec, final boolean useBarcodes) {
+    /**
+     * Builds a read ends object that represents a single read, except for the library ID, which is filled in by
+     * {@link #addReadEnds} in input order.  Only touches the record, the header and the given finder, so may be
+     * called for different records on different threads as long as each has its own finder.
+     */
+    private ReadEndsForMarkDuplicates buildReadEnds(final SAMFileHeader header, final long index, final SAMRecord rec, final boolean useBarcodes,
+                                                    final OpticalDuplicateFinder opticalDuplicateFinder) {
         final ReadEndsForMarkDuplicates ends;
 
         if (useBarcodes) {
@@ -467,11 +1356,8 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
             ends.read2ReferenceIndex = rec.getMateReferenceIndex();
         }
 
-        // Fill in the library ID
-        ends.libraryId = libraryIdGenerator.getLibraryId(rec);
-
         // Fill in the location information for optical duplicates
-        if (this.opticalDuplicateFinder.addLocationInformation(rec.getReadName(), ends)) {
+        if (opticalDuplicateFinder.addLocationInformation(rec.getReadName(), ends)) {
             // calculate the RG number (nth in list)
             ends.readGroup = 0;
             final String rg = (String) rec.getAttribute("RG");
@@ -498,77 +1384,300 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         return ends;
     }
 
+    /** A batch of consecutive records from the input, and the read ends computed for each of them by a worker thread. */
+    private static class ReadEndsBatch {
+        final long firstIndex;
+        final List<SAMRecord> records = new ArrayList<SAMRecord>(READ_ENDS_BATCH_SIZE);
+        ReadEndsForMarkDuplicates[] fragmentEnds;
+
+        ReadEndsBatch(final long firstIndex) {
+            this.firstIndex = firstIndex;
+        }
+    }
+
+    /**
+     * Reads the input on one thread and computes the read ends of each batch of records on a pool of NUM_THREADS
+     * worker threads, handing the batches back in input order.  The reader only runs as far ahead of the consumer as
+     * the bounded queue of pending batches allows.
+     */
+    private class ReadEndsPipeline {
+        /** Marker placed on the queue by the reader once there are no more batches. */
+        private final Future<ReadEndsBatch> endOfInput = new FutureTask<ReadEndsBatch>(() -> null);
+
+        private final BlockingQueue<Future<ReadEndsBatch>> batches = new ArrayBlockingQueue<Future<ReadEndsBatch>>(NUM_THREADS * READ_ENDS_BATCHES_PER_THREAD);
+        private final ExecutorService readerExecutor = Executors.newSingleThreadExecutor();
+        private final ExecutorService workerExecutor = Executors.newFixedThreadPool(NUM_THREADS);
+        private final Future<?> reader;
+
+        ReadEndsPipeline(final CloseableIterator<SAMRecord> iterator, final SAMFileHeader header, final boolean useBarcodes) {
+            // The finder keeps state between read names, so each worker thread gets its own
+            final ThreadLocal<OpticalDuplicateFinder> opticalDuplicateFinders = ThreadLocal.withInitial(
+                    () -> new OpticalDuplicateFinder(READ_NAME_REGEX, OPTICAL_DUPLICATE_PIXEL_DISTANCE, LOG));
+
+            this.reader = readerExecutor.submit(() -> {
+                boolean interrupted = false;
+                try {
+                    long index = 0;
+                    boolean done = false;
+                    while (!done && iterator.hasNext()) {
+                        final ReadEndsBatch batch = new ReadEndsBatch(index);
+                        while (batch.records.size() < READ_ENDS_BATCH_SIZE && iterator.hasNext()) {
+                            final SAMRecord rec = iterator.next();
+                            batch.records.add(rec);
+                            ++index;
+
+                            // No read ends are built from the unmapped reads at the end, so stop reading there,
+                            // unless a scattered run needs them counted, as addReadEnds() does
+                            if (rec.getReadUnmappedFlag() && rec.getReferenceIndex() == -1 && scatteredUnmappedReads == null) {
+                                done = true;
+                                break;
+                            }
+                        }
+
+                        batches.put(workerExecutor.submit(() -> {
+                            final OpticalDuplicateFinder finder = opticalDuplicateFinders.get();
+                            batch.fragmentEnds = new ReadEndsForMarkDuplicates[batch.records.size()];
+                            for (int i = 0; i < batch.records.size(); ++i) {
+                                final SAMRecord rec = batch.records.get(i);
+                                if (hasReadEnds(rec)) {
+                                    batch.fragmentEnds[i] = buildReadEnds(header, batch.firstIndex + i, rec, useBarcodes, finder);
+                                }
+                            }
+                            return batch;
+                        }));
+                    }
+                } catch (final InterruptedException ie) {
+                    interrupted = true;
+                    throw ie;
+                } finally {
+                    // Once close() has interrupted the reader nothing will take the marker, and the queue may be full
+                    if (!interrupted && !Thread.currentThread().isInterrupted()) batches.put(endOfInput);
+                }
+                return null;
+            });
+        }
+
+        /** Returns the next batch in input order, with its read ends computed, or null if there are no more. */
+        ReadEndsBatch next() {
+            try {
+                final Future<ReadEndsBatch> batch = batches.take();
+                if (batch == endOfInput) {
+                    reader.get();
+                    return null;
+                }
+                return batch.get();
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted while waiting for read ends to be computed", ie);
+            } catch (final ExecutionException ee) {
+                final Throwable t = ee.getCause();
+                if (t instanceof Error) throw (Error) t;
+                if (t instanceof RuntimeException) throw (RuntimeException) t;
+                throw new PicardException("Failed computing read ends", t);
+            }
+        }
+
+        /** Stops the reader and worker threads, and waits for the reader so that the input can be closed safely. */
+        void close() {
+            readerExecutor.shutdownNow();
+            workerExecutor.shutdownNow();
+            try {
+                // The reader may be blocked putting a batch onto the full queue if it missed the interrupt, so keep
+                // emptying the queue until it stops
+                final long deadline = System.currentTimeMillis() + READ_ENDS_PIPELINE_CLOSE_TIMEOUT_MILLIS;
+                do {
+                    batches.clear();
+                } while (!readerExecutor.awaitTermination(100, TimeUnit.MILLISECONDS) && System.currentTimeMillis() < deadline);
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted while waiting for the input to stop being read", ie);
+            }
+            if (!readerExecutor.isTerminated()) log.warn("Timed out waiting for the input to stop being read");
+        }
+    }
+
     /**
      * Goes through the accumulated ReadEndsForMarkDuplicates objects and determines which of them are
-     * to be marked as duplicates.
-     *
-     * @return an array with an ordered list of indexes into the source file
+     * to be marked as duplicates.  The indexes into the source file of the duplicates are set in duplicateIndexes,
+     * which takes at most one bit per record, so unlike a sorted list of the indexes it never needs to spill to disk.
      */
     private void generateDuplicateIndexes(final boolean useBarcodes, final boolean indexOpticalDuplicates) {
-        // Keep this number from getting too large even if there is a huge heap.
-        int maxInMemory = (int) Math.min((Runtime.getRuntime().maxMemory() * 0.25) / SortingLongCollection.SIZEOF, (double) (Integer.MAX_VALUE - 5));
-        // If we're also tracking optical duplicates, cut maxInMemory in half, since we'll need two sorting collections
-        if (indexOpticalDuplicates) {
-            maxInMemory /= 2;
-            this.opticalDuplicateIndexes = new SortingLongCollection(maxInMemory, TMP_DIR.toArray(new File[TMP_DIR.size()]));
-        }
-        log.info("Will retain up to " + maxInMemory + " duplicate indices before spilling to disk.");
-        this.duplicateIndexes = new SortingLongCollection(maxInMemory, TMP_DIR.toArray(new File[TMP_DIR.size()]));
-
-        ReadEndsForMarkDuplicates firstOfNextChunk = null;
-        final List<ReadEndsForMarkDuplicates> nextChunk = new ArrayList<ReadEndsForMarkDuplicates>(200);
-
-        // First just do the pairs
-        log.info("Traversing read pair information and detecting duplicates.");
-        for (final ReadEndsForMarkDuplicates next : this.pairSort) {
-            if (firstOfNextChunk == null) {
-                firstOfNextChunk = next;
-                nextChunk.add(firstOfNextChunk);
-            } else if (areComparableForDuplicates(firstOfNextChunk, next, true, useBarcodes)) {
-                nextChunk.add(next);
-            } else {
-                if (nextChunk.size() > 1) {
-                    markDuplicatePairs(nextChunk);
+        if (indexOpticalDuplicates) this.opticalDuplicateIndexes = new CompressedBitSet();
+        this.duplicateIndexes = new CompressedBitSet();
+        phaseMetricsCollector.startPhase("DUPLICATE_DETECTION");
+        long numReadEnds = 0;
+
+        final DuplicateChunkMarker marker = new DuplicateChunkMarker();
+        try {
+            ReadEndsForMarkDuplicates firstOfNextChunk = null;
+            List<ReadEndsForMarkDuplicates> nextChunk = new ArrayList<ReadEndsForMarkDuplicates>(200);
+
+            // First just do the pairs
+            log.info("Traversing read pair information and detecting duplicates.");
+            for (final ReadEndsForMarkDuplicates next : this.pairSort) {
+                ++numReadEnds;
+                if (firstOfNextChunk == null) {
+                    firstOfNextChunk = next;
+                    nextChunk.add(firstOfNextChunk);
+                } else if (areComparableForDuplicates(firstOfNextChunk, next, true, useBarcodes)) {
+                    nextChunk.add(next);
+                } else {
+                    if (nextChunk.size() > 1) {
+                        marker.addPairs(nextChunk);
+                        nextChunk = new ArrayList<ReadEndsForMarkDuplicates>(200);
+                    } else {
+                        nextChunk.clear();
+                    }
+
+                    nextChunk.add(next);
+                    firstOfNextChunk = next;
                 }
+            }
+            if (nextChunk.size() > 1) marker.addPairs(nextChunk);
+            marker.finish();
+            this.pairSort.cleanup();
+            this.pairSort = null;
+
+            // Now deal with the fragments
+            log.info("Traversing fragment information and detecting duplicates.");
+            boolean containsPairs = false;
+            boolean containsFrags = false;
+
+            // The last chunk of pairs may have been handed to the marker, so carry on with a copy of it
+            nextChunk = new ArrayList<ReadEndsForMarkDuplicates>(nextChunk);
+            for (final ReadEndsForMarkDuplicates next : this.fragSort) {
+                ++numReadEnds;
+                if (firstOfNextChunk != null && areComparableForDuplicates(firstOfNextChunk, next, false, useBarcodes)) {
+                    nextChunk.add(next);
+                    containsPairs = containsPairs || next.isPaired();
+                    containsFrags = containsFrags || !next.isPaired();
+                } else {
+                    if (nextChunk.size() > 1 && containsFrags) {
+                        marker.addFragments(nextChunk, containsPairs);
+                        nextChunk = new ArrayList<ReadEndsForMarkDuplicates>(200);
+                    } else {
+                        nextChunk.clear();
+                    }
 
-                nextChunk.clear();
-                nextChunk.add(next);
-                firstOfNextChunk = next;
+                    nextChunk.add(next);
+                    firstOfNextChunk = next;
+                    containsPairs = next.isPaired();
+                    containsFrags = !next.isPaired();
+                }
             }
+            marker.addFragments(nextChunk, containsPairs);
+            marker.finish();
+            this.fragSort.cleanup();
+            this.fragSort = null;
+        } finally {
+            marker.close();
         }
-        if (nextChunk.size() > 1) markDuplicatePairs(nextChunk);
-        this.pairSort.cleanup();
-        this.pairSort = null;
-
-        // Now deal with the fragments
-        log.info("Traversing fragment information and detecting duplicates.");
-        boolean containsPairs = false;
-        boolean containsFrags = false;
-
-        for (final ReadEndsForMarkDuplicates next : this.fragSort) {
-            if (firstOfNextChunk != null && areComparableForDuplicates(firstOfNextChunk, next, false, useBarcodes)) {
-                nextChunk.add(next);
-                containsPairs = containsPairs || next.isPaired();
-                containsFrags = containsFrags || !next.isPaired();
+        phaseMetricsCollector.endPhase(numReadEnds);
+
+        log.info("Duplicate indexes take " + this.duplicateIndexes.getSizeInBytes() + " bytes" +
+                (this.opticalDuplicateIndexes == null ? "." : ", optical duplicate indexes " + this.opticalDuplicateIndexes.getSizeInBytes() + " bytes."));
+    }
+
+    /**
+     * Finds the duplicates within chunks of read ends that are comparable for duplicates, and adds them to the
+     * duplicate index collections.  Chunks are independent of each other, so with NUM_THREADS > 1 batches of them
+     * are marked on worker threads, each into its own {@link DuplicateChunkBatch}, which are then added to the
+     * collections in order on the calling thread.  Otherwise each batch is marked on the calling thread.
+     */
+    private class DuplicateChunkMarker {
+        private final ExecutorService executor = NUM_THREADS > 1 ? Executors.newFixedThreadPool(NUM_THREADS) : null;
+        private final Deque<Future<DuplicateChunkBatch>> pending = new ArrayDeque<Future<DuplicateChunkBatch>>();
+        private DuplicateChunkBatch batch = new DuplicateChunkBatch();
+
+        void addPairs(final List<ReadEndsForMarkDuplicates> chunk) {
+            batch.chunks.add(chunk);
+            batch.containsPairs.add(null);
+            batch.numReadEnds += chunk.size();
+            if (batch.numReadEnds >= DUPLICATE_CHUNK_BATCH_SIZE) submit();
+        }
+
+        void addFragments(final List<ReadEndsForMarkDuplicates> chunk, final boolean containsPairs) {
+            batch.chunks.add(chunk);
+            batch.containsPairs.add(containsPairs);
+            batch.numReadEnds += chunk.size();
+            if (batch.numReadEnds >= DUPLICATE_CHUNK_BATCH_SIZE) submit();
+        }
+
+        /** Waits for every chunk added so far to be marked and added to the duplicate index collections. */
+        void finish() {
+            submit();
+            while (!pending.isEmpty()) addToIndexes(pending.removeFirst());
+        }
+
+        void close() {
+            if (executor != null) executor.shutdownNow();
+        }
+
+        private void submit() {
+            if (batch.chunks.isEmpty()) return;
+            final DuplicateChunkBatch submitted = batch;
+            batch = new DuplicateChunkBatch();
+
+            if (executor == null) {
+                submitted.mark();
+                addToIndexes(submitted);
             } else {
-                if (nextChunk.size() > 1 && containsFrags) {
-                    markDuplicateFragments(nextChunk, containsPairs);
-                }
+                if (pending.size() >= NUM_THREADS * DUPLICATE_CHUNK_BATCHES_PER_THREAD) addToIndexes(pending.removeFirst());
+                pending.addLast(executor.submit(() -> { submitted.mark(); return submitted; }));
+            }
+        }
 
-                nextChunk.clear();
-                nextChunk.add(next);
-                firstOfNextChunk = next;
-                containsPairs = next.isPaired();
-                containsFrags = !next.isPaired();
+        private void addToIndexes(final Future<DuplicateChunkBatch> future) {
+            try {
+                addToIndexes(future.get());
+            } catch (final InterruptedException ie) {
+                throw new PicardException("Interrupted while waiting for duplicates to be found", ie);
+            } catch (final ExecutionException ee) {
+                final Throwable t = ee.getCause();
+                if (t instanceof Error) throw (Error) t;
+                if (t instanceof RuntimeException) throw (RuntimeException) t;
+                throw new PicardException("Failed finding duplicates", t);
             }
         }
-        markDuplicateFragments(nextChunk, containsPairs);
-        this.fragSort.cleanup();
-        this.fragSort = null;
 
-        log.info("Sorting list of duplicate records.");
-        this.duplicateIndexes.doneAddingStartIteration();
-        if (this.opticalDuplicateIndexes != null) this.opticalDuplicateIndexes.doneAddingStartIteration();
+        private void addToIndexes(final DuplicateChunkBatch marked) {
+            for (int i = 0; i < marked.numDuplicateIndexes; ++i) addIndexAsDuplicate(marked.duplicateIndexes[i]);
+            for (int i = 0; i < marked.numOpticalDuplicateIndexes; ++i) opticalDuplicateIndexes.set(marked.opticalDuplicateIndexes[i]);
+            libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap().addHistogram(marked.opticalDuplicatesByLibraryId);
+        }
+    }
+
+    /**
+     * A batch of chunks of read ends, and the duplicates found within them.  Marking a batch only touches the batch
+     * and its read ends, so different batches may be marked on different threads.
+     */
+    private class DuplicateChunkBatch {
+        final List<List<ReadEndsForMarkDuplicates>> chunks = new ArrayList<List<ReadEndsForMarkDuplicates>>();
+        /** For each chunk, null if it is a chunk of pairs, else whether the chunk of fragments also contains pairs. */
+        final List<Boolean> containsPairs = new ArrayList<Boolean>();
+        int numReadEnds = 0;
+
+        long[] duplicateIndexes = new long[16];
+        int numDuplicateIndexes = 0;
+        long[] opticalDuplicateIndexes = new long[16];
+        int numOpticalDuplicateIndexes = 0;
+        final Histogram<Short> opticalDuplicatesByLibraryId = new Histogram<Short>();
+
+        void mark() {
+            for (int i = 0; i < chunks.size(); ++i) {
+                if (containsPairs.get(i) == null) markDuplicatePairs(chunks.get(i), this);
+                else markDuplicateFragments(chunks.get(i), containsPairs.get(i), this);
+            }
+            chunks.clear();
+        }
+
+        void addDuplicate(final long bamIndex) {
+            if (numDuplicateIndexes == duplicateIndexes.length) duplicateIndexes = Arrays.copyOf(duplicateIndexes, numDuplicateIndexes * 2);
+            duplicateIndexes[numDuplicateIndexes++] = bamIndex;
+        }
+
+        void addOpticalDuplicate(final long bamIndex) {
+            if (numOpticalDuplicateIndexes == opticalDuplicateIndexes.length) opticalDuplicateIndexes = Arrays.copyOf(opticalDuplicateIndexes, numOpticalDuplicateIndexes * 2);
+            opticalDuplicateIndexes[numOpticalDuplicateIndexes++] = bamIndex;
+        }
     }
 
     private boolean areComparableForDuplicates(final ReadEndsForMarkDuplicates lhs, final ReadEndsForMarkDuplicates rhs, final boolean compareRead2, final boolean useBarcodes) {
@@ -597,7 +1706,7 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
     }
 
     private void addIndexAsDuplicate(final long bamIndex) {
-        this.duplicateIndexes.add(bamIndex);
+        this.duplicateIndexes.set(bamIndex);
         ++this.numDuplicateIndices;
     }
 
@@ -606,8 +1715,9 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
      * not be marked as duplicates.  This assumes that the list contains objects representing pairs.
      *
      * @param list
+     * @param duplicates where the duplicates found are recorded
      */
-    private void markDuplicatePairs(final List<ReadEndsForMarkDuplicates> list) {
+    private void markDuplicatePairs(final List<ReadEndsForMarkDuplicates> list, final DuplicateChunkBatch duplicates) {
         short maxScore = 0;
         ReadEndsForMarkDuplicates best = null;
 
@@ -620,17 +1730,17 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
         }
 
         if (this.READ_NAME_REGEX != null) {
-            AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(list, best, opticalDuplicateFinder, libraryIdGenerator);
+            AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(list, best, opticalDuplicateFinder, duplicates.opticalDuplicatesByLibraryId);
         }
 
         for (final ReadEndsForMarkDuplicates end : list) {
             if (end != best) {
-                addIndexAsDuplicate(end.read1IndexInFile);
-                addIndexAsDuplicate(end.read2IndexInFile);
+                duplicates.addDuplicate(end.read1IndexInFile);
+                duplicates.addDuplicate(end.read2IndexInFile);
 
                 if (end.isOpticalDuplicate && this.opticalDuplicateIndexes != null) {
-                    this.opticalDuplicateIndexes.add(end.read1IndexInFile);
-                    this.opticalDuplicateIndexes.add(end.read2IndexInFile);
+                    duplicates.addOpticalDuplicate(end.read1IndexInFile);
+                    duplicates.addOpticalDuplicate(end.read2IndexInFile);
                 }
             }
         }
@@ -642,11 +1752,12 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
      *
      * @param list
      * @param containsPairs true if the list also contains objects containing pairs, false otherwise.
+     * @param duplicates where the duplicates found are recorded
      */
-    private void markDuplicateFragments(final List<ReadEndsForMarkDuplicates> list, final boolean containsPairs) {
+    private void markDuplicateFragments(final List<ReadEndsForMarkDuplicates> list, final boolean containsPairs, final DuplicateChunkBatch duplicates) {
         if (containsPairs) {
             for (final ReadEndsForMarkDuplicates end : list) {
-                if (!end.isPaired()) addIndexAsDuplicate(end.read1IndexInFile);
+                if (!end.isPaired()) duplicates.addDuplicate(end.read1IndexInFile);
             }
         } else {
             short maxScore = 0;
@@ -660,7 +1771,7 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
 
             for (final ReadEndsForMarkDuplicates end : list) {
                 if (end != best) {
-                    addIndexAsDuplicate(end.read1IndexInFile);
+                    duplicates.addDuplicate(end.read1IndexInFile);
                 }
             }
         }
@@ -694,8 +1805,8 @@ public class MarkDuplicates extends AbstractMarkDuplicatesCommandLineProgram {
             if (compareDifference == 0) compareDifference = lhs.orientation - rhs.orientation;
             if (compareDifference == 0) compareDifference = lhs.read2ReferenceIndex - rhs.read2ReferenceIndex;
             if (compareDifference == 0) compareDifference = lhs.read2Coordinate - rhs.read2Coordinate;
-            if (compareDifference == 0) compareDifference = (int) (lhs.read1IndexInFile - rhs.read1IndexInFile);
-            if (compareDifference == 0) compareDifference = (int) (lhs.read2IndexInFile - rhs.read2IndexInFile);
+            if (compareDifference == 0) compareDifference = Long.compare(lhs.read1IndexInFile, rhs.read1IndexInFile);
+            if (compareDifference == 0) compareDifference = Long.compare(lhs.read2IndexInFile, rhs.read2IndexInFile);
 
             return compareDifference;
         }
@@ -37,6 +37,8 @@ import htsjdk.samtools.util.CloseableIterator;
 import picard.sam.markduplicates.util.*;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
 import java.util.*;
 
 /**
@@ -123,6 +125,26 @@ public class MarkDuplicatesWithMateCigarIterator implements SAMRecordIterator {
                                                final int maxRecordsInRam,
                                                final int blockSize,
                                                final List<File> tmpDirs) throws PicardException {
+        this(header, iterator, opticalDuplicateFinder, duplicateScoringStrategy, toMarkQueueMinimumDistance, removeDuplicates,
+                skipPairsWithNoMateCigar, maxRecordsInRam, blockSize, tmpDirs, false);
+    }
+
+    /**
+     * Initializes the mark duplicates iterator, as above.
+     *
+     * @param useBucketedMarkQueue true to keep the records to be marked in coordinate buckets rather than TreeSets (see MarkQueue)
+     */
+    public MarkDuplicatesWithMateCigarIterator(final SAMFileHeader header,
+                                               final CloseableIterator<SAMRecord> iterator,
+                                               final OpticalDuplicateFinder opticalDuplicateFinder,
+                                               final ScoringStrategy duplicateScoringStrategy,
+                                               final int toMarkQueueMinimumDistance,
+                                               final boolean removeDuplicates,
+                                               final boolean skipPairsWithNoMateCigar,
+                                               final int maxRecordsInRam,
+                                               final int blockSize,
+                                               final List<File> tmpDirs,
+                                               final boolean useBucketedMarkQueue) throws PicardException {
         if (header.getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
             throw new PicardException(getClass().getName() + " expects the input to be in coordinate sort order.");
         }
@@ -134,7 +156,7 @@ public class MarkDuplicatesWithMateCigarIterator implements SAMRecordIterator {
         this.removeDuplicates = removeDuplicates;
         this.skipPairsWithNoMateCigar = skipPairsWithNoMateCigar;
         this.opticalDuplicateFinder = opticalDuplicateFinder;
-        toMarkQueue = new MarkQueue(duplicateScoringStrategy);
+        toMarkQueue = new MarkQueue(duplicateScoringStrategy, useBucketedMarkQueue);
         libraryIdGenerator = new LibraryIdGenerator(header);
 
         // Check for supported scoring strategies
@@ -159,12 +181,12 @@ public class MarkDuplicatesWithMateCigarIterator implements SAMRecordIterator {
         nextRecord = markDuplicatesAndGetTheNextAvailable(); // get one directly, or null
     }
 
+    /** Logs the heap memory in use, which includes garbage not yet collected, and the sizes of the buffers. */
     public void logMemoryStats(final Log log) {
-        System.gc();
-        final Runtime runtime = Runtime.getRuntime();
-        log.info("freeMemory: " + runtime.freeMemory() +
-                "; totalMemory: " + runtime.totalMemory() +
-                "; maxMemory: " + runtime.maxMemory() +
+        final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        log.info("heap used: " + heap.getUsed() +
+                "; heap committed: " + heap.getCommitted() +
+                "; heap max: " + heap.getMax() +
                 "; output buffer size: " + outputBuffer.size() +
                 "; duplicate queue size: " + toMarkQueue.size()
         );
@@ -35,17 +35,21 @@ import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.Histogram;
 import picard.PicardException;
 import picard.cmdline.Option;
 import picard.cmdline.StandardOptionDefinitions;
 import picard.sam.DuplicationMetrics;
 import picard.sam.util.PhysicalLocation;
+import picard.util.AsyncIterator;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -66,10 +70,24 @@ public abstract class AbstractMarkDuplicatesCommandLineProgram extends AbstractO
             doc = "The output file to write marked records to")
     public File OUTPUT;
 
+    /** The extension added to METRICS_FILE to name the file that phase metrics are written to. */
+    public static final String PHASE_METRICS_EXTENSION = ".phase_metrics";
+
     @Option(shortName = "M",
             doc = "File to write duplication metrics to")
     public File METRICS_FILE;
 
+    @Option(doc = "If true, write the wall time, throughput, spills to disk and heap usage of each phase of the program " +
+            "to a file named as METRICS_FILE with the extension " + PHASE_METRICS_EXTENSION + " added.")
+    public boolean WRITE_PHASE_METRICS = false;
+
+    /** The number of records decoded ahead of those being processed for each input when READ_AHEAD_INPUTS is set. */
+    public static final int READ_AHEAD_RECORDS_PER_INPUT = 2000;
+
+    @Option(doc = "If true, read and decode each input on its own thread, up to " + READ_AHEAD_RECORDS_PER_INPUT + " records " +
+            "ahead of those being processed, so that decompressing and decoding many inputs uses more than one core.")
+    public boolean READ_AHEAD_INPUTS = false;
+
     @Option(doc = "If true do not write duplicates to the output file instead of writing them with appropriate flags set.")
     public boolean REMOVE_DUPLICATES = false;
 
@@ -180,6 +198,20 @@ public abstract class AbstractMarkDuplicatesCommandLineProgram extends AbstractO
         file.write(METRICS_FILE);
     }
 
+    /** The file the phase metrics are written to when WRITE_PHASE_METRICS is set. */
+    protected File getPhaseMetricsFile() {
+        return new File(METRICS_FILE.getPath() + PHASE_METRICS_EXTENSION);
+    }
+
+    /** Writes the metrics of the phases collected to the phase metrics file, if WRITE_PHASE_METRICS is set. */
+    protected void writePhaseMetrics(final PhaseMetricsCollector phaseMetricsCollector) {
+        if (!WRITE_PHASE_METRICS) return;
+
+        final MetricsFile<PhaseMetrics, Integer> file = getMetricsFile();
+        for (final PhaseMetrics metrics : phaseMetricsCollector.getPhases()) file.addMetric(metrics);
+        file.write(getPhaseMetricsFile());
+    }
+
     /** Little class used to package up a header and an iterable/iterator. */
     public static final class SamHeaderAndIterator {
         public final SAMFileHeader header;
@@ -191,12 +223,71 @@ public abstract class AbstractMarkDuplicatesCommandLineProgram extends AbstractO
         }
     }
 
+    /**
+     * True if the program can also mark duplicates in inputs whose records are grouped by query name, which are
+     * then checked for by {@link #isQueryGrouped(SAMFileHeader)}.  Otherwise the inputs must be coordinate sorted.
+     */
+    protected boolean allowsQueryGroupedInput() {
+        return false;
+    }
+
+    /**
+     * True if the header says that the records of each template are together, i.e. the file is sorted or grouped
+     * by query name, and it is not to be assumed coordinate sorted.
+     */
+    protected boolean isQueryGrouped(final SAMFileHeader header) {
+        return !ASSUME_SORTED && (header.getSortOrder() == SAMFileHeader.SortOrder.queryname ||
+                (header.getSortOrder() != SAMFileHeader.SortOrder.coordinate && header.getGroupOrder() == SAMFileHeader.GroupOrder.query));
+    }
+
     /**
      * Since this may read it's inputs more than once this method does all the opening
      * and checking of the inputs.
      */
     protected SamHeaderAndIterator openInputs() {
-        final List<SAMFileHeader> headers = new ArrayList<SAMFileHeader>(INPUT.size());
+        final List<SamReader> readers = openReaders();
+
+        if (readers.size() == 1) {
+            return new SamHeaderAndIterator(readers.get(0).getFileHeader(), openIterator(readers.get(0)));
+        } else {
+            final SamFileHeaderMerger headerMerger = getHeaderMerger(readers);
+            final MergingSamRecordIterator iterator;
+            if (READ_AHEAD_INPUTS) {
+                // Kept in the order of the inputs, so that records that compare equal are merged in the same order as without read ahead
+                final Map<SamReader, CloseableIterator<SAMRecord>> iterators = new LinkedHashMap<SamReader, CloseableIterator<SAMRecord>>();
+                for (final SamReader reader : readers) iterators.put(reader, openIterator(reader));
+                iterator = new MergingSamRecordIterator(headerMerger, iterators, ASSUME_SORTED);
+            } else {
+                iterator = new MergingSamRecordIterator(headerMerger, readers, ASSUME_SORTED);
+            }
+            return new SamHeaderAndIterator(headerMerger.getMergedHeader(), iterator);
+        }
+    }
+
+    /**
+     * Opens only the input at the given position in INPUT, but with the headers of all the inputs merged as
+     * {@link #openInputs()} merges them, so that its records get the read group and program group IDs they would
+     * get if all the inputs were read together.
+     */
+    protected SamHeaderAndIterator openInput(final int inputIndex) {
+        final List<SamReader> readers = openReaders();
+        final SamReader reader = readers.get(inputIndex);
+
+        if (readers.size() == 1) {
+            return new SamHeaderAndIterator(reader.getFileHeader(), openIterator(reader));
+        } else {
+            final SamFileHeaderMerger headerMerger = getHeaderMerger(readers);
+            for (int i = 0; i < readers.size(); ++i) {
+                if (i != inputIndex) CloserUtil.close(readers.get(i));
+            }
+            final MergingSamRecordIterator iterator = new MergingSamRecordIterator(headerMerger,
+                    Collections.singletonMap(reader, openIterator(reader)), ASSUME_SORTED);
+            return new SamHeaderAndIterator(headerMerger.getMergedHeader(), iterator);
+        }
+    }
+
+    /** Opens a reader for each input, checking that they are all sorted or grouped in the same way. */
+    private List<SamReader> openReaders() {
         final List<SamReader> readers = new ArrayList<SamReader>(INPUT.size());
 
         for (final String input : INPUT) {
@@ -205,21 +296,39 @@ public abstract class AbstractMarkDuplicatesCommandLineProgram extends AbstractO
                 .open(SamInputResource.of(input));
             final SAMFileHeader header = reader.getFileHeader();
 
-            if (!ASSUME_SORTED && header.getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
-                throw new PicardException("Input file " + input + " is not coordinate sorted.");
+            if (allowsQueryGroupedInput() && isQueryGrouped(header)) {
+                if (!readers.isEmpty() && !isQueryGrouped(readers.get(0).getFileHeader())) {
+                    throw new PicardException("Input file " + input + " is grouped by query name, but " + INPUT.get(0) + " is not.");
+                }
+                if (INPUT.size() > 1 && header.getSortOrder() != SAMFileHeader.SortOrder.queryname) {
+                    throw new PicardException("Input file " + input + " is grouped but not sorted by query name, so cannot be merged with other inputs.");
+                }
+            } else if (!ASSUME_SORTED && header.getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
+                throw new PicardException("Input file " + input + " is not coordinate sorted" +
+                        (allowsQueryGroupedInput() ? " or grouped by query name." : "."));
+            } else if (allowsQueryGroupedInput() && !readers.isEmpty() && isQueryGrouped(readers.get(0).getFileHeader())) {
+                throw new PicardException("Input file " + input + " is coordinate sorted, but " + INPUT.get(0) + " is grouped by query name.");
             }
 
-            headers.add(header);
             readers.add(reader);
         }
+        return readers;
+    }
 
-        if (headers.size() == 1) {
-            return new SamHeaderAndIterator(headers.get(0), readers.get(0).iterator());
-        } else {
-            final SamFileHeaderMerger headerMerger = new SamFileHeaderMerger(SAMFileHeader.SortOrder.coordinate, headers, false);
-            final MergingSamRecordIterator iterator = new MergingSamRecordIterator(headerMerger, readers, ASSUME_SORTED);
-            return new SamHeaderAndIterator(headerMerger.getMergedHeader(), iterator);
-        }
+    /** Merges the headers of the readers, which must have been checked by {@link #openReaders()}. */
+    private SamFileHeaderMerger getHeaderMerger(final List<SamReader> readers) {
+        final List<SAMFileHeader> headers = new ArrayList<SAMFileHeader>(readers.size());
+        for (final SamReader reader : readers) headers.add(reader.getFileHeader());
+        final SAMFileHeader.SortOrder sortOrder = allowsQueryGroupedInput() && isQueryGrouped(headers.get(0))
+                ? SAMFileHeader.SortOrder.queryname
+                : SAMFileHeader.SortOrder.coordinate;
+        return new SamFileHeaderMerger(sortOrder, headers, false);
+    }
+
+    /** Opens an iterator over the records of the reader, which reads ahead on another thread if READ_AHEAD_INPUTS is set. */
+    private CloseableIterator<SAMRecord> openIterator(final SamReader reader) {
+        if (!READ_AHEAD_INPUTS) return reader.iterator();
+        return new AsyncIterator<SAMRecord>(reader.iterator(), READ_AHEAD_RECORDS_PER_INPUT, getClass().getSimpleName() + "ReadAhead");
     }
 
     /**
@@ -232,6 +341,20 @@ public abstract class AbstractMarkDuplicatesCommandLineProgram extends AbstractO
                                               final ReadEnds keeper,
                                               final OpticalDuplicateFinder opticalDuplicateFinder,
                                               final LibraryIdGenerator libraryIdGenerator) {
+        trackOpticalDuplicates(ends, keeper, opticalDuplicateFinder, libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap());
+    }
+
+    /**
+     * Looks through the set of reads and identifies how many of the duplicates are
+     * in fact optical duplicates, and adds them to the given histogram by library ID.
+     * Additionally sets the transient isOpticalDuplicate flag on each read end that is
+     * identified as an optical duplicate.  Only touches the read ends and the histogram,
+     * so may be called on different threads for different histograms.
+     */
+    public static void trackOpticalDuplicates(List<? extends ReadEnds> ends,
+                                              final ReadEnds keeper,
+                                              final OpticalDuplicateFinder opticalDuplicateFinder,
+                                              final Histogram<Short> opticalDuplicatesByLibraryId) {
         boolean hasFR = false, hasRF = false;
 
         // Check to see if we have a mixture of FR/RF
@@ -261,10 +384,10 @@ public abstract class AbstractMarkDuplicatesCommandLineProgram extends AbstractO
             }
 
             // track the duplicates
-            trackOpticalDuplicates(trackOpticalDuplicatesF, keeper, opticalDuplicateFinder, libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap());
-            trackOpticalDuplicates(trackOpticalDuplicatesR, keeper, opticalDuplicateFinder, libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap());
+            trackOpticalDuplicatesWithOneOrientation(trackOpticalDuplicatesF, keeper, opticalDuplicateFinder, opticalDuplicatesByLibraryId);
+            trackOpticalDuplicatesWithOneOrientation(trackOpticalDuplicatesR, keeper, opticalDuplicateFinder, opticalDuplicatesByLibraryId);
         } else { // No need to partition
-            AbstractMarkDuplicatesCommandLineProgram.trackOpticalDuplicates(ends, keeper, opticalDuplicateFinder, libraryIdGenerator.getOpticalDuplicatesByLibraryIdMap());
+            trackOpticalDuplicatesWithOneOrientation(ends, keeper, opticalDuplicateFinder, opticalDuplicatesByLibraryId);
         }
     }
 
@@ -278,10 +401,10 @@ public abstract class AbstractMarkDuplicatesCommandLineProgram extends AbstractO
      * optical duplicate detection, we do not consider them duplicates if one read as FR and the other RF when we order orientation by the
      * first mate sequenced (read #1 of the pair).
      */
-    private static void trackOpticalDuplicates(final List<? extends ReadEnds> list,
-                                               final ReadEnds keeper,
-                                               final OpticalDuplicateFinder opticalDuplicateFinder,
-                                               final Histogram<Short> opticalDuplicatesByLibraryId) {
+    private static void trackOpticalDuplicatesWithOneOrientation(final List<? extends ReadEnds> list,
+                                                                 final ReadEnds keeper,
+                                                                 final OpticalDuplicateFinder opticalDuplicateFinder,
+                                                                 final Histogram<Short> opticalDuplicatesByLibraryId) {
         final boolean[] opticalDuplicateFlags = opticalDuplicateFinder.findOpticalDuplicates(list, keeper);
 
         int opticalDuplicates = 0;
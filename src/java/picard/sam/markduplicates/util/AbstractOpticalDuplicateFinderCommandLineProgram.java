@@ -43,6 +43,10 @@ public abstract class AbstractOpticalDuplicateFinderCommandLineProgram extends C
             "Set this option to null to disable optical duplicate detection. " +
             "The regular expression should contain three capture groups for the three variables, in order. " +
             "It must match the entire read name. " +
+            "Regexes that split the read name on one character, such as (?:.*:)?([0-9]+)[^:]*:([0-9]+)[^:]*:([0-9]+)[^:]*$, " +
+            "are parsed without a regex match.  A template may also be given instead of a regex, in the form " +
+            "\"[after 'C'] split 'D' [signed] fields I,J,K\", which takes the tile, x and y from fields I, J and K " +
+            "(numbered from 1, or from -1 at the end) of the read name, or of the part after its last C, split on D. " +
             "Note that if the default regex is specified, a regex match is not actually done, but instead the read name " +
             " is split on colon character. " +
             "For 5 element names, the 3rd, 4th and 5th elements are assumed to be tile, x and y values. " +
@@ -0,0 +1,276 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import picard.PicardException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The read ends of a {@link MarkQueue}, kept in a sliding window of buckets, one for each 5' coordinate from that of
+ * the first read ends in the set to that of the last.  Each bucket keeps its read ends in an array sorted by
+ * MarkQueueComparator, so finding, adding or removing read ends only looks at those at the same coordinate, rather
+ * than rebalancing a tree of everything in the queue as a TreeSet does.  Read ends are taken from the front of the
+ * window, and the window moves on once the first bucket is empty, so the buckets behind it are dropped in constant time.
+ * <p/>
+ * The window is a ring of buckets that is doubled when read ends are added outside of it, so holds read ends added in
+ * any order.  It takes memory in proportion to the distance between the first and last coordinate in it, which the
+ * mark queue keeps to about its minimum distance plus the length of a read.  There is a window for each reference
+ * with read ends in the set, which is usually one, or two while moving from one reference to the next.
+ * <p/>
+ * Read ends are ordered by reference and coordinate, then by MarkQueueComparator, so unlike in a TreeSet ordered by
+ * MarkQueueComparator, the read ends of every library come out in coordinate order.
+ */
+class CoordinateBucketedReadEndsSet implements MarkQueue.ReadEndsSet {
+    private final Comparator<ReadEndsForMateCigar> comparator = new MarkQueue.MarkQueueComparator();
+
+    /** The windows of the references with read ends in this set, in order of reference. */
+    private final List<Window> windows = new ArrayList<Window>();
+
+    /** The window last emptied, kept to reuse its buckets for the next reference. */
+    private Window spareWindow = null;
+
+    private int size = 0;
+
+    public boolean add(final ReadEndsForMateCigar readEnds) {
+        Window window = getWindow(readEnds.read1ReferenceIndex);
+        if (null == window) {
+            window = (null != spareWindow) ? spareWindow : new Window();
+            spareWindow = null;
+            window.referenceIndex = readEnds.read1ReferenceIndex;
+            int index = 0;
+            while (index < windows.size() && windows.get(index).referenceIndex < window.referenceIndex) ++index;
+            windows.add(index, window);
+        }
+        if (!window.add(readEnds, comparator)) return false;
+        ++size;
+        return true;
+    }
+
+    public ReadEndsForMateCigar get(final ReadEndsForMateCigar readEnds) {
+        final Window window = getWindow(readEnds.read1ReferenceIndex);
+        if (null == window) return null;
+        final Bucket bucket = window.getBucket(readEnds.read1Coordinate);
+        if (null == bucket) return null;
+        final int position = bucket.find(readEnds, comparator);
+        return position < 0 ? null : bucket.readEnds[position];
+    }
+
+    public ReadEndsForMateCigar remove(final ReadEndsForMateCigar readEnds) {
+        final Window window = getWindow(readEnds.read1ReferenceIndex);
+        if (null == window) return null;
+        final Bucket bucket = window.getBucket(readEnds.read1Coordinate);
+        if (null == bucket) return null;
+        final int position = bucket.find(readEnds, comparator);
+        if (position < 0) return null;
+        return removeAt(window, bucket, position);
+    }
+
+    public ReadEndsForMateCigar first() {
+        if (0 == size) throw new NoSuchElementException();
+        final Bucket bucket = windows.get(0).getFirstBucket();
+        return bucket.readEnds[bucket.start];
+    }
+
+    public ReadEndsForMateCigar pollFirst() {
+        if (0 == size) return null;
+        final Window window = windows.get(0);
+        final Bucket bucket = window.getFirstBucket();
+        return removeAt(window, bucket, bucket.start);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private Window getWindow(final int referenceIndex) {
+        for (final Window window : windows) {
+            if (window.referenceIndex == referenceIndex) return window;
+        }
+        return null;
+    }
+
+    private ReadEndsForMateCigar removeAt(final Window window, final Bucket bucket, final int position) {
+        final ReadEndsForMateCigar removed = bucket.remove(position);
+        --size;
+        if (window.removed()) {
+            windows.remove(window);
+            spareWindow = window;
+        }
+        return removed;
+    }
+
+    /** The buckets for the read ends on one reference, as a ring of which windowSize buckets from first are in use. */
+    private static class Window {
+        private static final int INITIAL_CAPACITY = 1024;
+
+        /** The ring of buckets, whose length is a power of two.  Buckets are created when first needed and then reused. */
+        private Bucket[] buckets = new Bucket[INITIAL_CAPACITY];
+
+        /** The index in buckets of the bucket for firstCoordinate, which is not empty unless the window is. */
+        private int first = 0;
+
+        /** The number of buckets in the window, from the first bucket to the last that was added to. */
+        private int windowSize = 0;
+
+        private int referenceIndex = -1;
+        private int firstCoordinate = 0;
+        private int size = 0;
+
+        boolean add(final ReadEndsForMateCigar readEnds, final Comparator<ReadEndsForMateCigar> comparator) {
+            if (0 == size) {
+                windowSize = 0;
+                firstCoordinate = readEnds.read1Coordinate;
+            }
+
+            // Move the window to cover the coordinate
+            final long offset = (long) readEnds.read1Coordinate - firstCoordinate;
+            if (offset < 0) {
+                ensureCapacity(windowSize - offset);
+                first = (first + (int) offset) & (buckets.length - 1);
+                firstCoordinate = readEnds.read1Coordinate;
+                windowSize -= offset;
+            } else if (offset >= windowSize) {
+                ensureCapacity(offset + 1);
+                windowSize = (int) offset + 1;
+            }
+
+            final int index = (first + (int) Math.max(offset, 0)) & (buckets.length - 1);
+            if (null == buckets[index]) buckets[index] = new Bucket();
+            if (!buckets[index].add(readEnds, comparator)) return false;
+            ++size;
+            return true;
+        }
+
+        Bucket getFirstBucket() {
+            return buckets[first];
+        }
+
+        /** Returns the bucket for the coordinate, or null if it is outside the window or was never created. */
+        Bucket getBucket(final int coordinate) {
+            final long offset = (long) coordinate - firstCoordinate;
+            if (0 == size || offset < 0 || offset >= windowSize) return null;
+            return buckets[(first + (int) offset) & (buckets.length - 1)];
+        }
+
+        /** Updates the window after read ends are removed from one of its buckets, returning true if it is now empty. */
+        boolean removed() {
+            if (0 == --size) {
+                windowSize = 0;
+                return true;
+            }
+            // Drop the empty buckets from the front of the window
+            while (null == buckets[first] || buckets[first].isEmpty()) {
+                first = (first + 1) & (buckets.length - 1);
+                ++firstCoordinate;
+                --windowSize;
+            }
+            return false;
+        }
+
+        /** Grows the ring, if need be, to hold a window of the given number of buckets. */
+        private void ensureCapacity(final long capacity) {
+            if (capacity <= buckets.length) return;
+            if (capacity > 1 << 30) throw new PicardException("Read ends in a mark queue span too many bases: " + capacity);
+
+            // Unroll the ring from the first bucket, keeping the empty buckets outside the window for reuse
+            final Bucket[] newBuckets = new Bucket[Integer.highestOneBit((int) capacity - 1) << 1];
+            System.arraycopy(buckets, first, newBuckets, 0, buckets.length - first);
+            System.arraycopy(buckets, 0, newBuckets, buckets.length - first, first);
+            buckets = newBuckets;
+            first = 0;
+        }
+    }
+
+    /** The read ends at one coordinate, sorted by MarkQueueComparator, in readEnds[start] to readEnds[end - 1]. */
+    private static class Bucket {
+        private static final int INITIAL_LENGTH = 4;
+
+        /** Buckets emptied after growing past this length give up their array, so that deep loci do not hold on to memory. */
+        private static final int MAX_RETAINED_LENGTH = 64;
+
+        private ReadEndsForMateCigar[] readEnds = new ReadEndsForMateCigar[INITIAL_LENGTH];
+        private int start = 0;
+        private int end = 0;
+
+        boolean isEmpty() {
+            return start == end;
+        }
+
+        /** Returns the position of the read ends comparing equal to the given ones, or (-(insertion point) - 1). */
+        int find(final ReadEndsForMateCigar key, final Comparator<ReadEndsForMateCigar> comparator) {
+            int low = start;
+            int high = end - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int cmp = comparator.compare(readEnds[mid], key);
+                if (cmp < 0) low = mid + 1;
+                else if (cmp > 0) high = mid - 1;
+                else return mid;
+            }
+            return -(low + 1);
+        }
+
+        boolean add(final ReadEndsForMateCigar added, final Comparator<ReadEndsForMateCigar> comparator) {
+            int position = find(added, comparator);
+            if (position >= 0) return false;
+            position = -position - 1;
+
+            if (end == readEnds.length) {
+                // Move the read ends back to the start of the array if there is room there, otherwise grow it
+                final ReadEndsForMateCigar[] newReadEnds = (start > readEnds.length / 2) ? readEnds : new ReadEndsForMateCigar[readEnds.length * 2];
+                System.arraycopy(readEnds, start, newReadEnds, 0, end - start);
+                if (newReadEnds == readEnds) Arrays.fill(readEnds, end - start, end, null);
+                readEnds = newReadEnds;
+                position -= start;
+                end -= start;
+                start = 0;
+            }
+            System.arraycopy(readEnds, position, readEnds, position + 1, end - position);
+            readEnds[position] = added;
+            ++end;
+            return true;
+        }
+
+        ReadEndsForMateCigar remove(final int position) {
+            final ReadEndsForMateCigar removed = readEnds[position];
+            if (position == start) {
+                // Taking from the front, as the mark queue does when polling, does not move the others
+                readEnds[start++] = null;
+            } else {
+                System.arraycopy(readEnds, position + 1, readEnds, position, end - position - 1);
+                readEnds[--end] = null;
+            }
+            if (start == end) {
+                start = end = 0;
+                if (readEnds.length > MAX_RETAINED_LENGTH) readEnds = new ReadEndsForMateCigar[INITIAL_LENGTH];
+            }
+            return removed;
+        }
+    }
+}
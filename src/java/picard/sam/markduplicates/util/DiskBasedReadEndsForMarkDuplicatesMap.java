@@ -25,6 +25,7 @@ package picard.sam.markduplicates.util;
 
 import picard.PicardException;
 import htsjdk.samtools.CoordinateSortedPairInfoMap;
+import htsjdk.samtools.util.CloseableIterator;
 
 import java.io.*;
 import java.util.*;
@@ -73,6 +74,11 @@ public class DiskBasedReadEndsForMarkDuplicatesMap implements ReadEndsForMarkDup
         return pairInfoMap.sizeInRam();
     }
 
+    /** Iterates over the keys and read ends left in the map.  Nothing may be put in or removed from the map after this. */
+    public CloseableIterator<Map.Entry<String, ReadEndsForMarkDuplicates>> iterator() {
+        return pairInfoMap.iterator();
+    }
+
     private static class Codec implements CoordinateSortedPairInfoMap.Codec<String, ReadEndsForMarkDuplicates> {
         private final ReadEndsForMarkDuplicatesCodec readEndsForMarkDuplicatesCodec;
 
@@ -0,0 +1,315 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.SortingCollection;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A map from read name to a record of the first read of a pair seen, for finding it again when the mate is read,
+ * in the manner of htsjdk's CoordinateSortedPairInfoMap.  It keeps only a 128-bit hash of each key, rather than the key
+ * itself, in a primitive open-addressing table per mate reference sequence.  Two keys are only ever confused if both
+ * halves of their hashes are equal, which for two different keys is vanishingly unlikely; keys whose first halves
+ * are equal are counted and reported by {@link #getNumHashCollisions()}.
+ * <p/>
+ * Everything is kept in RAM until more than maxRecordsInRam elements are stored.  Then the tables of the highest
+ * reference sequences, other than the sequence most recently removed from, are appended to a spill file per
+ * sequence until the limit is met again.  A spill file is read back in and deleted the next time remove() is called
+ * for its sequence.  Only one spill file is open at a time, so no more than one file handle is ever used.
+ */
+public class HashedPairInfoMap<REC> {
+    private static final int MIN_CAPACITY = 16;
+
+    private final int maxRecordsInRam;
+    private final SortingCollection.Codec<REC> codec;
+    private final File tmpDir;
+
+    /** Index of this list is the mate sequence index. */
+    private final List<Table> tables = new ArrayList<Table>();
+    private int sizeInRam = 0;
+    private int sizeOnDisk = 0;
+    private int currentSequenceIndex = -1;
+
+    // Statistics about the hashing
+    private long numProbes = 0;
+    private long numLookups = 0;
+    private int maxProbeLength = 0;
+    private long numHashCollisions = 0;
+    private long numSpills = 0;
+
+    /**
+     * @param maxRecordsInRam the number of elements to keep in RAM before spilling to disk
+     * @param codec used to write and read back the spilled elements
+     * @param tmpDir the directory to write spill files to
+     */
+    public HashedPairInfoMap(final int maxRecordsInRam, final SortingCollection.Codec<REC> codec, final File tmpDir) {
+        this.maxRecordsInRam = maxRecordsInRam;
+        this.codec = codec;
+        this.tmpDir = tmpDir;
+    }
+
+    /** Removes and returns the record put for the key with the given mate sequence index, or null if there is none. */
+    public REC remove(final int mateSequenceIndex, final String key) {
+        if (mateSequenceIndex >= tables.size()) {
+            return null;
+        }
+        currentSequenceIndex = mateSequenceIndex;
+        final Table table = tables.get(mateSequenceIndex);
+        if (table.spillFile != null) readBack(table);
+
+        final REC record = table.remove(hash1(key), hash2(key));
+        if (record != null) --sizeInRam;
+        return record;
+    }
+
+    /** Puts a record for the key, to be removed when the mate is read from the given mate sequence index. */
+    public void put(final int mateSequenceIndex, final String key, final REC record) {
+        while (mateSequenceIndex >= tables.size()) {
+            tables.add(new Table());
+        }
+        tables.get(mateSequenceIndex).put(hash1(key), hash2(key), record);
+        if (++sizeInRam > maxRecordsInRam) spill();
+    }
+
+    public int size() {
+        return sizeInRam + sizeOnDisk;
+    }
+
+    public int sizeInRam() {
+        return sizeInRam;
+    }
+
+    /** The number of times two different keys with the same first 64 bits of hash were stored at the same time. */
+    public long getNumHashCollisions() { return numHashCollisions; }
+
+    /** The average number of slots looked at to put or remove a key. */
+    public double getMeanProbeLength() { return numLookups == 0 ? 0 : numProbes / (double) numLookups; }
+
+    /** The largest number of slots looked at to put or remove a key. */
+    public int getMaxProbeLength() { return maxProbeLength; }
+
+    /** The number of times a sequence's elements were written to disk. */
+    public long getNumSpills() { return numSpills; }
+
+    /** Writes out the tables of the highest sequences other than the current one until the limit is met again. */
+    private void spill() {
+        for (int i = tables.size() - 1; i >= 0 && sizeInRam > maxRecordsInRam; --i) {
+            final Table table = tables.get(i);
+            if (i == currentSequenceIndex || table.size == 0) continue;
+
+            DataOutputStream out = null;
+            try {
+                if (table.spillFile == null) {
+                    table.spillFile = File.createTempFile("PairInfoMap.", ".tmp", tmpDir);
+                    table.spillFile.deleteOnExit();
+                }
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(table.spillFile, true), Defaults.BUFFER_SIZE));
+                codec.setOutputStream(out);
+                for (int slot = 0; slot < table.values.length; ++slot) {
+                    if (table.values[slot] == null) continue;
+                    out.writeLong(table.hash1s[slot]);
+                    out.writeLong(table.hash2s[slot]);
+                    codec.encode(table.getValue(slot));
+                }
+                out.flush();
+            } catch (final IOException ioe) {
+                throw new PicardException("Error spilling pair info map to disk.", ioe);
+            } finally {
+                CloserUtil.close(out);
+            }
+
+            sizeInRam -= table.size;
+            sizeOnDisk += table.size;
+            table.numSpilled += table.size;
+            table.clear();
+            ++numSpills;
+        }
+    }
+
+    /** Reads the spilled elements of a sequence back into its table, and deletes the spill file. */
+    private void readBack(final Table table) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(table.spillFile), Defaults.BUFFER_SIZE));
+            codec.setInputStream(in);
+            while (true) {
+                final long hash1;
+                try {
+                    hash1 = in.readLong();
+                } catch (final EOFException eof) {
+                    break;
+                }
+                final long hash2 = in.readLong();
+                table.put(hash1, hash2, codec.decode());
+            }
+        } catch (final IOException ioe) {
+            throw new PicardException("Error loading pair info map from disk", ioe);
+        } finally {
+            CloserUtil.close(in);
+        }
+
+        sizeInRam += table.numSpilled;
+        sizeOnDisk -= table.numSpilled;
+        table.numSpilled = 0;
+        IOUtil.deleteFiles(table.spillFile);
+        table.spillFile = null;
+    }
+
+    /** FNV-1a over the characters of the key, with a final avalanche. */
+    static long hash1(final String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); ++i) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /** A polynomial hash of the key with a different multiplier, and the length, so that it is independent of hash1. */
+    static long hash2(final String key) {
+        long hash = key.length();
+        for (int i = 0; i < key.length(); ++i) {
+            hash = hash * 0x9e3779b97f4a7c15L + key.charAt(i);
+        }
+        return mix(hash);
+    }
+
+    /** The finalizer of SplitMix64, which makes every bit of the output depend on every bit of the input. */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /** Linear probing table from the two halves of a key's hash to its record.  A null value marks an empty slot. */
+    private class Table {
+        long[] hash1s = new long[MIN_CAPACITY];
+        long[] hash2s = new long[MIN_CAPACITY];
+        Object[] values = new Object[MIN_CAPACITY];
+        int size = 0;
+        File spillFile = null;
+        int numSpilled = 0;
+
+        @SuppressWarnings("unchecked")
+        REC getValue(final int slot) {
+            return (REC) values[slot];
+        }
+
+        void put(final long hash1, final long hash2, final REC record) {
+            if ((size + 1) * 2 > values.length) resize(values.length * 2);
+
+            final int mask = values.length - 1;
+            int slot = (int) hash1 & mask;
+            int probes = 1;
+            while (values[slot] != null) {
+                if (hash1s[slot] == hash1 && hash2s[slot] != hash2) ++numHashCollisions;
+                slot = (slot + 1) & mask;
+                ++probes;
+            }
+            hash1s[slot] = hash1;
+            hash2s[slot] = hash2;
+            values[slot] = record;
+            ++size;
+            recordProbes(probes);
+        }
+
+        REC remove(final long hash1, final long hash2) {
+            final int mask = values.length - 1;
+            int slot = (int) hash1 & mask;
+            int probes = 1;
+            while (values[slot] != null && (hash1s[slot] != hash1 || hash2s[slot] != hash2)) {
+                slot = (slot + 1) & mask;
+                ++probes;
+            }
+            recordProbes(probes);
+
+            final REC record = getValue(slot);
+            if (record == null) return null;
+
+            // Shift back any later elements of the run that would no longer be found past the emptied slot
+            int empty = slot;
+            for (int next = (empty + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+                final int home = (int) hash1s[next] & mask;
+                final boolean homeIsOutsideGap = (empty <= next) ? (home <= empty || home > next) : (home <= empty && home > next);
+                if (homeIsOutsideGap) {
+                    hash1s[empty] = hash1s[next];
+                    hash2s[empty] = hash2s[next];
+                    values[empty] = values[next];
+                    empty = next;
+                }
+            }
+            values[empty] = null;
+
+            if (--size * 8 < values.length && values.length > MIN_CAPACITY) resize(values.length / 2);
+            return record;
+        }
+
+        void clear() {
+            hash1s = new long[MIN_CAPACITY];
+            hash2s = new long[MIN_CAPACITY];
+            values = new Object[MIN_CAPACITY];
+            size = 0;
+        }
+
+        private void resize(final int capacity) {
+            final long[] oldHash1s = hash1s;
+            final long[] oldHash2s = hash2s;
+            final Object[] oldValues = values;
+            hash1s = new long[capacity];
+            hash2s = new long[capacity];
+            values = new Object[capacity];
+
+            final int mask = capacity - 1;
+            for (int i = 0; i < oldValues.length; ++i) {
+                if (oldValues[i] == null) continue;
+                int slot = (int) oldHash1s[i] & mask;
+                while (values[slot] != null) slot = (slot + 1) & mask;
+                hash1s[slot] = oldHash1s[i];
+                hash2s[slot] = oldHash2s[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void recordProbes(final int probes) {
+        numProbes += probes;
+        ++numLookups;
+        if (probes > maxProbeLength) maxProbeLength = probes;
+    }
+}
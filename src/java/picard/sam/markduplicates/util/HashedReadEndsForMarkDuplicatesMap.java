@@ -0,0 +1,43 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import java.io.File;
+
+/**
+ * Implementation of ReadEndsForMarkDuplicatesMap that keeps only a 128-bit hash of each key, rather than the key
+ * itself, in a primitive open-addressing table per mate reference sequence, spilling the tables of the highest
+ * sequences to disk when there are more than maxRecordsInRam elements.  See {@link HashedPairInfoMap}.
+ */
+public class HashedReadEndsForMarkDuplicatesMap extends HashedPairInfoMap<ReadEndsForMarkDuplicates> implements ReadEndsForMarkDuplicatesMap {
+
+    /**
+     * @param maxRecordsInRam the number of elements to keep in RAM before spilling to disk
+     * @param codec used to write and read back the spilled elements
+     * @param tmpDir the directory to write spill files to
+     */
+    public HashedReadEndsForMarkDuplicatesMap(final int maxRecordsInRam, final ReadEndsForMarkDuplicatesCodec codec, final File tmpDir) {
+        super(maxRecordsInRam, codec, tmpDir);
+    }
+}
@@ -73,8 +73,11 @@ public class LibraryIdGenerator {
      * returned.
      */
     public static String getLibraryName(final SAMFileHeader header, final SAMRecord rec) {
-        final String readGroupId = (String) rec.getAttribute("RG");
+        return getLibraryName(header, (String) rec.getAttribute("RG"));
+    }
 
+    /** Gets the library name from the header for the read group with the given ID, which may be null. */
+    public static String getLibraryName(final SAMFileHeader header, final String readGroupId) {
         if (readGroupId != null) {
             final SAMReadGroupRecord rg = header.getReadGroup(readGroupId);
             if (rg != null) {
@@ -88,7 +91,11 @@ public class LibraryIdGenerator {
 
     /** Get the library ID for the given SAM record. */
     public short getLibraryId(final SAMRecord rec) {
-        final String library = getLibraryName(this.header, rec);
+        return getLibraryId(getLibraryName(this.header, rec));
+    }
+
+    /** Get the library ID for the given library name, handing out the next ID if it has not been seen before. */
+    public short getLibraryId(final String library) {
         Short libraryId = this.libraryIds.get(library);
 
         if (libraryId == null) {
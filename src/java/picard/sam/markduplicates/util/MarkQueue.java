@@ -35,7 +35,6 @@ import htsjdk.samtools.DuplicateScoringStrategy.ScoringStrategy;
 
 import java.util.Comparator;
 import java.util.Set;
-import java.util.SortedSet;
 import java.util.TreeSet;
 
 /**
@@ -44,6 +43,9 @@ import java.util.TreeSet;
  * This stores a current nonDuplicateReadEndsSet of read ends that need to be duplicate marked.  It only stores internally the "best" read end for a given
  * possible duplicate location, preferring to perform duplicate marking as read ends come in, rather than wait for all "comparable"
  * read ends to arrive.  This reduces the memory footprint of this data structure.
+ * <p/>
+ * The read ends are kept either in TreeSets, or in a {@link CoordinateBucketedReadEndsSet}, which is much cheaper to
+ * add to and remove from at loci with a high depth of coverage.  Both give the same duplicate marking.
  */
 public class MarkQueue {
 
@@ -51,7 +53,7 @@ public class MarkQueue {
      * Comparator to order the mark queue nonDuplicateReadEndsSet.  The nonDuplicateReadEndsSet of all the read ends that are compared to be the same should
      * be used for duplicate marking.
      */
-    private class MarkQueueComparator implements Comparator<ReadEndsForMateCigar> {
+    static class MarkQueueComparator implements Comparator<ReadEndsForMateCigar> {
         public int compare(final ReadEndsForMateCigar lhs, final ReadEndsForMateCigar rhs) {
             int retval = lhs.libraryId - rhs.libraryId;
             if (retval == 0) retval = lhs.read1ReferenceIndex - rhs.read1ReferenceIndex;
@@ -100,6 +102,54 @@ public class MarkQueue {
         }
     }
 
+    /**
+     * The read ends kept by a mark queue, of which there is at most one for each value of MarkQueueComparator.  Read
+     * ends at the same 5' position are ordered as MarkQueueComparator orders them, so that pairs come before fragments.
+     */
+    interface ReadEndsSet {
+        /** Adds the read ends, unless the set already has read ends that compare equal to them.  Returns true if added. */
+        boolean add(ReadEndsForMateCigar readEnds);
+
+        /** Returns the read ends in this set that compare equal to the given ones, or null if there are none. */
+        ReadEndsForMateCigar get(ReadEndsForMateCigar readEnds);
+
+        /** Removes and returns the read ends in this set that compare equal to the given ones, or null if there are none. */
+        ReadEndsForMateCigar remove(ReadEndsForMateCigar readEnds);
+
+        /** Returns the first read ends in this set, throwing NoSuchElementException if it is empty. */
+        ReadEndsForMateCigar first();
+
+        /** Removes and returns the first read ends in this set, or null if it is empty. */
+        ReadEndsForMateCigar pollFirst();
+
+        int size();
+    }
+
+    /** Keeps the read ends in a TreeSet ordered by MarkQueueComparator, so ordered by library before position. */
+    static class TreeReadEndsSet implements ReadEndsSet {
+        private final Comparator<ReadEndsForMateCigar> comparator = new MarkQueueComparator();
+        private final TreeSet<ReadEndsForMateCigar> set = new TreeSet<ReadEndsForMateCigar>(comparator);
+
+        public boolean add(final ReadEndsForMateCigar readEnds) { return set.add(readEnds); }
+
+        public ReadEndsForMateCigar get(final ReadEndsForMateCigar readEnds) {
+            final ReadEndsForMateCigar ceiling = set.ceiling(readEnds);
+            return (null != ceiling && 0 == comparator.compare(ceiling, readEnds)) ? ceiling : null;
+        }
+
+        public ReadEndsForMateCigar remove(final ReadEndsForMateCigar readEnds) {
+            final ReadEndsForMateCigar existing = get(readEnds);
+            if (null != existing) set.remove(existing);
+            return existing;
+        }
+
+        public ReadEndsForMateCigar first() { return set.first(); }
+
+        public ReadEndsForMateCigar pollFirst() { return set.pollFirst(); }
+
+        public int size() { return set.size(); }
+    }
+
     /** The genomic distance needed to assure that we have considered all reads for duplicate marking. */
     private int toMarkQueueMinimumDistance = -1;
 
@@ -107,14 +157,14 @@ public class MarkQueue {
     private int numDuplicates = 0;
 
     /** The nonDuplicateReadEndsSet of all read ends sorted by 5' start unclipped position.  Some read ends in this nonDuplicateReadEndsSet may eventually be duplicates. */
-    private final TreeSet<ReadEndsForMateCigar> nonDuplicateReadEndsSet = new TreeSet<ReadEndsForMateCigar>(new MarkQueueComparator());
+    private final ReadEndsSet nonDuplicateReadEndsSet;
 
     /**
      * Reads in the main nonDuplicateReadEndsSet may occasionally have mates with the same chromosome, coordinate, and orientation, causing collisions
      * We store the 'best' end of the mate pair in the main nonDuplicateReadEndsSet, and the other end in this nonDuplicateReadEndsSet.  We only remove from this.otherEndOfNonDuplicateReadEndsSet when
      * we remove something from this.nonDuplicateReadEndsSet.
      */
-    private final TreeSet<ReadEndsForMateCigar> otherEndOfNonDuplicateReadEndsSet = new TreeSet<ReadEndsForMateCigar>(new MarkQueueComparator());
+    private final ReadEndsSet otherEndOfNonDuplicateReadEndsSet;
 
     /**
      * If we have two items that are the same with respect to being in the "nonDuplicateReadEndsSet", then we must choose one.  The "one" will
@@ -126,7 +176,21 @@ public class MarkQueue {
     private ReadEndsForMateCigar tmpReadEnds = null;
 
     public MarkQueue(final ScoringStrategy duplicateScoringStrategy) {
+        this(duplicateScoringStrategy, false);
+    }
+
+    /**
+     * @param useCoordinateBuckets true to keep the read ends in {@link CoordinateBucketedReadEndsSet}s rather than TreeSets
+     */
+    public MarkQueue(final ScoringStrategy duplicateScoringStrategy, final boolean useCoordinateBuckets) {
         comparator = new ReadEndsMCComparator(duplicateScoringStrategy);
+        if (useCoordinateBuckets) {
+            nonDuplicateReadEndsSet = new CoordinateBucketedReadEndsSet();
+            otherEndOfNonDuplicateReadEndsSet = new CoordinateBucketedReadEndsSet();
+        } else {
+            nonDuplicateReadEndsSet = new TreeReadEndsSet();
+            otherEndOfNonDuplicateReadEndsSet = new TreeReadEndsSet();
+        }
     }
 
     /** Returns the number of duplicates detected */
@@ -138,7 +202,7 @@ public class MarkQueue {
     }
 
     public boolean isEmpty() {
-        return this.nonDuplicateReadEndsSet.isEmpty();
+        return 0 == this.nonDuplicateReadEndsSet.size();
     }
 
     /** Sets the minimum genomic distance such that we can be assured that all duplicates have been considered. */
@@ -200,10 +264,9 @@ public class MarkQueue {
         if (current.isPaired()) {
 
             // Remove this record's comparable pair, if present.
-            if (this.otherEndOfNonDuplicateReadEndsSet.contains(current)) { // the pair of this end is not a duplicate, if found
-                final ReadEndsForMateCigar pair = this.otherEndOfNonDuplicateReadEndsSet.subSet(current, true, current, true).first();
+            final ReadEndsForMateCigar pair = this.otherEndOfNonDuplicateReadEndsSet.remove(current);
+            if (null != pair) { // the pair of this end is not a duplicate, if found
                 outputBuffer.setResultState(pair.getSamRecordIndex(), false); // you are not a duplicate!
-                this.otherEndOfNonDuplicateReadEndsSet.remove(current);
                 // NB: do not need to update metrics since this record is not a duplicate
             }
 
@@ -226,19 +289,13 @@ public class MarkQueue {
 
             // remove from the nonDuplicateReadEndsSet fragments and unpaired, which only have two possible orientations
             //this.tmpReadEnds.orientation = orientation;
-            if (this.nonDuplicateReadEndsSet.contains(this.tmpReadEnds)) { // found in the nonDuplicateReadEndsSet
-                // get the duplicate read end
-                final SortedSet<ReadEndsForMateCigar> sortedSet = this.nonDuplicateReadEndsSet.subSet(this.tmpReadEnds, true, this.tmpReadEnds, true);
-                if (1 != sortedSet.size()) throw new PicardException("SortedSet should have size one (has size " + sortedSet.size() + " )");
-                final ReadEndsForMateCigar duplicate = sortedSet.first();
-
+            // get the duplicate read end, removing it from the nonDuplicateReadEndsSet
+            final ReadEndsForMateCigar duplicate = this.nonDuplicateReadEndsSet.remove(this.tmpReadEnds);
+            if (null != duplicate) { // found in the nonDuplicateReadEndsSet
                 /** mark as duplicate and nonDuplicateReadEndsSet that it has been through duplicate marking
                  * duplicate.getRecord().setDuplicateReadFlag(true); HANDLED BY THE METHOD CALL BELOW*/
                 outputBuffer.setResultState(duplicate.getSamRecordIndex(), true);
 
-                // remove from the nonDuplicateReadEndsSet
-                this.nonDuplicateReadEndsSet.remove(this.tmpReadEnds);
-
                 // update the metrics
                 updateDuplicationMetrics(duplicate, libraryIdGenerator.getMetricsByLibrary(libraryIdGenerator.getLibraryName(header, duplicate.getRecord())));
             }
@@ -269,16 +326,14 @@ public class MarkQueue {
         /**
          * Check if we have a comparable record in our nonDuplicateReadEndsSet.
          */
-        if (this.nonDuplicateReadEndsSet.contains(other)) { // a comparable record to "other" record already in the nonDuplicateReadEndsSet
-            /**
-             * Get the subset of records that are comparable, which should be of size one
-             *
-             * Sometimes, the ends that are comparable are in fact from the same pair.  In this case, we need to choose the best end
-             * from the pair, and track the sub-optimal end.
-             */
-            final SortedSet<ReadEndsForMateCigar> sortedSet = this.nonDuplicateReadEndsSet.subSet(other, true, other, true);
-            if (1 != sortedSet.size()) throw new PicardException("SortedSet should have size one (has size " + sortedSet.size() + " )");
-            final ReadEndsForMateCigar current = sortedSet.first();
+        /**
+         * Get the record that is comparable, of which there is at most one.
+         *
+         * Sometimes, the ends that are comparable are in fact from the same pair.  In this case, we need to choose the best end
+         * from the pair, and track the sub-optimal end.
+         */
+        final ReadEndsForMateCigar current = this.nonDuplicateReadEndsSet.get(other);
+        if (null != current) { // a comparable record to "other" record already in the nonDuplicateReadEndsSet
             final String otherName = SAMUtils.getCanonicalRecordName(other.getRecord());
             final String currentName = SAMUtils.getCanonicalRecordName(current.getRecord());
 
@@ -326,9 +381,8 @@ public class MarkQueue {
                     this.nonDuplicateReadEndsSet.add(other);
 
                     // update the pair nonDuplicateReadEndsSet in case current's pair is in that nonDuplicateReadEndsSet
-                    if (this.otherEndOfNonDuplicateReadEndsSet.contains(current)) {
-                        final ReadEndsForMateCigar pair = this.otherEndOfNonDuplicateReadEndsSet.subSet(current, true, current, true).first();
-                        this.otherEndOfNonDuplicateReadEndsSet.remove(current);
+                    final ReadEndsForMateCigar pair = this.otherEndOfNonDuplicateReadEndsSet.remove(current);
+                    if (null != pair) {
                         outputBuffer.setResultState(pair.getSamRecordIndex(), true); // track that this samRecordWithOrdinal has been through duplicate marking
                         updateDuplicationMetrics(pair, metrics);
                     }
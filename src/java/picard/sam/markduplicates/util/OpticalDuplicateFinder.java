@@ -28,9 +28,13 @@ import htsjdk.samtools.util.Log;
 import picard.sam.util.PhysicalLocation;
 import picard.sam.util.ReadNameParser;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Contains methods for finding optical/co-localized/sequencing duplicates.
@@ -44,6 +48,14 @@ public class OpticalDuplicateFinder extends ReadNameParser {
 
     public static final int DEFAULT_OPTICAL_DUPLICATE_DISTANCE = 100;
 
+    /**
+     * Lists of duplicates with more than this many reads are searched for optical duplicates by bucketing the reads
+     * into a grid, rather than by comparing every pair of reads.  The result is the same either way.
+     */
+    public int gridThreshold = DEFAULT_GRID_THRESHOLD;
+
+    public static final int DEFAULT_GRID_THRESHOLD = 200;
+
     /**
      * Uses the default duplicate distance {@value DEFAULT_OPTICAL_DUPLICATE_DISTANCE} and the default read name regex
      * {@link ReadNameParser#DEFAULT_READ_NAME_REGEX}.
@@ -95,6 +107,11 @@ public class OpticalDuplicateFinder extends ReadNameParser {
             }
         }
 
+        if (length > this.gridThreshold) {
+            markOpticalDuplicatesByGrid(list, actualKeeper, opticalDuplicateFlags, distance);
+            return opticalDuplicateFlags;
+        }
+
         // Now go through and do each pairwise comparison not involving the actualKeeper
         for (int i=0; i<length; ++i) {
             final PhysicalLocation lhs = list.get(i);
@@ -118,6 +135,88 @@ public class OpticalDuplicateFinder extends ReadNameParser {
         return opticalDuplicateFlags;
     }
 
+    /**
+     * Does the same pairwise comparisons as findOpticalDuplicates(), in the same order, but only between reads in the
+     * same or neighbouring cells of a grid of cells as wide as the optical duplicate distance, within each read group
+     * and tile.  Reads that are close enough to be optical duplicates are always in neighbouring cells, so the flags
+     * are the same as when comparing every pair of reads.
+     */
+    private void markOpticalDuplicatesByGrid(final List<? extends PhysicalLocation> list, final PhysicalLocation actualKeeper,
+                                             final boolean[] opticalDuplicateFlags, final int distance) {
+        final int length = list.size();
+        final int cellSize = Math.max(1, distance);
+
+        // The indexes of the reads in each cell, in increasing order
+        final Map<GridCell, List<Integer>> cells = new HashMap<GridCell, List<Integer>>();
+        final GridCell[] cellOf = new GridCell[length];
+        for (int i = 0; i < length; ++i) {
+            final PhysicalLocation loc = list.get(i);
+            if (loc == actualKeeper || !loc.hasLocation()) continue;
+            cellOf[i] = new GridCell(loc.getReadGroup(), loc.getTile(), Math.floorDiv(loc.getX(), cellSize), Math.floorDiv(loc.getY(), cellSize));
+            List<Integer> indexes = cells.get(cellOf[i]);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                cells.put(cellOf[i], indexes);
+            }
+            indexes.add(i);
+        }
+
+        int[] closeIndexes = new int[16];
+        for (int i = 0; i < length; ++i) {
+            if (cellOf[i] == null) continue;
+            final PhysicalLocation lhs = list.get(i);
+
+            // Find the later reads that are close enough, and compare them in increasing order as the pairwise loop does
+            int numClose = 0;
+            for (int dx = -1; dx <= 1; ++dx) {
+                for (int dy = -1; dy <= 1; ++dy) {
+                    final List<Integer> indexes = cells.get(new GridCell(cellOf[i].readGroup, cellOf[i].tile, cellOf[i].x + dx, cellOf[i].y + dy));
+                    if (indexes == null) continue;
+                    for (final int j : indexes) {
+                        if (j > i && closeEnough(lhs, list.get(j), distance)) {
+                            if (numClose == closeIndexes.length) closeIndexes = Arrays.copyOf(closeIndexes, numClose * 2);
+                            closeIndexes[numClose++] = j;
+                        }
+                    }
+                }
+            }
+            Arrays.sort(closeIndexes, 0, numClose);
+
+            for (int k = 0; k < numClose; ++k) {
+                final int j = closeIndexes[k];
+                final int index = opticalDuplicateFlags[j] ? i : j;
+                opticalDuplicateFlags[index] = true;
+            }
+        }
+    }
+
+    /** A cell of the grid that reads are bucketed into by markOpticalDuplicatesByGrid(). */
+    private static final class GridCell {
+        final short readGroup;
+        final short tile;
+        final int x;
+        final int y;
+
+        GridCell(final short readGroup, final short tile, final int x, final int y) {
+            this.readGroup = readGroup;
+            this.tile = tile;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof GridCell)) return false;
+            final GridCell that = (GridCell) o;
+            return readGroup == that.readGroup && tile == that.tile && x == that.x && y == that.y;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((readGroup * 31 + tile) * 31 + x) * 31 + y;
+        }
+    }
+
     /** Returns the keeper if it is contained within the list and has location information, otherwise null. */
     private PhysicalLocation keeperOrNull(final List<? extends PhysicalLocation> list, final PhysicalLocation keeper) {
         if (keeper != null && keeper.hasLocation()) {
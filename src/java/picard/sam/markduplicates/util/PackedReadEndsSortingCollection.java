@@ -0,0 +1,455 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import picard.PicardException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts ReadEndsForMarkDuplicates in the order of MarkDuplicates' comparator (library, barcodes, read1 reference
+ * and coordinate, orientation, read2 reference and coordinate, and read1 and read2 indexes in the file) without
+ * keeping a Java object per read end.  Each read end is packed into a fixed number of longs, with the sort key in its
+ * leading bits so that read ends are compared by comparing their words as unsigned numbers, and the records are
+ * stored back to back in large long[] pages, which are sorted in place.  A read end takes 40 bytes, or 56 with
+ * barcodes, rather than an object, its header and a reference to it, and there is nothing for the garbage collector
+ * to trace.
+ * <p/>
+ * Like a SortingCollection, when more than maxRecordsInRam read ends have been added they are sorted and spilled to
+ * a temporary file, and the sorted runs are merged while iterating.  The collection may only be iterated once, after
+ * doneAdding() is called.
+ * <p/>
+ * Signed fields are stored offset by half their range so that they sort as unsigned numbers.  The indexes in the
+ * file are stored in 40 bits, which is room for about a trillion records.  The read ends come back out as new
+ * objects, of class ReadEndsForMarkDuplicatesWithBarcodes if useBarcodes is true.
+ */
+public class PackedReadEndsSortingCollection implements Iterable<ReadEndsForMarkDuplicates> {
+    private static final int INDEX_BITS = 40;
+    private static final int PAGE_SHIFT = 16;
+    private static final int RECORDS_PER_PAGE = 1 << PAGE_SHIFT;
+
+    /** Widths in bits of the fields, in the order they are packed.  The fields before the score are the sort key. */
+    private static final int[] FIELD_WIDTHS = {16, 32, 32, 8, 32, 32, INDEX_BITS, INDEX_BITS, 16, 16, 16, 16, 16, 8};
+    private static final int[] FIELD_WIDTHS_WITH_BARCODES = {16, 32, 32, 32, 32, 32, 8, 32, 32, INDEX_BITS, INDEX_BITS, 16, 16, 16, 16, 16, 8};
+
+    private final boolean useBarcodes;
+    private final int maxRecordsInRam;
+    private final File[] tmpDirs;
+    private final int[] fieldOffsets;
+    private final int wordsPerRecord;
+
+    private final List<long[]> pages = new ArrayList<long[]>();
+    private int numRecordsInRam = 0;
+    private final List<File> spillFiles = new ArrayList<File>();
+    private long numBytesSpilled = 0;
+    private boolean doneAdding = false;
+    private boolean iterated = false;
+
+    /**
+     * @param useBarcodes whether the read ends are ReadEndsForMarkDuplicatesWithBarcodes, whose barcodes are sorted on
+     * @param maxRecordsInRam the number of read ends to keep in RAM before spilling to disk
+     * @param tmpDirs the directories to write spill files to, in turn
+     */
+    public PackedReadEndsSortingCollection(final boolean useBarcodes, final int maxRecordsInRam, final File... tmpDirs) {
+        if (maxRecordsInRam <= 0) throw new IllegalArgumentException("maxRecordsInRam must be > 0");
+        if (tmpDirs.length == 0) throw new IllegalArgumentException("At least one temporary directory is required");
+        this.useBarcodes = useBarcodes;
+        this.maxRecordsInRam = maxRecordsInRam;
+        this.tmpDirs = tmpDirs;
+
+        final int[] widths = useBarcodes ? FIELD_WIDTHS_WITH_BARCODES : FIELD_WIDTHS;
+        this.fieldOffsets = new int[widths.length + 1];
+        for (int i = 0; i < widths.length; ++i) fieldOffsets[i + 1] = fieldOffsets[i] + widths[i];
+        this.wordsPerRecord = (fieldOffsets[widths.length] + 63) / 64;
+    }
+
+    /** The number of bytes a read end takes in RAM. */
+    public static int getSizeOf(final boolean useBarcodes) {
+        int bits = 0;
+        for (final int width : useBarcodes ? FIELD_WIDTHS_WITH_BARCODES : FIELD_WIDTHS) bits += width;
+        return (bits + 63) / 64 * 8;
+    }
+
+    public void add(final ReadEndsForMarkDuplicates readEnds) {
+        if (doneAdding) throw new IllegalStateException("Cannot add after calling doneAdding()");
+        if (numRecordsInRam == maxRecordsInRam) spill();
+
+        final int page = numRecordsInRam >>> PAGE_SHIFT;
+        if (page == pages.size()) {
+            pages.add(new long[Math.min(RECORDS_PER_PAGE, maxRecordsInRam) * wordsPerRecord]);
+        }
+        final long[] words = pages.get(page);
+        final int offset = (numRecordsInRam & (RECORDS_PER_PAGE - 1)) * wordsPerRecord;
+        for (int i = 0; i < wordsPerRecord; ++i) words[offset + i] = 0;
+        pack(readEnds, words, offset);
+        ++numRecordsInRam;
+    }
+
+    /** Sorts the read ends in RAM.  No more read ends may be added. */
+    public void doneAdding() {
+        if (doneAdding) return;
+        doneAdding = true;
+        sortInRam();
+    }
+
+    /** Deletes any spill files and releases the memory used. */
+    public void cleanup() {
+        pages.clear();
+        numRecordsInRam = 0;
+        for (final File file : spillFiles) IOUtil.deleteFiles(file);
+        spillFiles.clear();
+    }
+
+    /** The number of times read ends were sorted and written to disk. */
+    public int getNumSpills() {
+        return spillFiles.size();
+    }
+
+    /** The number of bytes of read ends written to disk. */
+    public long getNumBytesSpilled() {
+        return numBytesSpilled;
+    }
+
+    /** Iterates over the read ends in sorted order.  May only be called once, after doneAdding(). */
+    public CloseableIterator<ReadEndsForMarkDuplicates> iterator() {
+        if (!doneAdding) throw new IllegalStateException("Cannot iterate before calling doneAdding()");
+        if (iterated) throw new IllegalStateException("Cannot iterate more than once");
+        iterated = true;
+        return new MergingIterator();
+    }
+
+    /////////////////////////////////////////////////////////////////////////////
+    // Packing and unpacking
+    /////////////////////////////////////////////////////////////////////////////
+
+    private void pack(final ReadEndsForMarkDuplicates readEnds, final long[] words, final int offset) {
+        int field = 0;
+        put(words, offset, field++, signed(readEnds.libraryId, 16));
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) readEnds;
+            put(words, offset, field++, signed(withBarcodes.barcode, 32));
+            put(words, offset, field++, signed(withBarcodes.readOneBarcode, 32));
+            put(words, offset, field++, signed(withBarcodes.readTwoBarcode, 32));
+        }
+        put(words, offset, field++, signed(readEnds.read1ReferenceIndex, 32));
+        put(words, offset, field++, signed(readEnds.read1Coordinate, 32));
+        put(words, offset, field++, signed(readEnds.orientation, 8));
+        put(words, offset, field++, signed(readEnds.read2ReferenceIndex, 32));
+        put(words, offset, field++, signed(readEnds.read2Coordinate, 32));
+        put(words, offset, field++, indexInFile(readEnds.read1IndexInFile));
+        put(words, offset, field++, indexInFile(readEnds.read2IndexInFile));
+        put(words, offset, field++, signed(readEnds.score, 16));
+        put(words, offset, field++, signed(readEnds.readGroup, 16));
+        put(words, offset, field++, signed(readEnds.tile, 16));
+        put(words, offset, field++, signed(readEnds.x, 16));
+        put(words, offset, field++, signed(readEnds.y, 16));
+        put(words, offset, field, signed(readEnds.orientationForOpticalDuplicates, 8));
+    }
+
+    private ReadEndsForMarkDuplicates unpack(final long[] words, final int offset) {
+        final ReadEndsForMarkDuplicates readEnds;
+        int field = 0;
+        if (useBarcodes) {
+            final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = new ReadEndsForMarkDuplicatesWithBarcodes();
+            withBarcodes.libraryId = (short) unsigned(get(words, offset, field++), 16);
+            withBarcodes.barcode = (int) unsigned(get(words, offset, field++), 32);
+            withBarcodes.readOneBarcode = (int) unsigned(get(words, offset, field++), 32);
+            withBarcodes.readTwoBarcode = (int) unsigned(get(words, offset, field++), 32);
+            readEnds = withBarcodes;
+        } else {
+            readEnds = new ReadEndsForMarkDuplicates();
+            readEnds.libraryId = (short) unsigned(get(words, offset, field++), 16);
+        }
+        readEnds.read1ReferenceIndex = (int) unsigned(get(words, offset, field++), 32);
+        readEnds.read1Coordinate = (int) unsigned(get(words, offset, field++), 32);
+        readEnds.orientation = (byte) unsigned(get(words, offset, field++), 8);
+        readEnds.read2ReferenceIndex = (int) unsigned(get(words, offset, field++), 32);
+        readEnds.read2Coordinate = (int) unsigned(get(words, offset, field++), 32);
+        readEnds.read1IndexInFile = get(words, offset, field++) - 1;
+        readEnds.read2IndexInFile = get(words, offset, field++) - 1;
+        readEnds.score = (short) unsigned(get(words, offset, field++), 16);
+        readEnds.readGroup = (short) unsigned(get(words, offset, field++), 16);
+        readEnds.tile = (short) unsigned(get(words, offset, field++), 16);
+        readEnds.x = (short) unsigned(get(words, offset, field++), 16);
+        readEnds.y = (short) unsigned(get(words, offset, field++), 16);
+        readEnds.orientationForOpticalDuplicates = (byte) unsigned(get(words, offset, field), 8);
+        return readEnds;
+    }
+
+    /** Offsets a signed value of the given width by half its range, so that it sorts as an unsigned number. */
+    private static long signed(final long value, final int width) {
+        return (value + (1L << (width - 1))) & ((1L << width) - 1);
+    }
+
+    /** The inverse of signed(). */
+    private static long unsigned(final long stored, final int width) {
+        return stored - (1L << (width - 1));
+    }
+
+    /** Stores an index in the file, which may be -1, as one more than it. */
+    private static long indexInFile(final long index) {
+        if (index < -1 || index >= (1L << INDEX_BITS) - 1) {
+            throw new PicardException("Index in file " + index + " is too large to pack into " + INDEX_BITS + " bits");
+        }
+        return index + 1;
+    }
+
+    /** Stores the low bits of value in the field, whose bits are numbered from the most significant bit of the first word. */
+    private void put(final long[] words, final int offset, final int field, final long value) {
+        final int start = fieldOffsets[field];
+        final int width = fieldOffsets[field + 1] - start;
+        final int word = offset + (start >>> 6);
+        final int end = (start & 63) + width;
+        if (end <= 64) {
+            words[word] |= value << (64 - end);
+        } else {
+            words[word] |= value >>> (end - 64);
+            words[word + 1] |= value << (128 - end);
+        }
+    }
+
+    private long get(final long[] words, final int offset, final int field) {
+        final int start = fieldOffsets[field];
+        final int width = fieldOffsets[field + 1] - start;
+        final long mask = (1L << width) - 1;
+        final int word = offset + (start >>> 6);
+        final int end = (start & 63) + width;
+        if (end <= 64) {
+            return (words[word] >>> (64 - end)) & mask;
+        } else {
+            return ((words[word] << (end - 64)) | (words[word + 1] >>> (128 - end))) & mask;
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////////////////
+    // Sorting and spilling
+    /////////////////////////////////////////////////////////////////////////////
+
+    private long[] page(final int record) {
+        return pages.get(record >>> PAGE_SHIFT);
+    }
+
+    private int offset(final int record) {
+        return (record & (RECORDS_PER_PAGE - 1)) * wordsPerRecord;
+    }
+
+    private static int compare(final long[] lhs, final int lhsOffset, final long[] rhs, final int rhsOffset, final int numWords) {
+        for (int i = 0; i < numWords; ++i) {
+            final int cmp = Long.compareUnsigned(lhs[lhsOffset + i], rhs[rhsOffset + i]);
+            if (cmp != 0) return cmp;
+        }
+        return 0;
+    }
+
+    private int compare(final int lhs, final int rhs) {
+        return compare(page(lhs), offset(lhs), page(rhs), offset(rhs), wordsPerRecord);
+    }
+
+    private void swap(final int lhs, final int rhs) {
+        final long[] lhsPage = page(lhs), rhsPage = page(rhs);
+        final int lhsOffset = offset(lhs), rhsOffset = offset(rhs);
+        for (int i = 0; i < wordsPerRecord; ++i) {
+            final long tmp = lhsPage[lhsOffset + i];
+            lhsPage[lhsOffset + i] = rhsPage[rhsOffset + i];
+            rhsPage[rhsOffset + i] = tmp;
+        }
+    }
+
+    private void sortInRam() {
+        quicksort(0, numRecordsInRam - 1);
+    }
+
+    /** Sorts the records from lo to hi inclusive in place, recursing only into the smaller side of each partition. */
+    private void quicksort(int lo, int hi) {
+        while (hi - lo >= 16) {
+            // Median of three as the pivot, which is then moved to hi - 1
+            final int mid = (lo + hi) >>> 1;
+            if (compare(mid, lo) < 0) swap(mid, lo);
+            if (compare(hi, lo) < 0) swap(hi, lo);
+            if (compare(hi, mid) < 0) swap(hi, mid);
+            swap(mid, hi - 1);
+            final int pivot = hi - 1;
+
+            int i = lo, j = hi - 1;
+            while (true) {
+                while (compare(++i, pivot) < 0) { }
+                while (compare(--j, pivot) > 0) { }
+                if (i >= j) break;
+                swap(i, j);
+            }
+            swap(i, pivot);
+
+            if (i - lo < hi - i) {
+                quicksort(lo, i - 1);
+                lo = i + 1;
+            } else {
+                quicksort(i + 1, hi);
+                hi = i - 1;
+            }
+        }
+
+        for (int i = lo + 1; i <= hi; ++i) {
+            for (int j = i; j > lo && compare(j, j - 1) < 0; --j) swap(j, j - 1);
+        }
+    }
+
+    private void spill() {
+        sortInRam();
+
+        DataOutputStream out = null;
+        try {
+            final File file = File.createTempFile("PackedReadEnds.", ".tmp", tmpDirs[spillFiles.size() % tmpDirs.length]);
+            file.deleteOnExit();
+            spillFiles.add(file);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), Defaults.BUFFER_SIZE));
+            for (int record = 0; record < numRecordsInRam; ++record) {
+                final long[] words = page(record);
+                final int offset = offset(record);
+                for (int i = 0; i < wordsPerRecord; ++i) out.writeLong(words[offset + i]);
+            }
+            out.flush();
+            numBytesSpilled += 8L * wordsPerRecord * numRecordsInRam;
+        } catch (final IOException ioe) {
+            throw new PicardException("Error spilling packed read ends to disk.", ioe);
+        } finally {
+            CloserUtil.close(out);
+        }
+        numRecordsInRam = 0;
+    }
+
+    /////////////////////////////////////////////////////////////////////////////
+    // Iterating
+    /////////////////////////////////////////////////////////////////////////////
+
+    /** A sorted run of records, from RAM or from a spill file, positioned at its current record. */
+    private abstract class Run implements Comparable<Run> {
+        long[] words;
+        int offset;
+
+        /** Moves to the next record, returning false if there are no more. */
+        abstract boolean advance();
+
+        void close() { }
+
+        public int compareTo(final Run that) {
+            return compare(this.words, this.offset, that.words, that.offset, wordsPerRecord);
+        }
+    }
+
+    private class RamRun extends Run {
+        private int next = 0;
+
+        boolean advance() {
+            if (next == numRecordsInRam) return false;
+            words = page(next);
+            offset = offset(next);
+            ++next;
+            return true;
+        }
+    }
+
+    private class FileRun extends Run {
+        private final DataInputStream in;
+
+        FileRun(final File file) {
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), Defaults.BUFFER_SIZE));
+            } catch (final IOException ioe) {
+                throw new PicardException("Error opening packed read ends spilled to " + file, ioe);
+            }
+            words = new long[wordsPerRecord];
+        }
+
+        boolean advance() {
+            try {
+                try {
+                    words[0] = in.readLong();
+                } catch (final EOFException eof) {
+                    return false;
+                }
+                for (int i = 1; i < wordsPerRecord; ++i) words[i] = in.readLong();
+                return true;
+            } catch (final IOException ioe) {
+                throw new PicardException("Error reading packed read ends from disk.", ioe);
+            }
+        }
+
+        @Override
+        void close() {
+            CloserUtil.close(in);
+        }
+    }
+
+    private class MergingIterator implements CloseableIterator<ReadEndsForMarkDuplicates> {
+        private final PriorityQueue<Run> queue = new PriorityQueue<Run>();
+        private final List<Run> runs = new ArrayList<Run>();
+
+        MergingIterator() {
+            runs.add(new RamRun());
+            for (final File file : spillFiles) runs.add(new FileRun(file));
+            for (final Run run : runs) {
+                if (run.advance()) queue.add(run);
+                else run.close();
+            }
+        }
+
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        public ReadEndsForMarkDuplicates next() {
+            final Run run = queue.poll();
+            if (run == null) throw new NoSuchElementException();
+            final ReadEndsForMarkDuplicates readEnds = unpack(run.words, run.offset);
+            if (run.advance()) queue.add(run);
+            else run.close();
+            return readEnds;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            for (final Run run : runs) run.close();
+            queue.clear();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.metrics.MetricBase;
+
+/**
+ * Performance metrics for one phase of a duplicate marking program, e.g. building the read ends or writing the
+ * output, written when WRITE_PHASE_METRICS is set.
+ */
+public class PhaseMetrics extends MetricBase {
+    /** The phase of the program these metrics are for. */
+    public String PHASE;
+
+    /** The wall clock time the phase took, in seconds. */
+    public double WALL_TIME_SECONDS;
+
+    /** The number of records, or read ends in phases that work on read ends, processed by the phase. */
+    public long RECORDS;
+
+    /** RECORDS divided by WALL_TIME_SECONDS. */
+    public double RECORDS_PER_SECOND;
+
+    /** The number of times the sorting collection of the phase spilled records to disk, if it has one. */
+    public long SPILLS;
+
+    /** The number of bytes spilled to disk by the sorting collection of the phase, before any compression. */
+    public long SPILLED_BYTES;
+
+    /** The largest number of pairs whose mates had not yet been seen at any one time during the phase. */
+    public long PEAK_UNMATCHED_PAIRS;
+
+    /** The heap memory in use at the end of the phase, in bytes, including garbage not yet collected. */
+    public long HEAP_USED;
+
+    /** The heap memory committed by the JVM at the end of the phase, in bytes. */
+    public long HEAP_COMMITTED;
+
+    /** The maximum heap memory the JVM may use, in bytes. */
+    public long HEAP_MAX;
+}
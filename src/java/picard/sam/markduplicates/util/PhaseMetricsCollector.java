@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.Log;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times the phases of a duplicate marking program and collects a {@link PhaseMetrics} for each.  Memory use is
+ * read from the JVM's MemoryMXBean, which, unlike calling System.gc() before reading Runtime.freeMemory(), does not
+ * pause the program, so the heap used includes garbage that has not been collected yet.
+ */
+public class PhaseMetricsCollector {
+    private final Log log;
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final List<PhaseMetrics> phases = new ArrayList<PhaseMetrics>();
+
+    private PhaseMetrics current = null;
+    private long startNanos;
+
+    public PhaseMetricsCollector(final Log log) {
+        this.log = log;
+    }
+
+    /**
+     * Starts timing a phase, ending any phase that has not been ended.  The counters of the metrics returned may be
+     * filled in by the caller until the phase is ended.
+     */
+    public PhaseMetrics startPhase(final String phase) {
+        if (current != null) endPhase(current.RECORDS);
+        current = new PhaseMetrics();
+        current.PHASE = phase;
+        startNanos = System.nanoTime();
+        return current;
+    }
+
+    /** Ends the current phase, which processed the given number of records, and logs its metrics. */
+    public PhaseMetrics endPhase(final long records) {
+        if (current == null) throw new IllegalStateException("No phase has been started");
+        final PhaseMetrics metrics = current;
+        current = null;
+
+        metrics.WALL_TIME_SECONDS = (System.nanoTime() - startNanos) / 1e9;
+        metrics.RECORDS = records;
+        metrics.RECORDS_PER_SECOND = metrics.WALL_TIME_SECONDS > 0 ? records / metrics.WALL_TIME_SECONDS : 0;
+        final MemoryUsage heap = memory.getHeapMemoryUsage();
+        metrics.HEAP_USED = heap.getUsed();
+        metrics.HEAP_COMMITTED = heap.getCommitted();
+        metrics.HEAP_MAX = heap.getMax();
+        phases.add(metrics);
+
+        log.info(String.format("%s took %.1f seconds for %d records (%.0f/sec), with %d spills of %d bytes. Heap used: %d; committed: %d; max: %d",
+                metrics.PHASE, metrics.WALL_TIME_SECONDS, metrics.RECORDS, metrics.RECORDS_PER_SECOND, metrics.SPILLS,
+                metrics.SPILLED_BYTES, metrics.HEAP_USED, metrics.HEAP_COMMITTED, metrics.HEAP_MAX));
+        return metrics;
+    }
+
+    /** The metrics of the phases ended so far, in the order they were ended. */
+    public List<PhaseMetrics> getPhases() {
+        return phases;
+    }
+}
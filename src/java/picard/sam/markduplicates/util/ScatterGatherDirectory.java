@@ -0,0 +1,321 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import picard.PicardException;
+import picard.sam.DuplicationMetrics;
+import picard.util.CompressedBitSet;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The files through which the steps of a MarkDuplicates run scattered over its inputs hand on their results, kept in
+ * a directory that all the machines running the steps can see.  The inputs are numbered by their position in INPUT.
+ * <p/>
+ * For each input the READ_ENDS step writes the sorted read ends of its pairs and of its fragments, the read ends of
+ * the reads whose mates it did not find, keyed as in a {@link ReadEndsForMarkDuplicatesMap}, the number of unmapped
+ * reads in each library, and the program group IDs of its records.  The DUPLICATE_INDEXES step then writes for each
+ * input the indexes in it of the records to be marked as duplicates, and of those that are optical duplicates.
+ */
+public class ScatterGatherDirectory {
+    private final File directory;
+    private final boolean useBarcodes;
+
+    public ScatterGatherDirectory(final File directory, final boolean useBarcodes) {
+        this.directory = directory;
+        this.useBarcodes = useBarcodes;
+    }
+
+    public File getPairsFile(final int input) { return getFile(input, "pairs"); }
+
+    public File getFragmentsFile(final int input) { return getFile(input, "fragments"); }
+
+    public File getUnmatchedFile(final int input) { return getFile(input, "unmatched"); }
+
+    public File getUnmappedMetricsFile(final int input) { return getFile(input, "unmapped_metrics"); }
+
+    public File getProgramGroupIdsFile(final int input) { return getFile(input, "pg_ids"); }
+
+    public File getDuplicateIndexesFile(final int input) { return getFile(input, "duplicates"); }
+
+    public File getOpticalDuplicateIndexesFile(final int input) { return getFile(input, "optical_duplicates"); }
+
+    private File getFile(final int input, final String extension) {
+        return new File(directory, "input_" + input + "." + extension);
+    }
+
+    /////////////////////////////////////////////////////////////////////////////
+    // Read ends
+    /////////////////////////////////////////////////////////////////////////////
+
+    /** Writes the read ends to the file in the order given, returning the number written. */
+    public long writeReadEnds(final File file, final Iterable<ReadEndsForMarkDuplicates> readEnds) {
+        final ReadEndsForMarkDuplicatesCodec codec = newCodec();
+        codec.setOutputStream(openForWriting(file));
+        long count = 0;
+        for (final ReadEndsForMarkDuplicates ends : readEnds) {
+            codec.encode(ends);
+            ++count;
+        }
+        close(codec.getOutputStream(), file);
+        return count;
+    }
+
+    /**
+     * Reads back the read ends written by {@link #writeReadEnds}, adding indexOffset to the index in the file of each
+     * of their reads, so that the records of different inputs can be told apart.
+     */
+    public CloseableIterator<ReadEndsForMarkDuplicates> readReadEnds(final File file, final long indexOffset) {
+        final ReadEndsForMarkDuplicatesCodec codec = newCodec();
+        codec.setInputStream(openForReading(file));
+        return new DecodingIterator<ReadEndsForMarkDuplicates>(codec.getInputStream()) {
+            protected ReadEndsForMarkDuplicates decode() { return offsetIndexes(codec.decode(), indexOffset); }
+        };
+    }
+
+    /** Writes the read ends of reads whose mates have not been found, with their keys, returning the number written. */
+    public long writeUnmatchedReadEnds(final File file, final Iterator<Map.Entry<String, ReadEndsForMarkDuplicates>> unmatched) {
+        final ReadEndsForMarkDuplicatesCodec codec = newCodec();
+        codec.setOutputStream(openForWriting(file));
+        long count = 0;
+        try {
+            while (unmatched.hasNext()) {
+                final Map.Entry<String, ReadEndsForMarkDuplicates> entry = unmatched.next();
+                codec.getOutputStream().writeUTF(entry.getKey());
+                codec.encode(entry.getValue());
+                ++count;
+            }
+        } catch (final IOException ioe) {
+            throw new PicardException("Error writing " + file, ioe);
+        }
+        close(codec.getOutputStream(), file);
+        return count;
+    }
+
+    /** Reads back the keys and read ends written by {@link #writeUnmatchedReadEnds}, offsetting indexes as readReadEnds() does. */
+    public CloseableIterator<Map.Entry<String, ReadEndsForMarkDuplicates>> readUnmatchedReadEnds(final File file, final long indexOffset) {
+        final ReadEndsForMarkDuplicatesCodec codec = newCodec();
+        codec.setInputStream(openForReading(file));
+        return new DecodingIterator<Map.Entry<String, ReadEndsForMarkDuplicates>>(codec.getInputStream()) {
+            protected Map.Entry<String, ReadEndsForMarkDuplicates> decode() {
+                final String key;
+                try {
+                    key = codec.getInputStream().readUTF();
+                } catch (final EOFException eof) {
+                    return null;
+                } catch (final IOException ioe) {
+                    throw new PicardException("Error reading " + file, ioe);
+                }
+                return new AbstractMap.SimpleEntry<String, ReadEndsForMarkDuplicates>(key, offsetIndexes(codec.decode(), indexOffset));
+            }
+        };
+    }
+
+    private static ReadEndsForMarkDuplicates offsetIndexes(final ReadEndsForMarkDuplicates readEnds, final long indexOffset) {
+        if (readEnds != null) {
+            readEnds.read1IndexInFile += indexOffset;
+            if (readEnds.read2IndexInFile >= 0) readEnds.read2IndexInFile += indexOffset;
+        }
+        return readEnds;
+    }
+
+    private ReadEndsForMarkDuplicatesCodec newCodec() {
+        return useBarcodes ? new ReadEndsForMarkDuplicatesWithBarcodesCodec() : new ReadEndsForMarkDuplicatesCodec();
+    }
+
+    /** Iterates over the records decoded from a stream until decode() returns null, closing the stream then. */
+    private static abstract class DecodingIterator<T> implements CloseableIterator<T> {
+        private final DataInputStream in;
+        private T next;
+        private boolean closed = false;
+
+        DecodingIterator(final DataInputStream in) {
+            this.in = in;
+        }
+
+        protected abstract T decode();
+
+        public boolean hasNext() {
+            if (next == null && !closed) {
+                next = decode();
+                if (next == null) close();
+            }
+            return next != null;
+        }
+
+        public T next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final T result = next;
+            next = null;
+            return result;
+        }
+
+        public void remove() { throw new UnsupportedOperationException(); }
+
+        public void close() {
+            closed = true;
+            CloserUtil.close(in);
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////////////////
+    // Duplicate indexes
+    /////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes the indexes set in the bit set from start up to but not including end, less start, i.e. the indexes of one
+     * input's records in indexes that number the records of all the inputs.  Returns the number written.
+     */
+    public long writeIndexes(final File file, final CompressedBitSet indexes, final long start, final long end) {
+        final DataOutputStream out = openForWriting(file);
+        long count = 0;
+        try {
+            for (long i = indexes.nextSetBit(start); i >= 0 && i < end; i = indexes.nextSetBit(i + 1)) {
+                out.writeLong(i - start);
+                ++count;
+            }
+        } catch (final IOException ioe) {
+            throw new PicardException("Error writing " + file, ioe);
+        }
+        close(out, file);
+        return count;
+    }
+
+    /** Reads back the indexes written by {@link #writeIndexes}. */
+    public CompressedBitSet readIndexes(final File file) {
+        final CompressedBitSet indexes = new CompressedBitSet();
+        final DataInputStream in = openForReading(file);
+        try {
+            while (true) {
+                final long index;
+                try {
+                    index = in.readLong();
+                } catch (final EOFException eof) {
+                    break;
+                }
+                indexes.set(index);
+            }
+        } catch (final IOException ioe) {
+            throw new PicardException("Error reading " + file, ioe);
+        } finally {
+            CloserUtil.close(in);
+        }
+        return indexes;
+    }
+
+    /////////////////////////////////////////////////////////////////////////////
+    // Unmapped reads and program group IDs
+    /////////////////////////////////////////////////////////////////////////////
+
+    /** Reads the metrics written to the unmapped metrics file, which have only LIBRARY and UNMAPPED_READS filled in. */
+    public List<DuplicationMetrics> readUnmappedMetrics(final File file) {
+        final MetricsFile<DuplicationMetrics, Comparable<?>> metricsFile = new MetricsFile<DuplicationMetrics, Comparable<?>>();
+        try {
+            final FileReader reader = new FileReader(file);
+            metricsFile.read(reader);
+            CloserUtil.close(reader);
+        } catch (final FileNotFoundException fnfe) {
+            throw new PicardException("Could not open " + file, fnfe);
+        }
+        return metricsFile.getMetrics();
+    }
+
+    /** Writes the program group IDs one per line, with an empty line standing for records without one. */
+    public void writeProgramGroupIds(final File file, final Set<String> pgIds) {
+        final BufferedWriter writer = IOUtil.openFileForBufferedWriting(file);
+        try {
+            for (final String pgId : pgIds) {
+                writer.write(pgId == null ? "" : pgId);
+                writer.newLine();
+            }
+            writer.close();
+        } catch (final IOException ioe) {
+            throw new PicardException("Error writing " + file, ioe);
+        }
+    }
+
+    /** Reads back the program group IDs written by {@link #writeProgramGroupIds}. */
+    public Set<String> readProgramGroupIds(final File file) {
+        final Set<String> pgIds = new HashSet<String>();
+        final BufferedReader reader = IOUtil.openFileForBufferedReading(file);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) pgIds.add(line.isEmpty() ? null : line);
+        } catch (final IOException ioe) {
+            throw new PicardException("Error reading " + file, ioe);
+        } finally {
+            CloserUtil.close(reader);
+        }
+        return pgIds;
+    }
+
+    /////////////////////////////////////////////////////////////////////////////
+    // Streams
+    /////////////////////////////////////////////////////////////////////////////
+
+    private static DataOutputStream openForWriting(final File file) {
+        try {
+            return new DataOutputStream(IOUtil.maybeBufferOutputStream(new FileOutputStream(file)));
+        } catch (final FileNotFoundException fnfe) {
+            throw new PicardException("Could not open " + file + " for writing", fnfe);
+        }
+    }
+
+    private static DataInputStream openForReading(final File file) {
+        try {
+            return new DataInputStream(IOUtil.maybeBufferInputStream(new FileInputStream(file)));
+        } catch (final FileNotFoundException fnfe) {
+            throw new PicardException("Could not open " + file, fnfe);
+        }
+    }
+
+    private static void close(final DataOutputStream out, final File file) {
+        try {
+            out.close();
+        } catch (final IOException ioe) {
+            throw new PicardException("Error writing " + file, ioe);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.util;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.StringUtil;
+import picard.PicardException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+/**
+ * A BAM record kept as the bytes it is encoded as in a BAM file, for programs that only need to look at or change a
+ * few fields of each record and copy it to another BAM file.  Nothing is decoded except the fields asked for, and the
+ * flags and tags are changed by patching the bytes in place, so everything else is written out exactly as it was read.
+ * The record is reused for each record read, to save allocating one per record.
+ * <p/>
+ * The byte offsets and tag encodings are those of the SAM specification's BAM format.  The streams read from and
+ * written to are the uncompressed contents of the BAM file, e.g. a BlockCompressedInputStream.
+ */
+public class RawBamRecord {
+    private static final byte[] BAM_MAGIC = "BAM\1".getBytes();
+
+    // Offsets into the record, after its block_size
+    private static final int REF_ID_OFFSET = 0;
+    private static final int POS_OFFSET = 4;
+    private static final int L_READ_NAME_OFFSET = 8;
+    private static final int N_CIGAR_OP_OFFSET = 12;
+    private static final int FLAG_OFFSET = 14;
+    private static final int L_SEQ_OFFSET = 16;
+    private static final int READ_NAME_OFFSET = 32;
+
+    private byte[] data = new byte[1024];
+    private int length = 0;
+    private final byte[] blockSize = new byte[4];
+
+    /////////////////////////////////////////////////////////////////////////////
+    // Reading and writing
+    /////////////////////////////////////////////////////////////////////////////
+
+    /** Reads past the header at the start of the uncompressed contents of a BAM file. */
+    public static void skipHeader(final InputStream in) throws IOException {
+        final byte[] magic = new byte[BAM_MAGIC.length];
+        readFully(in, magic, 0, magic.length);
+        if (!Arrays.equals(magic, BAM_MAGIC)) throw new PicardException("Invalid BAM file header");
+
+        skipFully(in, readInt(in));                      // l_text, text
+        final int numReferences = readInt(in);
+        for (int i = 0; i < numReferences; ++i) {
+            skipFully(in, readInt(in) + 4);              // l_name, name, l_ref
+        }
+    }
+
+    /** Writes the header to the start of the uncompressed contents of a BAM file, as htsjdk's BAM writer does. */
+    public static void writeHeader(final OutputStream out, final SAMFileHeader header) {
+        final StringWriter headerText = new StringWriter();
+        new SAMTextHeaderCodec().encode(headerText, header);
+
+        final BinaryCodec codec = new BinaryCodec(out);
+        codec.writeBytes(BAM_MAGIC);
+        codec.writeString(headerText.toString(), true, false);
+        codec.writeInt(header.getSequenceDictionary().size());
+        for (final SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+            codec.writeString(sequence.getSequenceName(), true, true);
+            codec.writeInt(sequence.getSequenceLength());
+        }
+    }
+
+    /** Reads the next record into this one, returning false if there are no more records. */
+    public boolean read(final InputStream in) throws IOException {
+        final int first = in.read();
+        if (first == -1) return false;
+
+        blockSize[0] = (byte) first;
+        readFully(in, blockSize, 1, 3);
+        length = getInt(blockSize, 0);
+        if (length < READ_NAME_OFFSET) throw new PicardException("Invalid BAM record length " + length);
+        if (length > data.length) data = new byte[Math.max(length, data.length * 2)];
+        readFully(in, data, 0, length);
+        return true;
+    }
+
+    /** Writes the record, with its block_size. */
+    public void write(final OutputStream out) throws IOException {
+        out.write(length & 0xff);
+        out.write((length >>> 8) & 0xff);
+        out.write((length >>> 16) & 0xff);
+        out.write((length >>> 24) & 0xff);
+        out.write(data, 0, length);
+    }
+
+    /////////////////////////////////////////////////////////////////////////////
+    // Fixed fields
+    /////////////////////////////////////////////////////////////////////////////
+
+    /** The reference index, or -1 if there is none. */
+    public int getReferenceIndex() { return getInt(data, REF_ID_OFFSET); }
+
+    /** The 1-based alignment start, or 0 if there is none. */
+    public int getAlignmentStart() { return getInt(data, POS_OFFSET) + 1; }
+
+    public int getFlags() { return (data[FLAG_OFFSET] & 0xff) | ((data[FLAG_OFFSET + 1] & 0xff) << 8); }
+
+    public void setFlags(final int flags) {
+        data[FLAG_OFFSET] = (byte) flags;
+        data[FLAG_OFFSET + 1] = (byte) (flags >>> 8);
+    }
+
+    /////////////////////////////////////////////////////////////////////////////
+    // Tags
+    /////////////////////////////////////////////////////////////////////////////
+
+    /** Returns the value of a tag of type Z, or null if the record has no such tag. */
+    public String getStringAttribute(final String tag) {
+        final int offset = findTag(tag);
+        if (offset < 0) return null;
+        if (data[offset + 2] != 'Z') throw new PicardException("Tag " + tag + " is not of type Z");
+        return StringUtil.bytesToString(data, offset + 3, tagSize(offset) - 4);
+    }
+
+    /**
+     * Sets a tag to a value of type Z, or removes the tag if value is null.  A tag that is already present is
+     * replaced in place wherever it is, since records not written by htsjdk have their tags in no particular order.
+     * A new one is inserted before the first tag that htsjdk orders after it, as SAMRecord.setAttribute() does, so
+     * that the tags of records written by htsjdk come out in the same order.
+     */
+    public void setStringAttribute(final String tag, final String value) {
+        final int existing = findTag(tag);
+        if (value == null) {
+            if (existing >= 0) resize(existing, tagSize(existing), 0);
+            return;
+        }
+
+        int offset = existing;
+        final int oldSize;
+        if (existing >= 0) {
+            oldSize = tagSize(existing);
+        } else {
+            final short binaryTag = binaryTag(tag);
+            offset = getTagsStart();
+            while (offset < length && binaryTag > binaryTag(data, offset)) offset += tagSize(offset);
+            oldSize = 0;
+        }
+        final byte[] bytes = StringUtil.stringToBytes(value);
+        final int newSize = 3 + bytes.length + 1;
+        resize(offset, oldSize, newSize);
+        data[offset] = (byte) tag.charAt(0);
+        data[offset + 1] = (byte) tag.charAt(1);
+        data[offset + 2] = 'Z';
+        System.arraycopy(bytes, 0, data, offset + 3, bytes.length);
+        data[offset + 3 + bytes.length] = 0;
+    }
+
+    /** The offset of the first byte after the fixed fields, read name, cigar, bases and qualities. */
+    private int getTagsStart() {
+        final int readNameLength = data[L_READ_NAME_OFFSET] & 0xff;
+        final int numCigarOps = (data[N_CIGAR_OP_OFFSET] & 0xff) | ((data[N_CIGAR_OP_OFFSET + 1] & 0xff) << 8);
+        final int readLength = getInt(data, L_SEQ_OFFSET);
+        return READ_NAME_OFFSET + readNameLength + 4 * numCigarOps + (readLength + 1) / 2 + readLength;
+    }
+
+    /** The offset of the tag, or -1 if the record does not have it. */
+    private int findTag(final String tag) {
+        for (int offset = getTagsStart(); offset < length; offset += tagSize(offset)) {
+            if (data[offset] == tag.charAt(0) && data[offset + 1] == tag.charAt(1)) return offset;
+        }
+        return -1;
+    }
+
+    /** The number of bytes taken by the tag, type and value of the tag at the offset. */
+    private int tagSize(final int offset) {
+        final int valueOffset = offset + 3;
+        final byte type = data[offset + 2];
+        switch (type) {
+            case 'Z':
+            case 'H':
+                int end = valueOffset;
+                while (data[end] != 0) ++end;
+                return end + 1 - offset;
+            case 'B':
+                return 3 + 1 + 4 + getInt(data, valueOffset + 1) * valueSize(data[valueOffset]);
+            default:
+                return 3 + valueSize(type);
+        }
+    }
+
+    private static int valueSize(final byte type) {
+        switch (type) {
+            case 'A':
+            case 'c':
+            case 'C':
+                return 1;
+            case 's':
+            case 'S':
+                return 2;
+            case 'i':
+            case 'I':
+            case 'f':
+                return 4;
+            default:
+                throw new PicardException("Unknown BAM tag type " + (char) type);
+        }
+    }
+
+    /** The tag as htsjdk stores it in a short, which orders tags by their second character and then their first. */
+    private static short binaryTag(final String tag) {
+        return (short) (tag.charAt(1) << 8 | tag.charAt(0));
+    }
+
+    private static short binaryTag(final byte[] data, final int offset) {
+        return (short) ((data[offset + 1] & 0xff) << 8 | (data[offset] & 0xff));
+    }
+
+    /** Replaces the oldSize bytes at the offset with newSize bytes, which are left for the caller to fill in. */
+    private void resize(final int offset, final int oldSize, final int newSize) {
+        final int newLength = length - oldSize + newSize;
+        if (newLength > data.length) data = Arrays.copyOf(data, Math.max(newLength, data.length * 2));
+        System.arraycopy(data, offset + oldSize, data, offset + newSize, length - offset - oldSize);
+        length = newLength;
+    }
+
+    /////////////////////////////////////////////////////////////////////////////
+    // Little-endian helpers
+    /////////////////////////////////////////////////////////////////////////////
+
+    private static int getInt(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8) | ((bytes[offset + 2] & 0xff) << 16) | ((bytes[offset + 3] & 0xff) << 24);
+    }
+
+    private static int readInt(final InputStream in) throws IOException {
+        final byte[] bytes = new byte[4];
+        readFully(in, bytes, 0, 4);
+        return getInt(bytes, 0);
+    }
+
+    private static void readFully(final InputStream in, final byte[] bytes, int offset, int count) throws IOException {
+        while (count > 0) {
+            final int n = in.read(bytes, offset, count);
+            if (n < 0) throw new EOFException("Premature end of BAM file");
+            offset += n;
+            count -= n;
+        }
+    }
+
+    private static void skipFully(final InputStream in, final long count) throws IOException {
+        final byte[] buffer = new byte[(int) Math.min(count, 64 * 1024)];
+        long remaining = count;
+        while (remaining > 0) {
+            final int n = (int) Math.min(remaining, buffer.length);
+            readFully(in, buffer, 0, n);
+            remaining -= n;
+        }
+    }
+}
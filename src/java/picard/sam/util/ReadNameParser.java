@@ -19,6 +19,10 @@ public class ReadNameParser {
      * which assumes that fields in the read name are delimited by ':' and the last three fields correspond to the tile, x and y locations,
      * ignoring any trailing non-digit characters.
      *
+     * A regex of that form, or one of the other forms that {@link ReadNameTemplate#fromRegex(String)} converts, is parsed by the
+     * equivalent {@link ReadNameTemplate} rather than matched as a regex.  A {@link ReadNameTemplate} may also be given directly in
+     * place of the regex, e.g. "split ':' fields -3,-2,-1".
+     *
      * The default regex is optimized for fast parsing (see {@link #getLastThreeFields(String, char, int[])}) by searching for the last
      * three fields, ignoring any trailing non-digit characters, assuming the delimiter ':'.  This should consider correctly read names
      * where we have 5 or 7 field with the last three fields being tile/x/y, as is the case for the majority of read names produced by
@@ -32,6 +36,9 @@ public class ReadNameParser {
 
     private Pattern readNamePattern;
 
+    /** The template used in place of the regex if it is one or the regex can be converted to one, otherwise null. */
+    private final ReadNameTemplate readNameTemplate;
+
     private boolean warnedAboutRegexNotMatching = false;
 
     private final Log log;
@@ -62,6 +69,21 @@ public class ReadNameParser {
     public ReadNameParser(final String readNameRegex, final Log log) {
         this.readNameRegex = readNameRegex;
         this.log = log;
+        if (readNameRegex == null || readNameRegex == DEFAULT_READ_NAME_REGEX) {
+            this.readNameTemplate = null;
+        } else if (ReadNameTemplate.isTemplate(readNameRegex)) {
+            this.readNameTemplate = ReadNameTemplate.parse(readNameRegex);
+        } else {
+            this.readNameTemplate = ReadNameTemplate.fromRegex(readNameRegex);
+            if (this.readNameTemplate != null && log != null) {
+                log.info("READ_NAME_REGEX '" + readNameRegex + "' will be parsed as the read name template \"" + readNameTemplate + "\".");
+            }
+        }
+    }
+
+    /** Returns the template read names are parsed with in place of the regex, or null if they are not. */
+    public ReadNameTemplate getReadNameTemplate() {
+        return readNameTemplate;
     }
 
     /**
@@ -93,6 +115,15 @@ public class ReadNameParser {
                 return true;
             } else if (this.readNameRegex == null) {
                 return false;
+            } else if (this.readNameTemplate != null) {
+                if (!this.readNameTemplate.getLocation(readName, tmpLocationFields)) {
+                    warnRegexNotMatching(readName);
+                    return false;
+                }
+                loc.setTile((short) tmpLocationFields[0]);
+                loc.setX(tmpLocationFields[1]);
+                loc.setY(tmpLocationFields[2]);
+                return true;
             } else {
                 // Standard version that will use the regex
                 if (this.readNamePattern == null) this.readNamePattern = Pattern.compile(this.readNameRegex);
@@ -104,12 +135,7 @@ public class ReadNameParser {
                     loc.setY(Integer.parseInt(m.group(3)));
                     return true;
                 } else {
-                    if (null != log && !this.warnedAboutRegexNotMatching) {
-                        this.log.warn(String.format("READ_NAME_REGEX '%s' did not match read name '%s'.  Your regex may not be correct.  " +
-                                        "Note that this message will not be emitted again even if other read names do not match the regex.",
-                                this.readNameRegex, readName));
-                        warnedAboutRegexNotMatching = true;
-                    }
+                    warnRegexNotMatching(readName);
                     return false;
                 }
             }
@@ -124,6 +150,15 @@ public class ReadNameParser {
         }
     }
 
+    private void warnRegexNotMatching(final String readName) {
+        if (null != log && !this.warnedAboutRegexNotMatching) {
+            this.log.warn(String.format("READ_NAME_REGEX '%s' did not match read name '%s'.  Your regex may not be correct.  " +
+                            "Note that this message will not be emitted again even if other read names do not match the regex.",
+                    this.readNameRegex, readName));
+            warnedAboutRegexNotMatching = true;
+        }
+    }
+
     /**
      * Given a string, splits the string by the delimiter, and returns the the last three fields parsed as integers.  Parsing a field
      * considers only a sequence of digits up until the first non-digit character.  The three values are stored in the passed-in array.
@@ -0,0 +1,297 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.sam.util;
+
+import picard.PicardException;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A read name format, for the common case of a read name made of fields separated by one character, which parses the
+ * tile, x and y out of a read name without a regex match.  The read name is scanned once in place, without substrings
+ * or Integer.parseInt, so nothing is allocated per read.
+ * <p/>
+ * A template is written as
+ * <pre>[after 'C'] split 'D' [signed] fields I,J,K</pre>
+ * which takes the tile, x and y from fields I, J and K of the read name split on the character D.  Fields are numbered
+ * from 1, and negative numbers count from the end, so -1 is the last field.  With "after 'C'" only the part of the
+ * read name after the last C is split.  Each of the three fields must start with at least one digit, or with a '-'
+ * and a digit if "signed" is given, and is parsed up to its first non-digit.  A read name does not match if it has too
+ * few fields, or a number does not fit in an int.  For example
+ * <pre>split ':' fields -3,-2,-1</pre>
+ * parses the last three ':' separated fields, and
+ * <pre>after '_' split ':' fields 1,2,3</pre>
+ * parses names such as "SRR001.4_1101:1234:5678".
+ * <p/>
+ * {@link #fromRegex(String)} converts the usual regexes for such read names into the template that matches the same
+ * read names and parses the same values, so that those need not be matched as regexes either.
+ */
+public class ReadNameTemplate {
+    private static final Pattern TEMPLATE_PATTERN = Pattern.compile(
+            "\\s*(?:after\\s+'(.)'\\s+)?split\\s+'(.)'\\s+(signed\\s+)?fields\\s+(-?\\d+)\\s*,\\s*(-?\\d+)\\s*,\\s*(-?\\d+)\\s*");
+
+    /** The characters that must be escaped to be matched literally in a regex. */
+    private static final String REGEX_METACHARACTERS = ".$|()[]{}^?*+\\";
+
+    private static final int NO_AFTER = -1;
+
+    /** The character after the last of which the read name is split, or NO_AFTER to split the whole read name. */
+    private final int after;
+    private final char delimiter;
+    private final boolean signed;
+    /** The tile, x and y field numbers, from 1 at the start or from -1 at the end. */
+    private final int[] fields;
+    private final boolean countsFromEnd;
+
+    private ReadNameTemplate(final int after, final char delimiter, final boolean signed, final int[] fields) {
+        if (Character.isDigit(delimiter)) {
+            throw new PicardException("Invalid read name template delimiter '" + delimiter + "'");
+        }
+        boolean countsFromEnd = false;
+        for (final int field : fields) {
+            if (field == 0) throw new PicardException("Read name template fields are numbered from 1, or from -1 at the end");
+            countsFromEnd |= field < 0;
+        }
+        this.after = after;
+        this.delimiter = delimiter;
+        this.signed = signed;
+        this.fields = fields;
+        this.countsFromEnd = countsFromEnd;
+    }
+
+    /** Returns true if the string is written in the template syntax, rather than being a regex. */
+    public static boolean isTemplate(final String template) {
+        return template != null && TEMPLATE_PATTERN.matcher(template).matches();
+    }
+
+    /** Parses a template written in the syntax described above. */
+    public static ReadNameTemplate parse(final String template) {
+        final Matcher m = TEMPLATE_PATTERN.matcher(template);
+        if (!m.matches()) throw new PicardException("Invalid read name template: " + template);
+        try {
+            return new ReadNameTemplate(m.group(1) == null ? NO_AFTER : m.group(1).charAt(0), m.group(2).charAt(0), m.group(3) != null,
+                    new int[]{Integer.parseInt(m.group(4)), Integer.parseInt(m.group(5)), Integer.parseInt(m.group(6))});
+        } catch (final NumberFormatException e) {
+            throw new PicardException("Invalid read name template field number: " + template, e);
+        }
+    }
+
+    /**
+     * Returns the template that matches the same read names as the regex and parses the same tile, x and y from them,
+     * or null if the regex is not one of the forms that can be converted.  Those are, for a delimiter D and with
+     * optional ^ and $ anchors:
+     * <ul>
+     * <li>(?:.*D)?(N)[^D]*D(N)[^D]*D(N)[^D]*, which parses the last three fields,</li>
+     * <li>any number of [^D]*D followed by (N)[^D]*D(N)[^D]*D(N).* or (N)[^D]*D(N)[^D]*D(N)[^D]*.*, which parses the
+     * three fields after those,</li>
+     * </ul>
+     * where each N is [0-9]+ or \d+, or -?[0-9]+ or -?\d+ in all three groups for signed numbers, in which case D
+     * may not be '-'.
+     */
+    public static ReadNameTemplate fromRegex(final String regex) {
+        if (regex == null) return null;
+
+        // The delimiter is the character that the fields must not contain
+        final int classStart = regex.indexOf("[^");
+        if (classStart < 0 || classStart + 2 >= regex.length()) return null;
+        final char delimiter = regex.charAt(classStart + 2) == '\\' && classStart + 3 < regex.length() ?
+                regex.charAt(classStart + 3) : regex.charAt(classStart + 2);
+        if (Character.isLetterOrDigit(delimiter)) return null;
+
+        final RegexScanner scanner = new RegexScanner(regex, delimiter);
+        scanner.eat("^");
+        final boolean countsFromEnd = scanner.eatCountFromEndPrefix();
+        int leadingFields = 0;
+        if (!countsFromEnd) {
+            while (scanner.eatIgnoredField()) ++leadingFields;
+        }
+
+        Boolean signed = null;
+        for (int i = 0; i < 3; ++i) {
+            final Boolean groupSigned = scanner.eatNumberGroup();
+            if (groupSigned == null || (signed != null && !signed.equals(groupSigned))) return null;
+            signed = groupSigned;
+
+            if (i < 2) {
+                if (!scanner.eatFieldRemainder() || !scanner.eatDelimiter()) return null;
+            } else if (countsFromEnd) {
+                if (!scanner.eatFieldRemainder()) return null;
+            } else {
+                scanner.eatFieldRemainder();
+                if (!scanner.eat(".*")) return null;
+            }
+        }
+        scanner.eat("$");
+        if (!scanner.atEnd()) return null;
+        // A minus sign would then also be a delimiter, so the regex can match read names that the template splits
+        // into different fields, such as a-1--2-3
+        if (signed && delimiter == '-') return null;
+
+        final int first = countsFromEnd ? -3 : leadingFields + 1;
+        return new ReadNameTemplate(NO_AFTER, delimiter, signed, new int[]{first, first + 1, first + 2});
+    }
+
+    /**
+     * Parses the tile, x and y out of the read name into the first three elements of location.
+     *
+     * @return true if the read name matched the template, false otherwise, in which case location is undefined
+     */
+    public boolean getLocation(final String readName, final int[] location) {
+        final int start = after == NO_AFTER ? 0 : readName.lastIndexOf(after) + 1;
+        if (start == 0 && after != NO_AFTER) return false;
+
+        int numFields = 0;
+        if (countsFromEnd) {
+            numFields = 1;
+            for (int i = start; i < readName.length(); ++i) {
+                if (readName.charAt(i) == delimiter) ++numFields;
+            }
+        }
+
+        // Resolve the field numbers, and scan up to the last of them, parsing each as it is reached
+        final int tileField = fields[0] > 0 ? fields[0] : numFields + 1 + fields[0];
+        final int xField = fields[1] > 0 ? fields[1] : numFields + 1 + fields[1];
+        final int yField = fields[2] > 0 ? fields[2] : numFields + 1 + fields[2];
+        if (tileField < 1 || xField < 1 || yField < 1) return false;
+        final int lastField = Math.max(tileField, Math.max(xField, yField));
+
+        int fieldStart = start;
+        for (int field = 1; ; ++field) {
+            int fieldEnd = readName.indexOf(delimiter, fieldStart);
+            if (fieldEnd < 0) fieldEnd = readName.length();
+
+            if (field == tileField && !parseNumber(readName, fieldStart, fieldEnd, location, 0)) return false;
+            if (field == xField && !parseNumber(readName, fieldStart, fieldEnd, location, 1)) return false;
+            if (field == yField && !parseNumber(readName, fieldStart, fieldEnd, location, 2)) return false;
+            if (field == lastField) return true;
+
+            if (fieldEnd == readName.length()) return false;
+            fieldStart = fieldEnd + 1;
+        }
+    }
+
+    /** Parses the number at the start of readName[start, end) into location[index], returning false if there is none. */
+    private boolean parseNumber(final String readName, final int start, final int end, final int[] location, final int index) {
+        int i = start;
+        final boolean negative = signed && i < end && readName.charAt(i) == '-';
+        if (negative) ++i;
+
+        final long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+        final int digitsStart = i;
+        long value = 0;
+        for (; i < end; ++i) {
+            final char ch = readName.charAt(i);
+            if (ch < '0' || ch > '9') break;
+            value = value * 10 + (ch - '0');
+            if (value > limit) return false;
+        }
+        if (i == digitsStart) return false;
+
+        location[index] = (int) (negative ? -value : value);
+        return true;
+    }
+
+    /** The template in the syntax that {@link #parse(String)} reads. */
+    @Override
+    public String toString() {
+        return (after == NO_AFTER ? "" : "after '" + (char) after + "' ") + "split '" + delimiter + "' " + (signed ? "signed " : "") +
+                "fields " + fields[0] + "," + fields[1] + "," + fields[2];
+    }
+
+    /** Reads the pieces of a regex that {@link #fromRegex(String)} knows how to convert, for one delimiter. */
+    private static class RegexScanner {
+        private final String regex;
+        private final String[] delimiters;
+        private final String[] ignoredFields;
+        private int pos = 0;
+
+        RegexScanner(final String regex, final char delimiter) {
+            this.regex = regex;
+            if (REGEX_METACHARACTERS.indexOf(delimiter) >= 0) {
+                delimiters = new String[]{"\\" + delimiter};
+            } else {
+                delimiters = new String[]{String.valueOf(delimiter), "\\" + delimiter};
+            }
+            if (delimiter == ']' || delimiter == '[' || delimiter == '\\') {
+                ignoredFields = new String[]{"[^\\" + delimiter + "]*"};
+            } else {
+                ignoredFields = new String[]{"[^" + delimiter + "]*", "[^\\" + delimiter + "]*"};
+            }
+        }
+
+        boolean atEnd() {
+            return pos == regex.length();
+        }
+
+        boolean eat(final String token) {
+            if (!regex.startsWith(token, pos)) return false;
+            pos += token.length();
+            return true;
+        }
+
+        private boolean eatAny(final String[] tokens) {
+            for (final String token : tokens) {
+                if (eat(token)) return true;
+            }
+            return false;
+        }
+
+        boolean eatDelimiter() {
+            return eatAny(delimiters);
+        }
+
+        /** Eats the rest of a field after its number, i.e. [^D]*. */
+        boolean eatFieldRemainder() {
+            return eatAny(ignoredFields);
+        }
+
+        /** Eats a whole field that is not parsed, i.e. [^D]*D. */
+        boolean eatIgnoredField() {
+            final int start = pos;
+            if (eatFieldRemainder() && eatDelimiter()) return true;
+            pos = start;
+            return false;
+        }
+
+        /** Eats the optional leading fields before the last three, i.e. (?:.*D)?. */
+        boolean eatCountFromEndPrefix() {
+            for (final String delimiter : delimiters) {
+                if (eat("(?:.*" + delimiter + ")?")) return true;
+            }
+            return false;
+        }
+
+        /** Eats a capture group of digits, returning whether it allows a sign, or null if there is no such group. */
+        Boolean eatNumberGroup() {
+            final int start = pos;
+            if (eat("(")) {
+                final boolean signed = eat("-?");
+                if ((eat("[0-9]+") || eat("\\d+")) && eat(")")) return signed;
+            }
+            pos = start;
+            return null;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of non-negative long indexes, in the manner of {@link java.util.BitSet}, which can be set in any order and
+ * read back in order, and which only uses memory in proportion to the number of bits set.
+ * <p/>
+ * The indexes are split into chunks of 2^16 consecutive values.  A chunk with few bits set keeps its set values in a
+ * sorted array of 16-bit values, and one with more than {@link #MAX_ARRAY_CHUNK_SIZE} bits set, for which the array
+ * would be larger, is converted to a plain bitmap of 8KB.  So a set never takes more than about one bit per index
+ * below its largest index, and far less if the bits set are sparse.
+ */
+public class CompressedBitSet {
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+    /** The largest number of values kept in an array chunk, which then takes as much memory as a bitmap chunk. */
+    static final int MAX_ARRAY_CHUNK_SIZE = 4096;
+
+    /** The largest index that may be set. */
+    public static final long MAX_INDEX = (1L << 46) - 1;
+
+    /** Index of this array is the index of the chunk, i.e. the high bits of the indexes in it. */
+    private Chunk[] chunks = new Chunk[0];
+    private long cardinality = 0;
+
+    /** Sets the bit at the given index. */
+    public void set(final long index) {
+        if (index < 0 || index > MAX_INDEX) throw new IllegalArgumentException("Index out of range: " + index);
+
+        final int chunkIndex = (int) (index >>> CHUNK_BITS);
+        if (chunkIndex >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.min(1 << (46 - CHUNK_BITS), Math.max(chunkIndex + 1, chunks.length * 2)));
+        }
+        Chunk chunk = chunks[chunkIndex];
+        if (chunk == null) chunk = new ArrayChunk();
+
+        final int sizeBefore = chunk.size();
+        chunk = chunk.add((int) index & CHUNK_MASK);
+        chunks[chunkIndex] = chunk;
+        cardinality += chunk.size() - sizeBefore;
+    }
+
+    /** Returns true if the bit at the given index is set. */
+    public boolean get(final long index) {
+        if (index < 0 || index > MAX_INDEX) return false;
+        final int chunkIndex = (int) (index >>> CHUNK_BITS);
+        return chunkIndex < chunks.length && chunks[chunkIndex] != null && chunks[chunkIndex].contains((int) index & CHUNK_MASK);
+    }
+
+    /** Returns the first index at or after fromIndex whose bit is set, or -1 if there is none. */
+    public long nextSetBit(final long fromIndex) {
+        if (fromIndex < 0) throw new IllegalArgumentException("Index out of range: " + fromIndex);
+        if (fromIndex > MAX_INDEX) return -1;
+
+        int from = (int) fromIndex & CHUNK_MASK;
+        for (int chunkIndex = (int) (fromIndex >>> CHUNK_BITS); chunkIndex < chunks.length; ++chunkIndex) {
+            if (chunks[chunkIndex] != null) {
+                final int next = chunks[chunkIndex].nextSetBit(from);
+                if (next >= 0) return ((long) chunkIndex << CHUNK_BITS) | next;
+            }
+            from = 0;
+        }
+        return -1;
+    }
+
+    /** The number of bits set. */
+    public long cardinality() {
+        return cardinality;
+    }
+
+    /** An estimate of the number of bytes of memory used by this set. */
+    public long getSizeInBytes() {
+        long bytes = 16 + 8L * chunks.length;
+        for (final Chunk chunk : chunks) {
+            if (chunk != null) bytes += chunk.getSizeInBytes();
+        }
+        return bytes;
+    }
+
+    /** The set values of 2^16 consecutive indexes, by their low 16 bits. */
+    private interface Chunk {
+        /** Adds the value, returning the chunk now holding this chunk's values, which may be a new one. */
+        Chunk add(int value);
+
+        boolean contains(int value);
+
+        /** Returns the smallest value at least from in this chunk, or -1 if there is none. */
+        int nextSetBit(int from);
+
+        int size();
+
+        long getSizeInBytes();
+    }
+
+    /** A chunk of few values, kept as a sorted array. */
+    private static class ArrayChunk implements Chunk {
+        private char[] values = new char[4];
+        private int size = 0;
+
+        public Chunk add(final int value) {
+            int pos = Arrays.binarySearch(values, 0, size, (char) value);
+            if (pos >= 0) return this;
+            if (size == MAX_ARRAY_CHUNK_SIZE) return toBitmapChunk().add(value);
+
+            pos = -pos - 1;
+            if (size == values.length) values = Arrays.copyOf(values, Math.min(size * 2, MAX_ARRAY_CHUNK_SIZE));
+            System.arraycopy(values, pos, values, pos + 1, size - pos);
+            values[pos] = (char) value;
+            ++size;
+            return this;
+        }
+
+        public boolean contains(final int value) {
+            return Arrays.binarySearch(values, 0, size, (char) value) >= 0;
+        }
+
+        public int nextSetBit(final int from) {
+            int pos = Arrays.binarySearch(values, 0, size, (char) from);
+            if (pos < 0) pos = -pos - 1;
+            return pos < size ? values[pos] : -1;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long getSizeInBytes() {
+            return 32 + 2L * values.length;
+        }
+
+        private BitmapChunk toBitmapChunk() {
+            final BitmapChunk bitmap = new BitmapChunk();
+            for (int i = 0; i < size; ++i) bitmap.add(values[i]);
+            return bitmap;
+        }
+    }
+
+    /** A chunk of many values, kept as one bit per possible value. */
+    private static class BitmapChunk implements Chunk {
+        private final long[] words = new long[(CHUNK_MASK + 1) / 64];
+        private int size = 0;
+
+        public Chunk add(final int value) {
+            final long bit = 1L << value;
+            final int word = value >>> 6;
+            if ((words[word] & bit) == 0) {
+                words[word] |= bit;
+                ++size;
+            }
+            return this;
+        }
+
+        public boolean contains(final int value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        public int nextSetBit(final int from) {
+            int word = from >>> 6;
+            long bits = words[word] & (-1L << from);
+            while (bits == 0) {
+                if (++word == words.length) return -1;
+                bits = words[word];
+            }
+            return (word << 6) + Long.numberOfTrailingZeros(bits);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long getSizeInBytes() {
+            return 32 + 8L * words.length;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A read's bases packed two bits per base into longs, 32 bases to a word, for comparing many reads against each other.
+ * Mismatches are counted 32 bases at a time by XORing words and counting the bits set, rather than base by base.
+ * <p/>
+ * Only A, C, G and T are packed.  Every other base, i.e. N, other IUPAC codes or lower case bases, is a no-call, kept
+ * in a separate mask along with its byte, both of which are only allocated for reads that have any.  Bases compare as
+ * their bytes would: a no-call mismatches any called base, and matches another no-call only if it is the same byte.
+ */
+public class PackedBases {
+    private static final int BASES_PER_WORD = 32;
+
+    /** The low bit of each base's two bits. */
+    private static final long LOW_BITS = 0x5555555555555555L;
+
+    private static final byte[] BASES = {'A', 'C', 'G', 'T'};
+
+    /** The two bit code of each byte value, or -1 for a no-call. */
+    private static final byte[] CODES = new byte[256];
+
+    static {
+        Arrays.fill(CODES, (byte) -1);
+        for (byte code = 0; code < BASES.length; ++code) CODES[BASES[code]] = code;
+    }
+
+    private final int length;
+
+    /** Base i is in bits 2*(i%32) and 2*(i%32)+1 of word i/32. */
+    private final long[] words;
+
+    /** The low bit of the two bits of each no-call base is set, or null if there are none. */
+    private final long[] noCalls;
+
+    /** The byte of each no-call base at its index, the other bytes being unused, or null if there are none. */
+    private final byte[] noCallBases;
+
+    /** Packs the first length bases. */
+    public PackedBases(final byte[] bases, final int length) {
+        this.length = length;
+        this.words = new long[getNumWords(length)];
+        long[] noCalls = null;
+        for (int i = 0; i < length; ++i) {
+            final int code = CODES[bases[i] & 0xff];
+            final int shift = 2 * (i % BASES_PER_WORD);
+            if (code >= 0) {
+                words[i / BASES_PER_WORD] |= (long) code << shift;
+            } else {
+                if (noCalls == null) noCalls = new long[words.length];
+                noCalls[i / BASES_PER_WORD] |= 1L << shift;
+            }
+        }
+        this.noCalls = noCalls;
+        this.noCallBases = noCalls == null ? null : Arrays.copyOf(bases, length);
+    }
+
+    public PackedBases(final byte[] bases) {
+        this(bases, bases.length);
+    }
+
+    private PackedBases(final int length, final long[] words, final long[] noCalls, final byte[] noCallBases) {
+        this.length = length;
+        this.words = words;
+        this.noCalls = noCalls;
+        this.noCallBases = noCallBases;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /** Returns the base at the index. */
+    public byte getBase(final int index) {
+        if (index < 0 || index >= length) throw new IndexOutOfBoundsException("Index " + index + " of " + length + " bases");
+        final int shift = 2 * (index % BASES_PER_WORD);
+        if (noCalls != null && (noCalls[index / BASES_PER_WORD] >>> shift & 1) != 0) return noCallBases[index];
+        return BASES[(int) (words[index / BASES_PER_WORD] >>> shift) & 3];
+    }
+
+    /** Returns the bases from start to end, exclusive. */
+    public byte[] getBases(final int start, final int end) {
+        final byte[] bases = new byte[end - start];
+        for (int i = start; i < end; ++i) bases[i - start] = getBase(i);
+        return bases;
+    }
+
+    /**
+     * Counts the mismatches between these bases and the other's from start to end, exclusive, which must be within
+     * both.  Stops counting once there are more than maxMismatches, so the result is only exact up to that.
+     */
+    public int countMismatches(final PackedBases other, final int start, final int end, final int maxMismatches) {
+        int mismatches = 0;
+        for (int word = start / BASES_PER_WORD; word * BASES_PER_WORD < end; ++word) {
+            final long mask = getMask(word, start, end);
+            final long diff = words[word] ^ other.words[word];
+            final long mismatched = ((diff | diff >>> 1) & LOW_BITS) | (getNoCalls(word) ^ other.getNoCalls(word));
+            mismatches += Long.bitCount(mismatched & mask);
+            // Where both are no-calls the packed bits are the same, so compare their bytes
+            for (long bothNoCalls = getNoCalls(word) & other.getNoCalls(word) & mask; bothNoCalls != 0; bothNoCalls &= bothNoCalls - 1) {
+                final int index = getIndex(word, bothNoCalls);
+                if (noCallBases[index] != other.noCallBases[index]) ++mismatches;
+            }
+            if (mismatches > maxMismatches) break;
+        }
+        return mismatches;
+    }
+
+    /**
+     * Compares the first prefixLength bases with the other's, which must both have at least that many.  The order is
+     * not that of the bases, but is a total order that is zero only if the prefixes are the same.
+     */
+    public int comparePrefix(final PackedBases other, final int prefixLength) {
+        for (int word = 0; word * BASES_PER_WORD < prefixLength; ++word) {
+            final long mask = getMask(word, 0, prefixLength);
+            int retval = Long.compare(words[word] & mask, other.words[word] & mask);
+            if (retval == 0) retval = Long.compare(getNoCalls(word) & mask, other.getNoCalls(word) & mask);
+            if (retval != 0) return retval;
+        }
+
+        // The no-calls are in the same places, so break ties on their bytes
+        for (int word = 0; noCalls != null && word * BASES_PER_WORD < prefixLength; ++word) {
+            for (long wordNoCalls = noCalls[word] & getMask(word, 0, prefixLength); wordNoCalls != 0; wordNoCalls &= wordNoCalls - 1) {
+                final int index = getIndex(word, wordNoCalls);
+                final int retval = Byte.compare(noCallBases[index], other.noCallBases[index]);
+                if (retval != 0) return retval;
+            }
+        }
+        return 0;
+    }
+
+    /** Writes the bases in a quarter as many bytes as there are bases, plus the no-calls and their bytes if any. */
+    public void write(final DataOutputStream out) throws IOException {
+        out.writeInt(length);
+        writeWords(out, words, length);
+        out.writeBoolean(noCalls != null);
+        if (noCalls != null) {
+            writeWords(out, noCalls, length);
+            for (int word = 0; word < noCalls.length; ++word) {
+                for (long wordNoCalls = noCalls[word]; wordNoCalls != 0; wordNoCalls &= wordNoCalls - 1) {
+                    out.writeByte(noCallBases[getIndex(word, wordNoCalls)]);
+                }
+            }
+        }
+    }
+
+    /** Reads bases written by {@link #write(DataOutputStream)}. */
+    public static PackedBases read(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        final long[] words = readWords(in, length);
+        long[] noCalls = null;
+        byte[] noCallBases = null;
+        if (in.readBoolean()) {
+            noCalls = readWords(in, length);
+            noCallBases = new byte[length];
+            for (int word = 0; word < noCalls.length; ++word) {
+                for (long wordNoCalls = noCalls[word]; wordNoCalls != 0; wordNoCalls &= wordNoCalls - 1) {
+                    noCallBases[getIndex(word, wordNoCalls)] = in.readByte();
+                }
+            }
+        }
+        return new PackedBases(length, words, noCalls, noCallBases);
+    }
+
+    private long getNoCalls(final int word) {
+        return noCalls == null ? 0 : noCalls[word];
+    }
+
+    /** The index of the base of the lowest bit set in the bits of the word. */
+    private static int getIndex(final int word, final long bits) {
+        return word * BASES_PER_WORD + Long.numberOfTrailingZeros(bits) / 2;
+    }
+
+    /** The mask of both bits of the bases of the word from start to end, exclusive. */
+    private static long getMask(final int word, final int start, final int end) {
+        final int from = Math.max(start - word * BASES_PER_WORD, 0);
+        final int to = Math.min(end - word * BASES_PER_WORD, BASES_PER_WORD);
+        final long below = to == BASES_PER_WORD ? -1L : (1L << 2 * to) - 1;
+        return below & (-1L << 2 * from);
+    }
+
+    private static int getNumWords(final int length) {
+        return (length + BASES_PER_WORD - 1) / BASES_PER_WORD;
+    }
+
+    private static void writeWords(final DataOutputStream out, final long[] words, final int length) throws IOException {
+        final int numBytes = (length + 3) / 4;
+        for (int i = 0; i < numBytes; ++i) out.write((int) (words[i / 8] >>> 8 * (i % 8)));
+    }
+
+    private static long[] readWords(final DataInputStream in, final int length) throws IOException {
+        final long[] words = new long[getNumWords(length)];
+        final int numBytes = (length + 3) / 4;
+        for (int i = 0; i < numBytes; ++i) words[i / 8] |= (long) in.readUnsignedByte() << 8 * (i % 8);
+        return words;
+    }
+}
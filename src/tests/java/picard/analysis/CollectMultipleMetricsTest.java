@@ -7,10 +7,15 @@ import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordSetBuilder;
 import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.BufferedLineReader;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
 import org.testng.Assert;
 import org.testng.annotations.BeforeTest;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import picard.cmdline.CommandLineProgramTest;
 import picard.sam.SortSam;
@@ -38,8 +43,13 @@ public class CollectMultipleMetricsTest extends CommandLineProgramTest {
     }
 
 
-    @Test
-    public void testAlignmentSummaryViaMultipleMetrics() throws IOException {
+    @DataProvider(name = "numThreads")
+    public Object[][] numThreads() {
+        return new Object[][] {{1}, {2}};
+    }
+
+    @Test(dataProvider = "numThreads")
+    public void testAlignmentSummaryViaMultipleMetrics(final int numThreads) throws IOException {
         final File input = new File(TEST_DATA_DIR, "summary_alignment_stats_test.sam");
         final File reference = new File(TEST_DATA_DIR, "summary_alignment_stats_test.fasta");
         final File outfile   = File.createTempFile("alignmentMetrics", "");
@@ -51,7 +61,8 @@ public class CollectMultipleMetricsTest extends CommandLineProgramTest {
                 "METRIC_ACCUMULATION_LEVEL="+MetricAccumulationLevel.ALL_READS.name(),
                 "PROGRAM=null",
                 "PROGRAM="+CollectMultipleMetrics.Program.CollectAlignmentSummaryMetrics.name(),
-                "PROGRAM="+CollectMultipleMetrics.Program.CollectInsertSizeMetrics.name()
+                "PROGRAM="+CollectMultipleMetrics.Program.CollectInsertSizeMetrics.name(),
+                "NUM_THREADS=" + numThreads
         };
         Assert.assertEquals(runPicardCommandLine(args), 0);
 
@@ -262,6 +273,54 @@ public class CollectMultipleMetricsTest extends CommandLineProgramTest {
         }
     }
 
+    @Test
+    public void testShardedMatchesSinglePass() throws IOException {
+        // Write the SAM out as an indexed BAM so that it can be sharded by reference sequence
+        final File tmpDir = IOUtil.createTempDir("CollectMultipleMetricsTest", null);
+        final File bam = new File(tmpDir, "summary_alignment_stats_test.bam");
+        final SamReader reader = SamReaderFactory.makeDefault().open(new File(TEST_DATA_DIR, "summary_alignment_stats_test.sam"));
+        final SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(reader.getFileHeader(), true, bam);
+        for (final SAMRecord rec : reader) writer.addAlignment(rec);
+        writer.close();
+        CloserUtil.close(reader);
+
+        // The sharded run also reads the reference through the packed copy, which is built next to this copy of the FASTA
+        final File fasta = new File(TEST_DATA_DIR, "summary_alignment_stats_test.fasta");
+        final File packedFasta = new File(tmpDir, fasta.getName());
+        IOUtil.copyFile(fasta, packedFasta);
+
+        final String[] extensions = {".alignment_summary_metrics", ".insert_size_metrics", ".quality_distribution_metrics",
+                ".quality_by_cycle_metrics", ".base_distribution_by_cycle_metrics", ".quality_yield_metrics"};
+        final File singlePass = new File(tmpDir, "single_pass");
+        final File sharded = new File(tmpDir, "sharded");
+        for (final File outbase : new File[] {singlePass, sharded}) {
+            final String[] args = new String[] {
+                    "INPUT="  + bam.getAbsolutePath(),
+                    "OUTPUT=" + outbase.getAbsolutePath(),
+                    "REFERENCE_SEQUENCE=" + (outbase == sharded ? packedFasta : fasta).getAbsolutePath(),
+                    "PROGRAM=null",
+                    "PROGRAM="+CollectMultipleMetrics.Program.CollectAlignmentSummaryMetrics.name(),
+                    "PROGRAM="+CollectMultipleMetrics.Program.CollectInsertSizeMetrics.name(),
+                    "PROGRAM="+CollectMultipleMetrics.Program.QualityScoreDistribution.name(),
+                    "PROGRAM="+CollectMultipleMetrics.Program.MeanQualityByCycle.name(),
+                    "PROGRAM="+CollectMultipleMetrics.Program.CollectBaseDistributionByCycle.name(),
+                    "PROGRAM="+CollectMultipleMetrics.Program.CollectQualityYieldMetrics.name(),
+                    "SHARD_BY_INDEX=" + (outbase == sharded),
+                    "USE_PACKED_REFERENCE=" + (outbase == sharded),
+                    "NUM_THREADS=3"
+            };
+            Assert.assertEquals(runPicardCommandLine(args), 0);
+        }
+
+        for (final String extension : extensions) {
+            final File expected = new File(singlePass + extension);
+            final File actual = new File(sharded + extension);
+            Assert.assertTrue(expected.exists(), expected.getName());
+            Assert.assertTrue(MetricsFile.areMetricsAndHistogramsEqual(expected, actual), extension);
+        }
+        IOUtil.deleteDirectoryTree(tmpDir);
+    }
+
     @Test //test all gcBias collection levels
     public void testGcBiasMetrics() throws IOException{
         runGcTest(tempSamFile);
@@ -7,7 +7,9 @@ import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.util.IOUtil;
 import htsjdk.variant.utils.SAMSequenceDictionaryExtractor;
 import org.testng.Assert;
 import org.testng.annotations.BeforeTest;
@@ -101,6 +103,106 @@ public class CollectWgsMetricsTest extends CommandLineProgramTest {
         }
     }
 
+    @DataProvider(name = "fastAlgorithmDataProvider")
+    public Object[][] fastAlgorithmDataProvider() {
+        return new Object[][] {
+                // COVERAGE_CAP, LOCUS_ACCUMULATION_CAP, COUNT_UNPAIRED
+                {250, 100000, false},
+                {5, 100000, true},
+                {10, 12, false},
+                {3, 3, true}
+        };
+    }
+
+    @Test(dataProvider = "fastAlgorithmDataProvider")
+    public void testFastAlgorithmMatchesLocusIterator(final int coverageCap, final int locusAccumulationCap, final boolean countUnpaired) throws IOException {
+        final File tmpDir = IOUtil.createTempDir("CollectWgsMetricsTest", null);
+        final Random random = new Random(42);
+
+        // A reference with runs of N, lower case bases and a contig without any reads
+        final SAMFileHeader header = new SAMFileHeader();
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        final File reference = new File(tmpDir, "reference.fasta");
+        final PrintWriter fasta = new PrintWriter(reference);
+        final int[] contigLengths = {3000, 1500, 700};
+        for (int contig = 0; contig < contigLengths.length; ++contig) {
+            header.addSequence(new SAMSequenceRecord("chr" + (contig + 1), contigLengths[contig]));
+            fasta.println(">chr" + (contig + 1));
+            for (int i = 0; i < contigLengths[contig]; ++i) {
+                final boolean inNRun = (i / 100) % 7 == 3;
+                fasta.print(inNRun ? 'N' : (i % 13 == 0 ? "acgt" : "ACGT").charAt(random.nextInt(4)));
+                if (i % 60 == 59) fasta.println();
+            }
+            fasta.println();
+        }
+        fasta.close();
+
+        // Pairs that often overlap, with deletions and insertions, random qualities and some filtered reads
+        final SAMReadGroupRecord readGroupRecord = new SAMReadGroupRecord(READ_GROUP_ID);
+        readGroupRecord.setSample(SAMPLE);
+        header.addReadGroup(readGroupRecord);
+        final SAMRecordSetBuilder setBuilder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        setBuilder.setReadGroup(readGroupRecord);
+        setBuilder.setHeader(header);
+        setBuilder.setReadLength(60);
+        final String[] cigars = {"60M", "60M", "30M5D30M", "20M4I36M", "10S50M"};
+        for (int i = 0; i < 3000; ++i) {
+            final int contig = random.nextInt(2);
+            final int start = 1 + random.nextInt(contigLengths[contig] - 200);
+            if (i % 10 == 0) {
+                setBuilder.addFrag("frag" + i, contig, start, random.nextBoolean());
+            } else {
+                setBuilder.addPair("pair" + i, contig, start, start + random.nextInt(120), false, false,
+                        cigars[random.nextInt(cigars.length)], cigars[random.nextInt(cigars.length)], false, true, 30);
+            }
+        }
+
+        final File bam = new File(tmpDir, "reads.bam");
+        final SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, bam);
+        for (final SAMRecord rec : setBuilder) {
+            final byte[] qualities = new byte[rec.getReadLength()];
+            for (int i = 0; i < qualities.length; ++i) qualities[i] = (byte) random.nextInt(41);
+            rec.setBaseQualities(qualities);
+            rec.setMappingQuality(random.nextInt(10) == 0 ? 10 : 60);
+            rec.setDuplicateReadFlag(random.nextInt(20) == 0);
+            rec.setReadFailsVendorQualityCheckFlag(random.nextInt(50) == 0);
+            writer.addAlignment(rec);
+        }
+        writer.close();
+
+        // Locus iterator, fast algorithm, then fast algorithm split into shards
+        final File[] outputs = {new File(tmpDir, "locus.wgs_metrics"), new File(tmpDir, "fast.wgs_metrics"), new File(tmpDir, "threaded.wgs_metrics")};
+        for (int i = 0; i < outputs.length; ++i) {
+            final String[] args = new String[] {
+                    "INPUT=" + bam.getAbsolutePath(),
+                    "OUTPUT=" + outputs[i].getAbsolutePath(),
+                    "REFERENCE_SEQUENCE=" + reference.getAbsolutePath(),
+                    "COVERAGE_CAP=" + coverageCap,
+                    "LOCUS_ACCUMULATION_CAP=" + locusAccumulationCap,
+                    "COUNT_UNPAIRED=" + countUnpaired,
+                    "INCLUDE_BQ_HISTOGRAM=true",
+                    "SAMPLE_SIZE=0",
+                    "USE_FAST_ALGORITHM=" + (i > 0),
+                    "THREADS=" + (i == 2 ? 3 : 1),
+                    "USE_PACKED_REFERENCE=" + (i == 2)
+            };
+            Assert.assertEquals(runPicardCommandLine(args), 0);
+        }
+
+        final MetricsFile<CollectWgsMetrics.WgsMetrics, Integer> expected = new MetricsFile<CollectWgsMetrics.WgsMetrics, Integer>();
+        expected.read(new FileReader(outputs[0]));
+        Assert.assertTrue(expected.getMetrics().get(0).PCT_EXC_OVERLAP > 0);
+
+        for (int i = 1; i < outputs.length; ++i) {
+            final MetricsFile<CollectWgsMetrics.WgsMetrics, Integer> actual = new MetricsFile<CollectWgsMetrics.WgsMetrics, Integer>();
+            actual.read(new FileReader(outputs[i]));
+            Assert.assertEquals(actual.getMetrics(), expected.getMetrics(), outputs[i].getName());
+            Assert.assertTrue(actual.areHistogramsEqual(expected), outputs[i].getName());
+        }
+
+        IOUtil.deleteDirectoryTree(tmpDir);
+    }
+
     //create a samfile for testing.
     @BeforeTest
     void setupBuilder() throws IOException {
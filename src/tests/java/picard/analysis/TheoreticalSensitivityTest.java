@@ -30,9 +30,8 @@ import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Arrays;
+import java.util.List;
 import java.io.FileReader;
 import java.io.File;
 import java.util.Scanner;
@@ -55,39 +54,47 @@ public class TheoreticalSensitivityTest {
         for (int n = 0; n < 10; n++) Assert.assertEquals(deterministicWheel.draw(), 1);
 
         //test the sums of this deterministic wheel: a sum of n 1's equals n
-        final List<ArrayList<Integer>> deterministicSums = deterministicWheel.sampleCumulativeSums(10, 1);
-        for (int n = 0; n < 10; n++) Assert.assertEquals(deterministicSums.get(n).get(0), (Integer) n);
+        final int[][] deterministicSums = deterministicWheel.sampleCumulativeSums(10, 1);
+        for (int n = 0; n < 10; n++) Assert.assertEquals(deterministicSums[n][0], n);
     }
 
     @Test
     public void testProportionsAboveThresholds() throws Exception {
-        final List<ArrayList<Integer>> sums = new ArrayList<ArrayList<Integer>>();
-        sums.add(new ArrayList<Integer>(Arrays.asList(0,0,0)));
-        sums.add(new ArrayList<Integer>(Arrays.asList(10, 10)));
-        sums.add(new ArrayList<Integer>(Arrays.asList(5, 11, -2, 4)));
-        final List<Double> thresholds = Arrays.asList(-1.0, 1.0, 6.0);
-        Assert.assertEquals(sums.size(), 3);
-        Assert.assertEquals(thresholds.size(), 3);
-
-        final List<ArrayList<Double>> proportions = TheoreticalSensitivity.proportionsAboveThresholds(sums, thresholds);
-        Assert.assertEquals(proportions.size(), 3);
-
-        Assert.assertEquals(proportions.get(0).get(0), (double) 3/3);
-        Assert.assertEquals(proportions.get(0).get(1), (double) 0/3);
-        Assert.assertEquals(proportions.get(0).get(2), (double) 0/3);
-        Assert.assertEquals(proportions.get(1).get(0), (double) 2/2);
-        Assert.assertEquals(proportions.get(1).get(1), (double) 2/2);
-        Assert.assertEquals(proportions.get(1).get(2), (double) 2/2);
-        Assert.assertEquals(proportions.get(2).get(0), (double) 3/4);
-        Assert.assertEquals(proportions.get(2).get(1), (double) 3/4);
-        Assert.assertEquals(proportions.get(2).get(2), (double) 1/4);
+        final int[][] sums = {{0, 0, 0}, {10, 10}, {5, 11, -2, 4}};
+        final double[] thresholds = {-1.0, 1.0, 6.0};
+
+        final double[][] proportions = TheoreticalSensitivity.proportionsAboveThresholds(sums, thresholds);
+        Assert.assertEquals(proportions.length, 3);
+
+        Assert.assertEquals(proportions[0][0], (double) 3/3);
+        Assert.assertEquals(proportions[0][1], (double) 0/3);
+        Assert.assertEquals(proportions[0][2], (double) 0/3);
+        Assert.assertEquals(proportions[1][0], (double) 2/2);
+        Assert.assertEquals(proportions[1][1], (double) 2/2);
+        Assert.assertEquals(proportions[1][2], (double) 2/2);
+        Assert.assertEquals(proportions[2][0], (double) 3/4);
+        Assert.assertEquals(proportions[2][1], (double) 3/4);
+        Assert.assertEquals(proportions[2][2], (double) 1/4);
+    }
+
+    @Test
+    public void testProbabilitiesAboveThresholds() throws Exception {
+        //qualities of 0 and 1 with equal probability, so the sum of m qualities is binomial
+        final double[] qualityDistribution = {1.0, 1.0};
+        final double[] thresholds = {0.0, 1.0, 1.5, 3.0};
+
+        final double[][] probabilities = TheoreticalSensitivity.probabilitiesAboveThresholds(qualityDistribution, 3, thresholds);
+        Assert.assertEquals(probabilities.length, 3);
+        Assert.assertEquals(probabilities[0], new double[]{1.0, 0.0, 0.0, 0.0});
+        Assert.assertEquals(probabilities[1], new double[]{1.0, 0.5, 0.0, 0.0});
+        Assert.assertEquals(probabilities[2], new double[]{1.0, 0.75, 0.25, 0.0});
     }
 
     @Test
     public void testHetAltDepthDistribution() throws Exception {
         final int N = 6;
         final double p = 0.5;
-        final List<ArrayList<Double>> distribution = TheoreticalSensitivity.hetAltDepthDistribution(N);
+        final double[][] distribution = TheoreticalSensitivity.hetAltDepthDistribution(N);
 
         for (int n = 0; n < N-1; n++) {
             for (int m = 0; m <= n; m++) {
@@ -96,7 +103,7 @@ public class TheoreticalSensitivityTest {
                 for (int i = n; i > (n - m); i--) binomialCoefficient *= i;
                 for (int i = m; i > 0; i--) binomialCoefficient /= i;
 
-                Assert.assertEquals(distribution.get(n).get(m), binomialCoefficient*Math.pow(p,n));
+                Assert.assertEquals(distribution[n][m], binomialCoefficient*Math.pow(p,n));
             }
         }
     }
@@ -119,18 +126,16 @@ public class TheoreticalSensitivityTest {
         final double sigma = Math.sqrt(numSummands) * sigmaSingleDraw;
 
         //test the sums of this deterministic wheel: a sum of n 1's equals n
-        final List<ArrayList<Integer>> sums = wheel.sampleCumulativeSums(numSummands, sampleSize);
+        final int[][] allSums = wheel.sampleCumulativeSums(numSummands, sampleSize);
         //we only want the last set of sums, those with numSummands summands
-        sums.subList(0, sums.size() - 1).clear();
-
-        Assert.assertEquals(sums.size(), 1);
+        final int[][] sums = {allSums[allSums.length - 1]};
 
         //test whether the number of elements within one standard deviation agrees with the normal distribution
-        final List<Double> thresholds = Arrays.asList(mu - sigma, mu + sigma);
+        final double[] thresholds = {mu - sigma, mu + sigma};
 
         //sums is 1 x sampleSize, thresholds is a 2-vector, so proportions is 1 x 2
-        final List<ArrayList<Double>> proportions = TheoreticalSensitivity.proportionsAboveThresholds(sums, thresholds);
-        final double empiricalProportionWithinOneSigma = proportions.get(0).get(0) - proportions.get(0).get(1);
+        final double[][] proportions = TheoreticalSensitivity.proportionsAboveThresholds(sums, thresholds);
+        final double empiricalProportionWithinOneSigma = proportions[0][0] - proportions[0][1];
 
         //the proportion within one sigma for the normal distribution
         //hence whether any element falls within one sigma is a Bernoulli variable
@@ -141,19 +146,19 @@ public class TheoreticalSensitivityTest {
     }
 
     //Put it all together for deterministic quality and depths
-    @Test
-    public void testDeterministicQualityAndDepth() throws Exception {
+    @Test(dataProvider = "sampleSizeDataProvider")
+    public void testDeterministicQualityAndDepth(final int sampleSize) throws Exception {
         final double logOddsThreshold = 0.0;
         final double tolerance = 0.001;
-        final int sampleSize = 1; //quality is deterministic, hence no sampling error
+        //quality is deterministic, hence no sampling error, with any sample size
         for (int q = 5; q < 10; q++) {
             for (int n = 5; n < 10; n++) {
                 final double minAltCount = 10*n*Math.log10(2)/q;  //alts required to call when log odds ratio threshold = 1
                 double expectedResult = 0.0;
 
-                final List<ArrayList<Double>> altCountProbabilities = TheoreticalSensitivity.hetAltDepthDistribution(n+1);
+                final double[][] altCountProbabilities = TheoreticalSensitivity.hetAltDepthDistribution(n+1);
                 for (int altCount = n; altCount > minAltCount; altCount--) {
-                    expectedResult += altCountProbabilities.get(n).get(altCount);
+                    expectedResult += altCountProbabilities[n][altCount];
                 }
 
                 //deterministic weights that always yield q are 0.0 for 0 through q - 1 and 1.0 for q
@@ -170,8 +175,13 @@ public class TheoreticalSensitivityTest {
         }
     }
 
-    @Test
-    public void testHetSensDistributions() throws Exception {
+    @DataProvider(name = "sampleSizeDataProvider")
+    public Object[][] sampleSizeDataProvider() {
+        return new Object[][] {{1000}, {0}};
+    }
+
+    @Test(dataProvider = "sampleSizeDataProvider")
+    public void testHetSensDistributions(final int sampleSize) throws Exception {
         //Expect theoretical sens to be close to .9617 for Solexa-332667
         final double tolerance = 0.02;
         final double expectedResult = .9617;
@@ -188,7 +198,6 @@ public class TheoreticalSensitivityTest {
             qualityDistribution[j] = scanBaseQ.nextDouble();
         }
 
-        final int sampleSize = 1000;
         final double logOddsThreshold = 3.0;
         final double result = TheoreticalSensitivity.hetSNPSensitivity(depthDistribution, qualityDistribution, sampleSize, logOddsThreshold);
         Assert.assertEquals(result, expectedResult, tolerance);
@@ -202,15 +211,19 @@ public class TheoreticalSensitivityTest {
         final File wgsSampledMetricsFile = new File(TEST_DIR, "test_Solexa-316269_sampled.wgs_metrics");
 
         return new Object[][] {
-                {.9130, wgsMetricsFile},
-                {.9784, hsMetricsFile},
-                {.9562, targetedMetricsFile},
-                {.9892, wgsSampledMetricsFile}
+                {.9130, wgsMetricsFile, 1000},
+                {.9784, hsMetricsFile, 1000},
+                {.9562, targetedMetricsFile, 1000},
+                {.9892, wgsSampledMetricsFile, 1000},
+                {.9130, wgsMetricsFile, 0},
+                {.9784, hsMetricsFile, 0},
+                {.9562, targetedMetricsFile, 0},
+                {.9892, wgsSampledMetricsFile, 0}
         };
     }
 
     @Test(dataProvider = "hetSensDataProvider")
-    public void testHetSensTargeted(final double expected, final File metricsFile) throws Exception{
+    public void testHetSensTargeted(final double expected, final File metricsFile, final int sampleSize) throws Exception{
         final double tolerance = 0.02;
 
         final MetricsFile Metrics = new MetricsFile();
@@ -222,7 +235,6 @@ public class TheoreticalSensitivityTest {
         final double [] depthDistribution = TheoreticalSensitivity.normalizeHistogram(depthHistogram);
         final double [] qualityDistribution = TheoreticalSensitivity.normalizeHistogram(qualityHistogram);
 
-        final int sampleSize = 1000;
         final double logOddsThreshold = 3.0;
 
         final double result = TheoreticalSensitivity.hetSNPSensitivity(depthDistribution, qualityDistribution, sampleSize, logOddsThreshold);
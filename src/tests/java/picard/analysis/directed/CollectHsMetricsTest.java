@@ -31,7 +31,9 @@ public class CollectHsMetricsTest extends CommandLineProgramTest {
                 // test that we clip overlapping bases
                 {TEST_DIR + "/overlapping.sam", referenceFile, intervals, "NONE", 0, 0, true,  2, 202, 0,   0.5, 0.505, 0.505, 1000},
                 // test that we do not clip overlapping bases
-                {TEST_DIR + "/overlapping.sam", referenceFile, intervals, "NONE", 0, 0, false, 2, 202, 0,   0.0, 0.505, 0.505, 1000}
+                {TEST_DIR + "/overlapping.sam", referenceFile, intervals, "NONE", 0, 0, false, 2, 202, 0,   0.0, 0.505, 0.505, 1000},
+                // test that computing the het SNP sensitivity exactly, rather than by sampling, gives the same metrics
+                {TEST_DIR + "/overlapping.sam", referenceFile, intervals, "NONE", 0, 0, true,  2, 202, 0,   0.5, 0.505, 0.505, 0}
         };
     }
 
@@ -30,6 +30,7 @@ import picard.PicardException;
 import picard.illumina.parser.readers.BclQualityEvaluationStrategy;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -137,6 +138,36 @@ public class IlluminaDataProviderTest {
                 IlluminaDataType.Barcodes));
     }
 
+    /**
+     * Fills in the same ClusterData and arrays for every cluster with next(ClusterData), with the same data as the
+     * clusters returned by next(), which are left as they were by the clusters after them.
+     */
+    @Test
+    public void reusedClusterDataTest() {
+        final IlluminaDataProviderFactory factory = new IlluminaDataProviderFactory(BINARY_TD_LOCATION, 1, new ReadStructure("25T8B25T"),
+                bclQualityEvaluationStrategy, getDataTypes(new IlluminaDataType[]{IlluminaDataType.Barcodes}));
+
+        final List<ClusterData> expected = new ArrayList<ClusterData>();
+        final IlluminaDataProvider newClusters = factory.makeDataProvider();
+        while (newClusters.hasNext()) expected.add(newClusters.next());
+        newClusters.close();
+
+        final IlluminaDataProvider reusedCluster = factory.makeDataProvider();
+        final ClusterData cluster = reusedCluster.makeClusterData();
+        byte[] firstBases = null;
+        int readNum = 0;
+        while (reusedCluster.hasNext()) {
+            Assert.assertSame(reusedCluster.next(cluster), cluster);
+            compareReadData(cluster, expected.get(readNum), "cluster num " + readNum);
+            if (firstBases == null) firstBases = cluster.getRead(0).getBases();
+            Assert.assertSame(cluster.getRead(0).getBases(), firstBases);
+            ++readNum;
+        }
+        reusedCluster.close();
+        Assert.assertEquals(readNum, expected.size());
+        Assert.assertTrue(readNum > 1);
+    }
+
     @DataProvider(name = "binaryData")
     public Object[][] binaryData() {
         return new Object[][]{
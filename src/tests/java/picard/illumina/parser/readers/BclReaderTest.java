@@ -7,8 +7,10 @@ import picard.PicardException;
 import picard.illumina.parser.BclData;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -73,6 +75,35 @@ public class BclReaderTest {
         reader.close();
     }
 
+    @DataProvider(name = "clustersPerBlock")
+    public Object[][] clustersPerBlock() {
+        return new Object[][]{{1}, {5}, {expectedBases.length}, {BclReader.DEFAULT_CLUSTERS_PER_BLOCK}};
+    }
+
+    /** Decodes the same clusters, and logs the same low qualities, however many clusters are decoded at a time. */
+    @Test(dataProvider = "clustersPerBlock")
+    public void readValidFileInBlocks(final int clustersPerBlock) {
+        final BclQualityEvaluationStrategy bclQualityEvaluationStrategy = new BclQualityEvaluationStrategy(1);
+        final List<File> cycles = Arrays.asList(PASSING_BCL_FILE, QUAL_0FAILING_BCL_FILE, PASSING_BCL_FILE, QUAL_1FAILING_BCL_FILE);
+        final BclReader reader = new BclReader(cycles, new int[]{2, 2}, bclQualityEvaluationStrategy, false, clustersPerBlock);
+        final byte[] quals = qualsAsBytes();
+
+        int readNum = 0;
+        while (reader.hasNext()) {
+            final BclData bv = reader.next();
+            for (int read = 0; read < 2; ++read) {
+                Assert.assertEquals(bv.bases[read][0], expectedBases[readNum], " On num cluster: " + readNum);
+                Assert.assertEquals(bv.qualities[read][0], quals[readNum], " On num cluster: " + readNum);
+                Assert.assertTrue(bv.qualities[read][1] >= 1);
+            }
+            ++readNum;
+        }
+        reader.close();
+        Assert.assertEquals(readNum, expectedBases.length);
+        Assert.assertEquals((int) bclQualityEvaluationStrategy.getPoorQualityFrequencies().get((byte) 0), 5);
+        Assert.assertEquals((int) bclQualityEvaluationStrategy.getPoorQualityFrequencies().get((byte) 1), 5);
+    }
+
     @DataProvider(name = "failingFiles")
     public Object[][] failingFiles() {
         return new Object[][]{
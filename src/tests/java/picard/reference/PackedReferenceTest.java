@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 The Broad Institute
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package picard.reference;
+
+import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.reference.ReferenceSequenceFile;
+import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.StringUtil;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+public class PackedReferenceTest {
+
+    private static final File REFERENCE = new File("testdata/picard/reference/test.fasta");
+
+    private File makeFasta(final String contents) throws IOException {
+        final File dir = IOUtil.createTempDir("packedReference", null);
+        dir.deleteOnExit();
+        final File fasta = new File(dir, "ref.fasta");
+        fasta.deleteOnExit();
+        new File(fasta.getPath() + PackedReference.SIDECAR_EXTENSION).deleteOnExit();
+        final FileWriter writer = new FileWriter(fasta);
+        writer.write(contents);
+        writer.close();
+        return fasta;
+    }
+
+    private static String bases(final ReferenceSequence sequence) {
+        return StringUtil.bytesToString(sequence.getBases());
+    }
+
+    @Test
+    public void testMatchesFasta() throws IOException {
+        final File dir = IOUtil.createTempDir("packedReference", null);
+        dir.deleteOnExit();
+        final File fasta = new File(dir, REFERENCE.getName());
+        fasta.deleteOnExit();
+        IOUtil.copyFile(REFERENCE, fasta);
+
+        final PackedReferenceSequenceFile packed = new PackedReferenceSequenceFile(fasta);
+        Assert.assertTrue(PackedReference.forFasta(fasta).getSidecar().exists());
+        Assert.assertEquals(PackedReference.forFasta(fasta).getSidecar().getParentFile(), dir.getCanonicalFile());
+        new File(fasta.getPath() + PackedReference.SIDECAR_EXTENSION).deleteOnExit();
+
+        final ReferenceSequenceFile original = ReferenceSequenceFileFactory.getReferenceSequenceFile(REFERENCE);
+        Assert.assertEquals(packed.getSequenceDictionary().size(), original.getSequenceDictionary().size());
+        for (ReferenceSequence expected = original.nextSequence(); expected != null; expected = original.nextSequence()) {
+            final ReferenceSequence actual = packed.nextSequence();
+            Assert.assertEquals(actual.getName(), expected.getName());
+            Assert.assertEquals(actual.getContigIndex(), expected.getContigIndex());
+            Assert.assertEquals(actual.getBases(), StringUtil.stringToBytes(bases(expected).toUpperCase()));
+            Assert.assertTrue(PackedReference.isPacked(actual));
+        }
+        Assert.assertNull(packed.nextSequence());
+        Assert.assertFalse(PackedReference.isPacked(original.getSequence(packed.getSequenceDictionary().getSequence(0).getSequenceName())));
+    }
+
+    @Test
+    public void testUpperCasesAndMasks() throws IOException {
+        final File fasta = makeFasta(">one\nacgtNnRy\nk.-\n>two\nA\n>three\nGGCCa\n");
+        final PackedReferenceSequenceFile packed = new PackedReferenceSequenceFile(fasta);
+
+        Assert.assertEquals(bases(packed.getSequence("one")), "ACGTNNRYKNN");
+        Assert.assertEquals(bases(packed.getSequence("two")), "A");
+        Assert.assertEquals(bases(packed.getSequence("three")), "GGCCA");
+        Assert.assertEquals(packed.getSequenceDictionary().getSequence("one").getSequenceLength(), 11);
+
+        // Both even and odd start and end positions
+        Assert.assertEquals(bases(packed.getSubsequenceAt("one", 1, 4)), "ACGT");
+        Assert.assertEquals(bases(packed.getSubsequenceAt("one", 2, 4)), "CGT");
+        Assert.assertEquals(bases(packed.getSubsequenceAt("one", 2, 5)), "CGTN");
+        Assert.assertEquals(bases(packed.getSubsequenceAt("one", 7, 7)), "R");
+        Assert.assertEquals(bases(packed.getSubsequenceAt("three", 3, 5)), "CCA");
+    }
+
+    @Test
+    public void testSharedAcrossFiles() throws IOException {
+        final File fasta = makeFasta(">one\nACGTACGTAC\n>two\nGGGG\n");
+        final PackedReferenceSequenceFile first = new PackedReferenceSequenceFile(fasta);
+        final PackedReferenceSequenceFile second = new PackedReferenceSequenceFile(fasta);
+
+        final ReferenceSequence sequence = first.getSequence("one");
+        Assert.assertSame(second.getSequence("one"), sequence);
+        Assert.assertSame(second.nextSequence(), sequence);
+        Assert.assertSame(PackedReferenceSequenceFile.openWalker(fasta, true).get(0), sequence);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownContig() throws IOException {
+        new PackedReferenceSequenceFile(makeFasta(">one\nACGT\n")).getSequence("two");
+    }
+}
@@ -24,6 +24,13 @@
 
 package picard.sam.markduplicates;
 
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTag;
 import htsjdk.samtools.metrics.MetricsFile;
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -33,7 +40,9 @@ import picard.sam.DuplicationMetrics;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 public class EstimateLibraryComplexityTest extends CommandLineProgramTest {
 
@@ -118,4 +127,179 @@ public class EstimateLibraryComplexityTest extends CommandLineProgramTest {
         Assert.assertEquals(runPicardCommandLine(args), 0);
         examineMetricsFile(output, 0, 0); // no read pairs examined!!!
     }
+
+    /**
+     * Writes unmapped read pairs of random sequence in two libraries, each sequenced a Poisson number of times with a
+     * mean of one, given that it is sequenced at all, with up to one mismatch per pair between copies, so that which
+     * reads are duplicates does not depend on the order they are compared in.
+     * Every read pair is on its own tile, so none are optical duplicates.  If mapped, each read is mapped to a random
+     * position on one of three contigs, and the reads are sorted by coordinate, so that most mates are far apart.
+     */
+    private File writeRandomLibrary(final int numUniquePairs, final boolean mapped) throws IOException {
+        final File sam = File.createTempFile("estimateLibraryComplexity", ".sam");
+        sam.deleteOnExit();
+        final SAMFileHeader header = new SAMFileHeader();
+        if (mapped) {
+            for (int i = 0; i < 3; ++i) header.addSequence(new SAMSequenceRecord("chr" + i, 1000000));
+            header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        }
+        for (final String id : new String[]{"A", "B"}) {
+            final SAMReadGroupRecord readGroup = new SAMReadGroupRecord(id);
+            readGroup.setLibrary("library" + id);
+            readGroup.setSample("sample");
+            header.addReadGroup(readGroup);
+        }
+
+        final Random random = new Random(13);
+        final Random positions = new Random(17);
+        final byte[] bases = "ACGT".getBytes();
+        final byte[] quals = new byte[50];
+        Arrays.fill(quals, (byte) 30);
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeSAMWriter(header, false, sam);
+        int tile = 0;
+        for (int i = 0; i < numUniquePairs; ++i) {
+            final byte[][] pair = new byte[2][50];
+            for (final byte[] read : pair) {
+                for (int j = 0; j < read.length; ++j) read[j] = bases[random.nextInt(4)];
+            }
+            final String readGroup = random.nextBoolean() ? "A" : "B";
+
+            // Copies of a molecule that was sequenced, as the Lander-Waterman equation expects
+            int copies = 0;
+            while (copies == 0) {
+                for (double p = random.nextDouble(); p > Math.exp(-1); p *= random.nextDouble()) ++copies;
+            }
+            for (int copy = 0; copy < copies; ++copy) {
+                ++tile;
+                final int[] referenceIndexes = {positions.nextInt(3), positions.nextInt(3)};
+                final int[] starts = {1 + positions.nextInt(900000), 1 + positions.nextInt(900000)};
+                for (int end = 0; end < 2; ++end) {
+                    final byte[] read = pair[end].clone();
+                    if (copy > 0 && end == 0 && random.nextBoolean()) read[10 + random.nextInt(40)] = bases[random.nextInt(4)];
+
+                    final SAMRecord rec = new SAMRecord(header);
+                    rec.setReadName("RUNID:1:" + tile + ":" + i + ":" + copy);
+                    rec.setReadPairedFlag(true);
+                    if (mapped) {
+                        rec.setReferenceIndex(referenceIndexes[end]);
+                        rec.setAlignmentStart(starts[end]);
+                        rec.setCigarString(read.length + "M");
+                        rec.setMappingQuality(60);
+                        rec.setMateReferenceIndex(referenceIndexes[1 - end]);
+                        rec.setMateAlignmentStart(starts[1 - end]);
+                    } else {
+                        rec.setReadUnmappedFlag(true);
+                        rec.setMateUnmappedFlag(true);
+                    }
+                    rec.setFirstOfPairFlag(end == 0);
+                    rec.setSecondOfPairFlag(end == 1);
+                    rec.setReadBases(read);
+                    rec.setBaseQualities(quals);
+                    rec.setAttribute(SAMTag.RG.name(), readGroup);
+                    writer.addAlignment(rec);
+                }
+            }
+        }
+        writer.close();
+        return sam;
+    }
+
+    private File runOnRandomLibrary(final File input, final String... extraArgs) throws IOException {
+        final File output = File.createTempFile("estimateLibraryComplexity", ".els_metrics");
+        output.deleteOnExit();
+
+        final List<String> args = new ArrayList<String>();
+        args.add("INPUT=" + input.getAbsolutePath());
+        args.add("OUTPUT=" + output.getAbsolutePath());
+        args.add("MIN_IDENTICAL_BASES=3");
+        args.add("MIN_GROUP_COUNT=1");
+        for (final String arg : extraArgs) args.add(arg);
+
+        Assert.assertEquals(runPicardCommandLine(args), 0);
+        return output;
+    }
+
+    /** Finds the same duplicates, and so writes the same metrics, with the groups scanned on several threads. */
+    @Test
+    public void testThreads() throws IOException {
+        final File input = writeRandomLibrary(20000, false);
+        final File singleThreaded = runOnRandomLibrary(input);
+        final File multiThreaded = runOnRandomLibrary(input, "NUM_THREADS=4");
+
+        final List<DuplicationMetrics> metricsList = MetricsFile.readBeans(singleThreaded);
+        Assert.assertEquals(metricsList.size(), 2);
+        for (final DuplicationMetrics metrics : metricsList) Assert.assertTrue(metrics.READ_PAIR_DUPLICATES > 0);
+        Assert.assertTrue(MetricsFile.areMetricsAndHistogramsEqual(singleThreaded, multiThreaded));
+    }
+
+    /** Finds the same duplicates with most of the pairs waiting for their mates spilled to disk. */
+    @Test
+    public void testMaxPendingPairsInRam() throws IOException {
+        final File input = writeRandomLibrary(5000, true);
+        final File inRam = runOnRandomLibrary(input);
+        final File spilled = runOnRandomLibrary(input, "MAX_PENDING_PAIRS_IN_RAM=100");
+
+        final List<DuplicationMetrics> metricsList = MetricsFile.readBeans(spilled);
+        Assert.assertEquals(metricsList.size(), 2);
+        for (final DuplicationMetrics metrics : metricsList) Assert.assertTrue(metrics.READ_PAIR_DUPLICATES > 0);
+        Assert.assertTrue(MetricsFile.areMetricsAndHistogramsEqual(inRam, spilled));
+    }
+
+    /** Examines every read pair when sampling all of them, and so estimates the same library sizes. */
+    @Test
+    public void testSamplingEverything() throws IOException {
+        final File input = writeRandomLibrary(5000, false);
+        final List<DuplicationMetrics> expected = MetricsFile.readBeans(runOnRandomLibrary(input));
+        final List<DuplicationMetrics> sampled = MetricsFile.readBeans(runOnRandomLibrary(input, "SAMPLING_FRACTION=1"));
+
+        Assert.assertEquals(sampled.size(), expected.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            final EstimateLibraryComplexity.SampledDuplicationMetrics metrics = (EstimateLibraryComplexity.SampledDuplicationMetrics) sampled.get(i);
+            Assert.assertEquals(metrics.LIBRARY, expected.get(i).LIBRARY);
+            Assert.assertEquals(metrics.READ_PAIRS_SAMPLED, expected.get(i).READ_PAIRS_EXAMINED);
+            Assert.assertEquals(metrics.READ_PAIRS_EXAMINED, expected.get(i).READ_PAIRS_EXAMINED);
+            Assert.assertEquals(metrics.ESTIMATED_LIBRARY_SIZE, expected.get(i).ESTIMATED_LIBRARY_SIZE);
+            Assert.assertTrue(Math.abs(metrics.READ_PAIR_DUPLICATES - expected.get(i).READ_PAIR_DUPLICATES) <= 1);
+        }
+    }
+
+    /** Extrapolates the metrics of the whole library from a sample of its read pairs, the same each time. */
+    @Test
+    public void testSampling() throws IOException {
+        final File input = writeRandomLibrary(20000, false);
+        final List<DuplicationMetrics> expected = MetricsFile.readBeans(runOnRandomLibrary(input));
+        final File output = runOnRandomLibrary(input, "SAMPLING_FRACTION=0.5");
+        final List<DuplicationMetrics> sampled = MetricsFile.readBeans(output);
+
+        Assert.assertEquals(sampled.size(), expected.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            final EstimateLibraryComplexity.SampledDuplicationMetrics metrics = (EstimateLibraryComplexity.SampledDuplicationMetrics) sampled.get(i);
+            final DuplicationMetrics all = expected.get(i);
+            Assert.assertEquals(metrics.LIBRARY, all.LIBRARY);
+            Assert.assertEquals(metrics.SAMPLING_FRACTION, 0.5);
+            Assert.assertEquals(metrics.READ_PAIRS_EXAMINED, 2 * metrics.READ_PAIRS_SAMPLED);
+            Assert.assertEquals(metrics.READ_PAIRS_EXAMINED, all.READ_PAIRS_EXAMINED, 0.05 * all.READ_PAIRS_EXAMINED);
+            Assert.assertEquals(metrics.READ_PAIR_DUPLICATES, all.READ_PAIR_DUPLICATES, 0.1 * all.READ_PAIR_DUPLICATES);
+            Assert.assertEquals(metrics.ESTIMATED_LIBRARY_SIZE, all.ESTIMATED_LIBRARY_SIZE, 0.1 * all.ESTIMATED_LIBRARY_SIZE);
+            Assert.assertTrue(metrics.ESTIMATED_LIBRARY_SIZE_LOWER_BOUND < metrics.ESTIMATED_LIBRARY_SIZE);
+            Assert.assertTrue(metrics.ESTIMATED_LIBRARY_SIZE_UPPER_BOUND > metrics.ESTIMATED_LIBRARY_SIZE);
+        }
+        Assert.assertTrue(MetricsFile.areMetricsAndHistogramsEqual(output, runOnRandomLibrary(input, "SAMPLING_FRACTION=0.5")));
+    }
+
+    @Test
+    public void testSampleBinomial() {
+        final Random random = new Random(5);
+        for (final long n : new long[]{0, 10, 1000, 1000000}) {
+            for (final double p : new double[]{0, 0.001, 0.3, 0.9, 1}) {
+                double sum = 0;
+                for (int i = 0; i < 2000; ++i) {
+                    final long k = EstimateLibraryComplexity.sampleBinomial(random, n, p);
+                    Assert.assertTrue(k >= 0 && k <= n);
+                    sum += k;
+                }
+                Assert.assertEquals(sum / 2000, n * p, 0.1 * Math.sqrt(n * p * (1 - p)) + 1e-9, "n=" + n + " p=" + p);
+            }
+        }
+    }
 }
@@ -0,0 +1,165 @@
+package picard.sam.markduplicates;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.sam.DuplicationMetrics;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs MarkDuplicates scattered over its inputs, a step at a time, and checks that the records marked and the metrics
+ * are the same as when it is run over all the inputs at once.
+ */
+public class MarkDuplicatesScatterGatherTest {
+    private static final File TEST_DATA_DIR = new File("testdata/picard/sam/MarkDuplicates");
+
+    @Test
+    public void testMergeInputs() {
+        final File outputDir = IOUtil.createTempDir("MarkDuplicatesScatterGatherTest.", ".tmp");
+        final List<File> inputs = new ArrayList<File>();
+        for (int i = 1; i <= 3; ++i) inputs.add(new File(TEST_DATA_DIR, "merge" + i + ".sam"));
+        assertScatteredRunMatches(inputs, outputDir);
+        IOUtil.deleteDirectoryTree(outputDir);
+    }
+
+    @DataProvider(name = "numThreadsDataProvider")
+    public Object[][] numThreadsDataProvider() {
+        return new Object[][] {{1}, {2}};
+    }
+
+    /**
+     * Pairs with their ends in different inputs, which are only matched up by the DUPLICATE_INDEXES step, and unmapped
+     * reads at the end of each input, which the READ_ENDS step must count however many threads it reads them with.
+     */
+    @Test(dataProvider = "numThreadsDataProvider")
+    public void testPairsAcrossInputs(final int numThreads) throws FileNotFoundException {
+        final File outputDir = IOUtil.createTempDir("MarkDuplicatesScatterGatherTest.", ".tmp");
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        for (int i = 0; i < 60; ++i) {
+            // Pairs and fragments at a few positions, with tiles and coordinates that make some of them optical duplicates
+            final String name = "RUNID:7:" + (1200 + i % 2) + ":" + (100 + 37 * i % 500) + ":" + (100 + 53 * i % 500);
+            final int start = 1 + 100 * (i % 4);
+            builder.addPair(name, i % 2, start, start + 200 + 1000 * (i % 3));
+            builder.addFrag(name + "F", 1, start, i % 3 == 0);
+            if (i % 10 == 0) builder.addUnmappedFragment(name + "U");
+        }
+
+        // Each template has its own base quality, so that which duplicate is best does not depend on the order of the
+        // records.  The ends of every third pair are put in different inputs.
+        final Map<String, Integer> templates = new HashMap<String, Integer>();
+        final List<List<SAMRecord>> inputRecords = Arrays.<List<SAMRecord>>asList(new ArrayList<SAMRecord>(), new ArrayList<SAMRecord>());
+        for (final SAMRecord rec : builder.getRecords()) {
+            if (!templates.containsKey(rec.getReadName())) templates.put(rec.getReadName(), templates.size());
+            final int template = templates.get(rec.getReadName());
+            final byte[] qualities = new byte[rec.getReadLength()];
+            Arrays.fill(qualities, (byte) (10 + template % 30));
+            rec.setBaseQualities(qualities);
+            final int input = template % 3 == 0 && rec.getReadPairedFlag() && rec.getSecondOfPairFlag() ? 1 - template % 2 : template % 2;
+            inputRecords.get(input).add(rec);
+        }
+
+        final List<File> inputs = new ArrayList<File>();
+        for (int i = 0; i < inputRecords.size(); ++i) {
+            final File input = new File(outputDir, "input" + i + ".sam");
+            final SAMFileWriter writer = new SAMFileWriterFactory().makeSAMWriter(builder.getHeader(), true, input);
+            for (final SAMRecord rec : inputRecords.get(i)) writer.addAlignment(rec);
+            writer.close();
+            inputs.add(input);
+        }
+        final File actualMetrics = assertScatteredRunMatches(inputs, outputDir, "NUM_THREADS=" + numThreads);
+
+        long numUnmappedReads = 0;
+        for (final SAMRecord rec : builder.getRecords()) {
+            if (rec.getReadUnmappedFlag()) ++numUnmappedReads;
+        }
+        final MetricsFile<DuplicationMetrics, Comparable<?>> metrics = new MetricsFile<DuplicationMetrics, Comparable<?>>();
+        metrics.read(new FileReader(actualMetrics));
+        long unmappedReads = 0;
+        for (final DuplicationMetrics libraryMetrics : metrics.getMetrics()) unmappedReads += libraryMetrics.UNMAPPED_READS;
+        Assert.assertEquals(unmappedReads, numUnmappedReads);
+        IOUtil.deleteDirectoryTree(outputDir);
+    }
+
+    /**
+     * Runs MarkDuplicates on the inputs at once and scattered, with the scatterArgs added to each step of the scattered
+     * run, checks that the results are the same, and returns the metrics of the scattered run.
+     */
+    private File assertScatteredRunMatches(final List<File> inputs, final File outputDir, final String... scatterArgs) {
+        final File expectedOutput = new File(outputDir, "expected.sam");
+        final File expectedMetrics = new File(outputDir, "expected.metrics");
+        runMarkDuplicates(inputs, expectedOutput, expectedMetrics);
+
+        final File scatterGatherDir = new File(outputDir, "scatter");
+        Assert.assertTrue(scatterGatherDir.mkdir());
+        final File actualMetrics = new File(outputDir, "actual.metrics");
+        final List<File> actualOutputs = new ArrayList<File>();
+        for (int i = 0; i < inputs.size(); ++i) {
+            runMarkDuplicates(inputs, new File(outputDir, "unused.sam"), new File(outputDir, "read_ends" + i + ".metrics"),
+                    withArgs(scatterArgs, "SCATTER_GATHER_STEP=READ_ENDS", "SCATTER_GATHER_DIR=" + scatterGatherDir, "SCATTER_INPUT_INDEX=" + i));
+        }
+        runMarkDuplicates(inputs, new File(outputDir, "unused.sam"), actualMetrics,
+                withArgs(scatterArgs, "SCATTER_GATHER_STEP=DUPLICATE_INDEXES", "SCATTER_GATHER_DIR=" + scatterGatherDir));
+        for (int i = 0; i < inputs.size(); ++i) {
+            final File output = new File(outputDir, "actual" + i + ".sam");
+            runMarkDuplicates(inputs, output, new File(outputDir, "mark" + i + ".metrics"),
+                    withArgs(scatterArgs, "SCATTER_GATHER_STEP=MARK", "SCATTER_GATHER_DIR=" + scatterGatherDir, "SCATTER_INPUT_INDEX=" + i));
+            actualOutputs.add(output);
+        }
+
+        final Map<String, String> expected = getMarks(Arrays.asList(expectedOutput));
+        final Map<String, String> actual = getMarks(actualOutputs);
+        Assert.assertEquals(actual, expected);
+        Assert.assertTrue(expected.values().contains("1024 DT:LB"));
+        Assert.assertTrue(MetricsFile.areMetricsAndHistogramsEqual(actualMetrics, expectedMetrics));
+        return actualMetrics;
+    }
+
+    private static String[] withArgs(final String[] args, final String... moreArgs) {
+        final List<String> all = new ArrayList<String>(Arrays.asList(args));
+        all.addAll(Arrays.asList(moreArgs));
+        return all.toArray(new String[all.size()]);
+    }
+
+    private void runMarkDuplicates(final List<File> inputs, final File output, final File metrics, final String... extraArgs) {
+        final List<String> args = new ArrayList<String>();
+        for (final File input : inputs) args.add("INPUT=" + input.getAbsolutePath());
+        args.add("OUTPUT=" + output.getAbsolutePath());
+        args.add("METRICS_FILE=" + metrics.getAbsolutePath());
+        args.add("TAGGING_POLICY=All");
+        args.addAll(Arrays.asList(extraArgs));
+        Assert.assertEquals(new MarkDuplicates().instanceMain(args.toArray(new String[args.size()])), 0);
+    }
+
+    /** The duplicate flag and DT tag of each record in the files, by its read name and flags other than the duplicate flag. */
+    private static Map<String, String> getMarks(final List<File> files) {
+        final Map<String, String> marks = new HashMap<String, String>();
+        for (final File file : files) {
+            final SamReader reader = SamReaderFactory.makeDefault().open(file);
+            for (final SAMRecord rec : reader) {
+                final String key = rec.getReadName() + " " + (rec.getFlags() & ~1024);
+                final String mark = (rec.getFlags() & 1024) + " DT:" + rec.getAttribute(MarkDuplicates.DUPLICATE_TYPE_TAG);
+                Assert.assertNull(marks.put(key, mark), key);
+            }
+            CloserUtil.close(reader);
+        }
+        return marks;
+    }
+}
@@ -25,11 +25,15 @@
 package picard.sam.markduplicates;
 
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMProgramRecord;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
 import htsjdk.samtools.SAMTag;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.metrics.MetricsFile;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.CollectionUtil;
 import htsjdk.samtools.util.IOUtil;
@@ -39,11 +43,13 @@ import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
+import picard.sam.markduplicates.util.PhaseMetrics;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -178,7 +184,7 @@ public class MarkDuplicatesTest extends AbstractMarkDuplicatesCommandLineProgram
     }
 
     @Test(dataProvider = "testOpticalDuplicateDetectionDataProvider")
-    public void testOpticalDuplicateDetection(final File sam, final long expectedNumOpticalDuplicates) {
+    public void testOpticalDuplicateDetection(final File sam, final long expectedNumOpticalDuplicates, final int numThreads) {
         final File outputDir = IOUtil.createTempDir(TEST_BASE_NAME + ".", ".tmp");
         outputDir.deleteOnExit();
         final File outputSam = new File(outputDir, TEST_BASE_NAME + ".sam");
@@ -193,6 +199,7 @@ public class MarkDuplicatesTest extends AbstractMarkDuplicatesCommandLineProgram
         markDuplicates.OUTPUT = outputSam;
         markDuplicates.METRICS_FILE = metricsFile;
         markDuplicates.TMP_DIR = CollectionUtil.makeList(outputDir);
+        markDuplicates.NUM_THREADS = numThreads;
         // Needed to suppress calling CommandLineProgram.getVersion(), which doesn't work for code not in a jar
         markDuplicates.PROGRAM_RECORD_ID = null;
         Assert.assertEquals(markDuplicates.doWork(), 0);
@@ -201,14 +208,170 @@ public class MarkDuplicatesTest extends AbstractMarkDuplicatesCommandLineProgram
 
     }
 
+    @Test
+    public void testPhaseMetrics() {
+        final File outputDir = IOUtil.createTempDir(TEST_BASE_NAME + ".", ".tmp");
+        outputDir.deleteOnExit();
+        final File sam = new File(TEST_DATA_DIR, "optical_dupes.sam");
+        final MarkDuplicates markDuplicates = new MarkDuplicates();
+        markDuplicates.setupOpticalDuplicateFinder();
+        markDuplicates.INPUT = CollectionUtil.makeList(sam.getAbsolutePath());
+        markDuplicates.OUTPUT = new File(outputDir, TEST_BASE_NAME + ".sam");
+        markDuplicates.METRICS_FILE = new File(outputDir, TEST_BASE_NAME + ".duplicate_metrics");
+        markDuplicates.TMP_DIR = CollectionUtil.makeList(outputDir);
+        markDuplicates.WRITE_PHASE_METRICS = true;
+        markDuplicates.PROGRAM_RECORD_ID = null;
+        Assert.assertEquals(markDuplicates.doWork(), 0);
+
+        final File phaseMetricsFile = new File(outputDir, TEST_BASE_NAME + ".duplicate_metrics" + MarkDuplicates.PHASE_METRICS_EXTENSION);
+        final List<PhaseMetrics> phases = MetricsFile.readBeans(phaseMetricsFile);
+        final List<String> names = new ArrayList<String>();
+        for (final PhaseMetrics phase : phases) {
+            names.add(phase.PHASE);
+            Assert.assertTrue(phase.WALL_TIME_SECONDS >= 0);
+            Assert.assertTrue(phase.HEAP_USED > 0);
+            Assert.assertTrue(phase.HEAP_MAX >= phase.HEAP_COMMITTED || phase.HEAP_MAX == -1);
+        }
+        Assert.assertEquals(names, Arrays.asList("READ_ENDS", "PAIR_SORT", "FRAG_SORT", "DUPLICATE_DETECTION", "WRITE"));
+
+        final SamReader reader = SamReaderFactory.makeDefault().open(sam);
+        int numRecords = 0;
+        for (final SAMRecord rec : reader) ++numRecords;
+        CloserUtil.close(reader);
+
+        // Every mapped read is a fragment and the file is all pairs, none of them seen without its mate at the end
+        Assert.assertEquals(phases.get(0).RECORDS, numRecords);
+        Assert.assertTrue(phases.get(0).PEAK_UNMATCHED_PAIRS > 0);
+        Assert.assertEquals(phases.get(1).RECORDS * 2, phases.get(2).RECORDS);
+        Assert.assertEquals(phases.get(3).RECORDS, phases.get(1).RECORDS + phases.get(2).RECORDS);
+        Assert.assertEquals(phases.get(4).RECORDS, numRecords);
+        TestUtil.recursiveDelete(outputDir);
+    }
+
     @DataProvider(name="testOpticalDuplicateDetectionDataProvider")
     public Object[][] testOpticalDuplicateDetectionDataProvider() {
         return new Object[][] {
-                {new File(TEST_DATA_DIR, "optical_dupes.sam"), 1L},
-                {new File(TEST_DATA_DIR, "optical_dupes_casava.sam"), 1L},
+                {new File(TEST_DATA_DIR, "optical_dupes.sam"), 1L, 1},
+                {new File(TEST_DATA_DIR, "optical_dupes_casava.sam"), 1L, 1},
+                {new File(TEST_DATA_DIR, "optical_dupes.sam"), 1L, 3},
+                {new File(TEST_DATA_DIR, "optical_dupes_casava.sam"), 1L, 3},
+        };
+    }
+
+    @Test
+    public void testMoreRecordsThanABatch() {
+        // More records than a worker thread computes read ends for at a time, so they must be put back in order
+        final AbstractMarkDuplicatesCommandLineProgramTester tester = getTester();
+        for (int i = 0; i < 1000; ++i) {
+            final int start = 1 + 1000 * i;
+            tester.addMappedPair(1, start, start + 200, false, false, DEFAULT_BASE_QUALITY);
+            tester.addMappedPair(1, start, start + 200, true, true, DEFAULT_BASE_QUALITY);
+            tester.addMappedFragment(1, start + 500, false, DEFAULT_BASE_QUALITY);
+            tester.addMappedFragment(1, start + 500, true, DEFAULT_BASE_QUALITY);
+        }
+        tester.runTest();
+    }
+
+    @Test
+    public void testMoreDuplicatesThanABatch() {
+        // More read ends than duplicates are found among at a time, so the duplicates of several batches must be merged
+        final AbstractMarkDuplicatesCommandLineProgramTester tester = getTester();
+        for (int i = 0; i < 6000; ++i) {
+            final int start = 1 + 1000 * i;
+            tester.addMappedPair(1, start, start + 200, false, false, DEFAULT_BASE_QUALITY);
+            tester.addMappedPair(1, start, start + 200, true, true, DEFAULT_BASE_QUALITY);
+            tester.addMappedFragment(1, start + 500, false, DEFAULT_BASE_QUALITY);
+            tester.addMappedFragment(1, start + 500, true, DEFAULT_BASE_QUALITY);
+        }
+        tester.runTest();
+    }
+
+    @DataProvider(name = "rawBamOutputDataProvider")
+    public Object[][] rawBamOutputDataProvider() {
+        return new Object[][] {
+                {"TAGGING_POLICY=All"},
+                {"TAGGING_POLICY=OpticalOnly"},
+                {"REMOVE_DUPLICATES=true"},
+                {"REMOVE_SEQUENCING_DUPLICATES=true"},
+                {"PROGRAM_RECORD_ID=null"},
         };
     }
 
+    /** Copying the records of a BAM as raw bytes must write the same records, header and metrics as decoding them. */
+    @Test(dataProvider = "rawBamOutputDataProvider")
+    public void testRawBamOutput(final String arg) {
+        final File outputDir = IOUtil.createTempDir(TEST_BASE_NAME + ".", ".tmp");
+        outputDir.deleteOnExit();
+
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        for (int i = 0; i < 50; ++i) {
+            // Pairs and fragments at a few positions, with tiles and coordinates that make some of them optical duplicates
+            final String name = "RUNID:7:" + (1200 + i % 2) + ":" + (100 + 37 * i % 500) + ":" + (100 + 53 * i % 500);
+            final int start = 1 + 100 * (i % 4);
+            builder.addPair(name, 0, start, start + 200);
+            builder.addFrag(name + "F", 1, start, i % 3 == 0);
+            if (i % 10 == 0) builder.addUnmappedFragment(name + "U");
+        }
+        int i = 0;
+        for (final SAMRecord rec : builder.getRecords()) {
+            // Tags before and after the DT and PG tags, and DT and PG tags to be replaced or removed
+            rec.setAttribute("XI", i * 1000);
+            rec.setAttribute("AS", i % 100);
+            if (i % 3 == 0) rec.setAttribute(MarkDuplicates.DUPLICATE_TYPE_TAG, MarkDuplicates.DUPLICATE_TYPE_LIBRARY);
+            if (i % 4 == 0) rec.setAttribute(SAMTag.PG.name(), "P" + (i % 8));
+            if (i % 7 == 0) rec.setAttribute("ZB", new int[]{i, -i, 2 * i});
+            if (i % 11 == 0 && !rec.getReadUnmappedFlag()) rec.setNotPrimaryAlignmentFlag(true);
+            ++i;
+        }
+        final File input = new File(outputDir, "input.bam");
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(builder.getHeader(), false, input);
+        for (final SAMRecord rec : builder) writer.addAlignment(rec);
+        writer.close();
+
+        final File[] outputs = new File[2];
+        final File[] metrics = new File[2];
+        for (int run = 0; run < 2; ++run) {
+            outputs[run] = new File(outputDir, "output" + run + ".bam");
+            metrics[run] = new File(outputDir, "output" + run + ".metrics");
+            final MarkDuplicates markDuplicates = new MarkDuplicates();
+            final String[] args = new String[]{
+                    "INPUT=" + input.getAbsolutePath(),
+                    "OUTPUT=" + outputs[run].getAbsolutePath(),
+                    "METRICS_FILE=" + metrics[run].getAbsolutePath(),
+                    "CREATE_INDEX=false",
+                    "USE_RAW_BAM_OUTPUT=" + (run == 1),
+                    arg};
+            Assert.assertEquals(markDuplicates.instanceMain(args), 0);
+        }
+
+        final SamReader expectedReader = SamReaderFactory.makeDefault().open(outputs[0]);
+        final SamReader actualReader = SamReaderFactory.makeDefault().open(outputs[1]);
+        // The program records differ only in their command lines
+        final SAMFileHeader expectedHeader = expectedReader.getFileHeader();
+        final SAMFileHeader actualHeader = actualReader.getFileHeader();
+        Assert.assertEquals(actualHeader.getSequenceDictionary(), expectedHeader.getSequenceDictionary());
+        Assert.assertEquals(actualHeader.getReadGroups(), expectedHeader.getReadGroups());
+        Assert.assertEquals(actualHeader.getProgramRecords().size(), expectedHeader.getProgramRecords().size());
+        for (final SAMProgramRecord programRecord : expectedHeader.getProgramRecords()) {
+            Assert.assertNotNull(actualHeader.getProgramRecord(programRecord.getId()));
+        }
+        final Iterator<SAMRecord> expected = expectedReader.iterator();
+        final Iterator<SAMRecord> actual = actualReader.iterator();
+        int numDuplicates = 0;
+        while (expected.hasNext()) {
+            Assert.assertTrue(actual.hasNext());
+            final SAMRecord rec = expected.next();
+            Assert.assertEquals(actual.next().getSAMString(), rec.getSAMString());
+            if (rec.getDuplicateReadFlag()) ++numDuplicates;
+        }
+        Assert.assertFalse(actual.hasNext());
+        if (!arg.startsWith("REMOVE")) Assert.assertTrue(numDuplicates > 0);
+        CloserUtil.close(expectedReader);
+        CloserUtil.close(actualReader);
+
+        Assert.assertTrue(MetricsFile.areMetricsAndHistogramsEqual(metrics[0], metrics[1]));
+    }
+
     @Test
     public void testWithBarcodeFragmentDuplicate() {
         final AbstractMarkDuplicatesCommandLineProgramTester tester = getTester();
@@ -0,0 +1,15 @@
+package picard.sam.markduplicates;
+
+/**
+ * Runs every MarkDuplicates test with the unmatched pairs tracked by HashedReadEndsForMarkDuplicatesMap, to show that
+ * the results are the same as with the disk-based map.
+ */
+public class MarkDuplicatesWithHashedReadEndsMapTest extends MarkDuplicatesTest {
+
+    @Override
+    protected AbstractMarkDuplicatesCommandLineProgramTester getTester() {
+        final AbstractMarkDuplicatesCommandLineProgramTester tester = new MarkDuplicatesTester();
+        tester.addArg("USE_HASHED_READ_ENDS_MAP=true");
+        return tester;
+    }
+}
@@ -0,0 +1,93 @@
+package picard.sam.markduplicates;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Runs every MarkDuplicatesWithMateCigar test with the bucketed mark queue, to show that the results are the same as
+ * with the TreeSet one, and checks that the two also mark the same duplicates at deep loci.
+ */
+public class MarkDuplicatesWithMateCigarWithBucketedMarkQueueTest extends MarkDuplicatesWithMateCigarTest {
+
+    @Override
+    protected AbstractMarkDuplicatesCommandLineProgramTester getTester() {
+        final AbstractMarkDuplicatesCommandLineProgramTester tester = new MarkDuplicatesWithMateCigarTester();
+        tester.addArg("USE_BUCKETED_MARK_QUEUE=true");
+        return tester;
+    }
+
+    /**
+     * Checks that both mark queues mark the same duplicates on pairs piled up on short targets as in exome data, where
+     * the queues hold many reads at once.  This takes a minute or two so is not run by default.  How long each queue
+     * takes is not checked: the time on a shared test machine varies too much to assert anything about it.
+     */
+    @Test(groups = "slow")
+    public void testSameDuplicatesAsTreeSetMarkQueueAtDeepLoci() throws Exception {
+        final File input = File.createTempFile("MarkDuplicatesWithMateCigarDeepLoci.", ".bam");
+        input.deleteOnExit();
+        writeExomeLikeInput(input, 100, 5000, new Random(3));
+
+        final File treeOutput = runMarkDuplicatesWithMateCigar(input, false);
+        final File bucketedOutput = runMarkDuplicatesWithMateCigar(input, true);
+
+        final SamReader treeReader = SamReaderFactory.makeDefault().open(treeOutput);
+        final SamReader bucketedReader = SamReaderFactory.makeDefault().open(bucketedOutput);
+        final Iterator<SAMRecord> bucketedIterator = bucketedReader.iterator();
+        for (final SAMRecord expected : treeReader) {
+            Assert.assertTrue(bucketedIterator.hasNext());
+            Assert.assertEquals(bucketedIterator.next().getSAMString(), expected.getSAMString());
+        }
+        Assert.assertFalse(bucketedIterator.hasNext());
+        CloserUtil.close(treeReader);
+        CloserUtil.close(bucketedReader);
+    }
+
+    /** Writes pairs of 100 base reads whose fragments start and end at random within targets of 200 bases. */
+    private static void writeExomeLikeInput(final File output, final int numTargets, final int pairsPerTarget, final Random random) {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        builder.setReadLength(100);
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(builder.getHeader(), true, output);
+
+        int name = 0;
+        for (int target = 0; target < numTargets; ++target) {
+            final int targetStart = 10000 + target * 5000;
+            for (int i = 0; i < pairsPerTarget; ++i) {
+                final int start1 = targetStart + random.nextInt(100);
+                final int start2 = start1 + random.nextInt(100);
+                builder.addPair("pair" + name++, 0, start1, start2);
+            }
+            // Write each target's pairs as they are made, rather than holding them all
+            for (final SAMRecord record : builder.getRecords()) writer.addAlignment(record);
+            builder.getRecords().clear();
+        }
+        writer.close();
+    }
+
+    private static File runMarkDuplicatesWithMateCigar(final File input, final boolean useBucketedMarkQueue) throws Exception {
+        final File output = File.createTempFile("MarkDuplicatesWithMateCigarDeepLoci.", ".bam");
+        output.deleteOnExit();
+        final File metrics = File.createTempFile("MarkDuplicatesWithMateCigarDeepLoci.", ".metrics");
+        metrics.deleteOnExit();
+
+        Assert.assertEquals(new MarkDuplicatesWithMateCigar().instanceMain(new String[] {
+                "INPUT=" + input.getAbsolutePath(),
+                "OUTPUT=" + output.getAbsolutePath(),
+                "METRICS_FILE=" + metrics.getAbsolutePath(),
+                "USE_BUCKETED_MARK_QUEUE=" + useBucketedMarkQueue,
+                "TMP_DIR=" + IOUtil.getDefaultTmpDir().getAbsolutePath()}), 0);
+        return output;
+    }
+}
@@ -0,0 +1,109 @@
+package picard.sam.markduplicates;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.sam.markduplicates.util.PackedReadEndsSortingCollection;
+import picard.sam.markduplicates.util.ReadEnds;
+import picard.sam.markduplicates.util.ReadEndsForMarkDuplicates;
+import picard.sam.markduplicates.util.ReadEndsForMarkDuplicatesWithBarcodes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs every MarkDuplicates test with the read ends sorted by PackedReadEndsSortingCollection, to show that the
+ * results are the same as with a SortingCollection, and checks that it sorts in the same order as ReadEndsMDComparator.
+ */
+public class MarkDuplicatesWithPackedReadEndsSortTest extends MarkDuplicatesTest {
+
+    @Override
+    protected AbstractMarkDuplicatesCommandLineProgramTester getTester() {
+        final AbstractMarkDuplicatesCommandLineProgramTester tester = new MarkDuplicatesTester();
+        tester.addArg("USE_PACKED_READ_ENDS_SORT=true");
+        return tester;
+    }
+
+    @DataProvider(name = "packedSortDataProvider")
+    public Object[][] packedSortDataProvider() {
+        return new Object[][] {
+                {false, 100000}, // all in RAM
+                {false, 777},    // spilled several times
+                {true, 100000},
+                {true, 777},
+        };
+    }
+
+    @Test(dataProvider = "packedSortDataProvider")
+    public void testPackedSortMatchesComparator(final boolean useBarcodes, final int maxRecordsInRam) {
+        final Random random = new Random(7);
+        final List<ReadEndsForMarkDuplicates> expected = new ArrayList<ReadEndsForMarkDuplicates>();
+        final PackedReadEndsSortingCollection sort = new PackedReadEndsSortingCollection(useBarcodes, maxRecordsInRam, IOUtil.getDefaultTmpDir());
+
+        for (int i = 0; i < 5000; ++i) {
+            final ReadEndsForMarkDuplicates readEnds = useBarcodes ? new ReadEndsForMarkDuplicatesWithBarcodes() : new ReadEndsForMarkDuplicates();
+            // Few distinct values, so that most of the key is compared
+            readEnds.libraryId = (short) random.nextInt(2);
+            readEnds.orientation = (byte) random.nextInt(6);
+            readEnds.read1ReferenceIndex = random.nextInt(3) - 1;
+            readEnds.read1Coordinate = random.nextInt(20) - 5;
+            if (readEnds.orientation > ReadEnds.R) {
+                readEnds.read2ReferenceIndex = random.nextInt(2);
+                readEnds.read2Coordinate = random.nextInt(20);
+                readEnds.read2IndexInFile = 1000000000000L + random.nextInt(1000);
+            }
+            readEnds.read1IndexInFile = i;
+            readEnds.score = (short) (random.nextInt(65536) - 32768);
+            readEnds.readGroup = (short) (random.nextInt(10) - 1);
+            readEnds.tile = (short) random.nextInt(2000);
+            readEnds.x = (short) random.nextInt(65536);
+            readEnds.y = (short) random.nextInt(65536);
+            readEnds.orientationForOpticalDuplicates = (byte) (random.nextInt(7) - 1);
+            if (useBarcodes) {
+                final ReadEndsForMarkDuplicatesWithBarcodes withBarcodes = (ReadEndsForMarkDuplicatesWithBarcodes) readEnds;
+                withBarcodes.barcode = random.nextInt(3) - 1;
+                withBarcodes.readOneBarcode = random.nextBoolean() ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+                withBarcodes.readTwoBarcode = random.nextInt();
+            }
+            expected.add(readEnds);
+            sort.add(readEnds);
+        }
+        sort.doneAdding();
+        Collections.sort(expected, new MarkDuplicates.ReadEndsMDComparator(useBarcodes));
+
+        final CloseableIterator<ReadEndsForMarkDuplicates> iterator = sort.iterator();
+        for (final ReadEndsForMarkDuplicates e : expected) {
+            Assert.assertTrue(iterator.hasNext());
+            final ReadEndsForMarkDuplicates a = iterator.next();
+            Assert.assertEquals(a.getClass(), e.getClass());
+            Assert.assertEquals(a.libraryId, e.libraryId);
+            Assert.assertEquals(a.orientation, e.orientation);
+            Assert.assertEquals(a.read1ReferenceIndex, e.read1ReferenceIndex);
+            Assert.assertEquals(a.read1Coordinate, e.read1Coordinate);
+            Assert.assertEquals(a.read2ReferenceIndex, e.read2ReferenceIndex);
+            Assert.assertEquals(a.read2Coordinate, e.read2Coordinate);
+            Assert.assertEquals(a.read1IndexInFile, e.read1IndexInFile);
+            Assert.assertEquals(a.read2IndexInFile, e.read2IndexInFile);
+            Assert.assertEquals(a.score, e.score);
+            Assert.assertEquals(a.readGroup, e.readGroup);
+            Assert.assertEquals(a.tile, e.tile);
+            Assert.assertEquals(a.x, e.x);
+            Assert.assertEquals(a.y, e.y);
+            Assert.assertEquals(a.orientationForOpticalDuplicates, e.orientationForOpticalDuplicates);
+            if (useBarcodes) {
+                Assert.assertEquals(((ReadEndsForMarkDuplicatesWithBarcodes) a).barcode, ((ReadEndsForMarkDuplicatesWithBarcodes) e).barcode);
+                Assert.assertEquals(((ReadEndsForMarkDuplicatesWithBarcodes) a).readOneBarcode, ((ReadEndsForMarkDuplicatesWithBarcodes) e).readOneBarcode);
+                Assert.assertEquals(((ReadEndsForMarkDuplicatesWithBarcodes) a).readTwoBarcode, ((ReadEndsForMarkDuplicatesWithBarcodes) e).readTwoBarcode);
+            }
+        }
+        Assert.assertFalse(iterator.hasNext());
+        iterator.close();
+        Assert.assertEquals(sort.getNumSpills() > 0, maxRecordsInRam < 5000);
+        Assert.assertEquals(sort.getNumBytesSpilled(), (5000 - 5000 % maxRecordsInRam) * (long) PackedReadEndsSortingCollection.getSizeOf(useBarcodes));
+        sort.cleanup();
+    }
+}
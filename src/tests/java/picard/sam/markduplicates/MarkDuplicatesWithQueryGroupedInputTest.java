@@ -0,0 +1,135 @@
+package picard.sam.markduplicates;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.TestUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.PicardException;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs every MarkDuplicates test with the input sorted by query name, to show that the duplicates found are the same
+ * as with coordinate sorted input, and checks that secondary and supplementary records are marked as their primaries.
+ */
+public class MarkDuplicatesWithQueryGroupedInputTest extends MarkDuplicatesTest {
+
+    @Override
+    protected AbstractMarkDuplicatesCommandLineProgramTester getTester() {
+        final AbstractMarkDuplicatesCommandLineProgramTester tester = new MarkDuplicatesTester();
+        tester.setInputSortOrder(SAMFileHeader.SortOrder.queryname);
+        return tester;
+    }
+
+    @DataProvider(name = "queryGroupedOrders")
+    public Object[][] queryGroupedOrders() {
+        return new Object[][] {
+                {SAMFileHeader.SortOrder.queryname, SAMFileHeader.GroupOrder.none},
+                {SAMFileHeader.SortOrder.unsorted, SAMFileHeader.GroupOrder.query},
+        };
+    }
+
+    @Test(dataProvider = "queryGroupedOrders")
+    public void testSecondaryAndSupplementaryMarkedAsPrimary(final SAMFileHeader.SortOrder sortOrder, final SAMFileHeader.GroupOrder groupOrder) {
+        final File outputDir = IOUtil.createTempDir(TEST_BASE_NAME + ".", ".tmp");
+        outputDir.deleteOnExit();
+
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.unsorted);
+        for (final String name : new String[]{"Z_TEMPLATE", "A_TEMPLATE"}) {
+            builder.addPair(name, 0, 100, 300);
+            final List<SAMRecord> secondary = builder.addPair(name, 1, 500, 700, false, false, null, null, false, true, true, true, 30);
+            secondary.get(1).setNotPrimaryAlignmentFlag(false);
+            secondary.get(1).setSupplementaryAlignmentFlag(true);
+        }
+        builder.addFrag("FRAGMENT", 0, 100, false);
+        builder.addFrag("FRAGMENT", 1, 900, false).setNotPrimaryAlignmentFlag(true);
+        // An unmapped template among the mapped ones, as query grouped input has them
+        builder.addUnmappedPair("UNMAPPED");
+
+        final SAMFileHeader header = builder.getHeader().clone();
+        header.setSortOrder(sortOrder);
+        header.setGroupOrder(groupOrder);
+        // The builder keeps the records in coordinate order, so group them by name, in the order the names first appear
+        final Map<String, List<SAMRecord>> templates = new LinkedHashMap<String, List<SAMRecord>>();
+        for (final SAMRecord rec : builder.getRecords()) {
+            if (!templates.containsKey(rec.getReadName())) templates.put(rec.getReadName(), new ArrayList<SAMRecord>());
+            templates.get(rec.getReadName()).add(rec);
+        }
+        final File input = new File(outputDir, "input.sam");
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeSAMOrBAMWriter(header, sortOrder == SAMFileHeader.SortOrder.unsorted, input);
+        for (final List<SAMRecord> template : templates.values()) {
+            for (final SAMRecord rec : template) writer.addAlignment(rec);
+        }
+        writer.close();
+
+        final File output = new File(outputDir, "output.sam");
+        final MarkDuplicates markDuplicates = new MarkDuplicates();
+        Assert.assertEquals(markDuplicates.instanceMain(new String[]{
+                "INPUT=" + input.getAbsolutePath(),
+                "OUTPUT=" + output.getAbsolutePath(),
+                "METRICS_FILE=" + new File(outputDir, "metrics.txt").getAbsolutePath(),
+                "PROGRAM_RECORD_ID=null"}), 0);
+
+        final SamReader expectedReader = SamReaderFactory.makeDefault().open(input);
+        final SamReader reader = SamReaderFactory.makeDefault().open(output);
+        Assert.assertEquals(reader.getFileHeader().getSortOrder(), sortOrder);
+        Assert.assertEquals(reader.getFileHeader().getGroupOrder(), groupOrder);
+
+        // Records come out in the same order, and every record of a template is marked the same way
+        final Map<String, Boolean> duplicateByName = new HashMap<String, Boolean>();
+        final List<String> expectedNames = new ArrayList<String>();
+        final List<String> names = new ArrayList<String>();
+        for (final SAMRecord rec : expectedReader) expectedNames.add(rec.getReadName());
+        for (final SAMRecord rec : reader) {
+            names.add(rec.getReadName());
+            final Boolean duplicate = duplicateByName.get(rec.getReadName());
+            if (duplicate == null) duplicateByName.put(rec.getReadName(), rec.getDuplicateReadFlag());
+            else Assert.assertEquals(rec.getDuplicateReadFlag(), duplicate.booleanValue(), rec.getSAMString());
+        }
+        CloserUtil.close(expectedReader);
+        CloserUtil.close(reader);
+
+        Assert.assertEquals(names, expectedNames);
+        Assert.assertNotEquals(duplicateByName.get("A_TEMPLATE"), duplicateByName.get("Z_TEMPLATE"));
+        Assert.assertTrue(duplicateByName.get("FRAGMENT"));
+        Assert.assertFalse(duplicateByName.get("UNMAPPED"));
+        TestUtil.recursiveDelete(outputDir);
+    }
+
+    @Test(expectedExceptions = PicardException.class)
+    public void testUnsortedInputRejected() {
+        final File outputDir = IOUtil.createTempDir(TEST_BASE_NAME + ".", ".tmp");
+        outputDir.deleteOnExit();
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.unsorted);
+        builder.addPair("PAIR", 0, 100, 300);
+        final File input = new File(outputDir, "input.sam");
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeSAMOrBAMWriter(builder.getHeader(), true, input);
+        for (final SAMRecord rec : builder.getRecords()) writer.addAlignment(rec);
+        writer.close();
+
+        final MarkDuplicates markDuplicates = new MarkDuplicates();
+        try {
+            markDuplicates.instanceMain(new String[]{
+                    "INPUT=" + input.getAbsolutePath(),
+                    "OUTPUT=" + new File(outputDir, "output.sam").getAbsolutePath(),
+                    "METRICS_FILE=" + new File(outputDir, "metrics.txt").getAbsolutePath(),
+                    "PROGRAM_RECORD_ID=null"});
+        } finally {
+            TestUtil.recursiveDelete(outputDir);
+        }
+    }
+}
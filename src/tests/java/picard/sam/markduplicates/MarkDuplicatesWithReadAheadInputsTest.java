@@ -0,0 +1,69 @@
+package picard.sam.markduplicates;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.metrics.MetricsFile;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Runs every MarkDuplicates test with each input read on its own thread, to show that the results are the same as
+ * reading them on the calling thread, and checks the same for merged inputs.
+ */
+public class MarkDuplicatesWithReadAheadInputsTest extends MarkDuplicatesTest {
+    @Override
+    protected AbstractMarkDuplicatesCommandLineProgramTester getTester() {
+        final AbstractMarkDuplicatesCommandLineProgramTester tester = new MarkDuplicatesTester();
+        tester.addArg("READ_AHEAD_INPUTS=true");
+        return tester;
+    }
+
+    @Test
+    public void testMergedInputs() {
+        final File outputDir = IOUtil.createTempDir("MarkDuplicatesWithReadAheadInputsTest.", ".tmp");
+        outputDir.deleteOnExit();
+
+        final File expectedOutput = runMarkDuplicates(outputDir, false);
+        final File actualOutput = runMarkDuplicates(outputDir, true);
+
+        final SamReader expectedReader = SamReaderFactory.makeDefault().open(expectedOutput);
+        final SamReader actualReader = SamReaderFactory.makeDefault().open(actualOutput);
+        Assert.assertEquals(actualReader.getFileHeader().getReadGroups(), expectedReader.getFileHeader().getReadGroups());
+        final Iterator<SAMRecord> actualIterator = actualReader.iterator();
+        for (final SAMRecord expected : expectedReader) {
+            Assert.assertTrue(actualIterator.hasNext());
+            Assert.assertEquals(actualIterator.next().getSAMString(), expected.getSAMString());
+        }
+        Assert.assertFalse(actualIterator.hasNext());
+        CloserUtil.close(expectedReader);
+        CloserUtil.close(actualReader);
+
+        Assert.assertTrue(MetricsFile.areMetricsAndHistogramsEqual(new File(actualOutput.getPath() + ".metrics"),
+                new File(expectedOutput.getPath() + ".metrics")));
+    }
+
+    /** Runs MarkDuplicates on the three merge test files, returning the output, next to which the metrics are written. */
+    private File runMarkDuplicates(final File outputDir, final boolean readAhead) {
+        final File output = new File(outputDir, "readAhead" + readAhead + ".sam");
+        final List<String> args = new ArrayList<String>();
+        for (int i = 1; i <= 3; ++i) {
+            args.add("INPUT=" + new File(TEST_DATA_DIR, "merge" + i + ".sam").getAbsolutePath());
+        }
+        args.add("OUTPUT=" + output.getAbsolutePath());
+        args.add("METRICS_FILE=" + output.getAbsolutePath() + ".metrics");
+        args.add("READ_AHEAD_INPUTS=" + readAhead);
+        args.add("PROGRAM_RECORD_ID=null");
+        Assert.assertEquals(new MarkDuplicates().instanceMain(args.toArray(new String[args.size()])), 0);
+        output.deleteOnExit();
+        new File(output.getPath() + ".metrics").deleteOnExit();
+        return output;
+    }
+}
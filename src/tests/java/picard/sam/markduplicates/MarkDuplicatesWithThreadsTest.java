@@ -0,0 +1,61 @@
+package picard.sam.markduplicates;
+
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs every MarkDuplicates test with the read ends computed on several threads, to show that the results are the
+ * same as with a single thread.
+ */
+public class MarkDuplicatesWithThreadsTest extends MarkDuplicatesTest {
+
+    @Override
+    protected AbstractMarkDuplicatesCommandLineProgramTester getTester() {
+        final AbstractMarkDuplicatesCommandLineProgramTester tester = new MarkDuplicatesTester();
+        tester.addArg("NUM_THREADS=3");
+        return tester;
+    }
+
+    /**
+     * Some barcode tags part way through the input are integers rather than strings, so building their read ends
+     * throws on a worker thread once the reader has filled the queue of batches ahead of them.  The run must fail
+     * rather than wait for the reader forever.
+     */
+    @Test(expectedExceptions = SAMException.class, timeOut = 60000)
+    public void testReadEndsFailureDoesNotHang() throws IOException {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        for (int i = 0; i < 60000; ++i) {
+            final SAMRecord rec = builder.addFrag("read" + i, 0, 1 + i, false);
+            if (i >= 30000 && i < 31000) rec.setAttribute("BC", i);
+            else rec.setAttribute("BC", "ACGT");
+        }
+
+        final File input = File.createTempFile("markDuplicatesWithThreads", ".bam");
+        input.deleteOnExit();
+        final File output = File.createTempFile("markDuplicatesWithThreads", ".bam");
+        output.deleteOnExit();
+        final File metrics = File.createTempFile("markDuplicatesWithThreads", ".duplicate_metrics");
+        metrics.deleteOnExit();
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(builder.getHeader(), false, input);
+        for (final SAMRecord rec : builder) writer.addAlignment(rec);
+        writer.close();
+
+        new MarkDuplicates().instanceMain(new String[]{
+                "INPUT=" + input.getAbsolutePath(),
+                "OUTPUT=" + output.getAbsolutePath(),
+                "METRICS_FILE=" + metrics.getAbsolutePath(),
+                "BARCODE_TAG=BC",
+                // Spilling every few read ends slows the consumer down, so that the reader gets ahead of it
+                "SORTING_COLLECTION_SIZE_RATIO=0.000001",
+                "NUM_THREADS=2"
+        });
+    }
+}
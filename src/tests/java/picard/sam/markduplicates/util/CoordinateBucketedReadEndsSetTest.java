@@ -0,0 +1,104 @@
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+public class CoordinateBucketedReadEndsSetTest {
+
+    /** Read ends with only the fields compared by MarkQueueComparator set, and no record. */
+    private ReadEndsForMateCigar template;
+
+    private ReadEndsForMateCigar newReadEnds(final int referenceIndex, final int coordinate, final byte orientation, final int mateCoordinate) {
+        if (null == template) {
+            final SAMRecordSetBuilder builder = new SAMRecordSetBuilder();
+            final SAMRecord record = builder.addFrag("template", 0, 1, false);
+            template = new ReadEndsForMateCigar(builder.getHeader(), new SamRecordWithOrdinalAndSetDuplicateReadFlag(record, 0), new OpticalDuplicateFinder(), (short) 0);
+        }
+        final ReadEndsForMateCigar readEnds = new ReadEndsForMateCigar(template, null);
+        readEnds.read1ReferenceIndex = referenceIndex;
+        readEnds.read1Coordinate = coordinate;
+        readEnds.orientation = orientation;
+        readEnds.read2ReferenceIndex = orientation > ReadEnds.R ? referenceIndex : -1;
+        readEnds.read2Coordinate = orientation > ReadEnds.R ? mateCoordinate : -1;
+        return readEnds;
+    }
+
+    @DataProvider(name = "windows")
+    public Object[][] windows() {
+        return new Object[][] {
+                {50, 10},     // deep loci within a window smaller than the initial ring
+                {5000, 1000}, // read ends spread over more coordinates than the initial ring, so it grows
+        };
+    }
+
+    /** Checks that the set does just as a TreeSet ordered by MarkQueueComparator does, for a single library. */
+    @Test(dataProvider = "windows")
+    public void testMatchesTreeSet(final int windowSize, final int step) {
+        final Random random = new Random(11);
+        final MarkQueue.ReadEndsSet expected = new MarkQueue.TreeReadEndsSet();
+        final MarkQueue.ReadEndsSet actual = new CoordinateBucketedReadEndsSet();
+
+        int referenceIndex = 0;
+        int position = -20; // unclipped 5' coordinates may be before the start of the reference
+        for (int i = 0; i < 50000; ++i) {
+            if (random.nextInt(1000) == 0) {
+                // move to the next reference, sometimes leaving read ends behind on the last
+                ++referenceIndex;
+                position = random.nextInt(100);
+            } else if (random.nextInt(100) == 0) {
+                position += random.nextInt(step);
+            }
+
+            final ReadEndsForMateCigar readEnds = newReadEnds(referenceIndex, position + random.nextInt(windowSize) - windowSize / 4,
+                    (byte) random.nextInt(6), position + random.nextInt(20));
+            switch (random.nextInt(5)) {
+                case 0:
+                case 1:
+                    Assert.assertEquals(actual.add(readEnds), expected.add(readEnds));
+                    break;
+                case 2:
+                    Assert.assertSame(actual.get(readEnds), expected.get(readEnds));
+                    break;
+                case 3:
+                    Assert.assertSame(actual.remove(readEnds), expected.remove(readEnds));
+                    break;
+                default:
+                    Assert.assertSame(actual.pollFirst(), expected.pollFirst());
+            }
+            Assert.assertEquals(actual.size(), expected.size());
+            if (expected.size() > 0) Assert.assertSame(actual.first(), expected.first());
+        }
+
+        while (expected.size() > 0) Assert.assertSame(actual.pollFirst(), expected.pollFirst());
+        Assert.assertNull(actual.pollFirst());
+        Assert.assertEquals(actual.size(), 0);
+    }
+
+    @Test
+    public void testPairsBeforeFragments() {
+        final MarkQueue.ReadEndsSet set = new CoordinateBucketedReadEndsSet();
+        final ReadEndsForMateCigar fragment = newReadEnds(0, 100, ReadEnds.F, 0);
+        final ReadEndsForMateCigar pair = newReadEnds(0, 100, ReadEnds.FR, 300);
+        final ReadEndsForMateCigar later = newReadEnds(0, 101, ReadEnds.RF, 300);
+        Assert.assertTrue(set.add(later));
+        Assert.assertTrue(set.add(fragment));
+        Assert.assertTrue(set.add(pair));
+        Assert.assertFalse(set.add(newReadEnds(0, 100, ReadEnds.FR, 300)));
+
+        Assert.assertSame(set.pollFirst(), pair);
+        Assert.assertSame(set.pollFirst(), fragment);
+        Assert.assertSame(set.pollFirst(), later);
+        Assert.assertNull(set.pollFirst());
+    }
+
+    @Test(expectedExceptions = NoSuchElementException.class)
+    public void testFirstOfEmptySet() {
+        new CoordinateBucketedReadEndsSet().first();
+    }
+}
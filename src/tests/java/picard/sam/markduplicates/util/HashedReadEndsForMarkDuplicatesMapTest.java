@@ -0,0 +1,83 @@
+package picard.sam.markduplicates.util;
+
+import htsjdk.samtools.util.IOUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests for HashedReadEndsForMarkDuplicatesMap
+ */
+public class HashedReadEndsForMarkDuplicatesMapTest {
+
+    @DataProvider(name = "maxRecordsInRam")
+    public Object[][] maxRecordsInRam() {
+        return new Object[][] {{1000000}, {100}, {1}};
+    }
+
+    /** Puts and removes the mates of reads spread over several sequences, in coordinate order, as MarkDuplicates does. */
+    @Test(dataProvider = "maxRecordsInRam")
+    public void testPutAndRemoveInCoordinateOrder(final int maxRecordsInRam) {
+        final File tmpDir = IOUtil.createTempDir("HashedReadEndsForMarkDuplicatesMapTest.", ".tmp");
+        final HashedReadEndsForMarkDuplicatesMap map = new HashedReadEndsForMarkDuplicatesMap(maxRecordsInRam, new ReadEndsForMarkDuplicatesCodec(), tmpDir);
+        final Random random = new Random(42);
+        final int numSequences = 5;
+        final int readsPerSequence = 2000;
+
+        // The mates of each read are on a random sequence at or after its own; outstanding maps the key to the read's index
+        final Map<Integer, Map<String, Long>> outstandingBySequence = new HashMap<Integer, Map<String, Long>>();
+        for (int sequence = 0; sequence < numSequences; ++sequence) outstandingBySequence.put(sequence, new HashMap<String, Long>());
+
+        long index = 0;
+        int expectedSize = 0;
+        for (int sequence = 0; sequence < numSequences; ++sequence) {
+            for (int i = 0; i < readsPerSequence; ++i, ++index) {
+                // Either complete a pair whose first end was seen on an earlier sequence or earlier on this one, or start one
+                final Map<String, Long> outstanding = outstandingBySequence.get(sequence);
+                if (!outstanding.isEmpty() && random.nextBoolean()) {
+                    final String key = outstanding.keySet().iterator().next();
+                    final long firstIndex = outstanding.remove(key);
+                    final ReadEndsForMarkDuplicates readEnds = map.remove(sequence, key);
+                    Assert.assertNotNull(readEnds, key);
+                    Assert.assertEquals(readEnds.read1IndexInFile, firstIndex);
+                    Assert.assertEquals(readEnds.read2ReferenceIndex, sequence);
+                    --expectedSize;
+                } else {
+                    final String key = "RG" + random.nextInt(3) + ":H0164ALXX140820:2:1101:" + index + ":" + random.nextInt(100000);
+                    final int mateSequence = sequence + random.nextInt(numSequences - sequence);
+                    final ReadEndsForMarkDuplicates readEnds = new ReadEndsForMarkDuplicates();
+                    readEnds.read1ReferenceIndex = sequence;
+                    readEnds.read1IndexInFile = index;
+                    readEnds.read2ReferenceIndex = mateSequence;
+                    map.put(mateSequence, key, readEnds);
+                    outstandingBySequence.get(mateSequence).put(key, index);
+                    ++expectedSize;
+                }
+                Assert.assertNull(map.remove(sequence, "RG0:not a read name"));
+                Assert.assertEquals(map.size(), expectedSize);
+                Assert.assertTrue(map.sizeInRam() <= map.size());
+            }
+        }
+
+        if (maxRecordsInRam >= numSequences * readsPerSequence) {
+            Assert.assertEquals(map.getNumSpills(), 0);
+        } else {
+            Assert.assertTrue(map.getNumSpills() > 0);
+        }
+        Assert.assertEquals(map.getNumHashCollisions(), 0);
+        Assert.assertTrue(map.getMeanProbeLength() >= 1.0);
+        IOUtil.deleteDirectoryTree(tmpDir);
+    }
+
+    @Test
+    public void testHashesDiffer() {
+        Assert.assertNotEquals(HashedReadEndsForMarkDuplicatesMap.hash1("RG1:read"), HashedReadEndsForMarkDuplicatesMap.hash1("RG1:reae"));
+        Assert.assertNotEquals(HashedReadEndsForMarkDuplicatesMap.hash2("RG1:read"), HashedReadEndsForMarkDuplicatesMap.hash2("RG1:reae"));
+        Assert.assertNotEquals(HashedReadEndsForMarkDuplicatesMap.hash1("RG1:read"), HashedReadEndsForMarkDuplicatesMap.hash2("RG1:read"));
+    }
+}
@@ -128,6 +128,50 @@ public class OpticalDuplicateFinderTest {
         assertEquals(finder.findOpticalDuplicates(locs, locs.get(2)), new boolean[] {true, true, false});
     }
 
+    @DataProvider(name = "gridDistances")
+    public Object[][] gridDistances() {
+        return new Object[][] {{100}, {5}, {0}};
+    }
+
+    /** The grid used for large lists of duplicates must flag exactly the reads that comparing every pair does. */
+    @Test(dataProvider = "gridDistances")
+    public void testGridMatchesPairwise(final int distance) {
+        final Log log = Log.getInstance(OpticalDuplicateFinderTest.class);
+        final OpticalDuplicateFinder pairwise = new OpticalDuplicateFinder(OpticalDuplicateFinder.DEFAULT_READ_NAME_REGEX, distance, log);
+        pairwise.gridThreshold = Integer.MAX_VALUE;
+        final OpticalDuplicateFinder grid = new OpticalDuplicateFinder(OpticalDuplicateFinder.DEFAULT_READ_NAME_REGEX, distance, log);
+        grid.gridThreshold = 0;
+
+        for (int i = 0; i < 50; ++i) {
+            final Random random = new Random(i);
+            final List<PhysicalLocation> locs = new ArrayList<>();
+            for (int j = 0; j < 1000; ++j) {
+                // Dense clusters on a couple of tiles and read groups, and a few reads without a location
+                if (random.nextInt(50) == 0) {
+                    locs.add(loc((short) 1, -1, -1, -1));
+                } else {
+                    locs.add(loc((short) random.nextInt(2), 1 + random.nextInt(2), random.nextInt(4 * distance + 10) - 2, random.nextInt(4 * distance + 10)));
+                }
+            }
+            if (i % 5 == 0) locs.add(locs.get(random.nextInt(locs.size()))); // the same read twice
+
+            final PhysicalLocation keeper = i % 3 == 0 ? null : locs.get(random.nextInt(locs.size()));
+            assertEquals(grid.findOpticalDuplicates(locs, keeper), pairwise.findOpticalDuplicates(locs, keeper));
+        }
+    }
+
+    /** Helper method to create a physical location in a read group. */
+    private PhysicalLocation loc(final short readGroup, final int tile, final int x, final int y) {
+        final PhysicalLocation l = new PhysicalLocationInt() {
+            @Override
+            public short getReadGroup() { return readGroup; }
+        };
+        l.setTile((short) tile);
+        l.setX(x);
+        l.setY(y);
+        return l;
+    }
+
     /** Helper method to create a physical location. */
     private PhysicalLocation loc(final int tile, final int x, final int y) {
         final PhysicalLocation l = new PhysicalLocationInt() {
@@ -30,6 +30,7 @@ public abstract class SamFileTester extends CommandLineProgramTest {
     private File output;
     private int readNameCounter = 0;
     private boolean noMateCigars = false;
+    private SAMFileHeader.SortOrder inputSortOrder = null;
     private boolean deleteOnExit = true;
     private final ArrayList<String> args = new ArrayList<String>();
 
@@ -97,6 +98,11 @@ public abstract class SamFileTester extends CommandLineProgramTest {
         this.noMateCigars = value;
     }
 
+    /** Sets the order to write the input records in, if not that of the header the records were built with. */
+    public void setInputSortOrder(final SAMFileHeader.SortOrder sortOrder) {
+        this.inputSortOrder = sortOrder;
+    }
+
     public boolean getDeleteOnExit() {
         return deleteOnExit;
     }
@@ -293,7 +299,14 @@ public abstract class SamFileTester extends CommandLineProgramTest {
     private File createInputFile() {
         // Create the input file
         final File input = new File(outputDir, "input.sam");
-        final SAMFileWriter writer = new SAMFileWriterFactory().makeSAMOrBAMWriter(samRecordSetBuilder.getHeader(), true, input);
+        SAMFileHeader header = samRecordSetBuilder.getHeader();
+        boolean presorted = true;
+        if (inputSortOrder != null && inputSortOrder != header.getSortOrder()) {
+            header = header.clone();
+            header.setSortOrder(inputSortOrder);
+            presorted = false;
+        }
+        final SAMFileWriter writer = new SAMFileWriterFactory().makeSAMOrBAMWriter(header, presorted, input);
         for (final SAMRecord record : samRecordSetBuilder.getRecords()) {
             writer.addAlignment(record);
         }
@@ -0,0 +1,75 @@
+package picard.sam.util;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordSetBuilder;
+import htsjdk.samtools.SAMTag;
+import htsjdk.samtools.util.StringUtil;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+public class RawBamRecordTest {
+
+    /**
+     * Tools such as bwa and samtools write tags in the order they add them, rather than htsjdk's order, so a PG tag
+     * may come before tags that htsjdk would put ahead of it.  Setting it must replace it where it is rather than
+     * insert a second one, and removing DT must leave the other tags alone.
+     */
+    @Test
+    public void testSetStringAttributeWithUnsortedTags() throws IOException {
+        final byte[] withoutTags = encodeWithoutTags();
+        final byte[] expected = appendTags(withoutTags,
+                intTag("NM", 2), stringTag("MD", "10A5^C20"), intTag("AS", 40), stringTag(SAMTag.PG.name(), "MarkDuplicates"),
+                intTag("XS", 12));
+
+        final RawBamRecord rec = new RawBamRecord();
+        rec.read(new ByteArrayInputStream(appendTags(withoutTags,
+                intTag("NM", 2), stringTag("MD", "10A5^C20"), intTag("AS", 40), stringTag(SAMTag.PG.name(), "bwa"),
+                stringTag("DT", "SQ"), intTag("XS", 12))));
+        Assert.assertEquals(rec.getStringAttribute(SAMTag.PG.name()), "bwa");
+        Assert.assertEquals(rec.getStringAttribute("DT"), "SQ");
+        rec.setStringAttribute(SAMTag.PG.name(), "MarkDuplicates");
+        rec.setStringAttribute("DT", null);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        rec.write(out);
+        Assert.assertEquals(out.toByteArray(), expected);
+    }
+
+    /** Encodes a mapped fragment with no tags, with its block_size. */
+    private static byte[] encodeWithoutTags() {
+        final SAMRecordSetBuilder builder = new SAMRecordSetBuilder(true, SAMFileHeader.SortOrder.coordinate);
+        final SAMRecord rec = builder.addFrag("read", 0, 100, false);
+        rec.clearAttributes();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final BAMRecordCodec codec = new BAMRecordCodec(builder.getHeader());
+        codec.setOutputStream(out);
+        codec.encode(rec);
+        return out.toByteArray();
+    }
+
+    /** Appends the tags to the record as given, without htsjdk reordering them, and updates its block_size. */
+    private static byte[] appendTags(final byte[] withoutTags, final byte[]... tags) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(withoutTags);
+        for (final byte[] tag : tags) out.write(tag);
+        final byte[] bytes = out.toByteArray();
+        final int blockSize = bytes.length - 4;
+        for (int i = 0; i < 4; ++i) bytes[i] = (byte) (blockSize >>> (8 * i));
+        return bytes;
+    }
+
+    private static byte[] intTag(final String tag, final int value) {
+        return new byte[]{(byte) tag.charAt(0), (byte) tag.charAt(1), 'C', (byte) value};
+    }
+
+    private static byte[] stringTag(final String tag, final String value) {
+        return StringUtil.stringToBytes(tag + "Z" + value + "\0");
+    }
+}
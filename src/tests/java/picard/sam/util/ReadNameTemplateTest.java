@@ -0,0 +1,134 @@
+package picard.sam.util;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import picard.PicardException;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests for the ReadNameTemplate class.
+ */
+public class ReadNameTemplateTest {
+
+    @DataProvider(name = "templates")
+    public Object[][] templates() {
+        return new Object[][]{
+                {"split ':' fields -3,-2,-1", "RUNID:7:1203:2886:82292", new int[]{1203, 2886, 82292}},
+                {"split ':' fields -3,-2,-1", "1109ABC:22981DEF:17995GHI", new int[]{1109, 22981, 17995}},
+                {"split ':' fields -3,-2,-1", "22981:17995", null},
+                {"split ':' fields -3,-2,-1", "RUNID:1203:-2886:82292", null},
+                {"split ':' signed fields -3,-2,-1", "RUNID:1203:-2886:82292", new int[]{1203, -2886, 82292}},
+                {"split ':' fields 3,4,5", "RUNID:7:1203:2886:82292:extra", new int[]{1203, 2886, 82292}},
+                {"split ':' fields 3,4,5", "RUNID:7:1203:2886", null},
+                {"split ':' fields 3,4,5", "RUNID:7::2886:82292", null},
+                {"split ':' fields 5,3,-1", "a:b:1:c:2:3", new int[]{2, 1, 3}},
+                {"split '_' fields 2,3,4", "SRR001_1101_1234_5678", new int[]{1101, 1234, 5678}},
+                {"after '_' split ':' fields 1,2,3", "SRR001.4_1101:1234:5678", new int[]{1101, 1234, 5678}},
+                {"after '_' split ':' fields 1,2,3", "SRR001.4:1101:1234:5678", null},
+                {" after '.'  split ':'  fields  1, 2 ,3 ", "a:b.7:8:9", new int[]{7, 8, 9}},
+                {"split ':' fields 1,2,3", "2147483647:0:00000000000000000001", new int[]{Integer.MAX_VALUE, 0, 1}},
+                {"split ':' fields 1,2,3", "2147483648:0:1", null},
+                {"split ':' signed fields 1,2,3", "-2147483648:0:1", new int[]{Integer.MIN_VALUE, 0, 1}},
+        };
+    }
+
+    @Test(dataProvider = "templates")
+    public void testGetLocation(final String template, final String readName, final int[] expected) {
+        Assert.assertTrue(ReadNameTemplate.isTemplate(template));
+        final int[] location = new int[3];
+        final boolean matched = ReadNameTemplate.parse(template).getLocation(readName, location);
+        Assert.assertEquals(matched, expected != null);
+        if (matched) Assert.assertEquals(location, expected);
+    }
+
+    @Test
+    public void testToString() {
+        for (final String template : new String[]{"split ':' fields -3,-2,-1", "after '_' split '.' signed fields 1,3,2"}) {
+            Assert.assertEquals(ReadNameTemplate.parse(template).toString(), template);
+        }
+    }
+
+    @Test
+    public void testNotTemplates() {
+        Assert.assertFalse(ReadNameTemplate.isTemplate(null));
+        Assert.assertFalse(ReadNameTemplate.isTemplate("(?:.*:)?([0-9]+)[^:]*:([0-9]+)[^:]*:([0-9]+)[^:]*$"));
+        Assert.assertFalse(ReadNameTemplate.isTemplate("split ':' fields 1,2"));
+    }
+
+    @Test(expectedExceptions = PicardException.class)
+    public void testFieldZero() {
+        ReadNameTemplate.parse("split ':' fields 0,1,2");
+    }
+
+    @DataProvider(name = "regexes")
+    public Object[][] regexes() {
+        return new Object[][]{
+                {"(?:.*:)?([0-9]+)[^:]*:([0-9]+)[^:]*:([0-9]+)[^:]*$", "split ':' fields -3,-2,-1"},
+                {"^(?:.*:)?(\\d+)[^:]*:(\\d+)[^:]*:(\\d+)[^:]*", "split ':' fields -3,-2,-1"},
+                {"(?:.*:)?(-?[0-9]+)[^:]*:(-?[0-9]+)[^:]*:(-?[0-9]+)[^:]*$", "split ':' signed fields -3,-2,-1"},
+                {"(?:.*\\.)?([0-9]+)[^.]*\\.([0-9]+)[^.]*\\.([0-9]+)[^.]*", "split '.' fields -3,-2,-1"},
+                {"[^:]*:[^:]*:([0-9]+)[^:]*:([0-9]+)[^:]*:([0-9]+).*", "split ':' fields 3,4,5"},
+                {"([0-9]+)[^_]*_([0-9]+)[^_]*_([0-9]+)[^_]*.*", "split '_' fields 1,2,3"},
+                // Not convertible
+                {"[a-zA-Z0-9]+:[0-9]:([0-9]+):([0-9]+):([0-9]+).*", null},
+                {"(?:.*:)?([0-9]+):([0-9]+):([0-9]+)", null},
+                {"(?:.*:)?([0-9]+)[^:]*:(-?[0-9]+)[^:]*:([0-9]+)[^:]*$", null},
+                {"[^:]*:([0-9]+)[^:]*:([0-9]+)[^:]*:([0-9]+)[^:]*", null},
+                {"(.*:)?([0-9]+)[^:]*:([0-9]+)[^:]*:([0-9]+)[^:]*$", null},
+                {"(?:.*a)?([0-9]+)[^a]*a([0-9]+)[^a]*a([0-9]+)[^a]*$", null},
+                {"(?:.*-)?(-?[0-9]+)[^-]*-(-?[0-9]+)[^-]*-(-?[0-9]+)[^-]*", null},
+        };
+    }
+
+    @Test(dataProvider = "regexes")
+    public void testFromRegex(final String regex, final String expectedTemplate) {
+        final ReadNameTemplate template = ReadNameTemplate.fromRegex(regex);
+        Assert.assertEquals(template == null ? null : template.toString(), expectedTemplate);
+        Assert.assertEquals(new ReadNameParser(regex).getReadNameTemplate() == null, expectedTemplate == null);
+        if (template == null) return;
+
+        // Random read names of digits, delimiters and other characters, for which the template must agree with the regex
+        final Pattern pattern = Pattern.compile(regex);
+        final Random random = new Random(11);
+        final String characters = "0123456789:._-x";
+        final int[] location = new int[3];
+        int numMatched = 0;
+        for (int i = 0; i < 100000; ++i) {
+            final StringBuilder readName = new StringBuilder();
+            final int length = random.nextInt(20);
+            for (int j = 0; j < length; ++j) readName.append(characters.charAt(random.nextInt(characters.length())));
+
+            // As ReadNameParser does, a number too large for an int does not match
+            final Matcher m = pattern.matcher(readName);
+            int[] expected = null;
+            try {
+                if (m.matches()) expected = new int[]{Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3))};
+            } catch (final NumberFormatException e) {
+                expected = null;
+            }
+
+            final boolean matched = template.getLocation(readName.toString(), location);
+            Assert.assertEquals(matched, expected != null, readName.toString());
+            if (matched) {
+                ++numMatched;
+                Assert.assertEquals(location, expected, readName.toString());
+            }
+        }
+        Assert.assertTrue(numMatched > 100);
+    }
+
+    @Test
+    public void testReadNameParserWithTemplate() {
+        final ReadNameParser parser = new ReadNameParser("after '_' split ':' fields 1,2,3");
+        final PhysicalLocationInt loc = new PhysicalLocationInt();
+        Assert.assertTrue(parser.addLocationInformation("SRR001.4_1101:1234:5678", loc));
+        Assert.assertEquals(loc.getTile(), 1101);
+        Assert.assertEquals(loc.getX(), 1234);
+        Assert.assertEquals(loc.getY(), 5678);
+        Assert.assertFalse(parser.addLocationInformation("SRR001.4", loc));
+    }
+}
@@ -0,0 +1,80 @@
+package picard.util;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+public class CompressedBitSetTest {
+
+    @DataProvider(name = "densities")
+    public Object[][] densities() {
+        return new Object[][] {
+                {0.001}, // array chunks only
+                {0.3},   // bitmap chunks only
+                {0.05},  // around the size at which array chunks are converted
+        };
+    }
+
+    @Test(dataProvider = "densities")
+    public void testMatchesBitSet(final double density) {
+        final Random random = new Random(42);
+        final int n = 1 << 20;
+        final BitSet expected = new BitSet(n);
+        final CompressedBitSet actual = new CompressedBitSet();
+
+        // Set the bits in random order, some more than once
+        for (int i = 0; i < n * density * 1.2; ++i) {
+            final int index = random.nextInt(n);
+            expected.set(index);
+            actual.set(index);
+        }
+        Assert.assertEquals(actual.cardinality(), expected.cardinality());
+
+        for (int i = 0; i < n + 100; ++i) {
+            Assert.assertEquals(actual.get(i), expected.get(i), "index " + i);
+        }
+
+        // Read them back in order
+        long next = actual.nextSetBit(0);
+        for (int i = expected.nextSetBit(0); i >= 0; i = expected.nextSetBit(i + 1)) {
+            Assert.assertEquals(next, i);
+            next = actual.nextSetBit(next + 1);
+        }
+        Assert.assertEquals(next, -1);
+    }
+
+    @Test
+    public void testLargeIndexes() {
+        final CompressedBitSet bits = new CompressedBitSet();
+        final long big = 5L * Integer.MAX_VALUE;
+        bits.set(big);
+        bits.set(3);
+        bits.set(big + 64);
+
+        Assert.assertEquals(bits.cardinality(), 3);
+        Assert.assertTrue(bits.get(big));
+        Assert.assertFalse(bits.get(big - 1));
+        Assert.assertFalse(bits.get(-1));
+        Assert.assertEquals(bits.nextSetBit(0), 3);
+        Assert.assertEquals(bits.nextSetBit(4), big);
+        Assert.assertEquals(bits.nextSetBit(big + 1), big + 64);
+        Assert.assertEquals(bits.nextSetBit(big + 65), -1);
+        Assert.assertEquals(bits.nextSetBit(CompressedBitSet.MAX_INDEX + 1), -1);
+    }
+
+    @Test
+    public void testSparseSetIsSmall() {
+        final CompressedBitSet bits = new CompressedBitSet();
+        for (long i = 0; i < 100000000L; i += 100000) bits.set(i);
+        // A thousand values spread over 1526 chunks, rather than 12.5MB of bitmap
+        Assert.assertTrue(bits.getSizeInBytes() < 100000, "size " + bits.getSizeInBytes());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNegativeIndex() {
+        new CompressedBitSet().set(-1);
+    }
+}
@@ -0,0 +1,112 @@
+package picard.util;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+public class PackedBasesTest {
+    private static final byte[] BASES = "ACGTNRY".getBytes();
+
+    private static byte[] randomBases(final Random random, final int length, final int numBases) {
+        final byte[] bases = new byte[length];
+        for (int i = 0; i < length; ++i) bases[i] = BASES[random.nextInt(numBases)];
+        return bases;
+    }
+
+    /** Mutates a few bases, so that reads are mostly similar, as duplicates are. */
+    private static byte[] mutate(final Random random, final byte[] bases) {
+        final byte[] mutated = bases.clone();
+        for (int i = random.nextInt(8); i > 0; --i) mutated[random.nextInt(mutated.length)] = BASES[random.nextInt(BASES.length)];
+        return mutated;
+    }
+
+    @Test
+    public void testGetBases() {
+        final byte[] bases = "ACGTNACGTTTGCANNNRYacgtACGTACGTACGTAC".getBytes();
+        final PackedBases packed = new PackedBases(bases);
+        Assert.assertEquals(packed.length(), bases.length);
+        // Everything but ACGT is a no-call, which keeps its byte
+        Assert.assertEquals(new String(packed.getBases(0, bases.length)), "ACGTNACGTTTGCANNNRYacgtACGTACGTACGTAC");
+        Assert.assertEquals(new String(packed.getBases(31, 35)), "ACGT");
+        Assert.assertEquals(new String(new PackedBases(bases, 5).getBases(0, 5)), "ACGTN");
+    }
+
+    @Test
+    public void testCountMismatchesAndComparePrefix() {
+        final Random random = new Random(3);
+        for (int i = 0; i < 10000; ++i) {
+            final int length = 1 + random.nextInt(150);
+            final byte[] lhs = randomBases(random, length, random.nextBoolean() ? 4 : BASES.length);
+            final byte[] rhs = random.nextBoolean() ? mutate(random, lhs) : randomBases(random, length + random.nextInt(3), BASES.length);
+            final PackedBases packedLhs = new PackedBases(lhs);
+            final PackedBases packedRhs = new PackedBases(rhs);
+
+            final int start = random.nextInt(length + 1);
+            final int end = start + random.nextInt(length - start + 1);
+            int expected = 0;
+            for (int j = start; j < end; ++j) {
+                if (lhs[j] != rhs[j]) ++expected;
+            }
+            Assert.assertEquals(packedLhs.countMismatches(packedRhs, start, end, Integer.MAX_VALUE), expected);
+            final int maxMismatches = random.nextInt(5);
+            final int counted = packedLhs.countMismatches(packedRhs, start, end, maxMismatches);
+            Assert.assertEquals(counted > maxMismatches, expected > maxMismatches);
+            if (expected <= maxMismatches) Assert.assertEquals(counted, expected);
+
+            final int prefixLength = random.nextInt(length + 1);
+            boolean samePrefix = true;
+            for (int j = 0; j < prefixLength; ++j) samePrefix &= lhs[j] == rhs[j];
+            final int cmp = packedLhs.comparePrefix(packedRhs, prefixLength);
+            Assert.assertEquals(cmp == 0, samePrefix);
+            Assert.assertEquals(Integer.signum(packedRhs.comparePrefix(packedLhs, prefixLength)), -Integer.signum(cmp));
+        }
+    }
+
+    /** IUPAC codes other than N are no-calls too, but are only the same base as the same code, as their bytes are. */
+    @Test
+    public void testIupacCodes() {
+        final PackedBases n = new PackedBases("ACGNACGT".getBytes());
+        final PackedBases r = new PackedBases("ACGRACGT".getBytes());
+        final PackedBases y = new PackedBases("ACGYACGT".getBytes());
+        Assert.assertEquals(n.countMismatches(r, 0, 8, 8), 1);
+        Assert.assertEquals(r.countMismatches(y, 0, 8, 8), 1);
+        Assert.assertEquals(r.countMismatches(new PackedBases("ACGRACGT".getBytes()), 0, 8, 8), 0);
+        Assert.assertEquals(r.countMismatches(new PackedBases("ACGAACGT".getBytes()), 0, 8, 8), 1);
+        Assert.assertTrue(n.comparePrefix(r, 4) != 0);
+        Assert.assertTrue(r.comparePrefix(y, 4) != 0);
+        Assert.assertEquals(Integer.signum(y.comparePrefix(r, 4)), -Integer.signum(r.comparePrefix(y, 4)));
+        Assert.assertEquals(r.comparePrefix(y, 3), 0);
+    }
+
+    @Test
+    public void testReadAndWrite() throws IOException {
+        final Random random = new Random(5);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final byte[][] reads = new byte[200][];
+        for (int i = 0; i < reads.length; ++i) {
+            reads[i] = randomBases(random, random.nextInt(300), i % 2 == 0 ? 4 : BASES.length);
+            new PackedBases(reads[i]).write(out);
+        }
+        out.close();
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (final byte[] read : reads) {
+            final PackedBases packed = PackedBases.read(in);
+            Assert.assertEquals(packed.getBases(0, packed.length()), read);
+            Assert.assertEquals(packed.countMismatches(new PackedBases(read), 0, read.length, 0), 0);
+        }
+        Assert.assertEquals(in.read(), -1);
+
+        // A quarter of a byte per base, plus the length and no-call flag
+        final ByteArrayOutputStream one = new ByteArrayOutputStream();
+        new PackedBases(randomBases(random, 150, 4)).write(new DataOutputStream(one));
+        Assert.assertEquals(one.size(), 4 + 38 + 1);
+    }
+}